@@ -0,0 +1,329 @@
+package apps;
+
+import java.io.*;
+import java.util.*;
+
+import common.*;
+import naming.*;
+import storage.*;
+
+/** Measures how the throughput of storage servers scales with the number of
+    clients.
+
+    <p>
+    The <code>bench</code> command expects a full path to a remote directory,
+    optionally followed by a file size in kilobytes (1024 by default) and a
+    number of seconds to run each round for (5 by default). It creates one file
+    per client in the directory and fills it, then runs rounds with 1, 2, 4, 8
+    and 16 clients. In each round, every client repeatedly reads or writes
+    64 KB at random offsets of its own file, one request in four being a write,
+    directly on the storage server hosting the file. The number of requests
+    completed per second, and the speedup over a single client, are printed for
+    each round. The files are deleted at the end.
+
+    <p>
+    To measure a single storage server, run the benchmark against a naming
+    server with only that storage server registered.
+ */
+public class Benchmark extends ClientApplication
+{
+    /** Size of each read or write request. */
+    private static final int    REQUEST_SIZE = 64 * 1024;
+    /** Largest number of clients, and number of files created. */
+    private static final int    MAX_CLIENTS = 16;
+    /** One request in <code>WRITE_RATIO</code> is a write. */
+    private static final int    WRITE_RATIO = 4;
+
+    /** Application entry point. */
+    public static void main(String[] arguments)
+    {
+        new Benchmark().run(arguments);
+    }
+
+    /** Main method.
+
+        @param arguments Command line arguments.
+     */
+    @Override
+    public void coreLogic(String[] arguments) throws ApplicationFailure
+    {
+        if(arguments.length < 1 || arguments.length > 3)
+        {
+            throw new ApplicationFailure("usage: bench remote_directory " +
+                                         "[file_size_kb [seconds]]");
+        }
+
+        RemotePath      directory;
+        long            file_size = 1024 * 1024;
+        long            seconds = 5;
+
+        try
+        {
+            directory = new RemotePath(arguments[0]);
+            if(arguments.length > 1)
+                file_size = Long.parseLong(arguments[1]) * 1024;
+            if(arguments.length > 2)
+                seconds = Long.parseLong(arguments[2]);
+        }
+        catch(IllegalArgumentException e)
+        {
+            throw new ApplicationFailure("cannot parse arguments: " +
+                                         e.getMessage());
+        }
+
+        if(file_size < REQUEST_SIZE || seconds <= 0)
+        {
+            throw new ApplicationFailure("files must hold at least one " +
+                                         "request, and rounds must last at " +
+                                         "least a second");
+        }
+
+        Service         naming_server = NamingStubs.service(directory.hostname);
+        Path[]          files = new Path[MAX_CLIENTS];
+        Lease[]         leases = new Lease[MAX_CLIENTS];
+        LeaseRenewer[]  renewers = new LeaseRenewer[MAX_CLIENTS];
+        Storage[]       servers = new Storage[MAX_CLIENTS];
+
+        for(int index = 0; index < files.length; ++index)
+            files[index] = new Path(directory.path, "bench-" + index);
+
+        try
+        {
+            createFiles(naming_server, directory.path, files);
+
+            // Every file stays locked for writing until the end, so that each
+            // client can both read and write its own file.
+            for(int index = 0; index < files.length; ++index)
+            {
+                leases[index] = naming_server.lease(files[index], true);
+                renewers[index] = new LeaseRenewer(naming_server,
+                                                   leases[index]);
+                renewers[index].start();
+
+                servers[index] = naming_server.getStorage(files[index]);
+                fill(servers[index], files[index], file_size);
+            }
+
+            double      single = 0;
+
+            for(int clients = 1; clients <= MAX_CLIENTS; clients *= 2)
+            {
+                double  rate = round(servers, files, clients, file_size,
+                                     seconds * 1000);
+                if(clients == 1)
+                    single = rate;
+
+                System.out.printf("%2d clients: %8.1f requests/s, " +
+                                  "%7.1f MB/s, %5.2fx\n", clients, rate,
+                                  rate * REQUEST_SIZE / (1024 * 1024),
+                                  rate / single);
+            }
+        }
+        catch(ApplicationFailure e)
+        {
+            throw e;
+        }
+        catch(Throwable t)
+        {
+            throw new ApplicationFailure("benchmark failed: " + t.getMessage());
+        }
+        finally
+        {
+            cleanUp(naming_server, directory.path, files, leases, renewers);
+        }
+    }
+
+    /** Creates the benchmark files, locking the directory meanwhile.
+
+        @throws ApplicationFailure If a file cannot be created.
+     */
+    private void createFiles(Service naming_server, Path directory,
+                             Path[] files) throws Throwable
+    {
+        Lease           lease = naming_server.lease(directory, true);
+
+        try
+        {
+            for(Path file : files)
+            {
+                if(!naming_server.createFile(file))
+                    throw new ApplicationFailure("cannot create " + file);
+            }
+        }
+        finally
+        {
+            naming_server.release(lease);
+        }
+    }
+
+    /** Writes random data to a file until it has the given size. */
+    private void fill(Storage server, Path file, long size) throws Throwable
+    {
+        Random          random = new Random();
+        byte[]          data = new byte[REQUEST_SIZE];
+
+        for(long offset = 0; offset < size; offset += data.length)
+        {
+            random.nextBytes(data);
+            server.write(file, offset,
+                         Arrays.copyOf(data, (int)Math.min(data.length,
+                                                           size - offset)));
+        }
+    }
+
+    /** Runs a round with the given number of clients.
+
+        @return The number of requests completed per second.
+        @throws Throwable If a client fails.
+     */
+    private double round(Storage[] servers, Path[] files, int clients,
+                         long file_size, long milliseconds) throws Throwable
+    {
+        long            deadline = System.currentTimeMillis() + milliseconds;
+        Client[]        running = new Client[clients];
+
+        for(int index = 0; index < clients; ++index)
+        {
+            running[index] = new Client(servers[index], files[index],
+                                        file_size, deadline);
+            running[index].start();
+        }
+
+        long            completed = 0;
+
+        for(Client client : running)
+        {
+            client.join();
+            if(client.failure != null)
+                throw client.failure;
+            completed += client.completed;
+        }
+
+        return completed * 1000.0 / milliseconds;
+    }
+
+    /** Releases the locks on the benchmark files and deletes them, locking
+        the directory meanwhile. Files that cannot be deleted are reported.
+     */
+    private void cleanUp(Service naming_server, Path directory, Path[] files,
+                         Lease[] leases, LeaseRenewer[] renewers)
+    {
+        for(int index = 0; index < files.length; ++index)
+        {
+            try
+            {
+                if(renewers[index] != null)
+                    renewers[index].cancel();
+                if(leases[index] != null)
+                    naming_server.release(leases[index]);
+            }
+            catch(Throwable t)
+            {
+                fatal("could not unlock " + files[index] + ": " +
+                      t.getMessage());
+            }
+        }
+
+        Lease           lease;
+
+        try
+        {
+            lease = naming_server.lease(directory, true);
+        }
+        catch(Throwable t)
+        {
+            report(new ApplicationFailure("cannot lock " + directory +
+                                          " to delete the benchmark files: " +
+                                          t.getMessage()));
+            return;
+        }
+
+        try
+        {
+            for(Path file : files)
+            {
+                try
+                {
+                    if(!naming_server.delete(file))
+                    {
+                        report(new ApplicationFailure(file + " could not be " +
+                                                      "deleted"));
+                    }
+                }
+                catch(FileNotFoundException e)
+                {
+                    // The file was never created.
+                }
+                catch(Throwable t)
+                {
+                    report(new ApplicationFailure("cannot delete " + file +
+                                                  ": " + t.getMessage()));
+                }
+            }
+        }
+        finally
+        {
+            try
+            {
+                naming_server.release(lease);
+            }
+            catch(Throwable t)
+            {
+                fatal("could not unlock " + directory + ": " + t.getMessage());
+            }
+        }
+    }
+
+    /** Client issuing requests on its own file until a deadline. */
+    private static class Client extends Thread
+    {
+        /** Storage server hosting the file. */
+        private final Storage   server;
+        /** File read and written by the client. */
+        private final Path      file;
+        /** Number of requests that fit in the file. */
+        private final long      requests;
+        /** Time at which the client stops. */
+        private final long      deadline;
+
+        /** Number of requests completed. */
+        long                    completed = 0;
+        /** Failure that stopped the client, if any. */
+        Throwable               failure = null;
+
+        Client(Storage server, Path file, long file_size, long deadline)
+        {
+            this.server = server;
+            this.file = file;
+            this.requests = file_size / REQUEST_SIZE;
+            this.deadline = deadline;
+        }
+
+        @Override
+        public void run()
+        {
+            Random      random = new Random();
+            byte[]      data = new byte[REQUEST_SIZE];
+
+            try
+            {
+                while(System.currentTimeMillis() < deadline)
+                {
+                    long    offset =
+                        (long)random.nextInt((int)requests) * REQUEST_SIZE;
+
+                    if(random.nextInt(WRITE_RATIO) == 0)
+                        server.write(file, offset, data);
+                    else
+                        server.read(file, offset, REQUEST_SIZE);
+
+                    ++completed;
+                }
+            }
+            catch(Throwable t)
+            {
+                failure = t;
+            }
+        }
+    }
+}
@@ -68,10 +68,12 @@ public class Get extends ClientApplication
 
         // Get a stub for the naming server and lock the source file.
         Service         naming_server = NamingStubs.service(source.hostname);
+        Lease           lease;
+        LeaseRenewer    renewer;
 
         try
         {
-            naming_server.lock(source.path, false);
+            lease = naming_server.lease(source.path, false);
         }
         catch(Throwable t)
         {
@@ -79,6 +81,10 @@ public class Get extends ClientApplication
                                          t.getMessage());
         }
 
+        // Keep the lock from expiring while the file is transferred.
+        renewer = new LeaseRenewer(naming_server, lease);
+        renewer.start();
+
         // Create an input stream reading bytes from the remote file, and an
         // output stream for writing bytes to a local copy of the file.
         // Repeatedly read up to BLOCK_SIZE bytes from the remote file, and
@@ -143,7 +149,8 @@ public class Get extends ClientApplication
 
             try
             {
-                naming_server.unlock(source.path, false);
+                renewer.cancel();
+                naming_server.release(lease);
             }
             catch(Throwable t)
             {
@@ -42,6 +42,7 @@ public class Launcher
         applications.put("parse", new Parse());
         applications.put("pwd", new PrintWorkingDirectory());
         applications.put("cd", new ChangeDirectoryDummy());
+        applications.put("bench", new Benchmark());
 
 
         // Check that at least an application name is present. If not, print a
@@ -0,0 +1,75 @@
+package apps;
+
+import naming.*;
+
+/** Keeps a lock lease alive while a client application holds the lock.
+
+    <p>
+    The renewer is a daemon thread that renews the lease at a third of its
+    duration, until it is cancelled. If a renewal fails, the renewer stops: the
+    lock is then released by the naming server when the lease expires. Since
+    the renewer runs only as long as the application does, a lock held by an
+    application that terminates without releasing it is released once its
+    lease expires.
+ */
+class LeaseRenewer extends Thread
+{
+    /** Naming server that granted the lease. */
+    private final Service       naming_server;
+    /** Lease being renewed. */
+    private final Lease         lease;
+    /** Set when the lease is no longer to be renewed. */
+    private volatile boolean    cancelled = false;
+
+    /** Creates a renewer for a lease. The renewer is not started.
+
+        @param naming_server Naming server that granted the lease.
+        @param lease Lease to be renewed.
+     */
+    LeaseRenewer(Service naming_server, Lease lease)
+    {
+        this.naming_server = naming_server;
+        this.lease = lease;
+
+        setDaemon(true);
+    }
+
+    /** Renews the lease until the renewer is cancelled. */
+    @Override
+    public void run()
+    {
+        long    interval = Math.max(lease.duration() / 3, 1);
+
+        while(!cancelled)
+        {
+            try
+            {
+                Thread.sleep(interval);
+                if(!cancelled)
+                    naming_server.renew(lease);
+            }
+            catch(Throwable t)
+            {
+                return;
+            }
+        }
+    }
+
+    /** Stops renewing the lease.
+
+        <p>
+        This method waits for any renewal in progress to complete, so that the
+        lease may be released safely after it returns.
+     */
+    void cancel()
+    {
+        cancelled = true;
+        interrupt();
+
+        try
+        {
+            join();
+        }
+        catch(InterruptedException e) { }
+    }
+}
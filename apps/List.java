@@ -13,6 +13,17 @@ import naming.*;
     arguments is equivalent to listing the current directory on the current host
     - that is, to giving it the single argument <code>:</code>.
 
+    <p>
+    If the first argument is <code>-l</code>, each entry is listed with its type
+    (<code>d</code> for a directory and <code>-</code> for a file) and its size.
+    The attributes of the entries in a directory are retrieved together with
+    the directory listing.
+
+    <p>
+    Directories are listed in pages of bounded size, which are printed as they
+    are received, so that listing a very large directory does not require the
+    whole listing to be held in memory at once.
+
     <p>
     Unlike the usual <code>ls</code> command, this application is not capable of
     printing file permissions, owner, group, or modification, access, or
@@ -20,6 +31,13 @@ import naming.*;
  */
 public class List extends ClientApplication
 {
+    /** Number of directory entries requested from the naming server at a
+        time. */
+    private static final int    PAGE_SIZE = 1024;
+
+    /** Set when entries are to be listed with their attributes. */
+    private boolean     long_format = false;
+
     /** Application entry point. */
     public static void main(String[] arguments)
     {
@@ -33,6 +51,13 @@ public class List extends ClientApplication
     @Override
     public void coreLogic(String[] arguments) throws ApplicationFailure
     {
+        // Check for the long format option.
+        if(arguments.length > 0 && arguments[0].equals("-l"))
+        {
+            long_format = true;
+            arguments = Arrays.copyOfRange(arguments, 1, arguments.length);
+        }
+
         // Check that there is exactly one argument on the command line.
         if(arguments.length == 0)
             arguments = new String[] {":"};
@@ -81,15 +106,15 @@ public class List extends ClientApplication
                                          e.getMessage());
         }
 
-        String[]        components;
-
         // If the path is remote, obtain a naming server stub. Lock the path on
         // the naming server and list it.
         Service         naming_server = NamingStubs.service(object.hostname);
+        Lease           lease;
+        LeaseRenewer    renewer;
 
         try
         {
-            naming_server.lock(object.path, false);
+            lease = naming_server.lease(object.path, false);
         }
         catch(Throwable t)
         {
@@ -97,12 +122,56 @@ public class List extends ClientApplication
                                          t.getMessage());
         }
 
+        // Keep the lock from expiring while the pages are retrieved.
+        renewer = new LeaseRenewer(naming_server, lease);
+        renewer.start();
+
+        // Directory contents are retrieved and printed one page at a time.
+        // The naming server returns each page sorted, and the pages in order.
         try
         {
-            if(naming_server.isDirectory(object.path))
-                components = naming_server.list(object.path);
+            if(show_path)
+                System.out.println(remote_path + ":");
+
+            if(!naming_server.isDirectory(object.path))
+            {
+                String      line = object.path.last();
+                if(long_format)
+                {
+                    line = format(false,
+                                  naming_server.stat(object.path).size(), line);
+                }
+
+                print(new String[] {line}, show_path);
+            }
             else
-                components = new String[] {object.path.last()};
+            {
+                String      cursor = null;
+
+                do
+                {
+                    ListingPage page =
+                        naming_server.listPage(object.path, cursor, PAGE_SIZE,
+                                               long_format);
+                    String[]    lines = page.names();
+
+                    if(long_format)
+                    {
+                        DirectoryEntry[]    entries = page.entries();
+
+                        for(int index = 0; index < entries.length; ++index)
+                        {
+                            lines[index] = format(entries[index].isDirectory(),
+                                                  entries[index].size(),
+                                                  entries[index].name());
+                        }
+                    }
+
+                    print(lines, show_path);
+                    cursor = page.cursor();
+                }
+                while(cursor != null);
+            }
         }
         catch(Throwable t)
         {
@@ -114,26 +183,36 @@ public class List extends ClientApplication
             // In all cases, make an effort to unlock the path.
             try
             {
-                naming_server.unlock(object.path, false);
+                renewer.cancel();
+                naming_server.release(lease);
             }
             catch(Throwable t)
             {
                 fatal("could not unlock " + object + ": " + t.getMessage());
             }
         }
+    }
 
-        // Sort the array of components that is returned by list and print it.
-        Arrays.sort(components);
-
-        if(show_path)
-            System.out.println(remote_path + ":");
+    /** Prints listed entries.
 
-        for(int index = 0; index < components.length; ++index)
+        @param lines Lines to be printed, one for each entry.
+        @param indent Set to <code>true</code> if the lines are to be indented
+                      under the path being listed.
+     */
+    private void print(String[] lines, boolean indent)
+    {
+        for(int index = 0; index < lines.length; ++index)
         {
-            if(show_path)
+            if(indent)
                 System.out.print("\t");
 
-            System.out.println(components[index]);
+            System.out.println(lines[index]);
         }
     }
+
+    /** Formats a line of the long listing format. */
+    private static String format(boolean directory, long size, String name)
+    {
+        return String.format("%s %12d %s", directory ? "d" : "-", size, name);
+    }
 }
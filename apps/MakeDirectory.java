@@ -79,9 +79,12 @@ public class MakeDirectory extends ClientApplication
 
         Service         naming_server = NamingStubs.service(directory.hostname);
 
+        Lease           lease;
+        LeaseRenewer    renewer;
+
         try
         {
-            naming_server.lock(parent, true);
+            lease = naming_server.lease(parent, true);
         }
         catch(Throwable t)
         {
@@ -89,6 +92,10 @@ public class MakeDirectory extends ClientApplication
                                          ": " + t.getMessage());
         }
 
+        // Keep the lock from expiring while the request is in progress.
+        renewer = new LeaseRenewer(naming_server, lease);
+        renewer.start();
+
         // Create the new directory.
         try
         {
@@ -109,7 +116,8 @@ public class MakeDirectory extends ClientApplication
             // In all cases, make an effort to unlock the parent directory.
             try
             {
-                naming_server.unlock(parent, true);
+                renewer.cancel();
+                naming_server.release(lease);
             }
             catch(Throwable t)
             {
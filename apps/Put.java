@@ -80,9 +80,12 @@ public class Put extends ClientApplication
             NamingStubs.service(destination.hostname);
 
         // Lock the parent of the destination path on the remote server.
+        Lease           lease;
+        LeaseRenewer    renewer;
+
         try
         {
-            naming_server.lock(path_to_lock, true);
+            lease = naming_server.lease(path_to_lock, true);
         }
         catch(Throwable t)
         {
@@ -90,6 +93,10 @@ public class Put extends ClientApplication
                                          t.getMessage());
         }
 
+        // Keep the lock from expiring while the file is transferred.
+        renewer = new LeaseRenewer(naming_server, lease);
+        renewer.start();
+
         byte[]              read_buffer;
         InputStream         input_stream = null;
         DFSOutputStream     output_stream = null;
@@ -204,7 +211,8 @@ public class Put extends ClientApplication
 
             try
             {
-                naming_server.unlock(path_to_lock, true);
+                renewer.cancel();
+                naming_server.release(lease);
             }
             catch(Throwable t)
             {
@@ -75,9 +75,12 @@ public class Remove extends ClientApplication
 
         Service         naming_server = NamingStubs.service(object.hostname);
 
+        Lease           lease;
+        LeaseRenewer    renewer;
+
         try
         {
-            naming_server.lock(parent, true);
+            lease = naming_server.lease(parent, true);
         }
         catch(Throwable t)
         {
@@ -85,6 +88,10 @@ public class Remove extends ClientApplication
                                          ": " + t.getMessage());
         }
 
+        // Keep the lock from expiring while the request is in progress.
+        renewer = new LeaseRenewer(naming_server, lease);
+        renewer.start();
+
         // Delete the object in question.
         try
         {
@@ -102,7 +109,8 @@ public class Remove extends ClientApplication
             // Make an effort to unlock the parent directory.
             try
             {
-                naming_server.unlock(parent, true);
+                renewer.cancel();
+                naming_server.release(lease);
             }
             catch(Throwable t)
             {
@@ -14,7 +14,10 @@ import storage.StorageServer;
     <p>
     The storage server application expects three arguments: in order, the
     local hostname, the hostname of the remote naming server, and the directory
-    that the storage server will use as its local storage for files.
+    that the storage server will use as its local storage for files. An
+    optional fourth argument gives the port on which to open the bulk data
+    port, through which clients read files without RMI, or zero to let the
+    system choose it.
 
     <p>
     The directory can be given as an absolute or a relative path. The current
@@ -53,8 +56,9 @@ public class StorageServerApp extends ServerApplication
     /** Starts the storage server.
 
         @param arguments The command line arguments.
-        @throws BadUsageException If there are not three arguments on the
-                                  command line.
+        @throws BadUsageException If there are not three or four arguments on
+                                  the command line, or if the bulk data port
+                                  is not a valid port number.
         @throws UnknownHostException If a storage server stub cannot be created
                                      due to an unassigned address.
         @throws FileNotFoundException If the directory in which the storage
@@ -72,10 +76,10 @@ public class StorageServerApp extends ServerApplication
                RMIException
     {
         // Check the command line arguments.
-        if(arguments.length != 3)
+        if(arguments.length != 3 && arguments.length != 4)
         {
             throw new BadUsageException("usage: storage local_hostname " +
-                                        "naming_server directory");
+                                        "naming_server directory [bulk_port]");
         }
 
         // Create the storage server object using the absolute version of the
@@ -83,6 +87,19 @@ public class StorageServerApp extends ServerApplication
         File            local_root = new File(arguments[2]).getAbsoluteFile();
         server = new StoppingStorageServer(local_root);
 
+        if(arguments.length == 4)
+        {
+            try
+            {
+                server.enableBulkData(Integer.parseInt(arguments[3]));
+            }
+            catch(IllegalArgumentException e)
+            {
+                throw new BadUsageException("bulk_port must be a port " +
+                                            "number");
+            }
+        }
+
         // Start and register the storage server.
         server.start(arguments[0], NamingStubs.registration(arguments[1]));
     }
@@ -79,9 +79,12 @@ public class Touch extends ClientApplication
 
         Service         naming_server = NamingStubs.service(file.hostname);
 
+        Lease           lease;
+        LeaseRenewer    renewer;
+
         try
         {
-            naming_server.lock(parent, true);
+            lease = naming_server.lease(parent, true);
         }
         catch(Throwable t)
         {
@@ -89,6 +92,10 @@ public class Touch extends ClientApplication
                                          t.getMessage());
         }
 
+        // Keep the lock from expiring while the request is in progress.
+        renewer = new LeaseRenewer(naming_server, lease);
+        renewer.start();
+
         // Create the file, if it does not exist.
         try
         {
@@ -116,7 +123,8 @@ public class Touch extends ClientApplication
             // Make an effort to unlock the parent directory.
             try
             {
-                naming_server.unlock(parent, true);
+                renewer.cancel();
+                naming_server.release(lease);
             }
             catch(Throwable t)
             {
@@ -2,6 +2,8 @@ package client;
 
 import java.io.*;
 import java.net.*;
+import java.nio.*;
+import java.util.*;
 
 import rmi.*;
 import common.*;
@@ -17,6 +19,26 @@ import storage.*;
     wrapped in a <code>BufferedInputStream</code> or other class providing
     buffered input.
 
+    <p>
+    Reads go to the first of the storage servers hosting the file, in the order
+    of preference given by the naming server. If a storage server cannot be
+    contacted, the read is retried on the next one, which then serves the
+    following reads. Optionally, reads may be <em>hedged</em>: when a storage
+    server takes longer than a given percentile of recent reads to answer, the
+    same read is also sent to the next server, and the first answer is used.
+
+    <p>
+    If the storage server serving reads has a bulk data port, reads are sent
+    to it instead of through RMI: the bytes are received straight into the
+    buffer given by the caller. If the bulk data port fails, reads go through
+    RMI again. Hedged reads always go through RMI.
+
+    <p>
+    Files stored as erasure-coded shards are read from the shards holding the
+    bytes requested; shards that cannot be read are reconstructed from the
+    others. If too few shards can be read, the naming server is asked to decode
+    the file, and reads continue from its copies.
+
     <p>
     <code>DFSInputStream</code> does not support marks.
     <code>DFSInputStream</code> does not provide locking. This must be done
@@ -30,11 +52,37 @@ public class DFSInputStream extends InputStream
 {
     /** Path to the file. */
     private final Path      path;
-    /** Storage server hosting the file. */
-    private final Storage   storage_server;
+    /** Storage servers hosting the file, in order of preference. */
+    private Storage[]       replicas;
+    /** Layout of the shards of the file if it is erasure-coded, or
+        <code>null</code> if it is read from its copies. */
+    private ErasureLayout   layout;
+    /** Index of the storage server to which reads are sent first. */
+    private int             current = 0;
     /** Naming server used to find the storage server hosting the file. */
     private final Service   naming_server;
 
+    /** Connection to the bulk data port of the storage server to which reads
+        are sent, or <code>null</code> if it has none or the connection
+        failed. */
+    private BulkConnection  bulk = null;
+    /** Index of the storage server whose bulk data port was looked up, or
+        <code>-1</code> if none was. */
+    private int             bulk_server = -1;
+
+    /** Percentile of recent read latencies after which a read is hedged, or
+        zero if reads are not hedged. */
+    private double          hedge_percentile = 0;
+    /** Latencies of recent reads, in nanoseconds, used as a ring buffer. */
+    private final long[]    latencies = new long[LATENCY_SAMPLES];
+    /** Number of latencies recorded. */
+    private long            samples = 0;
+
+    /** Number of recent read latencies kept. */
+    private static final int    LATENCY_SAMPLES = 64;
+    /** Number of latencies that must be recorded before reads are hedged. */
+    private static final int    MIN_HEDGE_SAMPLES = 8;
+
     /** Current read offset in the file. */
     private long            offset = 0;
     /** Total file length. */
@@ -55,32 +103,36 @@ public class DFSInputStream extends InputStream
         @throws FileNotFoundException If the file is not listed by the given
                                       naming server, or if the path refers to a
                                       directory.
-        @throws IOException If either the naming server or the storage server
-                            hosting the file cannot be contacted to retrieve
-                            file metadata.
+        @throws IOException If the naming server cannot be contacted to
+                            retrieve file metadata.
      */
     public DFSInputStream(Service naming_server, Path file)
         throws FileNotFoundException, IOException
     {
-        // Retrieve a stub for the storage server hosting the file.
+        // Retrieve the length of the file and the storage servers hosting it
+        // from the naming server.
+        FileStatus  status;
+
         try
         {
-            storage_server = naming_server.getStorage(file);
+            status = naming_server.stat(file);
         }
         catch(RMIException e)
         {
             throw new IOException("could not contact naming server", e);
         }
 
-        // Retrieve the length of the file from the storage server.
-        try
-        {
-            length = storage_server.size(file);
-        }
-        catch(RMIException e)
-        {
-            throw new IOException("could not contact storage server", e);
-        }
+        if(status.isDirectory())
+            throw new FileNotFoundException(file + " is a directory");
+
+        // The naming server lists the copies of the file in order of
+        // preference, spreading reads over them.
+        replicas = status.replicas();
+        layout = status.layout();
+        if(replicas.length == 0 && layout == null)
+            throw new FileNotFoundException(file + " has no replicas");
+
+        length = status.size();
 
         path = file;
         this.naming_server = naming_server;
@@ -154,6 +206,34 @@ public class DFSInputStream extends InputStream
         this(NamingStubs.service(hostname), new Path(filename));
     }
 
+    /** Enables or disables hedged reads.
+
+        <p>
+        When hedging is enabled and the file has more than one copy, a read
+        that has not been answered within the given percentile of the latencies
+        of recent reads is also sent to the next storage server hosting the
+        file. The first answer is used, and the server that gave it serves the
+        following reads. Reads are not hedged until a few latencies have been
+        recorded.
+
+        @param percentile Percentile of recent read latencies, greater than
+                          zero and at most 100, after which a read is hedged,
+                          or zero to disable hedging. Hedging is disabled by
+                          default.
+        @throws IllegalArgumentException If <code>percentile</code> is negative
+                                         or greater than 100.
+     */
+    public synchronized void setHedgePercentile(double percentile)
+    {
+        if(percentile < 0 || percentile > 100)
+        {
+            throw new IllegalArgumentException("percentile must be between 0 " +
+                                               "and 100");
+        }
+
+        hedge_percentile = percentile;
+    }
+
     /** Closes the input stream.
 
         <p>
@@ -164,6 +244,7 @@ public class DFSInputStream extends InputStream
     public void close()
     {
         closed = true;
+        closeBulk();
     }
 
     /** Reads bytes from the input stream into a byte buffer.
@@ -234,21 +315,24 @@ public class DFSInputStream extends InputStream
 
         // Read bytes from file and advance the stream offset if the request
         // succeeds.
+        long        delay = hedgeDelay();
         byte[]      result;
 
-        try
+        if(layout == null && delay < 0 &&
+           readBulk(buffer, buffer_offset, read_length))
         {
-            result = storage_server.read(path, offset, read_length);
             offset += read_length;
+            return read_length;
         }
-        catch(FileNotFoundException e)
-        {
-            throw new IOException("file missing on storage server", e);
-        }
-        catch(RMIException e)
-        {
-            throw new IOException("unable to contact storage server", e);
-        }
+
+        if(layout != null)
+            result = readShards(offset, read_length);
+        else if(delay < 0)
+            result = readWithFailover(offset, read_length);
+        else
+            result = readHedged(offset, read_length, delay);
+
+        offset += read_length;
 
         // Copy bytes from the buffer that was received over the network into
         // the buffer provided by the caller.
@@ -259,6 +343,294 @@ public class DFSInputStream extends InputStream
         return read_length;
     }
 
+    /** Reads a range of the file, trying each storage server in turn,
+        starting from the current one, until one of them can be contacted.
+
+        @throws IOException If the file is missing on a storage server, or if
+                            no storage server can be contacted.
+     */
+    private byte[] readWithFailover(long position, int count)
+        throws IOException
+    {
+        RMIException    failure = null;
+
+        for(int attempt = 0; attempt < replicas.length; ++attempt)
+        {
+            int         index = (current + attempt) % replicas.length;
+            long        start = System.nanoTime();
+
+            try
+            {
+                byte[]  result = replicas[index].read(path, position, count);
+
+                recordLatency(System.nanoTime() - start);
+                current = index;
+                return result;
+            }
+            catch(FileNotFoundException e)
+            {
+                throw new IOException("file missing on storage server", e);
+            }
+            catch(RMIException e)
+            {
+                failure = e;
+            }
+        }
+
+        throw new IOException("unable to contact storage server", failure);
+    }
+
+    /** Reads bytes at the current offset into the given buffer through the
+        bulk data port of the current storage server.
+
+        @return <code>true</code> if the bytes were read, or <code>false</code>
+                if the server has no bulk data port or it failed, in which case
+                the bytes must be read through RMI.
+        @throws IOException If the file is missing on the storage server.
+     */
+    private boolean readBulk(byte[] buffer, int buffer_offset, int count)
+        throws IOException
+    {
+        // Look up the bulk data port of the server once, and again only when
+        // reads fail over to another server.
+        if(bulk_server != current)
+        {
+            closeBulk();
+            bulk_server = current;
+
+            try
+            {
+                InetSocketAddress   address = replicas[current].bulkAddress();
+
+                if(address != null)
+                    bulk = new BulkConnection(address);
+            }
+            catch(RMIException e) { }
+            catch(IOException e) { }
+        }
+
+        if(bulk == null)
+            return false;
+
+        try
+        {
+            bulk.read(path, offset,
+                      ByteBuffer.wrap(buffer, buffer_offset, count));
+            return true;
+        }
+        catch(FileNotFoundException e)
+        {
+            throw new IOException("file missing on storage server", e);
+        }
+        catch(IOException e)
+        {
+            // The server may have failed; RMI reads fail over to another.
+            closeBulk();
+            return false;
+        }
+    }
+
+    /** Closes the connection to the bulk data port, if any. */
+    private void closeBulk()
+    {
+        if(bulk != null)
+        {
+            try
+            {
+                bulk.close();
+            }
+            catch(IOException e) { }
+
+            bulk = null;
+        }
+    }
+
+    /** Reads a range of an erasure-coded file from its shards, falling back
+        to copies of the file if too few shards can be read.
+
+        @throws IOException If neither enough shards nor a copy of the file
+                            can be read.
+     */
+    private byte[] readShards(long position, int count) throws IOException
+    {
+        try
+        {
+            return layout.read(path, position, count);
+        }
+        catch(IOException e)
+        {
+            // The naming server decodes the file when asked for its copies.
+            try
+            {
+                replicas = naming_server.getReplicas(path);
+            }
+            catch(RMIException failure)
+            {
+                throw new IOException("could not contact naming server",
+                                      failure);
+            }
+
+            if(replicas.length == 0)
+                throw e;
+
+            layout = null;
+            current = 0;
+            closeBulk();
+            return readWithFailover(position, count);
+        }
+    }
+
+    /** Reads a range of the file, sending the read to the next storage server
+        whenever the servers already asked have either all failed, or not
+        answered within the given delay.
+
+        @throws IOException If every storage server fails to serve the read.
+     */
+    private byte[] readHedged(long position, int count, long delay)
+        throws IOException
+    {
+        HedgedRead      read = new HedgedRead();
+        int             sent = 0;
+        long            last = 0;
+
+        synchronized(read)
+        {
+            while(read.result == null)
+            {
+                long    now = System.nanoTime();
+
+                if(sent < replicas.length &&
+                   (read.failures == sent || now - last >= delay))
+                {
+                    int     index = (current + sent) % replicas.length;
+
+                    new ReadCall(read, index, position, count).start();
+                    ++sent;
+                    last = now;
+                    continue;
+                }
+
+                if(read.failures == replicas.length)
+                {
+                    throw new IOException("unable to read from any storage " +
+                                          "server", read.failure);
+                }
+
+                try
+                {
+                    if(sent < replicas.length)
+                        read.wait(Math.max(1, (last + delay - now) / 1000000));
+                    else
+                        read.wait();
+                }
+                catch(InterruptedException e)
+                {
+                    throw new InterruptedIOException("interrupted while " +
+                                                     "reading");
+                }
+            }
+
+            current = read.winner;
+            return read.result;
+        }
+    }
+
+    /** Returns the delay, in nanoseconds, after which reads are hedged, or
+        <code>-1</code> if reads are not to be hedged. */
+    private synchronized long hedgeDelay()
+    {
+        if(hedge_percentile == 0 || replicas.length < 2 ||
+           samples < MIN_HEDGE_SAMPLES)
+        {
+            return -1;
+        }
+
+        long[]      recent =
+            Arrays.copyOf(latencies, (int)Math.min(samples, latencies.length));
+        Arrays.sort(recent);
+
+        int         rank =
+            (int)Math.ceil(hedge_percentile / 100 * recent.length) - 1;
+        return recent[Math.max(rank, 0)];
+    }
+
+    /** Records the latency of a read that succeeded, in nanoseconds. */
+    private synchronized void recordLatency(long latency)
+    {
+        latencies[(int)(samples % latencies.length)] = latency;
+        ++samples;
+    }
+
+    /** Outcome of a read sent to several storage servers. Fields are guarded
+        by the monitor of the object. */
+    private static class HedgedRead
+    {
+        /** Data returned by the first server to answer, or <code>null</code>
+            if none has answered yet. */
+        byte[]          result = null;
+        /** Index of the server that answered first. */
+        int             winner;
+        /** Number of servers that failed to serve the read. */
+        int             failures = 0;
+        /** First failure. */
+        Exception       failure = null;
+    }
+
+    /** Thread sending a read to one storage server on behalf of a hedged
+        read. Reads that lose the race are left to complete in the
+        background. */
+    private class ReadCall extends Thread
+    {
+        private final HedgedRead    read;
+        private final int           index;
+        private final long          position;
+        private final int           count;
+
+        ReadCall(HedgedRead read, int index, long position, int count)
+        {
+            this.read = read;
+            this.index = index;
+            this.position = position;
+            this.count = count;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run()
+        {
+            long        start = System.nanoTime();
+            byte[]      result = null;
+            Exception   failure = null;
+
+            try
+            {
+                result = replicas[index].read(path, position, count);
+                recordLatency(System.nanoTime() - start);
+            }
+            catch(Exception e)
+            {
+                failure = e;
+            }
+
+            synchronized(read)
+            {
+                if(result != null && read.result == null)
+                {
+                    read.result = result;
+                    read.winner = index;
+                }
+                else if(result == null)
+                {
+                    ++read.failures;
+                    if(read.failure == null)
+                        read.failure = failure;
+                }
+
+                read.notifyAll();
+            }
+        }
+    }
+
     /** Reads a single byte from the input stream.
 
         @return The value of the byte read, as an integer between <code>0</code>
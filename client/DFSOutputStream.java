@@ -2,6 +2,8 @@ package client;
 
 import java.io.*;
 import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
 
 import rmi.*;
 import common.*;
@@ -21,13 +23,30 @@ import storage.*;
     to be created or truncated. The file must exist, and the existing file data
     is left in place. Writes to the stream cause file data to be overwritten,
     starting from the beginning of the file.
+
+    <p>
+    A stream created for a file locked with <code>Service.chainLease</code>
+    writes through the chain of servers hosting copies of the file, so that
+    all copies stay up to date. Several writes are sent through the chain at
+    once, and each is acknowledged separately once every copy has applied it.
+    If a write through the chain fails, the stream falls back to writing a
+    single copy, obtained from <code>Service.getStorage</code>, and retries
+    there every write that was not acknowledged. Failures of writes through
+    the chain are therefore reported by a later call to <code>write</code>,
+    <code>flush</code> or <code>close</code>, which waits for the writes still
+    in flight. The stream must be flushed or closed before the file is
+    unlocked.
  */
 public class DFSOutputStream extends OutputStream
 {
     /** Path to the file. */
     private final Path      path;
     /** Storage server hosting the file. */
-    private final Storage   storage_server;
+    private Storage         storage_server;
+    /** Storage servers to which writes are forwarded by
+        <code>storage_server</code>, or <code>null</code> if writes are not
+        sent through a chain. */
+    private Storage[]       chain = null;
     /** Naming server used to find the storage server hosting the file. */
     private final Service   naming_server;
 
@@ -37,6 +56,18 @@ public class DFSOutputStream extends OutputStream
     /** Indicates that the stream has been closed. */
     private boolean         closed = false;
 
+    /** Largest number of writes sent through the chain and not yet
+        acknowledged. */
+    private static final int    CHAIN_WINDOW = 4;
+    /** Writes sent through the chain and not yet acknowledged, in the order
+        they were sent. */
+    private final LinkedList<ChainWrite>    in_flight =
+        new LinkedList<ChainWrite>();
+    /** Threads sending writes through chains, shared by all streams. Idle
+        threads exit after a minute. */
+    private static final ExecutorService    chain_senders =
+        Executors.newCachedThreadPool(new SenderThreads());
+
     /** Creates a <code>DFSOutputStream</code> for a file listed by the given
         naming server.
 
@@ -56,10 +87,57 @@ public class DFSOutputStream extends OutputStream
     public DFSOutputStream(Service naming_server, Path file)
         throws FileNotFoundException, IOException
     {
-        // Retrieve a stub for the storage server hosting the file.
+        this(naming_server, file, false);
+    }
+
+    /** Creates a <code>DFSOutputStream</code> for a file listed by the given
+        naming server, optionally writing through the chain of copies of the
+        file.
+
+        <p>
+        If <code>chained</code> is <code>true</code>, the file should be locked
+        on the naming server with <code>chainLease</code>. Otherwise, it should
+        be locked for exclusive access.
+
+        @param naming_server Stub for the naming server hosting metadata for the
+                             file.
+        @param file Path to the file.
+        @param chained Whether writes are to be sent through the chain of
+                       copies of the file.
+        @throws FileNotFoundException If the file is not listed by the given
+                                      naming server, or if the path refers to a
+                                      directory.
+        @throws IOException If either the naming server or the storage server
+                            hosting the file cannot be contacted to retrieve
+                            file metadata.
+        @throws IllegalStateException If <code>chained</code> is
+                                      <code>true</code> and the file is not
+                                      locked with <code>chainLease</code>.
+     */
+    public DFSOutputStream(Service naming_server, Path file, boolean chained)
+        throws FileNotFoundException, IOException
+    {
+        // Retrieve stubs for the storage servers hosting the file.
         try
         {
-            storage_server = naming_server.getStorage(file);
+            if(chained)
+            {
+                Storage[]   servers = naming_server.getWriteChain(file);
+
+                // Every copy in the chain has been lost since the lock was
+                // granted.
+                if(servers.length == 0)
+                    storage_server = naming_server.getStorage(file);
+                else
+                {
+                    storage_server = servers[0];
+                    chain = new Storage[servers.length - 1];
+                    for(int index = 1; index < servers.length; ++index)
+                        chain[index - 1] = servers[index];
+                }
+            }
+            else
+                storage_server = naming_server.getStorage(file);
         }
         catch(RMIException e)
         {
@@ -141,19 +219,64 @@ public class DFSOutputStream extends OutputStream
     /** Closes the output stream.
 
         <p>
-        The stream is marked as closed. Further attempts to use the output
-        stream will result in <code>IOException</code>.
+        The stream waits for writes still in flight through the chain of
+        copies of the file, and is marked as closed. Further attempts to use
+        the output stream will result in <code>IOException</code>.
+
+        @throws IOException If a write still in flight fails, and cannot be
+                            retried on a single copy of the file.
      */
     @Override
     public void close() throws IOException
     {
-        closed = true;
+        if(closed)
+            return;
+
+        try
+        {
+            flush();
+        }
+        finally
+        {
+            closed = true;
+        }
+    }
+
+    /** Waits until every write sent through the chain of copies of the file
+        has been acknowledged, retrying failed writes on a single copy.
+
+        @throws IOException If the stream is closed, or if a failed write
+                            cannot be retried on a single copy of the file.
+     */
+    @Override
+    public void flush() throws IOException
+    {
+        if(closed)
+        {
+            throw new IOException("distributed filesystem output stream " +
+                                  "already closed");
+        }
+
+        try
+        {
+            acknowledge(0);
+        }
+        catch(FileNotFoundException e)
+        {
+            throw new IOException("file missing on storage server", e);
+        }
+        catch(RMIException e)
+        {
+            throw new IOException("unable to contact storage server", e);
+        }
     }
 
     /** Writes bytes from a buffer to the output stream.
 
         <p>
-        The write is performed in a single request to the storage server.
+        The write is performed in a single request to the storage server. A
+        write through the chain of copies of the file may still be in flight
+        when this method returns.
 
         @param buffer Buffer containing bytes to be written.
         @param buffer_offset Offset into the buffer from which bytes are to be
@@ -221,7 +344,10 @@ public class DFSOutputStream extends OutputStream
         // advance the stream offset.
         try
         {
-            storage_server.write(path, offset, data);
+            if(chain != null)
+                sendChain(data);
+            else
+                storage_server.write(path, offset, data);
             offset += write_length;
         }
         catch(FileNotFoundException e)
@@ -234,6 +360,161 @@ public class DFSOutputStream extends OutputStream
         }
     }
 
+    /** Sends data to be written at the current offset through the chain of
+        copies of the file, waiting for the oldest writes in flight if more
+        than <code>CHAIN_WINDOW</code> are.
+
+        @param data Data to be written.
+        @throws FileNotFoundException If the file is missing on the storage
+                                      server written after falling back.
+        @throws IOException If a write fails after falling back.
+        @throws RMIException If the naming server or the storage server written
+                             after falling back cannot be contacted.
+     */
+    private void sendChain(byte[] data)
+        throws FileNotFoundException, IOException, RMIException
+    {
+        ChainWrite  write = new ChainWrite(offset, data);
+
+        write.acknowledgment = chain_senders.submit(write);
+        in_flight.addLast(write);
+        acknowledge(CHAIN_WINDOW);
+    }
+
+    /** Waits for the oldest writes in flight through the chain until at most
+        the given number remain.
+
+        <p>
+        If a write fails anywhere along the chain, the copies of the file may
+        no longer be identical. The stream then waits for every write in
+        flight, and asks the naming server for a single copy to write to,
+        which causes the other copies to be brought up to date once the file
+        is unlocked. The writes that failed are written again to that copy.
+        Writes do not overlap, so they may be written again in any order. The
+        naming server gives the first copy in the chain that it can contact,
+        so the writes are retried even if the head of the chain has failed.
+
+        @param limit Number of writes that may remain in flight.
+        @throws FileNotFoundException If the file is missing on the storage
+                                      server written after falling back.
+        @throws IOException If a write fails after falling back.
+        @throws RMIException If the naming server or the storage server written
+                             after falling back cannot be contacted.
+     */
+    private void acknowledge(int limit)
+        throws FileNotFoundException, IOException, RMIException
+    {
+        List<ChainWrite>    failed = new ArrayList<ChainWrite>();
+
+        while(in_flight.size() > limit)
+        {
+            ChainWrite      write = in_flight.removeFirst();
+
+            if(!write.acknowledged())
+            {
+                failed.add(write);
+                limit = 0;
+            }
+        }
+
+        if(failed.isEmpty())
+            return;
+
+        chain = null;
+        storage_server = naming_server.getStorage(path);
+
+        for(ChainWrite write : failed)
+            storage_server.write(path, write.offset, write.data);
+    }
+
+    /** Write sent through the chain of copies of the file. */
+    private class ChainWrite implements Callable<Void>
+    {
+        /** Offset at which the data is written, identifying the write. */
+        final long              offset;
+        /** Data written. */
+        final byte[]            data;
+        /** Head of the chain. */
+        private final Storage   head = storage_server;
+        /** Rest of the chain. */
+        private final Storage[] rest = chain;
+        /** Completes when every copy has applied the write, or when the
+            write fails. */
+        Future<Void>            acknowledgment;
+
+        ChainWrite(long offset, byte[] data)
+        {
+            this.offset = offset;
+            this.data = data;
+        }
+
+        @Override
+        public Void call() throws IOException, RMIException
+        {
+            head.writeChain(path, offset, data, rest);
+            return null;
+        }
+
+        /** Waits for the write to complete.
+
+            @return <code>true</code> if every copy applied the write, and
+                    <code>false</code> if the write failed with an
+                    <code>IOException</code> or <code>RMIException</code>.
+         */
+        boolean acknowledged()
+        {
+            boolean         interrupted = false;
+            Throwable       failure;
+
+            while(true)
+            {
+                try
+                {
+                    acknowledgment.get();
+                    failure = null;
+                    break;
+                }
+                catch(InterruptedException e)
+                {
+                    interrupted = true;
+                }
+                catch(ExecutionException e)
+                {
+                    failure = e.getCause();
+                    break;
+                }
+            }
+
+            if(interrupted)
+                Thread.currentThread().interrupt();
+
+            if(failure == null)
+                return true;
+            if(failure instanceof IOException ||
+               failure instanceof RMIException)
+            {
+                return false;
+            }
+            if(failure instanceof RuntimeException)
+                throw (RuntimeException)failure;
+            throw (Error)failure;
+        }
+    }
+
+    /** Creates the chain senders as daemon threads, so that they never keep
+        the process alive. */
+    private static class SenderThreads implements ThreadFactory
+    {
+        @Override
+        public Thread newThread(Runnable runnable)
+        {
+            Thread          thread = new Thread(runnable, "chain sender");
+
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
     /** Writes a single byte to the output stream.
 
         @param b Value of the byte to be written. The argument is taken modulo
@@ -27,12 +27,24 @@ import java.util.*;
 public class Path implements Iterable<String>, Comparable<Path>, Serializable {
 
     private static final long serialVersionUID = 9120328253115598920L;
-    // Array List to hold the path
-    private ArrayList<String> myPath;
+
+    // Components of the path. The array may be longer than the path: a parent
+    // shares the array of its child and uses only its first length entries.
+    // Neither is ever modified after construction.
+    private transient String[] components;
+    private transient int length;
+
+    // Lazily computed string form and hash code. Races only cause duplicate
+    // computation of the same value.
+    private transient String string;
+    private transient int hash;
+
+    private static final String[] EMPTY = new String[0];
 
     /** Creates a new path which represents the root directory. */
     public Path() {
-        myPath = new ArrayList<String>();
+        components = EMPTY;
+        length = 0;
     }
 
     /**
@@ -50,12 +62,10 @@ public class Path implements Iterable<String>, Comparable<Path>, Serializable {
         if (component == null || !isComponentLegal(component)
                 || component.length() == 0)
             throw new IllegalArgumentException("Component is invalid.");
-        Iterator<String> pathIt = path.iterator();
-        myPath = new ArrayList<String>();
-        while (pathIt.hasNext()) {
-            myPath.add(pathIt.next());
-        }
-        myPath.add(component);
+        components = new String[path.length + 1];
+        System.arraycopy(path.components, 0, components, 0, path.length);
+        components[path.length] = component;
+        length = components.length;
     }
 
     /**
@@ -76,16 +86,28 @@ public class Path implements Iterable<String>, Comparable<Path>, Serializable {
             throw new IllegalArgumentException("The path given was null.");
         if (path.length() == 0 || path.charAt(0) != '/')
             throw new IllegalArgumentException("The path did not start with /.");
-        myPath = new ArrayList<String>();
-        for (String s : path.split("/")) {
-            if (!isComponentLegal(s)) {
-                throw new IllegalArgumentException("The path had / or :.");
-            } else if (s.length() == 0) {
-                continue;
-            } else {
-                myPath.add(s);
-            }
+        if (path.indexOf(':') >= 0)
+            throw new IllegalArgumentException("The path had / or :.");
+
+        ArrayList<String> parts = new ArrayList<String>();
+        int begin = 1;
+        while (begin <= path.length()) {
+            int end = path.indexOf('/', begin);
+            if (end < 0)
+                end = path.length();
+            if (end > begin)
+                parts.add(path.substring(begin, end));
+            begin = end + 1;
         }
+
+        components = parts.toArray(new String[parts.size()]);
+        length = components.length;
+    }
+
+    // Creates a path from the first length components of a shared array.
+    private Path(String[] components, int length) {
+        this.components = components;
+        this.length = length;
     }
 
     /**
@@ -103,21 +125,14 @@ public class Path implements Iterable<String>, Comparable<Path>, Serializable {
             private int i = 0;
 
             public boolean hasNext() {
-                if (i >= myPath.size())
-                    return false;
-                return true;
+                return i < length;
             }
 
             public String next() {
-                String temp = "";
-                if (i < myPath.size())
-                    temp = myPath.get(i);
-                else {
+                if (i >= length)
                     throw new NoSuchElementException(
                             "Trying to advance past end of iterator.");
-                }
-                i++;
-                return temp;
+                return components[i++];
             }
 
             public void remove() {
@@ -163,7 +178,7 @@ public class Path implements Iterable<String>, Comparable<Path>, Serializable {
      *         and <code>false</code> if it does not.
      */
     public boolean isRoot() {
-        return myPath.isEmpty();
+        return length == 0;
     }
 
     /**
@@ -178,15 +193,8 @@ public class Path implements Iterable<String>, Comparable<Path>, Serializable {
             throw new IllegalArgumentException(
                     "Current path is the root. (Thrown from parent())");
 
-        if (myPath.size() == 1) {
-            return new Path();
-        }
-
-        String ppath = "";
-        for (int i = 0; i < myPath.size() - 1; i++) {
-            ppath += "/" + myPath.get(i);
-        }
-        return new Path(ppath);
+        // The parent shares this path's component array.
+        return new Path(components, length - 1);
     }
 
     /**
@@ -200,7 +208,7 @@ public class Path implements Iterable<String>, Comparable<Path>, Serializable {
         if (this.isRoot())
             throw new IllegalArgumentException(
                     "Current path is the root.(Thrown from last())");
-        return myPath.get(myPath.size() - 1);
+        return components[length - 1];
     }
 
     /**
@@ -216,13 +224,15 @@ public class Path implements Iterable<String>, Comparable<Path>, Serializable {
      *         this path.
      */
     public boolean isSubpath(Path other) {
-        // make this better because currently /fold is a subpath of
-        // /folder/file.txt
+        // Compared by component, so /fold is not a subpath of /folder/file.
+        if (other.length > length)
+            return false;
 
-        String thisPath = this.toString();
-        String oPath = other.toString();
-
-        return thisPath.startsWith(oPath);
+        for (int i = 0; i < other.length; i++) {
+            if (!components[i].equals(other.components[i]))
+                return false;
+        }
+        return true;
     }
 
     /**
@@ -282,22 +292,20 @@ public class Path implements Iterable<String>, Comparable<Path>, Serializable {
     /*
      * (non-Javadoc)
      * @see java.lang.Comparable#compareTo(java.lang.Object)
-     * The comparison scheme for this compareTo is as follows:
-     * 	0 if the two paths are equal, which is determined by the output of the
-     * 				toString method of each path.
-     * 
-     * 	1 if the current path is a subpath of the other path provided
-     * 
-     * 	-1 is instead the other path is a subpath of out current path
+     * Paths are compared component by component, and a path that is a prefix
+     * of the other precedes it. Every directory therefore precedes everything
+     * below it, which is the order in which paths must be locked, and the
+     * order is total and consistent with equals.
      */
     @Override
     public int compareTo(Path other) {
-        if (this.equals(other))
-            return 0;
-        else if (this.isSubpath(other))
-            return 1;
-        else
-            return -1;
+        int common = Math.min(length, other.length);
+        for (int i = 0; i < common; i++) {
+            int order = components[i].compareTo(other.components[i]);
+            if (order != 0)
+                return order;
+        }
+        return length - other.length;
     }
 
     /**
@@ -312,13 +320,33 @@ public class Path implements Iterable<String>, Comparable<Path>, Serializable {
      */
     @Override
     public boolean equals(Object other) {
-        return this.toString().equals(other.toString());
+        if (this == other)
+            return true;
+        if (!(other instanceof Path))
+            return false;
+
+        Path path = (Path) other;
+        if (length != path.length || hashCode() != path.hashCode())
+            return false;
+
+        for (int i = length - 1; i >= 0; i--) {
+            if (!components[i].equals(path.components[i]))
+                return false;
+        }
+        return true;
     }
 
     /** Returns the hash code of the path. */
     @Override
     public int hashCode() {
-        return this.toString().hashCode();
+        int h = hash;
+        if (h == 0 && length > 0) {
+            for (int i = 0; i < length; i++) {
+                h = 31 * h + components[i].hashCode();
+            }
+            hash = h;
+        }
+        return h;
     }
 
     /**
@@ -332,14 +360,45 @@ public class Path implements Iterable<String>, Comparable<Path>, Serializable {
      */
     @Override
     public String toString() {
-        if (myPath.size() == 0)
-            return "/";
+        String s = string;
+        if (s == null) {
+            if (length == 0) {
+                s = "/";
+            } else {
+                StringBuilder builder = new StringBuilder();
+                for (int i = 0; i < length; i++) {
+                    builder.append('/').append(components[i]);
+                }
+                s = builder.toString();
+            }
+            string = s;
+        }
+        return s;
+    }
 
-        String path = "";
-        for (int i = 0; i < myPath.size(); i++) {
-            path += "/" + myPath.get(i);
+    // Only the components in use are serialized, so that a parent sharing a
+    // longer array does not carry the rest of it over the network.
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        out.writeInt(length);
+        for (int i = 0; i < length; i++) {
+            out.writeUTF(components[i]);
+        }
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException,
+            ClassNotFoundException {
+        in.defaultReadObject();
+        length = in.readInt();
+        if (length < 0)
+            throw new InvalidObjectException("Negative path length.");
+        components = new String[length];
+        for (int i = 0; i < length; i++) {
+            components[i] = in.readUTF();
+            if (components[i].length() == 0
+                    || !isComponentLegal(components[i]))
+                throw new InvalidObjectException("Component is invalid.");
         }
-        return path;
     }
 
     /*******************************************
@@ -350,11 +409,8 @@ public class Path implements Iterable<String>, Comparable<Path>, Serializable {
      * This Checks to see if the given component is equal to ":" or "/". This
      * does not check for the empty string so we can use it for other areas.
      */
-    private boolean isComponentLegal(String component) {
-        for (char c : component.toCharArray())
-            if (c == '/' || c == ':')
-                return false;
-        return true;
+    private static boolean isComponentLegal(String component) {
+        return component.indexOf('/') < 0 && component.indexOf(':') < 0;
     }
 
     /*
@@ -16,7 +16,8 @@ import storage.*;
     behavior of the naming server. The default implementations of the methods
     throw <code>UnsupportedOperationException</code>, indicating that a call to
     any of the methods in the client or command interfaces is not expected
-    during a test.
+    during a test. The exception is <code>synchronize</code>, which declines
+    to bring copies up to date.
  */
 class TestStorageServer implements Storage, Command
 {
@@ -196,6 +197,75 @@ class TestStorageServer implements Storage, Command
         throw new UnsupportedOperationException("copy method not implemented");
     }
 
+    /** Throws <code>UnsupportedOperationException</code>. */
+    @Override
+    public void writeChain(Path file, long offset, byte[] data,
+                           Storage[] chain)
+    {
+        test.failure(new TestFailed("unexpected call to writeChain method in " +
+                                    "storage server"));
+
+        throw new UnsupportedOperationException("writeChain method not " +
+                                                "implemented");
+    }
+
+    /** Throws <code>UnsupportedOperationException</code>. */
+    @Override
+    public byte[][] checksums(Path file, int block_size)
+    {
+        test.failure(new TestFailed("unexpected call to checksums method in " +
+                                    "storage server"));
+
+        throw new UnsupportedOperationException("checksums method not " +
+                                                "implemented");
+    }
+
+    /** Throws <code>UnsupportedOperationException</code>. */
+    @Override
+    public InetSocketAddress bulkAddress()
+    {
+        test.failure(new TestFailed("unexpected call to bulkAddress method " +
+                                    "in storage server"));
+
+        throw new UnsupportedOperationException("bulkAddress method not " +
+                                                "implemented");
+    }
+
+    /** Returns <code>false</code>, indicating that the copy of the file on
+        this server cannot be brought up to date.
+
+        <p>
+        The naming server is then expected to invalidate (delete) the copy,
+        which is what tests of replication check for.
+     */
+    @Override
+    public boolean synchronize(Path file, Storage server)
+    {
+        return false;
+    }
+
+    /** Throws <code>UnsupportedOperationException</code>. */
+    @Override
+    public boolean encode(Path file, ErasureLayout layout)
+    {
+        test.failure(new TestFailed("unexpected call to encode method in " +
+                                    "storage server"));
+
+        throw new UnsupportedOperationException("encode method not " +
+                                                "implemented");
+    }
+
+    /** Throws <code>UnsupportedOperationException</code>. */
+    @Override
+    public boolean decode(Path file, ErasureLayout layout)
+    {
+        test.failure(new TestFailed("unexpected call to decode method in " +
+                                    "storage server"));
+
+        throw new UnsupportedOperationException("decode method not " +
+                                                "implemented");
+    }
+
     /** Client interface skeleton.
 
         <p>
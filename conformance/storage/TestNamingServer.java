@@ -133,6 +133,16 @@ public class TestNamingServer implements naming.Registration
             return new Path[0];
     }
 
+    // Detailed documentation in Registration.java. Heartbeats are not
+    // checked by the tests; the server is always reported as registered.
+    @Override
+    public boolean heartbeat(Storage client_stub, long free_space,
+                             long total_space, int outstanding)
+        throws RMIException
+    {
+        return true;
+    }
+
     /** Retrieves a registration stub for the test server.
 
         @return The stub.
@@ -103,16 +103,44 @@ abstract class Fuse
                                          filesystem path.
         @throws FileNotFoundException If the path does not refer to an existing
                                       file in the filesystem.
-        @throws RMIException If the naming server or storage server cannot be
-                             contacted.
+        @throws RMIException If the naming server cannot be contacted.
      */
     static long size(byte[] raw_path)
         throws FileNotFoundException, RMIException
     {
-        Path        path = new Path(decode(raw_path));
-        Storage     storage_server = naming_server.getStorage(path);
+        FileStatus  status = naming_server.stat(new Path(decode(raw_path)));
+
+        if(status.isDirectory())
+            throw new FileNotFoundException("path refers to a directory");
+
+        return status.size();
+    }
+
+    /** Returns the type and size of the given object in a single request.
+
+        <p>
+        This is used to retrieve file attributes without a separate call to
+        <code>size</code> for files.
+
+        @param raw_path Byte array containing a UTF-8 string representing the
+                        path to the object.
+        @return <code>-1</code> if the object is a directory, and the size of
+                the file otherwise.
+        @throws IllegalArgumentException If <code>raw_path</code> is not a valid
+                                         filesystem path.
+        @throws FileNotFoundException If the path does not refer to an existing
+                                      object in the filesystem.
+        @throws RMIException If the naming server cannot be contacted.
+     */
+    static long attributes(byte[] raw_path)
+        throws FileNotFoundException, RMIException
+    {
+        FileStatus  status = naming_server.stat(new Path(decode(raw_path)));
+
+        if(status.isDirectory())
+            return -1;
 
-        return storage_server.size(path);
+        return status.size();
     }
 
     /** Creates a file on the remote filesystem.
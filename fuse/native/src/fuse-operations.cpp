@@ -529,30 +529,24 @@ static int dfs_getattr(const char *path, struct stat *status)
     }
 
     jobject     java_path;
-    jboolean    directory;
+    jlong       size;
 
-    // Attach this thread to the virtual machine and check if the path refers to
-    // a directory. If the method call returns, the path definitely refers to an
-    // existing object - the only question then is what to do with it.
+    // Attach this thread to the virtual machine and retrieve the attributes of
+    // the object. If the method call returns, the path definitely refers to an
+    // existing object. The returned size is -1 if the object is a directory.
     try_attach();
     try_encode(path, java_path);
-    try_call("directory", "([B)Z", directory, java_path);
+    try_call("attributes", "([B)J", size, java_path);
 
     // Clear the status structure.
     memset(status, 0, sizeof(status));
 
-    // If the object is a directory, set the mode field appropriately.
-    // Otherwise, the object is a file. Perform a second Java call to retrieve
-    // the file size from one of the storage servers, and set the stat structure
-    // fields appropriately.
-    if(directory == JNI_TRUE)
+    // Set the mode field according to the object type, and the size field for
+    // files.
+    if(size < 0)
         status->st_mode = S_IFDIR | options.directory_mode;
     else
     {
-        jlong   size;
-
-        try_call("size", "([B)J", size, java_path);
-
         status->st_mode = S_IFREG | options.file_mode;
         status->st_size = size;
     }
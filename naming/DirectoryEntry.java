@@ -0,0 +1,49 @@
+/**
+ * Authors: Tanay Gavankar (tgavanka)
+ * 			Siddharth Soundararajan (ssoundar)
+ */
+
+package naming;
+
+import java.io.Serializable;
+
+/**
+ * Name and attributes of a directory entry, as returned by
+ * <code>Service.listWithAttributes</code>.
+ */
+public class DirectoryEntry implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String name;
+    private final boolean directory;
+    private final long size;
+    private final long version;
+
+    DirectoryEntry(String name, FileStatus status) {
+        this.name = name;
+        this.directory = status.isDirectory();
+        this.size = status.size();
+        this.version = status.version();
+    }
+
+    /** Returns the name of the entry within its directory. */
+    public String name() {
+        return name;
+    }
+
+    /** Returns <code>true</code> if the entry is a directory. */
+    public boolean isDirectory() {
+        return directory;
+    }
+
+    /** Returns the size of the file in bytes, or zero for a directory. */
+    public long size() {
+        return size;
+    }
+
+    /** Returns the version of the entry, as defined by FileStatus. */
+    public long version() {
+        return version;
+    }
+}
@@ -0,0 +1,75 @@
+/**
+ * Authors: Tanay Gavankar (tgavanka)
+ * 			Siddharth Soundararajan (ssoundar)
+ */
+
+package naming;
+
+import java.io.Serializable;
+
+import storage.*;
+
+/**
+ * Attributes of a file or directory, as returned by <code>Service.stat</code>.
+ */
+public class FileStatus implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final boolean directory;
+    private final long size;
+    private final Storage[] replicas;
+    private final ErasureLayout layout;
+    private final long version;
+
+    FileStatus(boolean directory, long size, Storage[] replicas,
+            ErasureLayout layout, long version) {
+        this.directory = directory;
+        this.size = size;
+        this.replicas = replicas;
+        this.layout = layout;
+        this.version = version;
+    }
+
+    /** Returns <code>true</code> if the object is a directory. */
+    public boolean isDirectory() {
+        return directory;
+    }
+
+    /** Returns the size of the file in bytes, or zero for a directory. */
+    public long size() {
+        return size;
+    }
+
+    /**
+     * Returns stubs for the storage servers hosting up-to-date copies of the
+     * file, in the order in which they should be read from, as returned by
+     * <code>Service.getReplicas</code>. The array is empty for a directory,
+     * and for an erasure-coded file.
+     */
+    public Storage[] replicas() {
+        return replicas.clone();
+    }
+
+    /**
+     * Returns the layout of the shards of an erasure-coded file, from which
+     * the file can be read without decoding it, or <code>null</code> if the
+     * object is not an erasure-coded file.
+     */
+    public ErasureLayout layout() {
+        return layout;
+    }
+
+    /**
+     * Returns the version of the object.
+     *
+     * <p>
+     * The version increases every time an exclusive lock that covers the
+     * object is released, that is, whenever the object may have been
+     * modified. Equal versions of the same path therefore indicate that the
+     * object has not changed in between.
+     */
+    public long version() {
+        return version;
+    }
+}
@@ -0,0 +1,79 @@
+/**
+ * Authors: Tanay Gavankar (tgavanka)
+ * 			Siddharth Soundararajan (ssoundar)
+ */
+
+package naming;
+
+import java.io.Serializable;
+
+import common.*;
+
+/**
+ * Lock held on a path for a limited time.
+ *
+ * <p>
+ * A lease is returned by <code>Service.lease</code> and identifies one lock
+ * grant on the naming server. The lock is released automatically once the
+ * lease duration has passed without the lease being renewed, so that a client
+ * which fails while holding a lock does not keep the lock forever. Clients
+ * holding a lock for longer than the duration must renew the lease
+ * periodically.
+ */
+public class Lease implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final long id;
+    private final Path path;
+    private final boolean exclusive;
+    private final long duration;
+
+    Lease(long id, Path path, boolean exclusive, long duration) {
+        this.id = id;
+        this.path = path;
+        this.exclusive = exclusive;
+        this.duration = duration;
+    }
+
+    /** Returns the locked path. */
+    public Path path() {
+        return path;
+    }
+
+    /** Returns <code>true</code> if the lock is held for exclusive access. */
+    public boolean isExclusive() {
+        return exclusive;
+    }
+
+    /**
+     * Returns the time, in milliseconds, for which the lease stays valid after
+     * it is granted or renewed.
+     */
+    public long duration() {
+        return duration;
+    }
+
+    long id() {
+        return id;
+    }
+
+    /** Two leases are equal if they identify the same lock grant. */
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof Lease)) {
+            return false;
+        }
+        return id == ((Lease) other).id;
+    }
+
+    @Override
+    public int hashCode() {
+        return (int) (id ^ (id >>> 32));
+    }
+
+    @Override
+    public String toString() {
+        return (exclusive ? "exclusive" : "shared") + " lease on " + path;
+    }
+}
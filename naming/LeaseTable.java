@@ -0,0 +1,196 @@
+/**
+ * Authors: Tanay Gavankar (tgavanka)
+ * 			Siddharth Soundararajan (ssoundar)
+ */
+
+package naming;
+
+import java.util.*;
+
+import common.*;
+
+/**
+ * Table of the lock leases granted by the naming server.
+ *
+ * <p>
+ * The table only keeps track of leases and their expiry times; taking and
+ * releasing the locks themselves is left to the caller. Leases are indexed
+ * by identifier, and are renewed and released only by their holders.
+ *
+ * <p>
+ * The table also records the plain holds on each path, taken without a
+ * lease. A plain hold is kept as a lease that is never handed out, so it
+ * cannot be renewed, and expires like any other lease once its duration has
+ * passed. A plain unlock of a path releases the oldest plain hold on it in
+ * the given mode, never a lease: the naming server cannot tell which client
+ * holds which lease on a path, so unlocking by path must not release the
+ * lock of another client.
+ */
+class LeaseTable {
+
+    private final HashMap<Long, Grant> grants;
+
+    // Plain holds on each path, oldest first, in each mode.
+    private final HashMap<Path, LinkedList<Lease>> sharedHolds;
+    private final HashMap<Path, LinkedList<Lease>> exclusiveHolds;
+    private int holdCount;
+
+    // Lease identifiers start at a random value, so that leases handed out
+    // before a restart of the naming server are not mistaken for new ones.
+    private long nextId;
+
+    LeaseTable() {
+        grants = new HashMap<Long, Grant>();
+        sharedHolds = new HashMap<Path, LinkedList<Lease>>();
+        exclusiveHolds = new HashMap<Path, LinkedList<Lease>>();
+        nextId = new Random().nextLong();
+    }
+
+    /**
+     * Records a new lease on a path.
+     *
+     * @param duration
+     *            Lease duration in milliseconds.
+     */
+    synchronized Lease grant(Path path, boolean exclusive, long duration) {
+        return add(path, exclusive, duration, false).lease;
+    }
+
+    /**
+     * Records a plain hold on a path. The hold is released by a plain unlock
+     * of the path, or expires once its duration has passed.
+     *
+     * @param duration
+     *            Hold duration in milliseconds.
+     */
+    synchronized void hold(Path path, boolean exclusive, long duration) {
+        Grant grant = add(path, exclusive, duration, true);
+
+        HashMap<Path, LinkedList<Lease>> holds = holds(exclusive);
+        LinkedList<Lease> held = holds.get(path);
+        if (held == null) {
+            held = new LinkedList<Lease>();
+            holds.put(path, held);
+        }
+        held.add(grant.lease);
+        holdCount++;
+    }
+
+    private Grant add(Path path, boolean exclusive, long duration,
+            boolean hold) {
+        Lease lease = new Lease(nextId++, path, exclusive, duration);
+        Grant grant = new Grant(lease, hold);
+        grant.renew();
+
+        grants.put(lease.id(), grant);
+        return grant;
+    }
+
+    /**
+     * Extends a lease by its duration from now.
+     *
+     * @return <code>false</code> if the lease is not in the table, because it
+     *         has expired or has been released.
+     */
+    synchronized boolean renew(Lease lease) {
+        Grant grant = grants.get(lease.id());
+        if (grant == null || grant.hold) {
+            return false;
+        }
+
+        grant.renew();
+        return true;
+    }
+
+    /**
+     * Removes a lease from the table.
+     *
+     * @return The lease as granted, or <code>null</code> if the lease is not
+     *         in the table.
+     */
+    synchronized Lease remove(Lease lease) {
+        Grant grant = grants.get(lease.id());
+        if (grant == null || grant.hold) {
+            return null;
+        }
+
+        grants.remove(lease.id());
+        return grant.lease;
+    }
+
+    /**
+     * Removes the oldest plain hold on a path in the given mode.
+     *
+     * @return <code>false</code> if the path has no plain hold in that mode,
+     *         for example because the hold has expired.
+     */
+    synchronized boolean remove(Path path, boolean exclusive) {
+        LinkedList<Lease> held = holds(exclusive).get(path);
+        if (held == null) {
+            return false;
+        }
+
+        Lease lease = held.getFirst();
+        unhold(lease);
+        grants.remove(lease.id());
+        return true;
+    }
+
+    /** Removes and returns every lease that has expired. */
+    synchronized List<Lease> expire() {
+        long now = System.nanoTime();
+        List<Lease> expired = new ArrayList<Lease>();
+
+        Iterator<Grant> i = grants.values().iterator();
+        while (i.hasNext()) {
+            Grant grant = i.next();
+            if (now - grant.expires >= 0) {
+                i.remove();
+                if (grant.hold) {
+                    unhold(grant.lease);
+                }
+                expired.add(grant.lease);
+            }
+        }
+
+        return expired;
+    }
+
+    /** Returns the number of leases in the table, not counting plain holds. */
+    synchronized int size() {
+        return grants.size() - holdCount;
+    }
+
+    private HashMap<Path, LinkedList<Lease>> holds(boolean exclusive) {
+        return exclusive ? exclusiveHolds : sharedHolds;
+    }
+
+    // Removes a plain hold from the holds on its path. The caller removes
+    // its grant.
+    private void unhold(Lease lease) {
+        HashMap<Path, LinkedList<Lease>> holds = holds(lease.isExclusive());
+        LinkedList<Lease> held = holds.get(lease.path());
+        held.remove(lease);
+        if (held.isEmpty()) {
+            holds.remove(lease.path());
+        }
+        holdCount--;
+    }
+
+    // A granted lease or plain hold and the time at which it expires, in
+    // System.nanoTime() units. Guarded by the monitor of the table.
+    private static class Grant {
+        final Lease lease;
+        final boolean hold;
+        long expires;
+
+        Grant(Lease lease, boolean hold) {
+            this.lease = lease;
+            this.hold = hold;
+        }
+
+        void renew() {
+            expires = System.nanoTime() + lease.duration() * 1000000L;
+        }
+    }
+}
@@ -0,0 +1,49 @@
+/**
+ * Authors: Tanay Gavankar (tgavanka)
+ * 			Siddharth Soundararajan (ssoundar)
+ */
+
+package naming;
+
+import java.io.Serializable;
+
+/**
+ * One page of a directory listing, as returned by
+ * <code>Service.listPage</code>.
+ */
+public class ListingPage implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String[] names;
+    private final DirectoryEntry[] entries;
+    private final String cursor;
+
+    ListingPage(String[] names, DirectoryEntry[] entries, String cursor) {
+        this.names = names;
+        this.entries = entries;
+        this.cursor = cursor;
+    }
+
+    /** Returns the names of the entries on this page, in ascending order. */
+    public String[] names() {
+        return names;
+    }
+
+    /**
+     * Returns the entries on this page with their attributes, in the same
+     * order as <code>names</code>, or <code>null</code> if attributes were
+     * not requested.
+     */
+    public DirectoryEntry[] entries() {
+        return entries;
+    }
+
+    /**
+     * Returns the cursor from which the next page is to be listed, or
+     * <code>null</code> if this is the last page.
+     */
+    public String cursor() {
+        return cursor;
+    }
+}
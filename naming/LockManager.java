@@ -0,0 +1,461 @@
+/**
+ * Authors: Tanay Gavankar (tgavanka)
+ * 			Siddharth Soundararajan (ssoundar)
+ */
+
+package naming;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import common.*;
+
+/**
+ * Hierarchical lock manager for the naming server.
+ *
+ * <p>
+ * Locking a path takes a shared lock on every directory from the root down to
+ * its parent, and then a shared or exclusive lock on the path itself, always
+ * in that order. Unlocking releases the locks in the reverse order.
+ *
+ * <p>
+ * Each path has a lock entry only while the lock is held or waited for. An
+ * entry is reference counted by its holders and waiters and removed from the
+ * table as soon as the count drops to zero, so the table does not grow with
+ * the number of paths ever locked.
+ *
+ * <p>
+ * Waiters are served strictly in arrival order, except that consecutive
+ * shared waiters are granted the lock together. A shared request therefore
+ * waits behind any exclusive request that arrived before it, even while the
+ * lock is held for shared access, which keeps writers from starving. Each
+ * waiter blocks on its own monitor and is woken only when it is granted the
+ * lock.
+ *
+ * <p>
+ * Several paths can be locked at once. The locks they need are then taken
+ * together, in ascending path order, with all shared locks a path needs from
+ * the batch granted in a single step. Since single paths are also locked in
+ * ascending order, root first, no two lockers can wait for each other.
+ *
+ * <p>
+ * Every entry counts how often it was acquired, how often an acquisition had
+ * to wait, and the total time spent waiting. The same counters are also kept
+ * for the manager as a whole, as entries disappear when they become idle.
+ */
+class LockManager {
+
+    private final ConcurrentHashMap<Path, Entry> locks;
+
+    // Counters over all locks
+    private final AtomicLong acquisitions = new AtomicLong();
+    private final AtomicLong contended = new AtomicLong();
+    private final AtomicLong waitNanos = new AtomicLong();
+
+    LockManager() {
+        locks = new ConcurrentHashMap<Path, Entry>();
+    }
+
+    /**
+     * Locks a path and all of its ancestors.
+     *
+     * @param path
+     *            The path to lock.
+     * @param exclusive
+     *            Whether the path itself is to be locked for exclusive access.
+     *            Ancestors are always locked for shared access.
+     * @throws InterruptedException
+     *             If the thread is interrupted while waiting. No locks are held
+     *             when this exception is thrown.
+     */
+    void lock(Path path, boolean exclusive) throws InterruptedException {
+        Path[] chain = chain(path);
+        int held = 0;
+
+        try {
+            for (; held < chain.length; held++) {
+                acquire(chain[held], exclusive && held == chain.length - 1, 1);
+            }
+        } finally {
+            if (held < chain.length) {
+                // Interrupted: give back whatever was already taken.
+                for (int i = held - 1; i >= 0; i--) {
+                    release(chain[i], false, 1);
+                }
+            }
+        }
+    }
+
+    /**
+     * Locks several paths and all of their ancestors as a single request.
+     *
+     * <p>
+     * The result is the same as locking each path in turn, but the locks are
+     * acquired in ascending path order, so that the request cannot deadlock
+     * with any other request. The paths are unlocked one at a time, with
+     * <code>unlock</code>.
+     *
+     * @throws IllegalArgumentException
+     *             If a path is to be locked for exclusive access and is also
+     *             given again, or is the ancestor of another path given. Such
+     *             a request would wait for itself.
+     * @throws InterruptedException
+     *             If the thread is interrupted while waiting. No locks are held
+     *             when this exception is thrown.
+     */
+    void lockAll(Path[] paths, boolean[] exclusive)
+            throws InterruptedException {
+        // For each path to lock, the number of shared locks it needs, or -1
+        // if it needs an exclusive lock.
+        TreeMap<Path, Integer> needed = new TreeMap<Path, Integer>();
+        for (int i = 0; i < paths.length; i++) {
+            Path[] chain = chain(paths[i]);
+            for (int j = 0; j < chain.length; j++) {
+                boolean write = exclusive[i] && j == chain.length - 1;
+                Integer count = needed.get(chain[j]);
+                if (count != null && (write || count < 0)) {
+                    throw new IllegalArgumentException("Cannot lock "
+                            + chain[j] + " for exclusive access and lock it "
+                            + "or a path below it in the same request.");
+                }
+                needed.put(chain[j], write ? -1 : (count == null ? 1
+                        : count + 1));
+            }
+        }
+
+        List<Map.Entry<Path, Integer>> order =
+                new ArrayList<Map.Entry<Path, Integer>>(needed.entrySet());
+        int held = 0;
+
+        try {
+            for (; held < order.size(); held++) {
+                int count = order.get(held).getValue();
+                acquire(order.get(held).getKey(), count < 0,
+                        Math.max(count, 1));
+            }
+        } finally {
+            if (held < order.size()) {
+                for (int i = held - 1; i >= 0; i--) {
+                    int count = order.get(i).getValue();
+                    release(order.get(i).getKey(), count < 0,
+                            Math.max(count, 1));
+                }
+            }
+        }
+    }
+
+    /**
+     * Unlocks a path and all of its ancestors.
+     *
+     * @throws IllegalArgumentException
+     *             If the path is not locked in the given mode.
+     */
+    void unlock(Path path, boolean exclusive) {
+        Path[] chain = chain(path);
+
+        release(chain[chain.length - 1], exclusive, 1);
+        for (int i = chain.length - 2; i >= 0; i--) {
+            release(chain[i], false, 1);
+        }
+    }
+
+    /**
+     * Returns <code>true</code> if a path is locked for exclusive access,
+     * either itself or through one of its ancestors. No other user can then
+     * hold any lock on the path.
+     */
+    boolean isExclusive(Path path) {
+        for (Path p : chain(path)) {
+            Entry entry = locks.get(p);
+            if (entry != null) {
+                synchronized (entry) {
+                    if (entry.writer) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    /** Returns the number of paths that currently have a lock entry. */
+    int size() {
+        return locks.size();
+    }
+
+    /**
+     * Returns the contention counters for a path, or <code>null</code> if the
+     * path is not currently locked or waited for.
+     */
+    Contention contention(Path path) {
+        Entry entry = locks.get(path);
+        if (entry == null) {
+            return null;
+        }
+
+        synchronized (entry) {
+            return new Contention(entry.acquisitions, entry.contended,
+                    entry.waitNanos, entry.queue.size());
+        }
+    }
+
+    /**
+     * Returns the contention counters summed over all locks. The number of
+     * waiting requests is not tracked across locks and is reported as zero.
+     */
+    Contention contention() {
+        return new Contention(acquisitions.get(), contended.get(),
+                waitNanos.get(), 0);
+    }
+
+    /** Snapshot of lock contention counters. */
+    static class Contention {
+        /** Number of times the lock was granted. */
+        final long acquisitions;
+        /** Number of grants that had to wait for the lock. */
+        final long contended;
+        /** Total time spent waiting for the lock, in nanoseconds. */
+        final long waitNanos;
+        /** Number of requests currently waiting for the lock. */
+        final int waiting;
+
+        Contention(long acquisitions, long contended, long waitNanos,
+                int waiting) {
+            this.acquisitions = acquisitions;
+            this.contended = contended;
+            this.waitNanos = waitNanos;
+            this.waiting = waiting;
+        }
+    }
+
+    // Returns the path preceded by all of its ancestors, root first.
+    private Path[] chain(Path path) {
+        int depth = 0;
+        for (Iterator<String> i = path.iterator(); i.hasNext(); i.next()) {
+            depth++;
+        }
+
+        Path[] chain = new Path[depth + 1];
+        for (int i = depth; i >= 0; i--) {
+            chain[i] = path;
+            if (i > 0) {
+                path = path.parent();
+            }
+        }
+        return chain;
+    }
+
+    // Lock entry for a single path. All fields are guarded by the entry's
+    // monitor.
+    private static class Entry {
+        int references = 0;
+        boolean retired = false;
+
+        int readers = 0;
+        boolean writer = false;
+        final LinkedList<Waiter> queue = new LinkedList<Waiter>();
+
+        long acquisitions = 0;
+        long contended = 0;
+        long waitNanos = 0;
+    }
+
+    // A thread waiting for a lock, possibly for several shared holds at once.
+    // The granted flag is guarded by the waiter's own monitor, on which the
+    // thread waits.
+    private static class Waiter {
+        final boolean exclusive;
+        final int count;
+        boolean granted = false;
+
+        Waiter(boolean exclusive, int count) {
+            this.exclusive = exclusive;
+            this.count = count;
+        }
+    }
+
+    // Returns the entry for a path with the given number of references taken
+    // on it.
+    private Entry reference(Path path, int count) {
+        while (true) {
+            Entry entry = locks.get(path);
+            if (entry == null) {
+                Entry created = new Entry();
+                entry = locks.putIfAbsent(path, created);
+                if (entry == null) {
+                    entry = created;
+                }
+            }
+
+            synchronized (entry) {
+                // A retired entry has already been removed from the table;
+                // look the path up again.
+                if (!entry.retired) {
+                    entry.references += count;
+                    return entry;
+                }
+            }
+        }
+    }
+
+    // Drops references, removing the entry once it is idle. Called with the
+    // entry's monitor held.
+    private void dereference(Path path, Entry entry, int count) {
+        entry.references -= count;
+        if (entry.references == 0) {
+            entry.retired = true;
+            locks.remove(path, entry);
+        }
+    }
+
+    // Takes an exclusive lock, or count shared locks, on a single path.
+    private void acquire(Path path, boolean exclusive, int count)
+            throws InterruptedException {
+        Entry entry = reference(path, count);
+        Waiter waiter;
+
+        synchronized (entry) {
+            if (entry.queue.isEmpty() && compatible(entry, exclusive)) {
+                grant(entry, exclusive, count);
+                entry.acquisitions++;
+                acquisitions.incrementAndGet();
+                return;
+            }
+
+            waiter = new Waiter(exclusive, count);
+            entry.queue.addLast(waiter);
+        }
+
+        long start = System.nanoTime();
+        try {
+            synchronized (waiter) {
+                while (!waiter.granted) {
+                    waiter.wait();
+                }
+            }
+        } catch (InterruptedException e) {
+            abandon(path, entry, waiter);
+            throw e;
+        }
+
+        long waited = System.nanoTime() - start;
+        synchronized (entry) {
+            entry.acquisitions++;
+            entry.contended++;
+            entry.waitNanos += waited;
+        }
+        acquisitions.incrementAndGet();
+        contended.incrementAndGet();
+        waitNanos.addAndGet(waited);
+    }
+
+    // Cleans up after a waiter that was interrupted. If the lock was granted
+    // in the meantime, it is released again.
+    private void abandon(Path path, Entry entry, Waiter waiter) {
+        boolean granted;
+        synchronized (waiter) {
+            granted = waiter.granted;
+        }
+
+        if (granted) {
+            release(path, waiter.exclusive, waiter.count);
+            return;
+        }
+
+        boolean removed;
+        List<Waiter> woken = null;
+        synchronized (entry) {
+            removed = entry.queue.remove(waiter);
+            if (removed) {
+                // Waiters queued behind this one may now be compatible.
+                woken = admit(entry);
+                dereference(path, entry, waiter.count);
+            }
+        }
+
+        if (removed) {
+            wake(woken);
+        } else {
+            // Granted between the two checks above.
+            release(path, waiter.exclusive, waiter.count);
+        }
+    }
+
+    // Releases an exclusive lock, or count shared locks, on a single path.
+    private void release(Path path, boolean exclusive, int count) {
+        Entry entry = locks.get(path);
+        if (entry == null) {
+            throw new IllegalArgumentException("The path is not locked.");
+        }
+
+        List<Waiter> woken;
+        synchronized (entry) {
+            if (exclusive) {
+                if (!entry.writer) {
+                    throw new IllegalArgumentException(
+                            "The path is not locked for exclusive access.");
+                }
+                entry.writer = false;
+            } else {
+                if (entry.readers < count) {
+                    throw new IllegalArgumentException(
+                            "The path is not locked for shared access.");
+                }
+                entry.readers -= count;
+            }
+
+            woken = admit(entry);
+            dereference(path, entry, count);
+        }
+
+        wake(woken);
+    }
+
+    private boolean compatible(Entry entry, boolean exclusive) {
+        if (exclusive) {
+            return !entry.writer && entry.readers == 0;
+        }
+        return !entry.writer;
+    }
+
+    private void grant(Entry entry, boolean exclusive, int count) {
+        if (exclusive) {
+            entry.writer = true;
+        } else {
+            entry.readers += count;
+        }
+    }
+
+    // Grants the lock to waiters at the head of the queue for as long as they
+    // are compatible with the current holders, returning the waiters to wake.
+    // Called with the entry's monitor held.
+    private List<Waiter> admit(Entry entry) {
+        List<Waiter> woken = null;
+
+        while (!entry.queue.isEmpty()
+                && compatible(entry, entry.queue.getFirst().exclusive)) {
+            Waiter waiter = entry.queue.removeFirst();
+            grant(entry, waiter.exclusive, waiter.count);
+            if (woken == null) {
+                woken = new ArrayList<Waiter>();
+            }
+            woken.add(waiter);
+        }
+
+        return woken;
+    }
+
+    private void wake(List<Waiter> woken) {
+        if (woken == null) {
+            return;
+        }
+
+        for (Waiter waiter : woken) {
+            synchronized (waiter) {
+                waiter.granted = true;
+                waiter.notify();
+            }
+        }
+    }
+}
@@ -0,0 +1,551 @@
+/**
+ * Authors: Tanay Gavankar (tgavanka)
+ * 			Siddharth Soundararajan (ssoundar)
+ */
+
+package naming;
+
+import java.io.*;
+import java.util.zip.CRC32;
+
+import common.*;
+import storage.*;
+
+/**
+ * Durable metadata log for the naming server.
+ *
+ * <p>
+ * The log is kept in a metadata directory as two files: a compacted
+ * <em>snapshot</em> of the whole directory tree, and an append-only
+ * <em>journal</em> of the mutations made since that snapshot was taken. Both
+ * files share one record format, so recovery is simply a replay of the
+ * snapshot followed by a replay of the journal.
+ *
+ * <p>
+ * Every record must be applied idempotently: creating an object that already
+ * exists, deleting one that does not, or adding a replica twice has no effect.
+ * A record may therefore safely appear in both the snapshot and the journal.
+ *
+ * <p>
+ * Callers log a mutation and apply it to the in-memory tree while holding the
+ * monitor of the log. Checkpoints are taken under the same monitor, so a
+ * snapshot never misses a mutation that has been logged to the journal it
+ * replaces.
+ *
+ * <p>
+ * A log created without a directory is volatile: logging calls do nothing and
+ * there is nothing to recover.
+ */
+class MetadataLog {
+
+    /** Receives metadata records, either during replay or when a snapshot is
+        being written. */
+    interface Target {
+        void server(int id, Storage storage, Command command);
+
+        void directory(Path directory);
+
+        void file(Path file, int[] servers);
+
+        void delete(Path path);
+
+        void addReplica(Path file, int server);
+
+        void removeReplica(Path file, int server);
+
+        void encoded(Path file, int dataShards, long length, int[] shards);
+
+        void decoded(Path file, int server);
+    }
+
+    /** Produces the full contents of a snapshot. */
+    interface Checkpoint {
+        void write(Target snapshot);
+    }
+
+    // Record types.
+    private static final byte SERVER = 1;
+    private static final byte DIRECTORY = 2;
+    private static final byte FILE = 3;
+    private static final byte DELETE = 4;
+    private static final byte ADD_REPLICA = 5;
+    private static final byte REMOVE_REPLICA = 6;
+    private static final byte ENCODED = 7;
+    private static final byte DECODED = 8;
+
+    private static final String SNAPSHOT_NAME = "snapshot";
+    private static final String JOURNAL_NAME = "journal";
+
+    private final File directory;
+    private final File snapshotFile;
+    private final File journalFile;
+    private final boolean sync;
+
+    private FileOutputStream journalStream;
+    private DataOutputStream journal;
+
+    // Number of records appended to the journal since the last checkpoint.
+    private long records = 0;
+
+    /** Creates a volatile log that records nothing. */
+    MetadataLog() {
+        directory = null;
+        snapshotFile = null;
+        journalFile = null;
+        sync = false;
+    }
+
+    /**
+     * Creates a log kept in the given directory.
+     *
+     * <p>
+     * The log must be recovered before any records are appended to it.
+     *
+     * @param directory
+     *            Directory holding the snapshot and journal files. It is
+     *            created if it does not exist.
+     * @param sync
+     *            If <code>true</code>, every appended record is forced to the
+     *            disk before the logging call returns.
+     */
+    MetadataLog(File directory, boolean sync) {
+        if (directory == null) {
+            throw new NullPointerException();
+        }
+
+        this.directory = directory;
+        this.snapshotFile = new File(directory, SNAPSHOT_NAME);
+        this.journalFile = new File(directory, JOURNAL_NAME);
+        this.sync = sync;
+    }
+
+    /**
+     * Replays the snapshot and the journal into the given target and opens
+     * the journal for appending.
+     *
+     * <p>
+     * A torn record at the end of the journal, left by a crash during an
+     * append, ends the replay and is cut off the journal.
+     *
+     * @throws IOException
+     *             If the metadata directory cannot be created or the log files
+     *             cannot be read.
+     */
+    synchronized void recover(Target target) throws IOException {
+        if (directory == null) {
+            return;
+        }
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create metadata directory "
+                    + directory);
+        }
+
+        new File(directory, SNAPSHOT_NAME + ".tmp").delete();
+
+        if (snapshotFile.exists()) {
+            replay(snapshotFile, target);
+        }
+
+        long valid = 0;
+        if (journalFile.exists()) {
+            valid = replay(journalFile, target);
+            RandomAccessFile raf = new RandomAccessFile(journalFile, "rw");
+            try {
+                raf.setLength(valid);
+            } finally {
+                raf.close();
+            }
+        }
+
+        openJournal(true);
+    }
+
+    // Replays one log file, returning the length of its intact prefix.
+    private long replay(File file, Target target) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(file)));
+        long valid = 0;
+        try {
+            while (true) {
+                byte[] record;
+                try {
+                    int length = in.readInt();
+                    int checksum = in.readInt();
+                    if (length <= 0 || length > file.length()) {
+                        break;
+                    }
+                    record = new byte[length];
+                    in.readFully(record);
+                    if (checksum(record) != checksum) {
+                        break;
+                    }
+                } catch (EOFException e) {
+                    break;
+                }
+
+                apply(record, target);
+                valid += 8 + record.length;
+            }
+        } finally {
+            in.close();
+        }
+        return valid;
+    }
+
+    private void apply(byte[] record, Target target) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+                record));
+
+        switch (in.readByte()) {
+        case SERVER:
+            int id = in.readInt();
+            ObjectInputStream stubs = new ObjectInputStream(in);
+            try {
+                target.server(id, (Storage) stubs.readObject(),
+                        (Command) stubs.readObject());
+            } catch (ClassNotFoundException e) {
+                throw new IOException("Unreadable server record", e);
+            }
+            break;
+        case DIRECTORY:
+            target.directory(new Path(in.readUTF()));
+            break;
+        case FILE:
+            Path file = new Path(in.readUTF());
+            int[] servers = new int[in.readInt()];
+            for (int i = 0; i < servers.length; i++) {
+                servers[i] = in.readInt();
+            }
+            target.file(file, servers);
+            break;
+        case DELETE:
+            target.delete(new Path(in.readUTF()));
+            break;
+        case ADD_REPLICA:
+            target.addReplica(new Path(in.readUTF()), in.readInt());
+            break;
+        case REMOVE_REPLICA:
+            target.removeReplica(new Path(in.readUTF()), in.readInt());
+            break;
+        case ENCODED:
+            Path coded = new Path(in.readUTF());
+            int dataShards = in.readInt();
+            long length = in.readLong();
+            int[] shards = new int[in.readInt()];
+            for (int i = 0; i < shards.length; i++) {
+                shards[i] = in.readInt();
+            }
+            target.encoded(coded, dataShards, length, shards);
+            break;
+        case DECODED:
+            target.decoded(new Path(in.readUTF()), in.readInt());
+            break;
+        default:
+            throw new IOException("Unknown metadata record type");
+        }
+    }
+
+    private void openJournal(boolean append) throws IOException {
+        journalStream = new FileOutputStream(journalFile, append);
+        journal = new DataOutputStream(new BufferedOutputStream(
+                journalStream));
+    }
+
+    // The following methods append a single record to the journal. A record
+    // that cannot be written leaves the naming server unable to guarantee
+    // durability, which is reported as an IllegalStateException.
+
+    synchronized void server(int id, Storage storage, Command command) {
+        append(serverRecord(id, storage, command));
+    }
+
+    synchronized void directory(Path directory) {
+        append(pathRecord(DIRECTORY, directory));
+    }
+
+    synchronized void file(Path file, int[] servers) {
+        append(fileRecord(file, servers));
+    }
+
+    synchronized void delete(Path path) {
+        append(pathRecord(DELETE, path));
+    }
+
+    synchronized void addReplica(Path file, int server) {
+        append(replicaRecord(ADD_REPLICA, file, server));
+    }
+
+    synchronized void removeReplica(Path file, int server) {
+        append(replicaRecord(REMOVE_REPLICA, file, server));
+    }
+
+    synchronized void encoded(Path file, int dataShards, long length,
+            int[] shards) {
+        append(encodedRecord(file, dataShards, length, shards));
+    }
+
+    synchronized void decoded(Path file, int server) {
+        append(replicaRecord(DECODED, file, server));
+    }
+
+    /** Returns the number of records appended since the last checkpoint. */
+    synchronized long size() {
+        return records;
+    }
+
+    private void append(RecordBuilder record) {
+        if (directory == null) {
+            return;
+        }
+
+        if (journal == null) {
+            throw new IllegalStateException("Metadata journal is closed");
+        }
+
+        try {
+            byte[] bytes = record.toByteArray();
+            journal.writeInt(bytes.length);
+            journal.writeInt(checksum(bytes));
+            journal.write(bytes);
+            journal.flush();
+            if (sync) {
+                journalStream.getFD().sync();
+            }
+            records++;
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to write metadata journal",
+                    e);
+        }
+    }
+
+    /**
+     * Writes a new snapshot and starts an empty journal.
+     *
+     * <p>
+     * The snapshot is written to a temporary file and renamed over the old
+     * snapshot only once it is complete. A crash before the journal is reset
+     * leaves records that are already in the snapshot in the journal, which
+     * is harmless as replay is idempotent.
+     *
+     * @param source
+     *            Writes the current state of the tree to the snapshot.
+     * @throws IOException
+     *             If the snapshot cannot be written.
+     */
+    synchronized void checkpoint(Checkpoint source) throws IOException {
+        if (directory == null || journal == null) {
+            return;
+        }
+
+        File temp = new File(directory, SNAPSHOT_NAME + ".tmp");
+        SnapshotWriter writer = new SnapshotWriter(temp);
+        try {
+            source.write(writer);
+            writer.close();
+        } catch (IOException e) {
+            writer.abort();
+            throw e;
+        } catch (RuntimeException e) {
+            writer.abort();
+            throw e;
+        }
+
+        if (!temp.renameTo(snapshotFile)) {
+            snapshotFile.delete();
+            if (!temp.renameTo(snapshotFile)) {
+                throw new IOException("Cannot replace metadata snapshot");
+            }
+        }
+
+        journal.close();
+        openJournal(false);
+        records = 0;
+    }
+
+    /** Closes the journal. */
+    synchronized void close() {
+        if (journal == null) {
+            return;
+        }
+
+        try {
+            journal.close();
+        } catch (IOException e) {
+            // Nothing more can be done
+        }
+        journal = null;
+    }
+
+    // Writes snapshot records to a temporary file. Errors are remembered and
+    // reported when the writer is closed, since Target methods cannot throw
+    // checked exceptions.
+    private class SnapshotWriter implements Target {
+        private final File file;
+        private final FileOutputStream stream;
+        private final DataOutputStream out;
+        private IOException error = null;
+
+        SnapshotWriter(File file) throws IOException {
+            this.file = file;
+            stream = new FileOutputStream(file);
+            out = new DataOutputStream(new BufferedOutputStream(stream));
+        }
+
+        private void write(RecordBuilder record) {
+            if (error != null) {
+                return;
+            }
+
+            try {
+                byte[] bytes = record.toByteArray();
+                out.writeInt(bytes.length);
+                out.writeInt(checksum(bytes));
+                out.write(bytes);
+            } catch (IOException e) {
+                error = e;
+            }
+        }
+
+        public void server(int id, Storage storage, Command command) {
+            write(serverRecord(id, storage, command));
+        }
+
+        public void directory(Path directory) {
+            write(pathRecord(DIRECTORY, directory));
+        }
+
+        public void file(Path file, int[] servers) {
+            write(fileRecord(file, servers));
+        }
+
+        public void delete(Path path) {
+            write(pathRecord(DELETE, path));
+        }
+
+        public void addReplica(Path file, int server) {
+            write(replicaRecord(ADD_REPLICA, file, server));
+        }
+
+        public void removeReplica(Path file, int server) {
+            write(replicaRecord(REMOVE_REPLICA, file, server));
+        }
+
+        public void encoded(Path file, int dataShards, long length,
+                int[] shards) {
+            write(encodedRecord(file, dataShards, length, shards));
+        }
+
+        public void decoded(Path file, int server) {
+            write(replicaRecord(DECODED, file, server));
+        }
+
+        void close() throws IOException {
+            if (error != null) {
+                throw error;
+            }
+            out.flush();
+            stream.getFD().sync();
+            out.close();
+        }
+
+        void abort() {
+            try {
+                out.close();
+            } catch (IOException e) {
+                // Already failing
+            }
+            file.delete();
+        }
+    }
+
+    // Record encoding. Records are built in memory so that the length and
+    // checksum can be written ahead of them.
+
+    private static class RecordBuilder extends DataOutputStream {
+        RecordBuilder(byte type) {
+            super(new ByteArrayOutputStream());
+            try {
+                writeByte(type);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        byte[] toByteArray() throws IOException {
+            flush();
+            return ((ByteArrayOutputStream) out).toByteArray();
+        }
+    }
+
+    private static RecordBuilder serverRecord(int id, Storage storage,
+            Command command) {
+        RecordBuilder record = new RecordBuilder(SERVER);
+        try {
+            record.writeInt(id);
+            ObjectOutputStream stubs = new ObjectOutputStream(record);
+            stubs.writeObject(storage);
+            stubs.writeObject(command);
+            stubs.flush();
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot serialize server stubs", e);
+        }
+        return record;
+    }
+
+    private static RecordBuilder pathRecord(byte type, Path path) {
+        RecordBuilder record = new RecordBuilder(type);
+        try {
+            record.writeUTF(path.toString());
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return record;
+    }
+
+    private static RecordBuilder fileRecord(Path file, int[] servers) {
+        RecordBuilder record = pathRecord(FILE, file);
+        try {
+            record.writeInt(servers.length);
+            for (int server : servers) {
+                record.writeInt(server);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return record;
+    }
+
+    private static RecordBuilder replicaRecord(byte type, Path file,
+            int server) {
+        RecordBuilder record = pathRecord(type, file);
+        try {
+            record.writeInt(server);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return record;
+    }
+
+    private static RecordBuilder encodedRecord(Path file, int dataShards,
+            long length, int[] shards) {
+        RecordBuilder record = pathRecord(ENCODED, file);
+        try {
+            record.writeInt(dataShards);
+            record.writeLong(length);
+            record.writeInt(shards.length);
+            for (int shard : shards) {
+                record.writeInt(shard);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return record;
+    }
+
+    private static int checksum(byte[] bytes) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length);
+        return (int) crc.getValue();
+    }
+}
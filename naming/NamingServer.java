@@ -8,7 +8,16 @@ package naming;
 import java.io.*;
 import java.net.*;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import rmi.*;
 import common.*;
@@ -53,26 +62,166 @@ public class NamingServer implements Service, Registration {
     // used for what storage server
     private volatile Vector<StorageStubs> storageList;
     
-    // List of locks that connect a path to a lock
-    // A path is used since each thread opened will have a specific path
-    // that can be used to identify it. Thread ID's cannot be used since
-    // the Skeleton spawns a different thread for each request.
-    private volatile ConcurrentHashMap<Path, ReadWriteLock> lockList;
-    private volatile ConcurrentHashMap<Path, Integer> replicationCounter;
+    // Locks on paths. Lock state is kept per path rather than per thread,
+    // since the Skeleton spawns a different thread for each request.
+    private final LockManager locks;
+
+    // Every lock is held under a lease. Leases that are not renewed within
+    // leaseDuration milliseconds, and plain holds taken by lock() that are not
+    // unlocked within holdDuration milliseconds, are released by the reaper,
+    // which checks for expired leases every REAPER_INTERVAL milliseconds.
+    private final LeaseTable leases;
+    private volatile long leaseDuration = DEFAULT_LEASE_DURATION;
+    private volatile long holdDuration = DEFAULT_HOLD_DURATION;
+    private LeaseReaper leaseReaper;
+
+    // Chooses servers for new files and copies, and copies to read from.
+    private volatile PlacementPolicy placement = new PowerOfTwoChoices();
+
+    /** Default lease duration, in milliseconds. */
+    public static final long DEFAULT_LEASE_DURATION = 60 * 1000;
+    /** Default duration of locks taken without a lease, in milliseconds. */
+    public static final long DEFAULT_HOLD_DURATION = 10 * 60 * 1000;
+    private static final long REAPER_INTERVAL = 1000;
+
+    // Largest number of entries returned in a page of a directory listing.
+    private static final int MAX_PAGE_SIZE = 4096;
+
+    // Adjustment of the number of copies of files, and bringing stale copies
+    // up to date, are carried out by a fixed pool of workers. The number of
+    // copies of a file follows its time-decayed read count, as decided by the
+    // replication policy. Files with extra copies are checked every
+    // REPLICA_CHECK_INTERVAL milliseconds, so that copies of files no longer
+    // read are removed, and stale copies left behind are brought up to date.
+    private final ReplicationQueue replicationQueue;
+    private volatile ReplicationPolicy replicationPolicy;
+    private volatile ReadRateSketch readRates;
+    private ReplicaChecker replicaChecker;
+    private static final int REPLICATION_WORKERS = 4;
+    private static final int REPLICATION_QUEUE_CAPACITY = 1024;
+    private static final long REPLICA_CHECK_INTERVAL = 10 * 1000;
+
+    // Deletions from several storage servers send their requests through a
+    // fixed pool of DELETE_WORKERS threads shared by all deletions. When every
+    // worker is busy and DELETE_QUEUE_CAPACITY requests are waiting, the
+    // deleting thread makes the request itself. The workers are daemon
+    // threads that exit after DELETE_WORKER_IDLE_TIME milliseconds without
+    // work, so the pool is never shut down.
+    private final ThreadPoolExecutor deleteWorkers;
+    private static final int DELETE_WORKERS = 8;
+    private static final int DELETE_QUEUE_CAPACITY = 256;
+    private static final long DELETE_WORKER_IDLE_TIME = 30 * 1000;
+
+    // Storage servers send heartbeats periodically. A server that has not
+    // sent one for failureTimeout milliseconds since it registered, or since
+    // the naming server started if it was restored from the journal, is
+    // considered failed by the detector, which checks every
+    // FAILURE_CHECK_INTERVAL milliseconds. Files that lost copies are repaired
+    // through the replication queue; those whose repair was dropped are kept
+    // in damagedFiles, guarded by hostsLock, and submitted again when copies
+    // are next checked.
+    private volatile long failureTimeout = DEFAULT_FAILURE_TIMEOUT;
+    private FailureDetector failureDetector;
+    private final Set<FsNode> damagedFiles = new HashSet<FsNode>();
+
+    /** Default failure timeout, in milliseconds. */
+    public static final long DEFAULT_FAILURE_TIMEOUT = 30 * 1000;
+    private static final long FAILURE_CHECK_INTERVAL = 1000;
+
+    // Files are moved from the most to the least utilized storage server, as
+    // last reported in heartbeats, when their utilizations differ by more
+    // than REBALANCE_THRESHOLD. Moves are considered every REBALANCE_INTERVAL
+    // milliseconds and limited to rebalanceBandwidth bytes per second on
+    // average. They are put off while the replication queue has work, and
+    // while storage servers have more than REBALANCE_LOAD_LIMIT outstanding
+    // requests on average.
+    private volatile long rebalanceBandwidth = DEFAULT_REBALANCE_BANDWIDTH;
+    private Rebalancer rebalancer;
+
+    /** Default rebalancing bandwidth, in bytes per second. */
+    public static final long DEFAULT_REBALANCE_BANDWIDTH = 10 * 1024 * 1024;
+    private static final long REBALANCE_INTERVAL = 10 * 1000;
+    private static final double REBALANCE_THRESHOLD = 0.1;
+    private static final int REBALANCE_LOAD_LIMIT = 4;
+
+    // Files that have been neither written for the cold time of the coding
+    // settings nor read more than COLD_READS times, decayed, are converted
+    // into erasure-coded shards by the encoder, which looks for them every
+    // CODING_CHECK_INTERVAL milliseconds. Files smaller than MIN_CODED_SIZE
+    // are left alone, since shards would save little space. A coded file is
+    // decoded back into a full copy once it is read as often as a second copy
+    // would be justified, or written, or when it loses a shard; decoding is
+    // serialized by codingLock. Coding is off until settings are given.
+    private volatile CodingSettings codingSettings = null;
+    private ColdFileEncoder coldFileEncoder;
+    private final Object codingLock = new Object();
+
+    // Shards of files decoded while readers may still be reading them, by
+    // path. They are deleted once the file is next locked for exclusive
+    // access by the replication queue. Guarded by the monitor of the map.
+    private final HashMap<Path, List<StorageStubs>> retiredShards =
+            new HashMap<Path, List<StorageStubs>>();
+
+    // Files given out for writing under an exclusive lock, by path. They are
+    // marked as modified, and their sizes read again, when an exclusive lock
+    // on them or on one of their ancestors is released. Guarded by the
+    // monitor of the map.
+    private final HashMap<Path, FsNode> writtenFiles =
+            new HashMap<Path, FsNode>();
+    private static final long CODING_CHECK_INTERVAL = 10 * 1000;
+    private static final double COLD_READS = 1;
+    private static final long MIN_CODED_SIZE = 64 * 1024;
     
     // Flags to know when the skeletons have stopped.
     private volatile boolean clientStopped = false;
     private volatile boolean regisStopped = false;
 
+    // Durable log of the directory tree. Every mutation of the tree is logged
+    // and applied while holding the monitor of the journal, so that
+    // checkpoints see a consistent tree. The monitor of the journal is always
+    // taken before the monitors of the nodes, never while holding one, and
+    // storage servers are never called while holding it. The default journal
+    // is volatile.
+    private MetadataLog journal;
+    private CheckpointThread checkpointThread;
+
+    // Checkpoints are considered every CHECKPOINT_INTERVAL milliseconds, and
+    // taken once the journal holds at least CHECKPOINT_RECORDS records.
+    private static final long CHECKPOINT_INTERVAL = 30 * 1000;
+    private static final long CHECKPOINT_RECORDS = 10000;
+
+    // Every storage server ever registered, by the identifier used for it in
+    // the journal. Servers restored from the journal stay in recoveredServers
+    // until they register again, at which point registration reconciles
+    // their files with the tree instead of rejecting them as duplicates.
+    private final ConcurrentHashMap<Integer, StorageStubs> serverTable;
+    private final Set<StorageStubs> recoveredServers;
+    private int nextServerId = 0;
+
     // Private class that stores a storage and a command to link
     // a command to a storage for use
     private class StorageStubs {
         private Storage s;
         private Command c;
+        private final int id;
+
+        // Capacity and load last reported by the server itself.
+        volatile long freeSpace = -1;
+        volatile long totalSpace = -1;
+        volatile int outstanding = 0;
 
-        public StorageStubs(Storage s, Command c) {
+        // Time of the last heartbeat of the server, or of its registration,
+        // in System.nanoTime() units.
+        volatile long lastHeartbeat = System.nanoTime();
+
+        public StorageStubs(Storage s, Command c, int id) {
             this.s = s;
             this.c = c;
+            this.id = id;
+        }
+
+        public int getId() {
+            return id;
         }
 
         public Storage getStorage() {
@@ -149,30 +298,106 @@ public class NamingServer implements Service, Registration {
         }
     }
 
+    // Source of modification stamps for the tree. It starts from the clock
+    // time so that stamps keep increasing across restarts of the server.
+    private final AtomicLong modificationClock = new AtomicLong(
+            System.currentTimeMillis() * 1000);
+
+    // Guards the parent links of the tree, the per-directory counts of
+    // replicas hosted in each subtree, and the replica index. It is always
+    // taken last, after any node monitors.
+    private final Object hostsLock = new Object();
+
+    // Reverse index from each storage server to the file nodes in the tree
+    // that it hosts a replica of. Paths are found from the parent links.
+    private final HashMap<StorageStubs, Set<FsNode>> replicaIndex =
+            new HashMap<StorageStubs, Set<FsNode>>();
+
+    // Usage of each storage server hosting files in the replica index, kept
+    // up to date as replicas are indexed and sizes read, so that usage() does
+    // not walk the files. Entries are removed with those of the index.
+    private final HashMap<StorageStubs, HostedUsage> hostedUsage =
+            new HashMap<StorageStubs, HostedUsage>();
+
+    // Total size of the files a server hosts whose size is known, and the
+    // number of those whose size is not. Guarded by hostsLock.
+    private static class HostedUsage {
+        long bytes = 0;
+        long unsizedFiles = 0;
+    }
+
+    // File nodes in the tree with more than one replica.
+    private final Set<FsNode> replicatedFiles = new HashSet<FsNode>();
+
     // Private class that implements a tree to keep track of which files
     // are on which storage server
     private class FsNode {
-        ConcurrentHashMap<String, FsNode> children;
+        // Children are kept sorted by name so that directories can be listed
+        // in pages.
+        ConcurrentSkipListMap<String, FsNode> children;
         String name;
         boolean isFile;
         public volatile Vector<StorageStubs> s;
 
+        // Replicas that missed the last write to the file. They are never
+        // given to clients, and are not recorded in the journal, until they
+        // have been brought up to date. Always a subset of s, and guarded by
+        // the monitor of the node.
+        Set<StorageStubs> stale = new HashSet<StorageStubs>();
+
+        // Copies through which the file is written, head first, while the
+        // file is locked with chainLease; otherwise null. All but the head
+        // are stale until they are compared with it after the lock is
+        // released.
+        volatile List<StorageStubs> chain;
+
+        // Layout of the shards of an erasure-coded file, whose shard servers
+        // are then the servers in s, none of them current; otherwise null.
+        // Changed under the monitor of the node.
+        volatile Coding coding;
+
+        // Clock time, in milliseconds, at which the node was created or an
+        // exclusive lock on it was last released.
+        volatile long lastWritten = System.currentTimeMillis();
+
+        // Stamp of the last time the node was created or an exclusive lock on
+        // it was released. The size of a file is cached together with the
+        // stamp of the file it was read at, and is only valid for that stamp.
+        // While the file is given out for writing, its size is not cached.
+        // The size last read, whatever its stamp, is counted in the usage of
+        // the servers hosting the file, so it is only changed with hostsLock
+        // held.
+        volatile long modified = modificationClock.incrementAndGet();
+        volatile long size = -1;
+        long sizeVersion;
+        boolean writing = false;
+
+        // For a directory, the number of replicas of files in its subtree
+        // hosted by each storage server. Guarded by hostsLock, as is the
+        // parent link.
+        FsNode parent;
+        HashMap<StorageStubs, Integer> hosts;
+
         public FsNode(String n) {
             // Node for directory
-            children = new ConcurrentHashMap<String, FsNode>();
+            children = new ConcurrentSkipListMap<String, FsNode>();
             name = n;
             isFile = false;
             s = new Vector<StorageStubs>();
+            hosts = new HashMap<StorageStubs, Integer>();
         }
 
         public FsNode(String n, StorageStubs s) {
-            // Node for file
+            // Node for file. The storage server may be null when the node is
+            // restored from the journal, which lists replicas separately.
             children = null;
             name = n;
             isFile = true;
             this.s = new Vector<StorageStubs>();
-            synchronized (this) {
-                this.s.add(s);
+            if (s != null) {
+                synchronized (this) {
+                    this.s.add(s);
+                }
             }
         }
 
@@ -184,43 +409,348 @@ public class NamingServer implements Service, Registration {
             return children.get(name);
         }
 
-        public synchronized ConcurrentHashMap<String, FsNode> getChildren() {
+        public synchronized ConcurrentSkipListMap<String, FsNode> getChildren() {
             return children;
         }
 
         public synchronized void addChild(String name, FsNode child) {
             children.put(name, child);
+            synchronized (hostsLock) {
+                child.parent = this;
+                countHosts(child.subtreeHosts(), 1);
+                child.index(true);
+            }
         }
 
         public synchronized void removeChild(Path path) {
-            children.remove(path.toString());
+            FsNode child = children.remove(path.last());
+            if (child != null) {
+                synchronized (hostsLock) {
+                    countHosts(child.subtreeHosts(), -1);
+                    child.index(false);
+                    child.parent = null;
+                }
+            }
         }
 
-        public synchronized boolean isFile() {
-            return isFile;
+        // Returns the storage servers hosting files in the subtree of this
+        // node, with the number of replicas each of them hosts.
+        public Map<StorageStubs, Integer> getSubtreeHosts() {
+            synchronized (hostsLock) {
+                return new HashMap<StorageStubs, Integer>(subtreeHosts());
+            }
+        }
+
+        // Called with hostsLock held.
+        private Map<StorageStubs, Integer> subtreeHosts() {
+            if (!isFile) {
+                return hosts;
+            }
+
+            Map<StorageStubs, Integer> replicas =
+                    new HashMap<StorageStubs, Integer>();
+            for (StorageStubs ss : s) {
+                replicas.put(ss, 1);
+            }
+            return replicas;
+        }
+
+        // Adds or removes every replica of the files in the subtree of this
+        // node in the replica index. Called with hostsLock held.
+        private void index(boolean add) {
+            if (!isFile) {
+                for (FsNode child : children.values()) {
+                    child.index(add);
+                }
+                return;
+            }
+
+            for (StorageStubs ss : s) {
+                indexReplica(ss, this, add);
+            }
+            trackReplicas(this, add);
+        }
+
+        // Adds sign times the given counts to this node, if it is a directory,
+        // and to all of its ancestors. Called with hostsLock held.
+        private void countHosts(Map<StorageStubs, Integer> counts, int sign) {
+            for (FsNode node = isFile ? parent : this; node != null;
+                    node = node.parent) {
+                for (Map.Entry<StorageStubs, Integer> e : counts.entrySet()) {
+                    Integer count = node.hosts.get(e.getKey());
+                    int updated = (count == null ? 0 : count) + sign
+                            * e.getValue();
+                    if (updated == 0) {
+                        node.hosts.remove(e.getKey());
+                    } else {
+                        node.hosts.put(e.getKey(), updated);
+                    }
+                }
+            }
         }
 
-        public synchronized StorageStubs getServer() {
-            // Random is threadsafe as long as new Random objs are created per
-            // thread
-            // nextInt calls next, which is sync (as is Math.random(), which
-            // next() calls)
-            // See http://bugs.sun.com/bugdatabase/view_bug.do?bug_id=6362070
-            int item = new Random().nextInt(s.size());
-            return s.get(item);
+        public synchronized boolean isFile() {
+            return isFile;
         }
 
         public synchronized List<StorageStubs> getAllStorage() {
             return s;
         }
 
+        // Returns the replicas holding the latest version of the file. An
+        // erasure-coded file has none.
+        public synchronized List<StorageStubs> getCurrentStorage() {
+            if (coding != null) {
+                return new ArrayList<StorageStubs>();
+            }
+            List<StorageStubs> current = new ArrayList<StorageStubs>(s);
+            current.removeAll(stale);
+            return current;
+        }
+
+        public synchronized List<StorageStubs> getStaleStorage() {
+            return new ArrayList<StorageStubs>(stale);
+        }
+
+        public synchronized void markStale(StorageStubs s) {
+            if (this.s.contains(s)) {
+                stale.add(s);
+            }
+        }
+
+        public synchronized void markCurrent(StorageStubs s) {
+            stale.remove(s);
+        }
+
         public synchronized void addStorage(StorageStubs s) {
-            this.s.add(s);
+            synchronized (hostsLock) {
+                if (!this.s.contains(s)) {
+                    this.s.add(s);
+                    countHosts(Collections.singletonMap(s, 1), 1);
+                    if (parent != null) {
+                        indexReplica(s, this, true);
+                        trackReplicas(this, true);
+                    }
+                }
+            }
         }
 
         public synchronized void removeStorage(StorageStubs s) {
-            this.s.remove(s);
+            if (coding != null) {
+                coding = coding.without(s);
+            }
+            synchronized (hostsLock) {
+                stale.remove(s);
+                if (this.s.remove(s)) {
+                    countHosts(Collections.singletonMap(s, 1), -1);
+                    if (parent != null) {
+                        indexReplica(s, this, false);
+                        trackReplicas(this, true);
+                    }
+                }
+            }
+        }
+
+        public void touch() {
+            modified = modificationClock.incrementAndGet();
+            lastWritten = System.currentTimeMillis();
+        }
+
+        // Turns the file into an erasure-coded file with the given layout,
+        // whose shard servers replace every copy of the file.
+        public synchronized void encoded(Coding coding) {
+            for (StorageStubs ss : new ArrayList<StorageStubs>(s)) {
+                removeStorage(ss);
+            }
+            for (StorageStubs ss : coding.shards) {
+                if (ss != null) {
+                    addStorage(ss);
+                }
+            }
+            this.coding = coding;
+            synchronized (hostsLock) {
+                trackReplicas(this, parent != null);
+            }
+        }
+
+        // Turns an erasure-coded file back into a file with a single copy,
+        // on the given server, which may be null if it is no longer known.
+        public synchronized void decoded(StorageStubs copy) {
+            coding = null;
+            for (StorageStubs ss : new ArrayList<StorageStubs>(s)) {
+                if (copy == null || !ss.equals(copy)) {
+                    removeStorage(ss);
+                }
+            }
+            if (copy != null) {
+                addStorage(copy);
+            }
+            synchronized (hostsLock) {
+                trackReplicas(this, parent != null);
+            }
+        }
+
+        // Returns the cached size, or -1 if it was not read at this stamp or
+        // the file is being written.
+        public synchronized long getSize(long version) {
+            return sizeVersion == version && !writing ? size : -1;
+        }
+
+        public synchronized void setSize(long size, long version) {
+            if (!writing) {
+                synchronized (hostsLock) {
+                    for (StorageStubs ss : s) {
+                        Set<FsNode> files = replicaIndex.get(ss);
+                        if (files != null && files.contains(this)) {
+                            countUsage(ss, this.size, -1);
+                            countUsage(ss, size, 1);
+                        }
+                    }
+                    this.size = size;
+                }
+                this.sizeVersion = version;
+            }
+        }
+
+        public synchronized void setWriting(boolean writing) {
+            this.writing = writing;
+        }
+    }
+
+    // Layout of an erasure-coded file: its length, its numbers of data and
+    // parity shards, and the servers hosting the shards, data shards first,
+    // with null for lost shards. Never modified once created.
+    private class Coding {
+        final int dataShards;
+        final int parityShards;
+        final long length;
+        final StorageStubs[] shards;
+
+        Coding(int dataShards, int parityShards, long length,
+                StorageStubs[] shards) {
+            this.dataShards = dataShards;
+            this.parityShards = parityShards;
+            this.length = length;
+            this.shards = shards;
+        }
+
+        // Returns the same layout with the shard on the given server lost.
+        Coding without(StorageStubs ss) {
+            StorageStubs[] remaining = shards.clone();
+            for (int i = 0; i < remaining.length; i++) {
+                if (remaining[i] != null && remaining[i].equals(ss)) {
+                    remaining[i] = null;
+                }
+            }
+            return new Coding(dataShards, parityShards, length, remaining);
+        }
+
+        int present() {
+            int present = 0;
+            for (StorageStubs ss : shards) {
+                if (ss != null) {
+                    present++;
+                }
+            }
+            return present;
+        }
+
+        int[] serverIds() {
+            int[] ids = new int[shards.length];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = shards[i] == null ? -1 : shards[i].getId();
+            }
+            return ids;
+        }
+
+        ErasureLayout layout() {
+            Storage[] stubs = new Storage[shards.length];
+            for (int i = 0; i < stubs.length; i++) {
+                stubs[i] = shards[i] == null ? null : shards[i].getStorage();
+            }
+            return new ErasureLayout(dataShards, parityShards, length, stubs);
+        }
+    }
+
+    // Settings given to setErasureCoding.
+    private static class CodingSettings {
+        final int dataShards;
+        final int parityShards;
+        final long coldTime;
+
+        CodingSettings(int dataShards, int parityShards, long coldTime) {
+            this.dataShards = dataShards;
+            this.parityShards = parityShards;
+            this.coldTime = coldTime;
+        }
+    }
+
+    // Records or forgets that a server hosts a replica of a file. Called with
+    // hostsLock held.
+    private void indexReplica(StorageStubs ss, FsNode file, boolean add) {
+        Set<FsNode> files = replicaIndex.get(ss);
+        if (add) {
+            if (files == null) {
+                files = new HashSet<FsNode>();
+                replicaIndex.put(ss, files);
+                hostedUsage.put(ss, new HostedUsage());
+            }
+            if (files.add(file)) {
+                countUsage(ss, file.size, 1);
+            }
+        } else if (files != null) {
+            if (files.remove(file)) {
+                countUsage(ss, file.size, -1);
+            }
+            if (files.isEmpty()) {
+                replicaIndex.remove(ss);
+                hostedUsage.remove(ss);
+            }
+        }
+    }
+
+    // Adds sign times a file of the given size, or of unknown size if it is
+    // negative, to the usage of a server hosting files in the replica index.
+    // Called with hostsLock held.
+    private void countUsage(StorageStubs ss, long size, int sign) {
+        HostedUsage usage = hostedUsage.get(ss);
+        if (size < 0) {
+            usage.unsizedFiles += sign;
+        } else {
+            usage.bytes += sign * size;
+        }
+    }
+
+    // Records whether a file in the tree has extra replicas. The shards of
+    // erasure-coded files are not replicas. Called with hostsLock held.
+    private void trackReplicas(FsNode file, boolean inTree) {
+        if (inTree && file.s.size() > 1 && file.coding == null) {
+            replicatedFiles.add(file);
+        } else {
+            replicatedFiles.remove(file);
+        }
+    }
+
+    // Returns the paths of all files a server hosts a replica of.
+    private List<Path> hostedPaths(StorageStubs ss) {
+        List<Path> paths = new ArrayList<Path>();
+        synchronized (hostsLock) {
+            Set<FsNode> files = replicaIndex.get(ss);
+            if (files != null) {
+                for (FsNode file : files) {
+                    paths.add(pathOf(file));
+                }
+            }
+        }
+        return paths;
+    }
+
+    // Returns the path of a node in the tree. Called with hostsLock held.
+    private Path pathOf(FsNode node) {
+        if (node.parent == null) {
+            return new Path();
         }
+        return new Path(pathOf(node.parent), node.name);
     }
 
     /**
@@ -236,8 +766,45 @@ public class NamingServer implements Service, Registration {
         regisSkeleton = new regSkeleton(Registration.class, this,
                 new InetSocketAddress(NamingStubs.REGISTRATION_PORT), this);
         storageList = new Vector<StorageStubs>();
-        lockList = new ConcurrentHashMap<Path, ReadWriteLock>();
-        replicationCounter = new ConcurrentHashMap<Path, Integer>();
+        locks = new LockManager();
+        leases = new LeaseTable();
+        replicationPolicy = new ReplicationPolicy();
+        readRates = new ReadRateSketch(replicationPolicy.halfLife(),
+                System.nanoTime());
+        replicationQueue = new ReplicationQueue(REPLICATION_WORKERS,
+                REPLICATION_QUEUE_CAPACITY, new Replicator());
+        deleteWorkers = new ThreadPoolExecutor(DELETE_WORKERS, DELETE_WORKERS,
+                DELETE_WORKER_IDLE_TIME, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(DELETE_QUEUE_CAPACITY),
+                new DeleteThreads(), new ThreadPoolExecutor.CallerRunsPolicy());
+        deleteWorkers.allowCoreThreadTimeOut(true);
+        serverTable = new ConcurrentHashMap<Integer, StorageStubs>();
+        recoveredServers = Collections
+                .synchronizedSet(new HashSet<StorageStubs>());
+        journal = new MetadataLog();
+    }
+
+    /**
+     * Creates a naming server that keeps its directory tree durable in the
+     * given metadata directory.
+     * 
+     * <p>
+     * The tree and the set of known storage servers are restored from the
+     * snapshot and journal in the directory, if any. Storage servers restored
+     * this way are used immediately; when they register again, registration
+     * reconciles the files they offer with the restored tree. The naming
+     * server is not started.
+     * 
+     * @param metadata_directory
+     *            Directory holding the metadata snapshot and journal. It is
+     *            created if it does not exist.
+     * @throws IOException
+     *             If the metadata cannot be read.
+     */
+    public NamingServer(File metadata_directory) throws IOException {
+        this();
+        journal = new MetadataLog(metadata_directory, true);
+        journal.recover(new Recovery());
     }
 
     /**
@@ -257,6 +824,224 @@ public class NamingServer implements Service, Registration {
         clientSkeleton.start();
         regisSkeleton.start();
 
+        checkpointThread = new CheckpointThread();
+        checkpointThread.setDaemon(true);
+        checkpointThread.start();
+
+        leaseReaper = new LeaseReaper();
+        leaseReaper.setDaemon(true);
+        leaseReaper.start();
+
+        replicationQueue.start();
+
+        replicaChecker = new ReplicaChecker();
+        replicaChecker.setDaemon(true);
+        replicaChecker.start();
+
+        // Servers restored from the journal have until the failure timeout to
+        // register again and send a heartbeat.
+        for (StorageStubs ss : new ArrayList<StorageStubs>(storageList)) {
+            ss.lastHeartbeat = System.nanoTime();
+        }
+
+        failureDetector = new FailureDetector();
+        failureDetector.setDaemon(true);
+        failureDetector.start();
+
+        rebalancer = new Rebalancer();
+        rebalancer.setDaemon(true);
+        rebalancer.start();
+
+        coldFileEncoder = new ColdFileEncoder();
+        coldFileEncoder.setDaemon(true);
+        coldFileEncoder.start();
+    }
+
+    /**
+     * Sets the policy deciding how many copies of each file are kept.
+     * 
+     * <p>
+     * Read counts are kept with the half-life of the policy, and are
+     * therefore reset when the policy is set. The new policy is applied to
+     * each file as it is read, and to files with more than one copy when they
+     * are next checked.
+     * 
+     * @param policy
+     *            The replication policy.
+     * @throws NullPointerException
+     *             If <code>policy</code> is <code>null</code>.
+     */
+    public void setReplicationPolicy(ReplicationPolicy policy) {
+        if (policy == null) {
+            throw new NullPointerException("The policy given was null.");
+        }
+        readRates = new ReadRateSketch(policy.halfLife(), System.nanoTime());
+        replicationPolicy = policy;
+    }
+
+    /**
+     * Returns the current statistics of the queue of work on the copies of
+     * files.
+     */
+    public ReplicationStatistics replicationStatistics() {
+        return replicationQueue.statistics();
+    }
+
+    /**
+     * Sets the policy used to place new files and copies of files on storage
+     * servers, and to choose the copy of a file a client reads from.
+     * 
+     * @param policy
+     *            The placement policy. The default policy is
+     *            <code>PowerOfTwoChoices</code>.
+     * @throws NullPointerException
+     *             If <code>policy</code> is <code>null</code>.
+     */
+    public void setPlacementPolicy(PlacementPolicy policy) {
+        if (policy == null) {
+            throw new NullPointerException("The policy given was null.");
+        }
+        placement = policy;
+    }
+
+    /**
+     * Sets the duration of the leases under which locks are granted.
+     * 
+     * <p>
+     * The new duration applies to leases granted or renewed after the call.
+     * 
+     * @param milliseconds
+     *            Time after which a lock that has been neither renewed nor
+     *            released is released by the naming server.
+     * @throws IllegalArgumentException
+     *             If the duration is not positive.
+     */
+    public void setLeaseDuration(long milliseconds) {
+        if (milliseconds <= 0) {
+            throw new IllegalArgumentException(
+                    "The lease duration must be positive.");
+        }
+        leaseDuration = milliseconds;
+    }
+
+    /**
+     * Sets the time after which a lock taken with <code>lock</code> or
+     * <code>lockAll</code>, and not unlocked, is released.
+     * 
+     * <p>
+     * Such locks cannot be renewed, so the duration should be longer than
+     * any client is expected to hold them. The new duration applies to locks
+     * taken after the call.
+     * 
+     * @param milliseconds
+     *            Time after which a lock taken without a lease is released by
+     *            the naming server.
+     * @throws IllegalArgumentException
+     *             If the duration is not positive.
+     */
+    public void setHoldDuration(long milliseconds) {
+        if (milliseconds <= 0) {
+            throw new IllegalArgumentException(
+                    "The hold duration must be positive.");
+        }
+        holdDuration = milliseconds;
+    }
+
+    /**
+     * Sets the time after which a storage server that has stopped sending
+     * heartbeats is considered failed.
+     * 
+     * <p>
+     * The timeout should be several times the interval between heartbeats,
+     * which storage servers send every five seconds.
+     * 
+     * @param milliseconds
+     *            Time since the last heartbeat after which a server is
+     *            considered failed. The default is
+     *            <code>DEFAULT_FAILURE_TIMEOUT</code>.
+     * @throws IllegalArgumentException
+     *             If the timeout is not positive.
+     */
+    public void setFailureTimeout(long milliseconds) {
+        if (milliseconds <= 0) {
+            throw new IllegalArgumentException(
+                    "The failure timeout must be positive.");
+        }
+        failureTimeout = milliseconds;
+    }
+
+    /**
+     * Sets the bandwidth available for moving files between storage servers
+     * to balance their utilization.
+     * 
+     * <p>
+     * Files are moved from the most utilized server to the least utilized one
+     * when their utilizations differ by more than a tenth of their capacity,
+     * so that servers that join take part of the files of the others. Moves
+     * are put off while files are being repaired or copied, and while the
+     * storage servers are busy serving clients.
+     * 
+     * @param bytesPerSecond
+     *            Average number of bytes moved per second, or zero to stop
+     *            rebalancing. The default is
+     *            <code>DEFAULT_REBALANCE_BANDWIDTH</code>.
+     * @throws IllegalArgumentException
+     *             If the bandwidth is negative.
+     */
+    public void setRebalanceBandwidth(long bytesPerSecond) {
+        if (bytesPerSecond < 0) {
+            throw new IllegalArgumentException(
+                    "The rebalancing bandwidth must not be negative.");
+        }
+        rebalanceBandwidth = bytesPerSecond;
+    }
+
+    /**
+     * Sets how files that are rarely read are stored as erasure-coded shards
+     * rather than full copies.
+     * 
+     * <p>
+     * A file that has been neither written for <code>coldTime</code>
+     * milliseconds nor read more than about once recently is split into
+     * <code>dataShards</code> data shards, from which
+     * <code>parityShards</code> parity shards are computed, each shard on a
+     * different storage server. The file then takes
+     * <code>(dataShards + parityShards) / dataShards</code> times its size,
+     * and survives the loss of any <code>parityShards</code> shards. Clients
+     * read coded files from their shards, reconstructing missing shards. A
+     * coded file is decoded back into full copies when it is written, or
+     * read often again, or when it loses a shard.
+     * 
+     * <p>
+     * Files are only coded while there are more storage servers than shards,
+     * and files under 64 KB are never coded. Coding is disabled by default.
+     * 
+     * @param dataShards
+     *            Number of data shards, or zero to stop coding files. Files
+     *            already coded are left as they are.
+     * @param parityShards
+     *            Number of parity shards.
+     * @param coldTime
+     *            Time, in milliseconds, since a file was last written after
+     *            which it may be coded.
+     * @throws IllegalArgumentException
+     *             If <code>dataShards</code> is not zero and either number of
+     *             shards is not positive, if there are more than 256 shards,
+     *             or if the cold time is negative.
+     */
+    public void setErasureCoding(int dataShards, int parityShards,
+            long coldTime) {
+        if (dataShards == 0) {
+            codingSettings = null;
+            return;
+        }
+        if (dataShards < 0 || parityShards <= 0
+                || dataShards + parityShards > 256 || coldTime < 0) {
+            throw new IllegalArgumentException(
+                    "The erasure coding settings are not valid.");
+        }
+        codingSettings = new CodingSettings(dataShards, parityShards,
+                coldTime);
     }
 
     /**
@@ -275,8 +1060,13 @@ public class NamingServer implements Service, Registration {
             tg.interrupt();
         }
 
+        replicationQueue.stop();
         clientSkeleton.stop();
         regisSkeleton.stop();
+
+        // Leave a compact snapshot behind so the next start recovers quickly.
+        checkpoint();
+        journal.close();
     }
 
     /**
@@ -293,194 +1083,973 @@ public class NamingServer implements Service, Registration {
     protected void stopped(Throwable cause) {
     }
 
-    // This class implements a simple read write lock
-    // where multiple readers can share a lock, 
-    // however, if a writer holds a lock, it is exclusive.
-    public class ReadWriteLock {
+    // Carries out the work of the replication queue. The work locks the file
+    // directly in the lock manager: these locks are internal to the naming
+    // server, so they are neither leased nor counted as reads.
+    private class Replicator implements ReplicationQueue.Handler {
 
-        private int readAccesses = 0;
+        // Brings the number of copies of a file in line with the replication
+        // policy. Copies are added under a shared lock, so that the file can
+        // still be read meanwhile, but are only removed under an exclusive
+        // lock, since clients may be reading from them.
+        public void adjust(Path path) {
+            FsNode fnode = getNode(path);
+            if (fnode == null || !fnode.isFile())
+                return;
 
-        private int writeAccesses = 0;
-        private int writeRequests = 0;
+            // A file with no current copy left cannot be repaired, and is
+            // removed from the tree under an exclusive lock. Erasure-coded
+            // files are decoded, and retired shards deleted, under an
+            // exclusive lock, since clients may be reading from the shards.
+            boolean shrink = targetReplicas(path, fnode) < fnode
+                    .getAllStorage().size()
+                    || fnode.getCurrentStorage().isEmpty()
+                    || needsDecoding(path, fnode.coding)
+                    || hasRetiredShards(path);
 
-        public synchronized void lockRead() throws InterruptedException {
-            while (!canGrantReadAccess()) {
-                wait();
+            try {
+                locks.lock(path, shrink);
+            } catch (InterruptedException e) {
+                // Server is shutting down
+                return;
             }
-            readAccesses++;
-        }
 
-        private boolean canGrantReadAccess() {
-            if (hasWriter() || hasWriteRequests())
-                return false;
-            return true;
-        }
+            try {
+                fnode = getNode(path);
+                if (fnode == null || !fnode.isFile())
+                    return; // incase something deleted the file before we acquired lock
 
-        public synchronized void unlockRead() {
-            readAccesses--;
-            notifyAll();
-        }
+                if (shrink) {
+                    deleteRetiredShards(path, fnode);
+                }
 
-        public synchronized void lockWrite() throws InterruptedException {
-            writeRequests++;
-            while (!canGrantWriteAccess()) {
-                wait();
-            }
-            writeRequests--;
-            writeAccesses++;
-        }
+                Coding coding = fnode.coding;
+                if (coding != null) {
+                    // A coded file is decoded once it is read often, or as
+                    // soon as it loses a shard, after which it is copied
+                    // again as needed, and may later be coded anew.
+                    if (!needsDecoding(path, coding)) {
+                        return;
+                    } else if (!shrink) {
+                        // Changed since the lock mode was chosen
+                        replicationQueue.adjust(path);
+                    } else if (coding.present() < coding.dataShards) {
+                        removeLostFile(path, fnode);
+                    } else {
+                        decode(path, fnode, true);
+                    }
+                    return;
+                }
 
-        public synchronized void unlockWrite() throws InterruptedException {
-            writeAccesses--;
-            notifyAll();
+                int current = fnode.getAllStorage().size();
+                int target = targetReplicas(path, fnode);
+                if (fnode.getCurrentStorage().isEmpty()) {
+                    if (shrink) {
+                        removeLostFile(path, fnode);
+                    }
+                } else if (target > current) {
+                    addReplicas(path, fnode, target - current);
+                } else if (target < current && shrink) {
+                    // Drop stale copies first, then the newest copies, so
+                    // that the copy the file was created on is kept longest.
+                    List<StorageStubs> storages = fnode.getCurrentStorage();
+                    storages.addAll(fnode.getStaleStorage());
+                    dropReplicas(path, fnode,
+                            storages.subList(target, storages.size()));
+                }
+            } finally {
+                locks.unlock(path, shrink);
+            }
         }
 
-        private boolean canGrantWriteAccess() {
-            if (hasReaders() || hasWriter())
-                return false;
-            return true;
-        }
+        // Brings the stale copies of a file up to date after a write, copying
+        // only the blocks that changed from a current copy. Copies that cannot
+        // be brought up to date are deleted. Clients are never directed to
+        // stale copies, so a shared lock is enough to keep the current copies
+        // from changing meanwhile.
+        public void catchUp(Path path) {
+            try {
+                locks.lock(path, false);
+            } catch (InterruptedException e) {
+                // Server is shutting down
+                return;
+            }
 
-        private boolean hasReaders() {
-            return this.readAccesses > 0;
-        }
+            try {
+                FsNode fnode = getNode(path);
+                if (fnode == null || !fnode.isFile())
+                    return; // incase something deleted the file before we acquired
+                            // lock
 
-        private boolean hasWriter() {
-            return this.writeAccesses > 0;
-        }
+                List<StorageStubs> failed = new ArrayList<StorageStubs>();
 
-        private boolean hasWriteRequests() {
-            return this.writeRequests > 0;
-        }
+                for (StorageStubs s : fnode.getStaleStorage()) {
+                    boolean updated = false;
+                    try {
+                        updated = s.getCommand().synchronize(path,
+                                selectReplica(fnode).getStorage());
+                    } catch (FileNotFoundException e) {
+                        // Copy disappeared
 
-    }
+                    } catch (RMIException e) {
+                        // Can't help it
 
-    // Separate thread that is called when we want to copy a file during
-    // replication.
-    private class ReplicationThread extends Thread {
-        Path path;
+                    } catch (IOException e) {
+                        // Storage server messed up
 
-        ReplicationThread(Path p) {
-            path = p;
-        }
+                    }
 
-        public synchronized void run() {
-            Integer origCount = replicationCounter.get(path);
-            replicationCounter.put(path, 0);
-            if (origCount < 20) {
-                return;
-            }
+                    if (updated) {
+                        synchronized (journal) {
+                            journal.addReplica(path, s.getId());
+                            fnode.markCurrent(s);
+                        }
+                    } else {
+                        failed.add(s);
+                    }
+                }
 
-            try {
-                lock(path, false);
-            } catch (FileNotFoundException e) {
-                // Somebody deleted it before we could get the lock
-                return;
+                dropReplicas(path, fnode, failed);
+            } finally {
+                locks.unlock(path, false);
             }
+        }
 
-            FsNode fnode = getNode(path);
-            if (fnode == null)
-                return; // incase something deleted the file before we acquired lock
-
-            List<StorageStubs> existingStorages = fnode.getAllStorage();
-            List<StorageStubs> otherStorages = new ArrayList<StorageStubs>();
+        // Copies a file to up to count more storage servers, one after the
+        // other, so that each new copy may serve as the source of the next.
+        private void addReplicas(Path path, FsNode fnode, int count) {
+            for (int i = 0; i < count; i++) {
+                List<StorageStubs> existingStorages = fnode.getAllStorage();
+                List<StorageStubs> otherStorages = new ArrayList<StorageStubs>();
 
-            for (StorageStubs s : storageList) {
-                if (!existingStorages.contains(s)) {
-                    otherStorages.add(s);
+                for (StorageStubs s : storageList) {
+                    if (!existingStorages.contains(s)) {
+                        otherStorages.add(s);
+                    }
                 }
-            }
 
-            if (otherStorages.size() > 0) {
+                if (otherStorages.isEmpty()) {
+                    return;
+                }
 
-                StorageStubs[] storageArray = otherStorages
-                        .toArray(new StorageStubs[otherStorages.size()]);
-                int item = new Random().nextInt(storageArray.length);
-                StorageStubs newStorage = storageArray[item];
+                StorageStubs newStorage = place(otherStorages);
 
                 try {
-                    if (newStorage.getCommand().copy(path,
-                            fnode.getServer().getStorage())) {
-                        fnode.addStorage(newStorage);
-                        replicationCounter.put(path, 0);
-                    } else {
-                        replicationCounter.put(path, origCount);
+                    if (!newStorage.getCommand().copy(path,
+                            selectReplica(fnode).getStorage())) {
+                        return;
                     }
                 } catch (FileNotFoundException e) {
                     // File disappeared
-
+                    return;
                 } catch (RMIException e) {
                     // Can't help it
-
+                    return;
                 } catch (IOException e) {
                     // Storage server messed up
+                    return;
+                }
 
+                synchronized (journal) {
+                    journal.addReplica(path, newStorage.getId());
+                    fnode.addStorage(newStorage);
+                }
+            }
+        }
+
+        // Removes a file whose every current copy, or too many of whose
+        // shards, were lost from the tree, deleting its stale copies or
+        // remaining shards. If a failed server hosting a copy of the file
+        // registers again, its copy is added back to the tree.
+        private void removeLostFile(Path path, FsNode fnode) {
+            // The file is removed from the tree first, so that the storage
+            // servers are only called once no monitor is held.
+            List<StorageStubs> storages = new ArrayList<StorageStubs>(
+                    fnode.getAllStorage());
+            synchronized (journal) {
+                journal.delete(path);
+                getNode(path.parent()).removeChild(path);
+                fnode.s.clear();
+            }
+
+            for (StorageStubs s : storages) {
+                try {
+                    deleteFromServer(path, s.getCommand());
+                } catch (RMIException e) {
+                    // Can't help it
+                }
+            }
+        }
+
+        // Removes copies of a file from the tree, and then deletes them from
+        // their storage servers once no monitor is held.
+        private void dropReplicas(Path path, FsNode fnode,
+                List<StorageStubs> storages) {
+            synchronized (journal) {
+                for (StorageStubs s : storages) {
+                    journal.removeReplica(path, s.getId());
+                    fnode.removeStorage(s);
+                }
+            }
+
+            for (StorageStubs s : storages) {
+                try {
+                    deleteFromServer(path, s.getCommand());
+                } catch (RMIException e) {
+                    // Can't help it
                 }
             }
-
-            unlock(path, false);
         }
     }
-    
-    // Separate thread used when we want to delete replicated files 
-    //during a write access
-    private class DeletionThread extends Thread {
-        Path path;
 
-        DeletionThread(Path p) {
-            path = p;
+    // Returns the number of copies a file should have, given its read rate.
+    // There is no point in wanting more copies than there are servers.
+    private int targetReplicas(Path path, FsNode file) {
+        double reads = readRates.estimate(path, System.nanoTime());
+        int target = replicationPolicy.replicas(reads, file.getAllStorage()
+                .size());
+        return Math.min(target, Math.max(storageList.size(), 1));
+    }
+
+    // Returns true if a file is read often enough to justify a second copy,
+    // in which case it is not kept erasure-coded.
+    private boolean isHot(Path path) {
+        return readRates.estimate(path, System.nanoTime()) >= replicationPolicy
+                .readsPerReplica();
+    }
+
+    // Background thread that checks the files with more than one copy, so
+    // that copies of files that are no longer read are removed, and stale
+    // copies whose catch-up request was dropped are brought up to date.
+    private class ReplicaChecker extends Thread {
+        public void run() {
+            while (true) {
+                try {
+                    Thread.sleep(REPLICA_CHECK_INTERVAL);
+                } catch (InterruptedException e) {
+                    // Server is shutting down
+                    return;
+                }
+
+                Map<Path, FsNode> files = new HashMap<Path, FsNode>();
+                Map<Path, FsNode> damaged = new HashMap<Path, FsNode>();
+                synchronized (hostsLock) {
+                    for (FsNode file : replicatedFiles) {
+                        files.put(pathOf(file), file);
+                    }
+
+                    Iterator<FsNode> i = damagedFiles.iterator();
+                    while (i.hasNext()) {
+                        FsNode file = i.next();
+                        if (file.parent == null) {
+                            i.remove(); // no longer in the tree
+                        } else {
+                            damaged.put(pathOf(file), file);
+                        }
+                    }
+                }
+
+                for (Map.Entry<Path, FsNode> e : damaged.entrySet()) {
+                    repair(e.getKey(), e.getValue());
+                }
+
+                for (Map.Entry<Path, FsNode> e : files.entrySet()) {
+                    FsNode file = e.getValue();
+                    if (!file.getStaleStorage().isEmpty()) {
+                        replicationQueue.catchUp(e.getKey());
+                    }
+                    if (targetReplicas(e.getKey(), file) < file
+                            .getAllStorage().size()) {
+                        replicationQueue.adjust(e.getKey());
+                    }
+                }
+            }
+        }
+    }
+
+    // Background thread that considers failed the servers that have stopped
+    // sending heartbeats.
+    private class FailureDetector extends Thread {
+        public void run() {
+            while (true) {
+                try {
+                    Thread.sleep(FAILURE_CHECK_INTERVAL);
+                } catch (InterruptedException e) {
+                    // Server is shutting down
+                    return;
+                }
+
+                long now = System.nanoTime();
+                long timeout = failureTimeout * 1000000;
+                for (StorageStubs ss : new ArrayList<StorageStubs>(
+                        storageList)) {
+                    if (now - ss.lastHeartbeat > timeout) {
+                        serverFailed(ss);
+                    }
+                }
+            }
         }
+    }
 
-        public synchronized void run() {
-            Integer origCount = replicationCounter.get(path);
-            replicationCounter.put(path, 0);
-            if (origCount == 0) {
+    // Forgets a failed server: removes it from the list of servers and from
+    // the replica lists of its files, and repairs the files that lost a copy,
+    // those left with the fewest copies first. Nothing is asked of the failed
+    // server itself.
+    private void serverFailed(StorageStubs ss) {
+        synchronized (this) {
+            if (!storageList.remove(ss)) {
                 return;
             }
+            recoveredServers.remove(ss);
+            serverTable.remove(ss.getId());
+        }
 
-            try {
-                lock(path, true);
-            } catch (FileNotFoundException e) {
-                // Somebody deleted file before we got lock
+        for (Path path : hostedPaths(ss)) {
+            FsNode file = getNode(path);
+            if (file == null) {
+                continue;
+            }
+
+            synchronized (journal) {
+                journal.removeReplica(path, ss.getId());
+                file.removeStorage(ss);
+            }
+            repair(path, file);
+        }
+    }
+
+    // Submits a repair of a file that lost copies, if it needs one. Files
+    // whose repair is dropped are submitted again when copies are next
+    // checked.
+    private void repair(Path path, FsNode file) {
+        int copies = file.getCurrentStorage().size();
+        boolean needed = copies == 0 || copies < targetReplicas(path, file);
+
+        synchronized (hostsLock) {
+            if (needed && !replicationQueue.repair(path, copies)) {
+                damagedFiles.add(file);
+            } else {
+                damagedFiles.remove(file);
+            }
+        }
+    }
+
+    // Background thread that moves files from the most utilized storage server
+    // to the least utilized one. A file is moved by copying it to the target
+    // server under a shared lock, so that it can still be read meanwhile, and
+    // then removing the source copy under an exclusive lock.
+    private class Rebalancer extends Thread {
+        // Bytes that may still be moved. A file larger than what is left may
+        // be moved; the excess is paid back in the following rounds.
+        private long budget = 0;
+
+        public void run() {
+            while (true) {
+                try {
+                    Thread.sleep(REBALANCE_INTERVAL);
+
+                    long allowance = rebalanceBandwidth * REBALANCE_INTERVAL
+                            / 1000;
+                    budget = Math.min(budget + allowance, allowance);
+                    if (budget > 0 && !busy()) {
+                        rebalance();
+                    }
+                } catch (InterruptedException e) {
+                    // Server is shutting down
+                    return;
+                }
+            }
+        }
+
+        private boolean busy() {
+            if (replicationQueue.statistics().queued() > 0) {
+                return true;
+            }
+
+            List<StorageStubs> servers = new ArrayList<StorageStubs>(
+                    storageList);
+            long outstanding = 0;
+            for (StorageStubs ss : servers) {
+                outstanding += ss.outstanding;
+            }
+            return outstanding > (long) REBALANCE_LOAD_LIMIT * servers.size();
+        }
+
+        private void rebalance() throws InterruptedException {
+            StorageStubs source = null;
+            StorageStubs target = null;
+            for (StorageStubs ss : new ArrayList<StorageStubs>(storageList)) {
+                // Servers that have not reported their capacity yet, or have
+                // not registered again since a restart, are left alone.
+                if (ss.totalSpace <= 0 || recoveredServers.contains(ss)) {
+                    continue;
+                }
+                if (source == null || utilization(ss) > utilization(source)) {
+                    source = ss;
+                }
+                if (target == null || utilization(ss) < utilization(target)) {
+                    target = ss;
+                }
+            }
+
+            if (source == null
+                    || utilization(source) - utilization(target)
+                        <= REBALANCE_THRESHOLD) {
                 return;
             }
 
-            FsNode fnode = getNode(path);
-            if (fnode == null)
-                return; // incase something deleted the file before we acquired
-                        // lock
+            // Space used on both servers, updated as files are moved, since
+            // heartbeats lag behind. Files are moved until the utilizations
+            // meet.
+            long sourceTotal = source.totalSpace;
+            long targetTotal = target.totalSpace;
+            long sourceUsed = sourceTotal - source.freeSpace;
+            long targetUsed = targetTotal - target.freeSpace;
+
+            for (Path path : hostedPaths(source)) {
+                long limit = (long) (((double) sourceUsed * targetTotal
+                        - (double) targetUsed * sourceTotal)
+                        / (sourceTotal + targetTotal));
+                if (budget <= 0 || limit <= 0) {
+                    return;
+                }
+
+                long size = move(path, source, target, limit);
+                if (size >= 0) {
+                    budget -= size;
+                    sourceUsed -= size;
+                    targetUsed += size;
+                }
+            }
+        }
+
+        private double utilization(StorageStubs ss) {
+            return (double) (ss.totalSpace - ss.freeSpace) / ss.totalSpace;
+        }
+
+        // Moves a file no larger than limit bytes from one server to another.
+        // Returns the size of the file, or -1 if it was not copied.
+        private long move(Path path, StorageStubs source, StorageStubs target,
+                long limit) throws InterruptedException {
+            long size;
+
+            locks.lock(path, false);
+            try {
+                FsNode fnode = getNode(path);
+                if (fnode == null || !fnode.isFile()
+                        || !fnode.getCurrentStorage().contains(source)
+                        || fnode.getAllStorage().contains(target)) {
+                    return -1;
+                }
+
+                try {
+                    size = source.getStorage().size(path);
+                    if (size > limit
+                            || !target.getCommand().copy(path,
+                                    source.getStorage())) {
+                        return -1;
+                    }
+                } catch (FileNotFoundException e) {
+                    // File disappeared
+                    return -1;
+                } catch (RMIException e) {
+                    // Can't help it
+                    return -1;
+                } catch (IOException e) {
+                    // Storage server messed up
+                    return -1;
+                }
+
+                synchronized (journal) {
+                    journal.addReplica(path, target.getId());
+                    fnode.addStorage(target);
+                }
+            } finally {
+                locks.unlock(path, false);
+            }
 
-            ArrayList<StorageStubs> storages = new ArrayList<StorageStubs>();
+            locks.lock(path, true);
+            try {
+                // The new copy may have been removed, or made stale, while
+                // the file was unlocked; the source copy is then kept.
+                FsNode fnode = getNode(path);
+                if (fnode == null || !fnode.isFile()
+                        || !fnode.getCurrentStorage().contains(target)
+                        || !fnode.getAllStorage().contains(source)) {
+                    return size;
+                }
+
+                // The tree is updated first, and the source server called once
+                // no monitor is held. The exclusive lock is kept until the
+                // copy is deleted, so that no new copy can be made on the
+                // source server meanwhile.
+                synchronized (journal) {
+                    journal.removeReplica(path, source.getId());
+                    fnode.removeStorage(source);
+                }
+                try {
+                    deleteFromServer(path, source.getCommand());
+                } catch (RMIException e) {
+                    // Can't help it
+                }
+            } finally {
+                locks.unlock(path, true);
+            }
+
+            return size;
+        }
+    }
+
+    // Background thread that converts cold files into erasure-coded shards.
+    private class ColdFileEncoder extends Thread {
+        public void run() {
+            while (true) {
+                try {
+                    Thread.sleep(CODING_CHECK_INTERVAL);
+                } catch (InterruptedException e) {
+                    // Server is shutting down
+                    return;
+                }
+
+                CodingSettings settings = codingSettings;
+                if (settings == null) {
+                    continue;
+                }
+
+                List<Path> files = new ArrayList<Path>();
+                findColdFiles(new Path(), fsRoot, settings, files);
+                for (Path path : files) {
+                    try {
+                        encode(path, settings);
+                    } catch (InterruptedException e) {
+                        // Server is shutting down
+                        return;
+                    }
+                }
+            }
+        }
 
-            // faux deep-copy so as to not mess up FsNode's list
-            for (StorageStubs s : fnode.getAllStorage()) {
-                storages.add(s);
+        private void findColdFiles(Path path, FsNode node,
+                CodingSettings settings, List<Path> files) {
+            for (FsNode child : node.getChildren().values()) {
+                Path childPath = new Path(path, child.getName());
+                if (!child.isFile()) {
+                    findColdFiles(childPath, child, settings, files);
+                } else if (isCold(childPath, child, settings)) {
+                    files.add(childPath);
+                }
             }
+        }
+
+        private boolean isCold(Path path, FsNode file,
+                CodingSettings settings) {
+            return file.coding == null
+                    && file.getStaleStorage().isEmpty()
+                    && !file.getCurrentStorage().isEmpty()
+                    && System.currentTimeMillis() - file.lastWritten
+                        >= settings.coldTime
+                    && readRates.estimate(path, System.nanoTime())
+                        < COLD_READS;
+        }
+
+        // Encodes a file from one of its copies onto as many other servers
+        // as there are shards, then deletes its copies. The file is locked
+        // exclusively throughout, since its copies are deleted. Copies on
+        // the servers chosen for shards are deleted first, and the file is
+        // left with its other copies if encoding fails.
+        private void encode(Path path, CodingSettings settings)
+                throws InterruptedException {
+            int count = settings.dataShards + settings.parityShards;
 
-            if (storages.size() > 1) {
+            locks.lock(path, true);
+            try {
+                FsNode fnode = getNode(path);
+                if (fnode == null || !fnode.isFile()
+                        || !isCold(path, fnode, settings)) {
+                    return;
+                }
+
+                StorageStubs source = selectReplica(fnode);
+                List<StorageStubs> candidates = new ArrayList<StorageStubs>(
+                        storageList);
+                candidates.remove(source);
+                candidates.removeAll(recoveredServers);
+                if (candidates.size() < count) {
+                    return;
+                }
 
-                StorageStubs[] storageArray = storages
-                        .toArray(new StorageStubs[storages.size()]);
-                int item = new Random().nextInt(storageArray.length);
-                StorageStubs keepStorage = storageArray[item];
+                long length;
+                try {
+                    length = source.getStorage().size(path);
+                } catch (FileNotFoundException e) {
+                    // File disappeared
+                    return;
+                } catch (RMIException e) {
+                    // Can't help it
+                    return;
+                }
+                if (length < MIN_CODED_SIZE) {
+                    return;
+                }
 
-                storages.remove(keepStorage);
+                StorageStubs[] shards = new StorageStubs[count];
+                for (int i = 0; i < count; i++) {
+                    shards[i] = place(candidates);
+                    candidates.remove(shards[i]);
+                }
 
-                synchronized (fsRoot) {
-                    for (StorageStubs s : storages) {
+                Coding coding = new Coding(settings.dataShards,
+                        settings.parityShards, length, shards);
+                if (!writeShards(path, fnode, source, coding)) {
+                    for (StorageStubs ss : shards) {
                         try {
-                            deleteFromServer(path, s.getCommand());
+                            deleteFromServer(path, ss.getCommand());
                         } catch (RMIException e) {
                             // Can't help it
                         }
-                        fnode.removeStorage(s);
                     }
+                    return;
                 }
 
+                List<StorageStubs> copies = new ArrayList<StorageStubs>(
+                        fnode.getAllStorage());
+                synchronized (journal) {
+                    journal.encoded(path, coding.dataShards, length,
+                            coding.serverIds());
+                    fnode.encoded(coding);
+                }
+                for (StorageStubs ss : copies) {
+                    try {
+                        deleteFromServer(path, ss.getCommand());
+                    } catch (RMIException e) {
+                        // Can't help it
+                    }
+                }
+                fnode.setSize(length, fnode.modified);
+            } finally {
+                locks.unlock(path, true);
             }
+        }
+
+        // Creates an empty file on every shard server, replacing any copy of
+        // the file there, and has the source write the shards into them.
+        private boolean writeShards(Path path, FsNode fnode,
+                StorageStubs source, Coding coding) {
+            try {
+                for (StorageStubs ss : coding.shards) {
+                    if (fnode.getAllStorage().contains(ss)) {
+                        synchronized (journal) {
+                            journal.removeReplica(path, ss.getId());
+                            fnode.removeStorage(ss);
+                        }
+                    }
+                    deleteFromServer(path, ss.getCommand());
+                    if (!ss.getCommand().create(path)) {
+                        return false;
+                    }
+                }
 
-            replicationCounter.put(path, 0);
-            unlock(path, true);
+                return source.getCommand().encode(path, coding.layout());
+            } catch (FileNotFoundException e) {
+                // File disappeared
+                return false;
+            } catch (RMIException e) {
+                // Can't help it
+                return false;
+            } catch (IOException e) {
+                // Storage server messed up
+                return false;
+            }
+        }
+    }
+
+    // Decodes an erasure-coded file into a full copy on a single server,
+    // preferably one that does not host a shard. The file must be locked; the
+    // number of copies is then adjusted as for any other file. Returns false
+    // if the file could not be decoded, in which case it is left coded.
+    //
+    // Under an exclusive lock the shards are deleted at once. Under a shared
+    // lock other readers may still be reading the shards through their
+    // layout, so the copy is only made on a server that hosts no shard, and
+    // the shards are retired, to be deleted once the replication queue holds
+    // the file exclusively.
+    private boolean decode(Path path, FsNode fnode, boolean exclusive) {
+        if (fnode.coding == null) {
+            return true;
+        }
+
+        synchronized (codingLock) {
+            Coding coding = fnode.coding;
+            if (coding == null) {
+                return true;
+            }
+
+            List<StorageStubs> shards = new ArrayList<StorageStubs>(
+                    fnode.getAllStorage());
+            List<StorageStubs> candidates = new ArrayList<StorageStubs>(
+                    storageList);
+            candidates.removeAll(recoveredServers);
+            candidates.removeAll(shards);
+            if (candidates.isEmpty() && exclusive) {
+                candidates = shards;
+            }
+            if (candidates.isEmpty()) {
+                return false;
+            }
+            StorageStubs target = place(candidates);
+
+            try {
+                if (!target.getCommand().decode(path, coding.layout())) {
+                    return false;
+                }
+            } catch (RMIException e) {
+                // Can't help it
+                return false;
+            } catch (IOException e) {
+                // Too many shards lost, or storage server messed up
+                return false;
+            }
+
+            synchronized (journal) {
+                journal.decoded(path, target.getId());
+                fnode.decoded(target);
+            }
+            shards.remove(target);
+            if (exclusive) {
+                for (StorageStubs ss : shards) {
+                    try {
+                        deleteFromServer(path, ss.getCommand());
+                    } catch (RMIException e) {
+                        // Can't help it
+                    }
+                }
+            } else {
+                synchronized (retiredShards) {
+                    retiredShards.put(path, shards);
+                }
+            }
+        }
+
+        replicationQueue.adjust(path);
+        return true;
+    }
+
+    // Returns true if a file is coded and is read often enough to be decoded,
+    // or has lost a shard.
+    private boolean needsDecoding(Path path, Coding coding) {
+        return coding != null
+                && (isHot(path) || coding.present() < coding.shards.length);
+    }
+
+    private boolean hasRetiredShards(Path path) {
+        synchronized (retiredShards) {
+            return retiredShards.containsKey(path);
+        }
+    }
+
+    // Removes and returns the retired shards of a path, and of every path
+    // under it.
+    private List<StorageStubs> takeRetiredShards(Path path) {
+        List<StorageStubs> taken = new ArrayList<StorageStubs>();
+        synchronized (retiredShards) {
+            Iterator<Map.Entry<Path, List<StorageStubs>>> i = retiredShards
+                    .entrySet().iterator();
+            while (i.hasNext()) {
+                Map.Entry<Path, List<StorageStubs>> e = i.next();
+                if (e.getKey().isSubpath(path)) {
+                    taken.addAll(e.getValue());
+                    i.remove();
+                }
+            }
+        }
+        return taken;
+    }
+
+    // Deletes the retired shards of a file locked for exclusive access,
+    // except on servers that have since been given a copy of the file.
+    private void deleteRetiredShards(Path path, FsNode fnode) {
+        for (StorageStubs ss : takeRetiredShards(path)) {
+            if (fnode.getAllStorage().contains(ss)) {
+                continue;
+            }
+            try {
+                deleteFromServer(path, ss.getCommand());
+            } catch (RMIException e) {
+                // Can't help it
+            }
+        }
+    }
+
+    // Background thread that periodically compacts the journal into a new
+    // snapshot once enough records have accumulated.
+    private class CheckpointThread extends Thread {
+        public void run() {
+            while (true) {
+                try {
+                    Thread.sleep(CHECKPOINT_INTERVAL);
+                } catch (InterruptedException e) {
+                    // Server is shutting down
+                    return;
+                }
+
+                if (journal.size() >= CHECKPOINT_RECORDS) {
+                    checkpoint();
+                }
+            }
+        }
+    }
+
+    // Background thread that releases the locks held under expired leases.
+    private class LeaseReaper extends Thread {
+        public void run() {
+            while (true) {
+                try {
+                    Thread.sleep(REAPER_INTERVAL);
+                } catch (InterruptedException e) {
+                    // Server is shutting down
+                    return;
+                }
+
+                for (Lease lease : leases.expire()) {
+                    unlocked(lease.path(), lease.isExclusive());
+                }
+            }
+        }
+    }
+
+    // Writes the whole tree and server table to a new snapshot. Failures
+    // are not fatal: the journal still holds everything since the last
+    // snapshot.
+    private void checkpoint() {
+        try {
+            journal.checkpoint(new MetadataLog.Checkpoint() {
+                public void write(MetadataLog.Target snapshot) {
+                    for (StorageStubs ss : serverTable.values()) {
+                        snapshot.server(ss.getId(), ss.getStorage(),
+                                ss.getCommand());
+                    }
+                    writeTree(snapshot, new Path(), fsRoot);
+                }
+            });
+        } catch (IOException e) {
+            // Try again at the next checkpoint
+        }
+    }
+
+    private void writeTree(MetadataLog.Target snapshot, Path path, FsNode node) {
+        for (FsNode child : node.getChildren().values()) {
+            Path childPath = new Path(path, child.getName());
+            Coding coding = child.coding;
+            if (child.isFile() && coding != null) {
+                snapshot.file(childPath, new int[0]);
+                snapshot.encoded(childPath, coding.dataShards, coding.length,
+                        coding.serverIds());
+            } else if (child.isFile()) {
+                snapshot.file(childPath, serverIds(child.getCurrentStorage()));
+            } else {
+                snapshot.directory(childPath);
+                writeTree(snapshot, childPath, child);
+            }
+        }
+    }
+
+    private int[] serverIds(List<StorageStubs> servers) {
+        synchronized (servers) {
+            int[] ids = new int[servers.size()];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = servers.get(i).getId();
+            }
+            return ids;
+        }
+    }
+
+    // Rebuilds the tree and the server table from the journal. Every record
+    // is applied idempotently, as required by MetadataLog.
+    private class Recovery implements MetadataLog.Target {
+        public void server(int id, Storage storage, Command command) {
+            StorageStubs ss = new StorageStubs(storage, command, id);
+            serverTable.put(id, ss);
+            if (!storageList.contains(ss)) {
+                storageList.add(ss);
+                recoveredServers.add(ss);
+            }
+            nextServerId = Math.max(nextServerId, id + 1);
+        }
+
+        public void directory(Path directory) {
+            makeDirectories(directory);
+        }
+
+        public void file(Path file, int[] servers) {
+            FsNode parent = makeDirectories(file.parent());
+            FsNode node = parent.getChild(file.last());
+            if (node == null) {
+                node = new FsNode(file.last(), (StorageStubs) null);
+                parent.addChild(file.last(), node);
+            }
+            for (int id : servers) {
+                addReplica(file, id);
+            }
+        }
+
+        public void delete(Path path) {
+            FsNode parent = getNode(path.parent());
+            if (parent != null && !parent.isFile()) {
+                parent.removeChild(path);
+            }
+        }
+
+        public void addReplica(Path file, int server) {
+            FsNode node = getNode(file);
+            StorageStubs ss = serverTable.get(server);
+            if (node != null && node.isFile() && ss != null) {
+                node.addStorage(ss);
+            }
+        }
+
+        public void removeReplica(Path file, int server) {
+            FsNode node = getNode(file);
+            StorageStubs ss = serverTable.get(server);
+            if (node != null && node.isFile() && ss != null) {
+                node.removeStorage(ss);
+            }
+        }
+
+        public void encoded(Path file, int dataShards, long length,
+                int[] shards) {
+            FsNode node = getNode(file);
+            if (node == null || !node.isFile()) {
+                return;
+            }
+
+            StorageStubs[] servers = new StorageStubs[shards.length];
+            for (int i = 0; i < shards.length; i++) {
+                servers[i] = serverTable.get(shards[i]);
+            }
+            node.encoded(new Coding(dataShards, shards.length - dataShards,
+                    length, servers));
+        }
+
+        public void decoded(Path file, int server) {
+            FsNode node = getNode(file);
+            if (node != null && node.isFile()) {
+                node.decoded(serverTable.get(server));
+            }
+        }
+
+        // Creates every missing directory along the path, returning the node
+        // for the path itself.
+        private FsNode makeDirectories(Path directory) {
+            FsNode current = fsRoot;
+            for (String p : directory) {
+                FsNode next = current.getChild(p);
+                if (next == null) {
+                    next = new FsNode(p);
+                    current.addChild(p, next);
+                }
+                current = next;
+            }
+            return current;
         }
     }
 
@@ -490,24 +2059,39 @@ public class NamingServer implements Service, Registration {
      * (non-Javadoc)
      * @see naming.Service#lock(common.Path, boolean)
      * 
-     * The locking scheme used is as follows:
-     * 	- When we get a lock request, we first take the path and get all of its
-     * 		parents.
-     * 	- Next we check to see if these parents have a ReadWriteLock, and if they do not, 
-     * 		we assign one to them. This can be used to lock those parent as we wish.
-     * 	- We then sort the list of parents so that any paths the beginning parents will
-     * 		appear first in the list.
-     * 	- Next run a loop over these parents, and do two different things depending on 
-     * 		exclusive.
-     * 	- If exclusive is true, we lock the parents with a readLock(), and lock the
-     * 		file we want with a writeLock()
-     * 	- If exclusive is false we simply readLock() the parents and the file we want.
-     * 	- Fairness is ensured by making sure that a file is given writeLock() only if
-     * 		no readLocks or writeLocks are present. readLocks are only
-     * 		given if no writeLocks are present.
+     * Locks are managed by LockManager, which locks every parent of the path
+     * for shared access, root first, and then the path itself. Requests for a
+     * path are served in arrival order, with consecutive shared requests
+     * granted together, so a shared request waits behind any exclusive request
+     * queued before it.
+     * 
+     * Locking a file also counts as an access to it: once an exclusive lock
+     * is granted, all copies of the file but one are marked stale until the
+     * lock is released, and shared locks count towards replication once they
+     * are granted.
+     * 
+     * A lock taken with lock() is recorded in the lease table as a plain
+     * hold, which cannot be renewed and is released by unlock(), or by the
+     * reaper once holdDuration has passed. A lock taken with lease() is
+     * recorded as a lease instead.
      */
     @Override
     public void lock(Path path, boolean exclusive) throws FileNotFoundException {
+        acquire(path, exclusive);
+        leases.hold(path, exclusive, holdDuration);
+    }
+
+    @Override
+    public Lease lease(Path path, boolean exclusive)
+            throws FileNotFoundException {
+        acquire(path, exclusive);
+        return leases.grant(path, exclusive, leaseDuration);
+    }
+
+    // Takes the lock on a path for lock and lease, which differ only in how
+    // the lock is recorded.
+    private void acquire(Path path, boolean exclusive)
+            throws FileNotFoundException {
         if (path == null)
             throw new NullPointerException("The path given was null.");
 
@@ -515,63 +2099,218 @@ public class NamingServer implements Service, Registration {
             throw new FileNotFoundException("The path is not valid.");
         }
 
-        List<Path> pathList = getAllParents(path);
+        boolean isFile = !isDirectory(path);
+
+        try {
+            locks.lock(path, exclusive);
+        } catch (InterruptedException e) {
+            throw new IllegalStateException(
+                    "The naming server is shutting down.", e);
+        }
+
+        if (exclusive && isFile) {
+            staleCopies(path, null);
+        }
+
+        if (!exclusive && isFile) {
+            countRead(path);
+        }
+    }
 
-        for (int i = 0; i < pathList.size(); i++) {
-            if (lockList.get(pathList.get(i)) == null) {
-                lockList.put(pathList.get(i), new ReadWriteLock());
+    /*
+     * (non-Javadoc)
+     * @see naming.Service#chainLease(common.Path)
+     * 
+     * The head of the chain is chosen when the lock is granted. The other
+     * copies are marked stale at once, as for an ordinary exclusive lock, so
+     * that a write that reached only part of the chain never leaves them
+     * listed as current: if the client fails or its lease expires, they are
+     * brought up to date from the head like any stale copy. Once the lock is
+     * released, catching up compares them with the head block by block, and
+     * copies that received every write are marked current again without any
+     * data being copied. The lock is not counted as a read.
+     */
+    @Override
+    public Lease chainLease(Path file) throws FileNotFoundException {
+        if (file == null)
+            throw new NullPointerException("The path given was null.");
+
+        if (!isValidPath(file) || isDirectory(file)) {
+            throw new FileNotFoundException("The path is not a file.");
+        }
+
+        try {
+            locks.lock(file, true);
+        } catch (InterruptedException e) {
+            throw new IllegalStateException(
+                    "The naming server is shutting down.", e);
+        }
+
+        FsNode node = getNode(file);
+        if (node != null && node.isFile()) {
+            decode(file, node, true);
+            StorageStubs head = selectReplica(node);
+            List<StorageStubs> chain = node.getCurrentStorage();
+            chain.remove(head);
+            chain.add(0, head);
+            staleCopies(file, head);
+            node.chain = chain;
+            writing(file, node);
+        }
+
+        return leases.grant(file, true, leaseDuration);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see naming.Service#lockAll(common.Path[], boolean[])
+     * 
+     * The whole request is passed to LockManager, which takes the locks in
+     * ascending path order. Each path is then recorded as a plain hold,
+     * exactly as if it had been locked with lock().
+     */
+    @Override
+    public void lockAll(Path[] paths, boolean[] exclusive)
+            throws FileNotFoundException {
+        acquireAll(paths, exclusive);
+        for (int i = 0; i < paths.length; i++) {
+            leases.hold(paths[i], exclusive[i], holdDuration);
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see naming.Service#leaseAll(common.Path[], boolean[])
+     * 
+     * The locks are taken as by lockAll(), and each path is then recorded as
+     * a lease, exactly as if it had been locked with lease().
+     */
+    @Override
+    public Lease[] leaseAll(Path[] paths, boolean[] exclusive)
+            throws FileNotFoundException {
+        acquireAll(paths, exclusive);
+        Lease[] granted = new Lease[paths.length];
+        for (int i = 0; i < paths.length; i++) {
+            granted[i] = leases.grant(paths[i], exclusive[i], leaseDuration);
+        }
+        return granted;
+    }
+
+    // Takes the locks on several paths for lockAll and leaseAll, which
+    // differ only in how the locks are recorded.
+    private void acquireAll(Path[] paths, boolean[] exclusive)
+            throws FileNotFoundException {
+        if (paths == null || exclusive == null)
+            throw new NullPointerException("The paths given were null.");
+
+        if (paths.length != exclusive.length) {
+            throw new IllegalArgumentException(
+                    "Every path must be given an access mode.");
+        }
+
+        boolean[] isFile = new boolean[paths.length];
+        for (int i = 0; i < paths.length; i++) {
+            if (paths[i] == null)
+                throw new NullPointerException("The path given was null.");
+
+            if (!isValidPath(paths[i])) {
+                throw new FileNotFoundException("The path " + paths[i]
+                        + " is not valid.");
             }
+
+            isFile[i] = !isDirectory(paths[i]);
         }
 
-        Collections.sort(pathList);
+        try {
+            locks.lockAll(paths, exclusive);
+        } catch (InterruptedException e) {
+            throw new IllegalStateException(
+                    "The naming server is shutting down.", e);
+        }
 
-        for (int i = 0; i < pathList.size(); i++) {
-            if (exclusive && i == pathList.size() - 1) {
-                try {
-                    if (!isDirectory(pathList.get(i))) {
-                        synchronized (NamingServer.this) {
-                            Integer readCount = replicationCounter.get(pathList
-                                    .get(i));
-                            if (readCount == null) {
-                                replicationCounter.put(pathList.get(i), 1);
-                            }
-                            DeletionThread d = new DeletionThread(
-                                    pathList.get(i));
-                            d.start();
-                        }
-                    }
-                    lockList.get(pathList.get(i)).lockWrite();
-                } catch (InterruptedException e) {
-                    // Got a shutdown interrupt, so stop
-                    return;
-                }
-            } else {
-                try {
-                    lockList.get(pathList.get(i)).lockRead();
-                    if (!isDirectory(pathList.get(i))) {
-                        synchronized (NamingServer.this) {
-                            Integer readCount = replicationCounter.get(pathList
-                                    .get(i));
-                            if (readCount == null) {
-                                replicationCounter.put(pathList.get(i), 1);
-                            }
-                            if (replicationCounter.get(pathList.get(i)) >= 20) {
-                                ReplicationThread r = new ReplicationThread(
-                                        pathList.get(i));
-                                r.start();
-                            }
-                            replicationCounter
-                                    .put(pathList.get(i), replicationCounter
-                                            .get(pathList.get(i)) + 1);
-                        }
-                    }
-                } catch (InterruptedException e) {
-                    // Got a shutdown interrupt, so stop
-                    return;
+        for (int i = 0; i < paths.length; i++) {
+            if (exclusive[i] && isFile[i]) {
+                staleCopies(paths[i], null);
+            }
+            if (!exclusive[i] && isFile[i]) {
+                countRead(paths[i]);
+            }
+        }
+    }
+
+    // Marks all but one copy of a file that has been locked for writing as
+    // stale. Clients are only directed to the remaining copy, so only that
+    // copy is written, and the stale copies are brought up to date once the
+    // lock is released. Stale copies are removed from the journal, so that
+    // they are not taken for current copies after a restart. The copy kept is
+    // the given one if it is current, and is otherwise chosen as for reads.
+    private void staleCopies(Path path, StorageStubs keep) {
+        FsNode file = getNode(path);
+        if (file == null || !file.isFile()
+                || file.getCurrentStorage().size() <= 1) {
+            return;
+        }
+
+        if (keep == null || !file.getCurrentStorage().contains(keep)) {
+            keep = selectReplica(file);
+        }
+        synchronized (journal) {
+            for (StorageStubs ss : file.getCurrentStorage()) {
+                if (!ss.equals(keep)) {
+                    journal.removeReplica(path, ss.getId());
+                    file.markStale(ss);
                 }
             }
         }
+    }
+
+    // Keeps the first copy in a chain that can be contacted as the only
+    // current copy of a file whose write through the chain has failed. The
+    // failed write may have reached any part of the chain, but every earlier
+    // write reached all of it, and the client writes the data again to the
+    // copy kept. If no copy can be contacted, the head is kept.
+    private void keepCopy(Path path, FsNode file, List<StorageStubs> chain) {
+        StorageStubs keep = chain.get(0);
+        for (StorageStubs ss : chain) {
+            if (!file.getAllStorage().contains(ss)) {
+                continue;
+            }
+
+            try {
+                ss.getStorage().size(path);
+                keep = ss;
+                break;
+            } catch (FileNotFoundException e) {
+                // Copy disappeared
+            } catch (RMIException e) {
+                // Server cannot be contacted
+            }
+        }
+
+        if (file.getStaleStorage().contains(keep)) {
+            synchronized (journal) {
+                journal.addReplica(path, keep.getId());
+                file.markCurrent(keep);
+            }
+        }
+        staleCopies(path, keep);
+    }
+
+    // Counts a read of a file that has been locked for shared access, and
+    // requests more copies once the file is read often enough.
+    private void countRead(Path path) {
+        readRates.record(path, System.nanoTime());
+
+        FsNode file = getNode(path);
+        if (file == null) {
+            return;
+        }
 
+        boolean wanted = file.coding != null ? isHot(path)
+                : targetReplicas(path, file) > file.getAllStorage().size();
+        if (wanted) {
+            replicationQueue.adjust(path);
+        }
     }
 
     @Override
@@ -583,48 +2322,159 @@ public class NamingServer implements Service, Registration {
             throw new IllegalArgumentException("The path is not valid.");
         }
 
-        List<Path> pathList = getAllParents(path);
+        if (!leases.remove(path, exclusive)) {
+            throw new IllegalArgumentException("The path is not locked.");
+        }
+        unlocked(path, exclusive);
+    }
+
+    @Override
+    public void unlockAll(Path[] paths, boolean[] exclusive) {
+        if (paths == null || exclusive == null)
+            throw new NullPointerException("The paths given were null.");
+
+        if (paths.length != exclusive.length) {
+            throw new IllegalArgumentException(
+                    "Every path must be given an access mode.");
+        }
 
-        for (int i = 0; i < pathList.size(); i++) {
-            if (lockList.get(pathList.get(i)) == null) {
-                lockList.put(pathList.get(i), new ReadWriteLock());
+        // Unlock as many of the paths as possible before reporting a path
+        // that cannot be unlocked.
+        RuntimeException failure = null;
+        for (int i = 0; i < paths.length; i++) {
+            try {
+                unlock(paths[i], exclusive[i]);
+            } catch (RuntimeException e) {
+                if (failure == null) {
+                    failure = e;
+                }
             }
         }
 
-        Collections.sort(pathList);
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    @Override
+    public void renew(Lease lease) {
+        if (lease == null)
+            throw new NullPointerException("The lease given was null.");
 
-        Collections.reverse(pathList);
+        if (!leases.renew(lease)) {
+            throw new IllegalStateException("The lease has expired.");
+        }
+    }
 
-        for (int i = 0; i < pathList.size(); i++) {
-            if (exclusive && i == 0) {
-                try {
-                    lockList.get(pathList.get(i)).unlockWrite();
-                } catch (InterruptedException e) {
-                    // Got a shutdown interrupt, so stop
-                    return;
+    // Releasing by lease does not check that the path still exists, since
+    // the locked object may have been deleted while the lock was held.
+    @Override
+    public void release(Lease lease) {
+        if (lease == null)
+            throw new NullPointerException("The lease given was null.");
+
+        Lease granted = leases.remove(lease);
+        if (granted == null) {
+            throw new IllegalStateException("The lease has expired.");
+        }
+        unlocked(granted.path(), granted.isExclusive());
+    }
+
+    @Override
+    public void releaseAll(Lease[] leases) {
+        if (leases == null)
+            throw new NullPointerException("The leases given were null.");
+
+        // Release as many of the leases as possible before reporting a lease
+        // that cannot be released.
+        RuntimeException failure = null;
+        for (Lease lease : leases) {
+            try {
+                release(lease);
+            } catch (RuntimeException e) {
+                if (failure == null) {
+                    failure = e;
                 }
-            } else {
-                lockList.get(pathList.get(i)).unlockRead();
             }
         }
 
+        if (failure != null) {
+            throw failure;
+        }
     }
 
-    private List<Path> getAllParents(Path p) {
-        ArrayList<Path> list = new ArrayList<Path>();
+    // Releases the locks of a lease that has been removed from the lease
+    // table. Releasing an exclusive lock marks the object as modified, along
+    // with the files under it that were given out for writing, and reads the
+    // sizes of those files again.
+    private void unlocked(Path path, boolean exclusive) {
+        FsNode node = exclusive ? getNode(path) : null;
+        Map<Path, FsNode> written = exclusive ? takeWrittenFiles(path)
+                : Collections.<Path, FsNode> emptyMap();
+        if (node != null) {
+            node.touch();
+            node.chain = null;
+        }
+        for (Map.Entry<Path, FsNode> e : written.entrySet()) {
+            if (e.getValue() != node) {
+                e.getValue().touch();
+            }
+            e.getValue().setWriting(false);
+        }
+        locks.unlock(path, exclusive);
 
-        list.add(p);
+        for (Map.Entry<Path, FsNode> e : written.entrySet()) {
+            refreshSize(e.getKey(), e.getValue());
+        }
 
-        while (true) {
-            try {
-                list.add(p.parent());
-                p = p.parent();
-            } catch (IllegalArgumentException e) {
-                break;
+        // Copies that missed the write can now be brought up to date.
+        if (node != null && node.isFile()
+                && !node.getStaleStorage().isEmpty()) {
+            replicationQueue.catchUp(path);
+        }
+    }
+
+    // Records that a file locked for exclusive access has been given out for
+    // writing, so that its size is not cached until the lock is released.
+    private void writing(Path path, FsNode file) {
+        synchronized (writtenFiles) {
+            writtenFiles.put(path, file);
+        }
+        file.setWriting(true);
+    }
+
+    // Removes and returns the files given out for writing at or under a path.
+    private Map<Path, FsNode> takeWrittenFiles(Path path) {
+        Map<Path, FsNode> taken = new HashMap<Path, FsNode>();
+        synchronized (writtenFiles) {
+            Iterator<Map.Entry<Path, FsNode>> i = writtenFiles.entrySet()
+                    .iterator();
+            while (i.hasNext()) {
+                Map.Entry<Path, FsNode> e = i.next();
+                if (e.getKey().isSubpath(path)) {
+                    taken.put(e.getKey(), e.getValue());
+                    i.remove();
+                }
             }
         }
+        return taken;
+    }
+
+    // Reads and caches the size of a file that has just been written. If no
+    // copy answers, the size is read when it is next asked for.
+    private void refreshSize(Path path, FsNode file) {
+        if (file.coding != null) {
+            return;
+        }
 
-        return list;
+        long version = file.modified;
+        try {
+            file.setSize(readSize(path, stubs(orderReplicas(file))), version);
+        } catch (FileNotFoundException e) {
+            // The file has no current copy
+        } catch (RMIException e) {
+            // Can't help it
+        }
     }
 
     @Override
@@ -696,9 +2546,19 @@ public class NamingServer implements Service, Registration {
             current = parent.getChild(p);
 
             if (current == null) {
-                StorageStubs ss = getRandomServer();
+                StorageStubs ss = place(new ArrayList<StorageStubs>(
+                        storageList));
                 ss.getCommand().create(file);
-                parent.addChild(p, new FsNode(p, ss));
+                // A new file is known to be empty.
+                FsNode created = new FsNode(p, ss);
+                created.setSize(0, created.modified);
+                synchronized (journal) {
+                    journal.file(file, new int[] { ss.getId() });
+                    parent.addChild(p, created);
+                }
+                if (replicationPolicy.minReplicas() > 1) {
+                    replicationQueue.adjust(file);
+                }
                 return true;
             }
             if (current.isFile()) {
@@ -713,11 +2573,46 @@ public class NamingServer implements Service, Registration {
         return false;
     }
 
-    private StorageStubs getRandomServer() {
-        StorageStubs[] storageArray = storageList
-                .toArray(new StorageStubs[storageList.size()]);
-        int item = new Random().nextInt(storageArray.length);
-        return storageArray[item];
+    // Chooses the server on which to place a new file or copy of a file.
+    private StorageStubs place(List<StorageStubs> candidates) {
+        if (candidates.isEmpty()) {
+            throw new IllegalStateException(
+                    "No storage servers are connected to the naming server.");
+        }
+        return candidates.get(placement.place(loads(candidates)));
+    }
+
+    // Chooses the copy of a file from which to read, among the current ones.
+    private StorageStubs selectReplica(FsNode file) {
+        List<StorageStubs> replicas = file.getCurrentStorage();
+        if (replicas.isEmpty()) {
+            throw new IllegalStateException("The file has no replicas.");
+        }
+        return replicas.get(placement.select(loads(replicas)));
+    }
+
+    // Orders the current copies of a file by preference for reading, by
+    // selecting each copy in turn among those not yet chosen.
+    private List<StorageStubs> orderReplicas(FsNode file) {
+        List<StorageStubs> remaining = file.getCurrentStorage();
+        List<StorageStubs> ordered = new ArrayList<StorageStubs>();
+        while (!remaining.isEmpty()) {
+            ordered.add(remaining.remove(placement.select(loads(remaining))));
+        }
+        return ordered;
+    }
+
+    private ServerLoad[] loads(List<StorageStubs> servers) {
+        ServerLoad[] loads = new ServerLoad[servers.size()];
+        synchronized (hostsLock) {
+            for (int i = 0; i < loads.length; i++) {
+                StorageStubs ss = servers.get(i);
+                Set<FsNode> files = replicaIndex.get(ss);
+                loads[i] = new ServerLoad(ss.freeSpace, ss.totalSpace,
+                        ss.outstanding, files == null ? 0 : files.size());
+            }
+        }
+        return loads;
     }
 
     @Override
@@ -738,7 +2633,10 @@ public class NamingServer implements Service, Registration {
         for (String p : directory) {
             current = parent.getChild(p);
             if (current == null) {
-                parent.addChild(p, new FsNode(p));
+                synchronized (journal) {
+                    journal.directory(directory);
+                    parent.addChild(p, new FsNode(p));
+                }
                 return true;
 
             }
@@ -759,28 +2657,34 @@ public class NamingServer implements Service, Registration {
             throw new FileNotFoundException(
                     "The path given does not lead to a file or directory.");
 
-        lock(path, true);
-        boolean status = true;
+        // The caller holds the parent directory for exclusive access, which
+        // covers the object itself. Locking the object here as well would
+        // wait for the caller's own lock.
+        boolean status;
+
+        // Shards retired when a file was decoded are still on their servers,
+        // and are deleted with the file.
+        Set<StorageStubs> hosts = new HashSet<StorageStubs>(
+                takeRetiredShards(path));
         if (isDirectory(path)) {
-            // Just send a delete to all StorageServers. Alternative is to find
-            // all files in this folder, which can be super-expensive.
-            synchronized (storageList) {
-                for (StorageStubs s : storageList) {
-                    status = status && deleteFromServer(path, s.getCommand());
-                }
+            // Only the storage servers hosting files under the directory have
+            // anything to delete.
+            hosts.addAll(fnode.getSubtreeHosts().keySet());
+            status = deleteFromServers(path, hosts);
+            synchronized (journal) {
+                journal.delete(path);
                 getNode(path.parent()).removeChild(path);
             }
         } else {
-            synchronized (fsRoot) {
-                for (StorageStubs s : fnode.getAllStorage()) {
-                    status = status && deleteFromServer(path, s.getCommand());
-                }
+            hosts.addAll(fnode.getAllStorage());
+            status = deleteFromServers(path, hosts);
 
-                fnode.s.clear();
+            synchronized (journal) {
+                journal.delete(path);
                 getNode(path.parent()).removeChild(path);
+                fnode.s.clear();
             }
         }
-        unlock(path, true);
 
         return status;
 
@@ -791,6 +2695,69 @@ public class NamingServer implements Service, Registration {
         return server.delete(path);
     }
 
+    // Deletes a path from several storage servers in parallel. Returns true
+    // if every server deleted the path. If any of the calls fails, the first
+    // failure is thrown once all of the calls have completed.
+    private boolean deleteFromServers(Path path, Collection<StorageStubs> servers)
+            throws RMIException {
+        if (servers.size() == 1) {
+            return deleteFromServer(path, servers.iterator().next()
+                    .getCommand());
+        }
+
+        List<Future<Boolean>> calls = new ArrayList<Future<Boolean>>();
+        for (StorageStubs ss : servers) {
+            calls.add(deleteWorkers.submit(new DeleteCall(path, ss
+                    .getCommand())));
+        }
+
+        boolean status = true;
+        RMIException failure = null;
+        for (Future<Boolean> call : calls) {
+            try {
+                status = call.get() && status;
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(
+                        "The naming server is shutting down.", e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof RMIException && failure == null) {
+                    failure = (RMIException) e.getCause();
+                }
+                status = false;
+            }
+        }
+
+        if (failure != null) {
+            throw failure;
+        }
+        return status;
+    }
+
+    // A delete request to a single storage server, made by a delete worker.
+    private static class DeleteCall implements Callable<Boolean> {
+        final Path path;
+        final Command command;
+
+        DeleteCall(Path path, Command command) {
+            this.path = path;
+            this.command = command;
+        }
+
+        public Boolean call() throws RMIException {
+            return command.delete(path);
+        }
+    }
+
+    // Creates the delete workers as daemon threads, so that they never keep
+    // the process alive.
+    private static class DeleteThreads implements ThreadFactory {
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "delete worker");
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
     @Override
     public Storage getStorage(Path file) throws FileNotFoundException {
         FsNode current = fsRoot;
@@ -806,7 +2773,268 @@ public class NamingServer implements Service, Registration {
             throw new FileNotFoundException();
         }
 
-        return current.getServer().getStorage();
+        // A client writing through a chain of copies has fallen back to
+        // writing a single copy, so the others must be brought up to date
+        // once the lock is released.
+        List<StorageStubs> chain = current.chain;
+        if (chain != null) {
+            current.chain = null;
+            keepCopy(file, current, chain);
+        }
+
+        // Clients given a single server may write to the file, so a coded
+        // file is decoded first.
+        boolean exclusive = locks.isExclusive(file);
+        if (!decode(file, current, exclusive)) {
+            throw new IllegalStateException(
+                    "The file is erasure-coded and cannot be decoded.");
+        }
+
+        if (exclusive) {
+            writing(file, current);
+        }
+        return selectReplica(current).getStorage();
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see naming.Service#getReplicas(common.Path)
+     */
+    @Override
+    public Storage[] getReplicas(Path file) throws FileNotFoundException {
+        if (file == null)
+            throw new NullPointerException("The path given was null.");
+
+        FsNode node = getNode(file);
+        if (node == null || !node.isFile()) {
+            throw new FileNotFoundException("The path is not a file.");
+        }
+
+        if (!decode(file, node, locks.isExclusive(file))) {
+            return new Storage[0];
+        }
+        return stubs(orderReplicas(node));
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see naming.Service#getWriteChain(common.Path)
+     */
+    @Override
+    public Storage[] getWriteChain(Path file) throws FileNotFoundException {
+        if (file == null)
+            throw new NullPointerException("The path given was null.");
+
+        FsNode node = getNode(file);
+        if (node == null || !node.isFile()) {
+            throw new FileNotFoundException("The path is not a file.");
+        }
+
+        List<StorageStubs> chain = node.chain;
+        if (chain == null) {
+            throw new IllegalStateException(
+                    "The file is not locked for writing through a chain.");
+        }
+
+        // Copies lost since the lock was granted are left out.
+        List<StorageStubs> hosts = new ArrayList<StorageStubs>(chain);
+        hosts.retainAll(node.getAllStorage());
+        return stubs(hosts);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see naming.Service#stat(common.Path)
+     * 
+     * The version of an object is the latest modification stamp along its
+     * path, since an exclusive lock on a directory covers its whole subtree.
+     * File sizes are cached in the tree with the stamp of the file they were
+     * read at, so the storage servers are only asked after the file itself
+     * may have changed.
+     */
+    @Override
+    public FileStatus stat(Path path) throws FileNotFoundException,
+            RMIException {
+        if (path == null)
+            throw new NullPointerException("The path given was null.");
+
+        FsNode current = fsRoot;
+        long version = current.modified;
+
+        for (String p : path) {
+            current = current.getChild(p);
+            if (current == null) {
+                throw new FileNotFoundException();
+            }
+            version = Math.max(version, current.modified);
+        }
+
+        return describe(path, current, version);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see naming.Service#listWithAttributes(common.Path)
+     * 
+     * The attributes of each child are found exactly as by stat(), starting
+     * from the version of the directory, so that the children need not be
+     * looked up again from the root. Unlike list(), this does not lock the
+     * directory itself: the caller is expected to hold a shared lock on it,
+     * and a second shared request from inside the call would queue behind
+     * any writer waiting for the caller's lock.
+     */
+    @Override
+    public DirectoryEntry[] listWithAttributes(Path directory)
+            throws FileNotFoundException, RMIException {
+        if (directory == null)
+            throw new NullPointerException("The path given was null.");
+
+        if (!isDirectory(directory)) {
+            throw new FileNotFoundException();
+        }
+
+        FsNode current = fsRoot;
+        long version = current.modified;
+        for (String p : directory) {
+            current = current.getChild(p);
+            if (current == null) {
+                throw new FileNotFoundException();
+            }
+            version = Math.max(version, current.modified);
+        }
+
+        List<DirectoryEntry> entries = new ArrayList<DirectoryEntry>();
+        for (Map.Entry<String, FsNode> child : current.getChildren()
+                .entrySet()) {
+            FileStatus status = describe(new Path(directory, child.getKey()),
+                    child.getValue(), version);
+            entries.add(new DirectoryEntry(child.getKey(), status));
+        }
+
+        return entries.toArray(new DirectoryEntry[entries.size()]);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see naming.Service#listPage(common.Path, String, int, boolean)
+     * 
+     * Pages are read directly from the sorted child map of the directory, so
+     * listing a page costs time in proportion to the page size rather than to
+     * the size of the directory.
+     */
+    @Override
+    public ListingPage listPage(Path directory, String cursor, int limit,
+            boolean attributes) throws FileNotFoundException, RMIException {
+        if (directory == null)
+            throw new NullPointerException("The path given was null.");
+
+        if (limit <= 0) {
+            throw new IllegalArgumentException(
+                    "The page size must be positive.");
+        }
+        limit = Math.min(limit, MAX_PAGE_SIZE);
+
+        FsNode current = fsRoot;
+        long version = current.modified;
+        for (String p : directory) {
+            current = current.getChild(p);
+            if (current == null) {
+                throw new FileNotFoundException();
+            }
+            version = Math.max(version, current.modified);
+        }
+
+        if (current.isFile()) {
+            throw new FileNotFoundException();
+        }
+
+        NavigableMap<String, FsNode> rest = current.getChildren();
+        if (cursor != null) {
+            rest = rest.tailMap(cursor, false);
+        }
+
+        List<String> names = new ArrayList<String>();
+        List<DirectoryEntry> entries = new ArrayList<DirectoryEntry>();
+        String next = null;
+
+        for (Map.Entry<String, FsNode> child : rest.entrySet()) {
+            if (names.size() == limit) {
+                next = names.get(limit - 1);
+                break;
+            }
+
+            names.add(child.getKey());
+            if (attributes) {
+                FileStatus status = describe(
+                        new Path(directory, child.getKey()), child.getValue(),
+                        version);
+                entries.add(new DirectoryEntry(child.getKey(), status));
+            }
+        }
+
+        return new ListingPage(names.toArray(new String[names.size()]),
+                attributes ? entries.toArray(new DirectoryEntry[entries.size()])
+                        : null, next);
+    }
+
+    // Returns the attributes of a node, given the latest modification stamp
+    // of its ancestors.
+    private FileStatus describe(Path path, FsNode node, long version)
+            throws FileNotFoundException, RMIException {
+        version = Math.max(version, node.modified);
+
+        if (!node.isFile()) {
+            return new FileStatus(true, 0, new Storage[0], null, version);
+        }
+
+        // Coded files are read from their shards.
+        Coding coding = node.coding;
+        if (coding != null) {
+            return new FileStatus(false, coding.length, new Storage[0],
+                    coding.layout(), version);
+        }
+
+        Storage[] replicas = stubs(orderReplicas(node));
+
+        // The size only changes under an exclusive lock covering the file,
+        // after which the file itself is marked as modified, so locks on its
+        // ancestors do not make the cached size stale.
+        long stamp = node.modified;
+        long size = node.getSize(stamp);
+        if (size < 0) {
+            size = readSize(path, replicas);
+            node.setSize(size, stamp);
+        }
+
+        return new FileStatus(false, size, replicas, null, version);
+    }
+
+    private Storage[] stubs(List<StorageStubs> servers) {
+        Storage[] stubs = new Storage[servers.size()];
+        for (int i = 0; i < stubs.length; i++) {
+            stubs[i] = servers.get(i).getStorage();
+        }
+        return stubs;
+    }
+
+    // Asks the storage servers hosting a file for its size, trying each
+    // replica in turn until one of them answers.
+    private long readSize(Path file, Storage[] replicas)
+            throws FileNotFoundException, RMIException {
+        RMIException failure = null;
+
+        for (Storage replica : replicas) {
+            try {
+                return replica.size(file);
+            } catch (RMIException e) {
+                failure = e;
+            }
+        }
+
+        if (failure == null) {
+            throw new FileNotFoundException("The file has no replicas.");
+        }
+        throw failure;
     }
 
     private boolean isValidPath(Path file) {
@@ -830,18 +3058,43 @@ public class NamingServer implements Service, Registration {
             throw new NullPointerException();
         }
 
-        StorageStubs ss = new StorageStubs(client_stub, command_stub);
+        StorageStubs ss = new StorageStubs(client_stub, command_stub, -1);
+        boolean reconcile;
 
         synchronized (this) {
-            if (storageList.contains(ss)) {
-                throw new IllegalStateException("Duplicate registration");
+            // A server restored from the journal is already known, so it is
+            // reconciled with the tree rather than rejected as a duplicate.
+            reconcile = recoveredServers.remove(ss);
+            if (reconcile) {
+                ss = storageList.get(storageList.indexOf(ss));
+            } else {
+                if (storageList.contains(ss)) {
+                    throw new IllegalStateException("Duplicate registration");
+                }
+                ss = new StorageStubs(client_stub, command_stub,
+                        nextServerId++);
+                synchronized (journal) {
+                    journal.server(ss.getId(), client_stub, command_stub);
+                    serverTable.put(ss.getId(), ss);
+                }
+                storageList.add(ss);
             }
-            storageList.add(ss);
         }
 
         ArrayList<Path> dupeFiles = new ArrayList<Path>();
+        Set<Path> hostedFiles = new HashSet<Path>();
 
         for (int i = 0; i < files.length; i++) {
+            if (reconcile) {
+                FsNode node = getNode(files[i]);
+                if (node != null && node.isFile()
+                        && node.getAllStorage().contains(ss)) {
+                    // Already known to be hosted here
+                    hostedFiles.add(files[i]);
+                    continue;
+                }
+            }
+
             FsNode current = fsRoot;
             boolean isDupe = false;
             for (String p : files[i]) {
@@ -861,22 +3114,100 @@ public class NamingServer implements Service, Registration {
             }
 
             // New file, so add to file tree
-            FsNode parent = fsRoot;
-            for (String p : files[i]) {
-                current = parent.getChild(p);
-                if (current == null) {
-                    FsNode newNode;
-                    if (p.equals(files[i].last())) {
-                        newNode = new FsNode(p, ss);
-                    } else {
-                        newNode = new FsNode(p);
+            synchronized (journal) {
+                journal.file(files[i], new int[] { ss.getId() });
+                FsNode parent = fsRoot;
+                for (String p : files[i]) {
+                    current = parent.getChild(p);
+                    if (current == null) {
+                        FsNode newNode;
+                        if (p.equals(files[i].last())) {
+                            newNode = new FsNode(p, ss);
+                        } else {
+                            newNode = new FsNode(p);
+                        }
+                        parent.addChild(p, newNode);
                     }
-                    parent.addChild(p, newNode);
+                    parent = parent.getChild(p);
                 }
-                parent = parent.getChild(p);
             }
+            hostedFiles.add(files[i]);
+        }
+
+        if (reconcile) {
+            forgetReplicas(ss, hostedFiles);
         }
 
         return dupeFiles.toArray(new Path[dupeFiles.size()]);
     }
+
+    // Removes the given server from the replica list of every file that the
+    // server no longer hosts. Used when a server restored from the journal
+    // registers again with a possibly different set of files.
+    private void forgetReplicas(StorageStubs ss, Set<Path> hostedFiles) {
+        for (Path path : hostedPaths(ss)) {
+            if (hostedFiles.contains(path)) {
+                continue;
+            }
+
+            FsNode file = getNode(path);
+            if (file != null) {
+                synchronized (journal) {
+                    journal.removeReplica(path, ss.getId());
+                    file.removeStorage(ss);
+                }
+            }
+        }
+    }
+
+    // The method heartbeat is documented in Registration.java. Servers
+    // restored from the journal that have not registered again are told to
+    // register, so that their files are reconciled with the tree.
+    @Override
+    public boolean heartbeat(Storage client_stub, long free_space,
+            long total_space, int outstanding) {
+        if (client_stub == null) {
+            throw new NullPointerException();
+        }
+
+        for (StorageStubs ss : new ArrayList<StorageStubs>(storageList)) {
+            if (ss.getStorage().equals(client_stub)) {
+                ss.freeSpace = free_space;
+                ss.totalSpace = total_space;
+                ss.outstanding = outstanding;
+                ss.lastHeartbeat = System.nanoTime();
+                return !recoveredServers.contains(ss);
+            }
+        }
+        return false;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see naming.Service#usage()
+     * 
+     * File counts are read from the replica index, and byte counts from the
+     * totals kept with each server as replicas are indexed and sizes read.
+     * Sizes are those last read from the storage servers.
+     */
+    @Override
+    public ServerUsage[] usage() {
+        List<ServerUsage> usage = new ArrayList<ServerUsage>();
+        List<StorageStubs> servers = new ArrayList<StorageStubs>(storageList);
+
+        synchronized (hostsLock) {
+            for (StorageStubs ss : servers) {
+                Set<FsNode> files = replicaIndex.get(ss);
+                if (files == null) {
+                    usage.add(new ServerUsage(ss.getStorage(), 0, 0, 0));
+                } else {
+                    HostedUsage hosted = hostedUsage.get(ss);
+                    usage.add(new ServerUsage(ss.getStorage(), files.size(),
+                            hosted.bytes, hosted.unsizedFiles));
+                }
+            }
+        }
+
+        return usage.toArray(new ServerUsage[usage.size()]);
+    }
 }
@@ -0,0 +1,37 @@
+/**
+ * Authors: Tanay Gavankar (tgavanka)
+ * 			Siddharth Soundararajan (ssoundar)
+ */
+
+package naming;
+
+/**
+ * Policy deciding which storage servers files are placed on and read from.
+ *
+ * <p>
+ * A naming server consults its placement policy to choose the server on which
+ * a new file is created, the server receiving a new copy of a file during
+ * replication, and the copy of a file given to a client that asks for a
+ * storage server. Policies are called concurrently from many threads.
+ */
+public interface PlacementPolicy {
+
+    /**
+     * Chooses the server on which to place a new file or copy of a file.
+     *
+     * @param servers
+     *            Load of each candidate server. The array is never empty.
+     * @return The index of the chosen server in the array.
+     */
+    int place(ServerLoad[] servers);
+
+    /**
+     * Chooses the copy of a file from which a client is to read.
+     *
+     * @param replicas
+     *            Load of each server hosting a copy of the file. The array is
+     *            never empty.
+     * @return The index of the chosen server in the array.
+     */
+    int select(ServerLoad[] replicas);
+}
@@ -0,0 +1,70 @@
+/**
+ * Authors: Tanay Gavankar (tgavanka)
+ * 			Siddharth Soundararajan (ssoundar)
+ */
+
+package naming;
+
+import java.util.Random;
+
+/**
+ * Default placement policy, choosing the better of two random servers.
+ *
+ * <p>
+ * Comparing two servers picked at random avoids both the hot spots of always
+ * choosing the least loaded server from slightly stale load reports, and the
+ * imbalance of choosing uniformly at random. For placement, a server costs
+ * its outstanding requests plus one, divided by the fraction of its space
+ * that is free, so that full servers are avoided even when idle; ties go to
+ * the server hosting fewer files. For reads, the server with fewer
+ * outstanding requests is chosen.
+ */
+public class PowerOfTwoChoices implements PlacementPolicy {
+
+    // Free fraction below which all servers are considered equally full.
+    private static final double MIN_FREE_FRACTION = 0.01;
+
+    private final Random random = new Random();
+
+    @Override
+    public int place(ServerLoad[] servers) {
+        if (servers.length == 1) {
+            return 0;
+        }
+
+        int first = random.nextInt(servers.length);
+        int second = other(first, servers.length);
+
+        double firstCost = placementCost(servers[first]);
+        double secondCost = placementCost(servers[second]);
+        if (firstCost != secondCost) {
+            return firstCost < secondCost ? first : second;
+        }
+        return servers[first].files() <= servers[second].files() ? first
+                : second;
+    }
+
+    @Override
+    public int select(ServerLoad[] replicas) {
+        if (replicas.length == 1) {
+            return 0;
+        }
+
+        int first = random.nextInt(replicas.length);
+        int second = other(first, replicas.length);
+
+        return replicas[first].outstanding() <= replicas[second].outstanding()
+                ? first : second;
+    }
+
+    // Returns a random index other than the given one.
+    private int other(int index, int length) {
+        int other = random.nextInt(length - 1);
+        return other >= index ? other + 1 : other;
+    }
+
+    private double placementCost(ServerLoad load) {
+        return (load.outstanding() + 1)
+                / Math.max(load.freeFraction(), MIN_FREE_FRACTION);
+    }
+}
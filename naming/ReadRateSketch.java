@@ -0,0 +1,107 @@
+/**
+ * Authors: Tanay Gavankar (tgavanka)
+ * 			Siddharth Soundararajan (ssoundar)
+ */
+
+package naming;
+
+/**
+ * Time-decayed read counts of files, kept in a fixed amount of memory.
+ *
+ * <p>
+ * The sketch is a count-min sketch: every read is added to one cell in each
+ * of several rows, chosen by a different hash of the key in each row, and the
+ * estimate for a key is the smallest of its cells. Keys sharing cells can
+ * only make an estimate too large, never too small, and the memory used does
+ * not depend on the number of files read.
+ *
+ * <p>
+ * Counts decay exponentially with the given half-life. Rather than scaling
+ * every cell down as time passes, later reads are given exponentially larger
+ * weights, and estimates are scaled down by the weight of a read made at the
+ * time of the estimate. The cells are rescaled only when the weights grow
+ * large.
+ *
+ * <p>
+ * Times are given in <code>System.nanoTime()</code> units.
+ */
+class ReadRateSketch {
+
+    private static final int DEPTH = 4;
+    private static final int WIDTH = 4096;
+
+    // Weight beyond which all cells are scaled down, and the reference time
+    // moved forward, to keep the weights well within double range.
+    private static final double RESCALE_WEIGHT = 1e100;
+
+    private final double[][] cells;
+    private final double decay;
+
+    // Time at which a read has weight one.
+    private long epoch;
+
+    /**
+     * Creates an empty sketch.
+     *
+     * @param halfLife
+     *            Time, in milliseconds, in which a count decays to half its
+     *            value.
+     * @param now
+     *            Current time.
+     */
+    ReadRateSketch(long halfLife, long now) {
+        cells = new double[DEPTH][WIDTH];
+        decay = Math.log(2) / (halfLife * 1000000.0);
+        epoch = now;
+    }
+
+    /** Counts one read of a key. */
+    synchronized void record(Object key, long now) {
+        double weight = weight(now);
+        if (weight > RESCALE_WEIGHT) {
+            rescale(now);
+            weight = 1;
+        }
+
+        int hash = key.hashCode();
+        for (int row = 0; row < DEPTH; row++) {
+            cells[row][index(hash, row)] += weight;
+        }
+    }
+
+    /** Returns the decayed number of reads of a key. */
+    synchronized double estimate(Object key, long now) {
+        int hash = key.hashCode();
+        double count = Double.MAX_VALUE;
+        for (int row = 0; row < DEPTH; row++) {
+            count = Math.min(count, cells[row][index(hash, row)]);
+        }
+        return count / weight(now);
+    }
+
+    private double weight(long now) {
+        return Math.exp(decay * (now - epoch));
+    }
+
+    private void rescale(long now) {
+        double scale = weight(now);
+        for (double[] row : cells) {
+            for (int i = 0; i < row.length; i++) {
+                row[i] /= scale;
+            }
+        }
+        epoch = now;
+    }
+
+    // Mixes the hash of a key with the row number, so that keys colliding in
+    // one row are unlikely to collide in the others.
+    private static int index(int hash, int row) {
+        int h = hash ^ (row * 0x9e3779b9);
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return (h & 0x7fffffff) % WIDTH;
+    }
+}
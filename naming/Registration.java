@@ -7,7 +7,9 @@ import rmi.RMIException;
 /** Naming server registration interface.
 
     <p>
-    This interface is used once, on startup, by each storage server.
+    This interface is used on startup by each storage server to register with
+    the naming server. After that, each storage server periodically sends
+    heartbeats, carrying its capacity and load, through this interface.
  */
 public interface Registration
 {
@@ -52,4 +54,40 @@ public interface Registration
      */
     public Path[] register(Storage client_stub, Command command_stub,
                            Path[] files) throws RMIException;
+
+    /** Sends a heartbeat from a storage server to the naming server.
+
+        <p>
+        Storage servers call this method periodically after registering. Each
+        heartbeat carries the capacity and load of the server, which the naming
+        server uses to decide where new files are placed, and which copy of a
+        file clients read from.
+
+        <p>
+        A server that sends no heartbeat for longer than the failure timeout of
+        the naming server is considered to have failed. It is removed from the
+        list of storage servers and from the replica lists of its files, and
+        the files it hosted are copied from their remaining copies to other
+        servers as needed. Files left with no copy are removed from the
+        directory tree.
+
+        @param client_stub Client service stub of the server, as given during
+                           registration.
+        @param free_space Free space available to the server, in bytes.
+        @param total_space Total space of the storage holding the server's
+                           files, in bytes.
+        @param outstanding Number of client and command requests in progress
+                           or waiting on the server.
+        @return <code>true</code> if the server is registered, <code>false
+                </code> if it is not, for example because it was considered to
+                have failed or because the naming server restarted. A server
+                that is not registered must register again.
+        @throws NullPointerException If <code>client_stub</code> is
+                                     <code>null</code>.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public boolean heartbeat(Storage client_stub, long free_space,
+                             long total_space, int outstanding)
+        throws RMIException;
 }
@@ -0,0 +1,114 @@
+/**
+ * Authors: Tanay Gavankar (tgavanka)
+ * 			Siddharth Soundararajan (ssoundar)
+ */
+
+package naming;
+
+/**
+ * Decides how many copies of a file the naming server keeps.
+ *
+ * <p>
+ * The decision is based on a time-decayed count of the reads of the file:
+ * every read counts as one, and counts halve every half-life. A file gets one
+ * copy, plus one more for every <code>readsPerReplica</code> reads counted,
+ * within the minimum and maximum number of copies. Copies are removed with
+ * hysteresis: a copy is only removed once the count has fallen to half of
+ * what justified it, so that files read at a steady rate do not alternate
+ * between gaining and losing copies.
+ */
+public class ReplicationPolicy {
+
+    private final int minReplicas;
+    private final int maxReplicas;
+    private final double readsPerReplica;
+    private final long halfLife;
+
+    /**
+     * Creates the default policy. Files have between one and three copies, a
+     * copy is added for every 20 reads, and read counts have a half-life of
+     * one minute.
+     */
+    public ReplicationPolicy() {
+        this(1, 3, 20, 60 * 1000);
+    }
+
+    /**
+     * Creates a policy.
+     *
+     * @param minReplicas
+     *            Smallest number of copies of every file.
+     * @param maxReplicas
+     *            Largest number of copies of any file.
+     * @param readsPerReplica
+     *            Number of decayed reads justifying each copy beyond the
+     *            first.
+     * @param halfLife
+     *            Time, in milliseconds, in which read counts decay to half
+     *            their value.
+     * @throws IllegalArgumentException
+     *             If <code>minReplicas</code> is less than one, if
+     *             <code>maxReplicas</code> is less than
+     *             <code>minReplicas</code>, or if <code>readsPerReplica</code>
+     *             or <code>halfLife</code> is not positive.
+     */
+    public ReplicationPolicy(int minReplicas, int maxReplicas,
+            double readsPerReplica, long halfLife) {
+        if (minReplicas < 1 || maxReplicas < minReplicas) {
+            throw new IllegalArgumentException(
+                    "The replica counts are not valid.");
+        }
+        if (!(readsPerReplica > 0) || halfLife <= 0) {
+            throw new IllegalArgumentException(
+                    "The read rate and half-life must be positive.");
+        }
+
+        this.minReplicas = minReplicas;
+        this.maxReplicas = maxReplicas;
+        this.readsPerReplica = readsPerReplica;
+        this.halfLife = halfLife;
+    }
+
+    /** Returns the smallest number of copies of every file. */
+    public int minReplicas() {
+        return minReplicas;
+    }
+
+    /** Returns the largest number of copies of any file. */
+    public int maxReplicas() {
+        return maxReplicas;
+    }
+
+    /** Returns the number of decayed reads justifying each extra copy. */
+    public double readsPerReplica() {
+        return readsPerReplica;
+    }
+
+    /** Returns the half-life of read counts, in milliseconds. */
+    public long halfLife() {
+        return halfLife;
+    }
+
+    /**
+     * Returns the number of copies a file should have.
+     *
+     * @param reads
+     *            Decayed number of reads of the file.
+     * @param current
+     *            Number of copies the file has.
+     */
+    public int replicas(double reads, int current) {
+        int wanted = current;
+
+        int grow = 1 + (int) Math.min(reads / readsPerReplica, maxReplicas);
+        int keep = 1 + (int) Math.min(2 * reads / readsPerReplica,
+                maxReplicas);
+        if (grow > current) {
+            wanted = grow;
+        } else if (keep < current) {
+            wanted = keep;
+        }
+
+        return Math.max(minReplicas, Math.min(maxReplicas, wanted));
+    }
+}
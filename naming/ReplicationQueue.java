@@ -0,0 +1,286 @@
+/**
+ * Authors: Tanay Gavankar (tgavanka)
+ * 			Siddharth Soundararajan (ssoundar)
+ */
+
+package naming;
+
+import java.util.*;
+
+import common.*;
+
+/**
+ * Bounded work queue for adjusting the number of copies of files, and for
+ * bringing stale copies up to date.
+ *
+ * <p>
+ * Work is carried out by a fixed pool of worker threads. The queue holds at
+ * most one pending task per path: requests for a path that already has a
+ * pending task are merged into that task, which then carries out all the
+ * work requested, stale copies being brought up to date first. A path is
+ * never worked on by two workers at once; a task submitted while its path is
+ * being worked on waits until the work in progress is done.
+ *
+ * <p>
+ * Repairs of files that lost copies when a storage server failed are taken
+ * ahead of all other work, files with the fewest remaining copies first.
+ * Other tasks are taken in submission order.
+ *
+ * <p>
+ * When the queue is full, requests are dropped. Adjustments are requested
+ * again while the file is read, and both kinds of work are requested again
+ * when copies are next checked, as are repairs. Dropping a request is
+ * therefore never unsafe: stale copies are not read until they have been
+ * brought up to date.
+ */
+class ReplicationQueue {
+
+    /** Carries out the work for a path. */
+    interface Handler {
+        void adjust(Path file);
+
+        void catchUp(Path file);
+    }
+
+    private final Handler handler;
+    private final int capacity;
+    private final Thread[] workers;
+
+    // Pending tasks whose path is not being worked on, in the order they are
+    // to be taken; pending tasks waiting for the work in progress on their
+    // path, by path; all pending tasks by path; and the paths being worked
+    // on. Guarded by the monitor of the queue.
+    private final TreeSet<Task> ready;
+    private final HashMap<Path, Task> blocked;
+    private final HashMap<Path, Task> pending;
+    private final HashSet<Path> running;
+
+    // Submission number of the next task, which orders tasks of equal
+    // priority. Guarded by the monitor of the queue.
+    private long submissions = 0;
+
+    // Statistics, guarded by the monitor of the queue. Latencies are measured
+    // from submission to completion, in System.nanoTime() units.
+    private long completed = 0;
+    private long dropped = 0;
+    private long totalLatency = 0;
+    private long maxLatency = 0;
+
+    /**
+     * Creates a queue. The workers are not started.
+     *
+     * @param workers
+     *            Number of worker threads.
+     * @param capacity
+     *            Largest number of pending tasks.
+     */
+    ReplicationQueue(int workers, int capacity, Handler handler) {
+        this.handler = handler;
+        this.capacity = capacity;
+        this.workers = new Thread[workers];
+        ready = new TreeSet<Task>();
+        blocked = new HashMap<Path, Task>();
+        pending = new HashMap<Path, Task>();
+        running = new HashSet<Path>();
+    }
+
+    /** Starts the worker threads. */
+    synchronized void start() {
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Worker();
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+    }
+
+    /** Stops the worker threads. Pending tasks are discarded. */
+    synchronized void stop() {
+        for (Thread worker : workers) {
+            if (worker != null) {
+                worker.interrupt();
+            }
+        }
+    }
+
+    /**
+     * Requests that the number of copies of a file be adjusted.
+     *
+     * @return <code>false</code> if the request was dropped because the queue
+     *         is full.
+     */
+    synchronized boolean adjust(Path file) {
+        Task task = submit(file);
+        if (task == null) {
+            return false;
+        }
+
+        task.adjust = true;
+        return true;
+    }
+
+    /**
+     * Requests that the number of copies of a file that lost copies be
+     * restored, ahead of other work. If the file already has a pending task,
+     * the task is carried out as a repair.
+     *
+     * @param copies
+     *            Number of copies the file has left. Files with fewer copies
+     *            are repaired first.
+     * @return <code>false</code> if the request was dropped because the queue
+     *         is full.
+     */
+    synchronized boolean repair(Path file, int copies) {
+        Task task = submit(file);
+        if (task == null) {
+            return false;
+        }
+
+        task.adjust = true;
+        if (copies < task.copies) {
+            // Move the task to its new place in the order.
+            boolean queued = ready.remove(task);
+            task.copies = copies;
+            if (queued) {
+                ready.add(task);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Requests that the stale copies of a file be brought up to date.
+     *
+     * @return <code>false</code> if the request was dropped because the queue
+     *         is full.
+     */
+    synchronized boolean catchUp(Path file) {
+        Task task = submit(file);
+        if (task == null) {
+            return false;
+        }
+
+        task.catchUp = true;
+        return true;
+    }
+
+    /** Returns the current statistics of the queue. */
+    synchronized ReplicationStatistics statistics() {
+        long meanLatency = completed == 0 ? 0 : totalLatency / completed;
+        return new ReplicationStatistics(pending.size(), running.size(),
+                completed, dropped, meanLatency / 1000000,
+                maxLatency / 1000000);
+    }
+
+    // Returns the pending task for a path, creating it if there is none, or
+    // null if the queue is full.
+    private Task submit(Path file) {
+        Task task = pending.get(file);
+        if (task != null) {
+            return task;
+        }
+
+        if (pending.size() >= capacity) {
+            dropped++;
+            return null;
+        }
+
+        task = new Task(file, submissions++);
+        pending.put(file, task);
+        if (running.contains(file)) {
+            blocked.put(file, task);
+        } else {
+            ready.add(task);
+            // Every waiting worker can take any ready task, so one is enough.
+            notify();
+        }
+        return task;
+    }
+
+    // Removes and returns the repair with the fewest remaining copies or,
+    // if there are no repairs, the oldest task, among the tasks whose path is
+    // not being worked on. Waits for such a task if there is none.
+    private synchronized Task take() throws InterruptedException {
+        while (ready.isEmpty()) {
+            wait();
+        }
+
+        Task task = ready.pollFirst();
+        pending.remove(task.path);
+        running.add(task.path);
+        return task;
+    }
+
+    private synchronized void done(Task task) {
+        running.remove(task.path);
+
+        long latency = System.nanoTime() - task.submitted;
+        completed++;
+        totalLatency += latency;
+        maxLatency = Math.max(maxLatency, latency);
+
+        // A task for the same path may have been waiting for this one.
+        Task next = blocked.remove(task.path);
+        if (next != null) {
+            ready.add(next);
+            notify();
+        }
+    }
+
+    private class Worker extends Thread {
+        public void run() {
+            while (true) {
+                Task task;
+                try {
+                    task = take();
+                } catch (InterruptedException e) {
+                    // Server is shutting down
+                    return;
+                }
+
+                try {
+                    if (task.catchUp) {
+                        handler.catchUp(task.path);
+                    }
+                    if (task.adjust) {
+                        handler.adjust(task.path);
+                    }
+                } catch (RuntimeException e) {
+                    // Keep the worker alive for the other tasks
+                } finally {
+                    done(task);
+                }
+            }
+        }
+    }
+
+    // Work pending for a path. More work may be added to the task while it
+    // is queued. The flags are guarded by the monitor of the queue until the
+    // task is taken by a worker. Tasks are ordered by the copies left, then
+    // by submission.
+    private static class Task implements Comparable<Task> {
+        final Path path;
+        final long sequence;
+        final long submitted;
+        boolean adjust;
+        boolean catchUp;
+
+        // Copies left, for repairs; other tasks are taken after all repairs.
+        int copies = Integer.MAX_VALUE;
+
+        Task(Path path, long sequence) {
+            this.path = path;
+            this.sequence = sequence;
+            submitted = System.nanoTime();
+        }
+
+        public int compareTo(Task other) {
+            if (copies != other.copies) {
+                return copies < other.copies ? -1 : 1;
+            }
+            if (sequence != other.sequence) {
+                return sequence < other.sequence ? -1 : 1;
+            }
+            return 0;
+        }
+    }
+}
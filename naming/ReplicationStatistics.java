@@ -0,0 +1,66 @@
+/**
+ * Authors: Tanay Gavankar (tgavanka)
+ * 			Siddharth Soundararajan (ssoundar)
+ */
+
+package naming;
+
+/**
+ * Snapshot of the naming server replication queue, as returned by
+ * <code>NamingServer.replicationStatistics</code>.
+ */
+public class ReplicationStatistics {
+
+    private final int queued;
+    private final int running;
+    private final long completed;
+    private final long dropped;
+    private final long meanLatency;
+    private final long maxLatency;
+
+    ReplicationStatistics(int queued, int running, long completed,
+            long dropped, long meanLatency, long maxLatency) {
+        this.queued = queued;
+        this.running = running;
+        this.completed = completed;
+        this.dropped = dropped;
+        this.meanLatency = meanLatency;
+        this.maxLatency = maxLatency;
+    }
+
+    /** Returns the number of tasks waiting for a worker. */
+    public int queued() {
+        return queued;
+    }
+
+    /** Returns the number of tasks being worked on. */
+    public int running() {
+        return running;
+    }
+
+    /** Returns the number of tasks completed since the server started. */
+    public long completed() {
+        return completed;
+    }
+
+    /** Returns the number of requests dropped because the queue was full. */
+    public long dropped() {
+        return dropped;
+    }
+
+    /**
+     * Returns the mean time, in milliseconds, from the submission of a task to
+     * its completion.
+     */
+    public long meanLatency() {
+        return meanLatency;
+    }
+
+    /**
+     * Returns the longest time, in milliseconds, from the submission of a task
+     * to its completion.
+     */
+    public long maxLatency() {
+        return maxLatency;
+    }
+}
@@ -0,0 +1,60 @@
+/**
+ * Authors: Tanay Gavankar (tgavanka)
+ * 			Siddharth Soundararajan (ssoundar)
+ */
+
+package naming;
+
+/**
+ * Capacity and load of a storage server, as seen by a placement policy.
+ *
+ * <p>
+ * Free and total space, and the number of outstanding requests, are reported
+ * periodically by the storage server itself. Until the first report arrives,
+ * the space is unknown and the server is assumed to be idle.
+ */
+public class ServerLoad {
+
+    private final long freeSpace;
+    private final long totalSpace;
+    private final int outstanding;
+    private final long files;
+
+    ServerLoad(long freeSpace, long totalSpace, int outstanding, long files) {
+        this.freeSpace = freeSpace;
+        this.totalSpace = totalSpace;
+        this.outstanding = outstanding;
+        this.files = files;
+    }
+
+    /** Returns the free space in bytes, or -1 if it is not known. */
+    public long freeSpace() {
+        return freeSpace;
+    }
+
+    /** Returns the total space in bytes, or -1 if it is not known. */
+    public long totalSpace() {
+        return totalSpace;
+    }
+
+    /**
+     * Returns the fraction of the space that is free, or 1 if it is not
+     * known.
+     */
+    public double freeFraction() {
+        if (freeSpace < 0 || totalSpace <= 0) {
+            return 1;
+        }
+        return (double) freeSpace / totalSpace;
+    }
+
+    /** Returns the number of requests in progress or waiting on the server. */
+    public int outstanding() {
+        return outstanding;
+    }
+
+    /** Returns the number of files the server hosts a copy of. */
+    public long files() {
+        return files;
+    }
+}
@@ -0,0 +1,60 @@
+/**
+ * Authors: Tanay Gavankar (tgavanka)
+ * 			Siddharth Soundararajan (ssoundar)
+ */
+
+package naming;
+
+import java.io.Serializable;
+
+import storage.*;
+
+/**
+ * Number of files and bytes hosted by a storage server, as returned by
+ * <code>Service.usage</code>.
+ */
+public class ServerUsage implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final Storage server;
+    private final long files;
+    private final long bytes;
+    private final long unsizedFiles;
+
+    ServerUsage(Storage server, long files, long bytes, long unsizedFiles) {
+        this.server = server;
+        this.files = files;
+        this.bytes = bytes;
+        this.unsizedFiles = unsizedFiles;
+    }
+
+    /** Returns the client interface stub of the storage server. */
+    public Storage server() {
+        return server;
+    }
+
+    /** Returns the number of files the server hosts a copy of. */
+    public long files() {
+        return files;
+    }
+
+    /**
+     * Returns the total size of the files the server hosts a copy of, as
+     * last known to the naming server. Files whose size is unknown are not
+     * included.
+     */
+    public long bytes() {
+        return bytes;
+    }
+
+    /**
+     * Returns the number of files the server hosts a copy of whose size the
+     * naming server does not know, and which are therefore not included in
+     * <code>bytes</code>. When it is zero, <code>bytes</code> covers every
+     * file.
+     */
+    public long unsizedFiles() {
+        return unsizedFiles;
+    }
+}
@@ -41,11 +41,13 @@ public interface Service
         <p>
         Locking a file for shared access is considered by the naming server to
         be a read request, and may cause the file to be replicated. Locking a
-        file for exclusive access is considered to be a write request, and
-        causes all copies of the file but one to be deleted. This latter process
-        is called invalidation. The naming server must treat lock actions as
-        read or write requests because it cannot monitor the true read and write
-        requests - those go to the storage servers.
+        file for exclusive access is considered to be a write request: all
+        copies of the file but one are marked stale, and clients are directed
+        only to the remaining copy until the lock is released. The stale copies
+        are then brought up to date, or deleted if that is not possible. This
+        latter process is called invalidation. The naming server must treat
+        lock actions as read or write requests because it cannot monitor the
+        true read and write requests - those go to the storage servers.
 
         <p>
         When any object is locked for either kind of access, all objects along
@@ -87,6 +89,15 @@ public interface Service
         <code>A</code> and <code>B</code> for shared access. User <code>D</code>
         must wait until <code>C</code> is done with the lock.
 
+        <p>
+        A lock taken with this method cannot be renewed. If it is not unlocked
+        within the hold duration of the naming server, which is ten minutes by
+        default, the naming server releases it, so that a client that fails
+        while holding the lock does not block other users indefinitely.
+        Clients that may hold a lock for longer, or that should not block other
+        users for that long if they fail, should take it with
+        <code>lease</code> instead.
+
         @param path The file or directory to be locked.
         @param exclusive If <code>true</code>, the object is to be locked for
                          exclusive access. Otherwise, it is to be locked for
@@ -108,21 +119,216 @@ public interface Service
 
     /** Unlocks a file or directory.
 
+        <p>
+        Only locks taken with <code>lock</code> or <code>lockAll</code> are
+        released by this method. A lock held under a lease is released with
+        <code>release</code>, so that unlocking a path never releases the lock
+        of another user holding a lease on it. A lock that the naming server
+        has already released because it was held for too long cannot be
+        unlocked.
+
         @param path The file or directory to be unlocked.
         @param exclusive Must be <code>true</code> if the object was locked for
                          exclusive access, and <code>false</code> if it was
                          locked for shared access.
         @throws IllegalArgumentException If the object specified by
-                                         <code>path</code> cannot be found. This
+                                         <code>path</code> cannot be found, or
+                                         is not locked in the given mode. This
                                          is a client programming error, as the
                                          path must have previously been locked,
                                          and cannot be removed while it is
-                                         locked.
+                                         locked, unless the lock was held for
+                                         too long.
         @throws RMIException If the call cannot be completed due to a network
                              error.
      */
     public void unlock(Path path, boolean exclusive) throws RMIException;
 
+    /** Locks several files or directories in a single request.
+
+        <p>
+        The effect is the same as calling <code>lock</code> for each path in
+        turn, and each path must later be unlocked, either with
+        <code>unlock</code> or with <code>unlockAll</code>. As with
+        <code>lock</code>, the locks cannot be renewed, and are released by the
+        naming server once its hold duration has passed. Clients should prefer
+        <code>leaseAll</code>. However, the naming
+        server takes all of the locks needed by the request in a fixed order
+        that is common to all requests. A client that needs several objects
+        locked at once should use this method: locking the objects one at a
+        time can deadlock with other users locking some of the same objects.
+
+        <p>
+        A path may be given more than once only if it is always to be locked
+        for shared access. A path that is to be locked for exclusive access
+        cannot be given together with any path below it, since the exclusive
+        lock already covers the whole subtree.
+
+        @param paths The files or directories to be locked.
+        @param exclusive For each path, whether it is to be locked for
+                         exclusive access.
+        @throws FileNotFoundException If any of the objects cannot be found.
+                                      No locks are taken in this case.
+        @throws IllegalArgumentException If the two arrays differ in length,
+                                         or if the paths cannot be locked
+                                         together as described above.
+        @throws IllegalStateException Under the same conditions as for
+                                      <code>lock</code>.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public void lockAll(Path[] paths, boolean[] exclusive)
+        throws RMIException, FileNotFoundException;
+
+    /** Unlocks several files or directories in a single request.
+
+        <p>
+        Each path is unlocked as by <code>unlock</code>. If some of the paths
+        cannot be unlocked, the remaining paths are still unlocked before the
+        exception is thrown.
+
+        @param paths The files or directories to be unlocked.
+        @param exclusive For each path, whether it was locked for exclusive
+                         access.
+        @throws IllegalArgumentException If the two arrays differ in length,
+                                         or if any of the objects cannot be
+                                         found.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public void unlockAll(Path[] paths, boolean[] exclusive)
+        throws RMIException;
+
+    /** Locks several files or directories in a single request, and returns a
+        lease for each lock.
+
+        <p>
+        The locks are taken exactly as by <code>lockAll</code>, and each is
+        then held under its own lease, as if it had been taken with
+        <code>lease</code>. Each lease must be renewed within its duration, and
+        is released with <code>release</code> or <code>releaseAll</code>.
+
+        @param paths The files or directories to be locked.
+        @param exclusive For each path, whether it is to be locked for
+                         exclusive access.
+        @return The leases under which the locks are held, in the order of
+                the paths.
+        @throws FileNotFoundException If any of the objects cannot be found.
+                                      No locks are taken in this case.
+        @throws IllegalArgumentException Under the same conditions as for
+                                         <code>lockAll</code>.
+        @throws IllegalStateException Under the same conditions as for
+                                      <code>lock</code>.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public Lease[] leaseAll(Path[] paths, boolean[] exclusive)
+        throws RMIException, FileNotFoundException;
+
+    /** Releases the locks held under several leases in a single request.
+
+        <p>
+        Each lease is released as by <code>release</code>. If some of the
+        leases cannot be released, the remaining leases are still released
+        before the exception is thrown.
+
+        @param leases The leases to be released.
+        @throws IllegalStateException If any of the leases has already expired
+                                      or has been released.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public void releaseAll(Lease[] leases) throws RMIException;
+
+    /** Locks a file or directory and returns a lease for the lock.
+
+        <p>
+        If the lease is neither renewed nor released within its duration, the
+        naming server releases the lock itself. This prevents a client that
+        fails while holding a lock from blocking other users for long. Locks
+        taken with <code>lock</code> cannot be renewed, and are held until they
+        are unlocked or until the much longer hold duration of the naming
+        server has passed. Clients should prefer this method, and call
+        <code>renew</code> well within the duration given by the lease.
+
+        <p>
+        Apart from returning a lease, this method behaves exactly as
+        <code>lock</code>.
+
+        @param path The file or directory to be locked.
+        @param exclusive If <code>true</code>, the object is to be locked for
+                         exclusive access. Otherwise, it is to be locked for
+                         shared access.
+        @return The lease under which the lock is held.
+        @throws FileNotFoundException If the object specified by
+                                      <code>path</code> cannot be found.
+        @throws IllegalStateException Under the same conditions as for
+                                      <code>lock</code>.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public Lease lease(Path path, boolean exclusive)
+        throws RMIException, FileNotFoundException;
+
+    /** Locks a file for exclusive access, to be written through a chain of
+        its copies.
+
+        <p>
+        The lock is taken and leased exactly as by <code>lease</code> with
+        exclusive access. The client obtains the chain of copies with
+        <code>getWriteChain</code> and sends each write to the head of the
+        chain, which forwards it along the chain. All copies of the file thus
+        receive every write. The copies other than the head are nonetheless
+        not served until they are confirmed: once the lock is released, they
+        are compared with the head, and those that match it are used again
+        without being copied. Copies that missed a write, for example because
+        the client failed during the write, are brought up to date from the
+        head.
+
+        <p>
+        If the client calls <code>getStorage</code> while holding the lock, for
+        example because a write through the chain has failed, the first copy in
+        the chain that can be contacted becomes the only copy written, and the
+        write proceeds as under an ordinary exclusive lock.
+
+        @param file The file to be locked.
+        @return The lease under which the lock is held.
+        @throws FileNotFoundException If the file cannot be found or the path
+                                      refers to a directory.
+        @throws IllegalStateException Under the same conditions as for
+                                      <code>lock</code>.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public Lease chainLease(Path file)
+        throws RMIException, FileNotFoundException;
+
+    /** Renews a lease for its full duration, starting from the time of the
+        call.
+
+        @param lease The lease to be renewed.
+        @throws IllegalStateException If the lease has already expired or has
+                                      been released. The lock is then no
+                                      longer held by the caller.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public void renew(Lease lease) throws RMIException;
+
+    /** Releases the lock held under a lease.
+
+        <p>
+        Unlike <code>unlock</code>, this method does not require the locked
+        object to still exist.
+
+        @param lease The lease to be released.
+        @throws IllegalStateException If the lease has already expired or has
+                                      been released.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public void release(Lease lease) throws RMIException;
+
     /** Determines whether a path refers to a directory.
 
         <p>
@@ -158,6 +364,65 @@ public interface Service
     public String[] list(Path directory)
         throws RMIException, FileNotFoundException;
 
+    /** Lists the contents of a directory together with their attributes.
+
+        <p>
+        For every entry in the directory, this call returns its name, whether
+        it is a directory, its size, and its version, as <code>stat</code>
+        would. Listing a directory this way takes a single request, instead of
+        one request per entry to find the attributes of each.
+
+        <p>
+        The directory should be locked for shared access before this operation
+        is performed, because this operation reads the directory's child list.
+
+        @param directory The directory to be listed.
+        @return An array of the directory entries. The entries are not
+                guaranteed to be in any particular order.
+        @throws FileNotFoundException If the given path does not refer to a
+                                      directory.
+        @throws RMIException If the call cannot be completed due to a network
+                             error, or if the size of a file cannot be found
+                             from any of the storage servers hosting it.
+     */
+    public DirectoryEntry[] listWithAttributes(Path directory)
+        throws RMIException, FileNotFoundException;
+
+    /** Lists one page of the contents of a directory.
+
+        <p>
+        Entries are listed in ascending order of their names. The first page is
+        obtained by passing <code>null</code> as the cursor. Each page returns
+        the cursor to pass to obtain the following page, or <code>null</code>
+        after the last page. A cursor is not invalidated by changes to the
+        directory: listing continues after the last entry returned, whether or
+        not that entry still exists.
+
+        <p>
+        To obtain a consistent listing, the directory should be locked for
+        shared access for as long as its pages are being listed.
+
+        @param directory The directory to be listed.
+        @param cursor Cursor returned with the previous page, or
+                      <code>null</code> to list the first page.
+        @param limit Maximum number of entries on the page. The naming server
+                     may return fewer entries even if the listing has not
+                     ended.
+        @param attributes If <code>true</code>, the attributes of each entry
+                          are returned as by <code>listWithAttributes</code>.
+        @return The page of entries.
+        @throws FileNotFoundException If the given path does not refer to a
+                                      directory.
+        @throws IllegalArgumentException If <code>limit</code> is not positive.
+        @throws RMIException If the call cannot be completed due to a network
+                             error, or if attributes were requested and the size
+                             of a file cannot be found from any of the storage
+                             servers hosting it.
+     */
+    public ListingPage listPage(Path directory, String cursor, int limit,
+                                boolean attributes)
+        throws RMIException, FileNotFoundException;
+
     /** Creates the given file, if it does not exist.
 
         <p>
@@ -211,6 +476,32 @@ public interface Service
      */
     public boolean delete(Path path) throws RMIException, FileNotFoundException;
 
+    /** Returns the attributes of a file or directory.
+
+        <p>
+        This call returns, in a single request, whether the object is a
+        directory, the size of a file, stubs for the storage servers hosting
+        copies of a file, and a version number for the object. The naming
+        server keeps file sizes together with the tree, so the storage servers
+        need not be contacted by the client to find the size of a file. For a
+        file stored as erasure-coded shards, the attributes give the layout of
+        the shards instead of copies.
+
+        <p>
+        The object should be locked for shared access before this operation is
+        performed if the attributes are to stay valid while they are used.
+
+        @param path The object whose attributes are to be returned.
+        @return The attributes of the object.
+        @throws FileNotFoundException If the object specified by
+                                      <code>path</code> cannot be found.
+        @throws RMIException If the call cannot be completed due to a network
+                             error, or if none of the storage servers hosting
+                             the file can be contacted to find its size.
+     */
+    public FileStatus stat(Path path)
+        throws RMIException, FileNotFoundException;
+
     /** Returns a stub for the storage server hosting a file.
 
         <p>
@@ -218,14 +509,80 @@ public interface Service
         <code>size</code> after obtaining the storage server stub, it should
         lock the file for shared access before making this call. If it intends
         to perform calls to <code>write</code>, it should lock the file for
-        exclusive access.
+        exclusive access. A file stored as erasure-coded shards is first
+        decoded into a full copy. While the file is locked for shared access,
+        the copy is made on a server that hosts no shard, so that other users
+        can go on reading the shards.
 
         @param file Path to the file.
         @return A stub for communicating with the storage server.
         @throws FileNotFoundException If the file does not exist.
+        @throws IllegalStateException If the file is stored as erasure-coded
+                                      shards and cannot be decoded.
         @throws RMIException If the call cannot be completed due to a network
                              error.
      */
     public Storage getStorage(Path file)
         throws RMIException, FileNotFoundException;
+
+    /** Returns stubs for all the storage servers hosting up-to-date copies of
+        a file, in the order in which they should be read from.
+
+        <p>
+        The first server is the one <code>getStorage</code> would choose. A
+        client reading the file may fall back to the following servers when a
+        server cannot be contacted, or send the same read to a second server
+        when the first is slow to answer. The file should be locked for shared
+        access before this call. A file stored as erasure-coded shards is first
+        decoded into a full copy, as by <code>getStorage</code>. If it cannot
+        be decoded, no server is returned.
+
+        @param file Path to the file.
+        @return Stubs for the storage servers hosting the file, preferred server
+                first. The array is empty if every copy of the file has been
+                lost.
+        @throws FileNotFoundException If the file does not exist or the path
+                                      refers to a directory.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public Storage[] getReplicas(Path file)
+        throws RMIException, FileNotFoundException;
+
+    /** Returns the chain of storage servers through which a file is written.
+
+        <p>
+        The file must be locked with <code>chainLease</code>. Writes are sent to
+        the first server in the chain with <code>Storage.writeChain</code>,
+        passing the rest of the chain.
+
+        @param file Path to the file.
+        @return Stubs for the storage servers hosting the copies written
+                through the chain, head of the chain first.
+        @throws FileNotFoundException If the file does not exist or the path
+                                      refers to a directory.
+        @throws IllegalStateException If the file is not locked with
+                                      <code>chainLease</code>.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public Storage[] getWriteChain(Path file)
+        throws RMIException, FileNotFoundException;
+
+    /** Returns the number of files and bytes hosted by each storage server.
+
+        <p>
+        The naming server does not see writes to files, so the byte counts are
+        based on the file sizes it last obtained, for example through
+        <code>stat</code>. Files whose size the naming server has never
+        obtained, such as files registered by a storage server or restored
+        from the journal and not read since, are not counted in the byte
+        counts; each entry reports how many there are, so that an unknown
+        size is not mistaken for an empty file.
+
+        @return One entry for each registered storage server.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public ServerUsage[] usage() throws RMIException;
 }
@@ -38,14 +38,31 @@
     <p>
     Commonly-accessed files are <em>replicated</em>: additional storage servers
     are chosen to host them, if they are available. When a replicated file is
-    accessed for writing, all copies of the file but one are
-    <em>invalidated</em> (deleted).
+    accessed for writing, all copies of the file but one become
+    <em>stale</em>. Once the write is complete, the stale copies are brought up
+    to date by transferring only the blocks that changed, or
+    <em>invalidated</em> (deleted) if that is not possible.
+
+    <p>
+    Storage servers send periodic <em>heartbeats</em> to the naming server. A
+    storage server that stops sending them is considered to have failed: it is
+    forgotten, and files that lost a copy are copied again from their remaining
+    copies, those with the fewest copies left first.
+
+    <p>
+    Files that are rarely read may be stored as <em>erasure-coded</em> shards
+    rather than full copies: the file is split into data shards, from which
+    parity shards are computed, each shard on a different storage server. Any
+    set of shards as large as the number of data shards is enough to read the
+    file, so clients reading a coded file reconstruct the shards that cannot be
+    read. A coded file is decoded back into full copies when it is written, when
+    it is read often again, or when it loses a shard.
 
     <p>
     The naming server provides two interfaces: a <em>service interface</em>
     through which clients can perform naming server operations and obtain stubs
     for storage servers, and a <em>registration interface</em>, through which
-    storage servers notify the naming server of their existence. Both interfaces
-    are RMI skeletons running at well-known ports.
+    storage servers notify the naming server of their existence and send
+    heartbeats. Both interfaces are RMI skeletons running at well-known ports.
  */
 package naming;
@@ -0,0 +1,337 @@
+/**
+ * Authors: Tanay Gavankar (tgavanka)
+ * 			Siddharth Soundararajan (ssoundar)
+ */
+
+package storage;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.zip.CRC32C;
+
+/**
+ * Index of the blocks of a local file, holding a CRC-32C checksum per block.
+ *
+ * <p>
+ * A file is divided into fixed-size blocks, the last one possibly shorter.
+ * The index is kept in a file of its own: a header holding a magic number,
+ * the block size, the length of the file and a dirty flag, followed by the
+ * checksum of every block in order. Reads translate the byte range requested
+ * to the blocks holding it and check those blocks against the index, so that
+ * data corrupted on disk is detected; writes update the checksums of the
+ * blocks they change.
+ *
+ * <p>
+ * The dirty flag is set before the file is changed, and cleared once the
+ * checksums of the change are saved. An index whose flag is set, because the
+ * server stopped between writing the file and its index, or whose header
+ * does not match its file, because the file was changed outside the storage
+ * server, is rebuilt from the contents of the file.
+ *
+ * <p>
+ * Reads may check blocks concurrently; updates must not run concurrently
+ * with any other use of the index.
+ */
+class BlockIndex implements Closeable {
+
+    private static final int MAGIC = 0x424c4b43;
+    private static final int HEADER_SIZE = 20;
+    private static final int DIRTY_OFFSET = 16;
+
+    private final int blockSize;
+    private final FileChannel data;
+    private final FileChannel index;
+
+    private long length;
+    private int[] checksums;
+
+    private BlockIndex(int blockSize, FileChannel data, FileChannel index) {
+        this.blockSize = blockSize;
+        this.data = data;
+        this.index = index;
+    }
+
+    /**
+     * Opens the index of a file, building it if it is missing or does not
+     * match the file.
+     *
+     * @param file
+     *            Local file holding the index. Its parent directories are
+     *            created if needed.
+     * @param data
+     *            Channel to the file indexed, which remains open.
+     * @param blockSize
+     *            Size of the blocks.
+     * @throws IOException
+     *             If the index cannot be read or written.
+     */
+    static BlockIndex open(File file, FileChannel data, int blockSize)
+            throws IOException {
+        file.getParentFile().mkdirs();
+        FileChannel index = new RandomAccessFile(file, "rw").getChannel();
+        try {
+            BlockIndex blocks = new BlockIndex(blockSize, data, index);
+            if (!blocks.load()) {
+                blocks.rebuild();
+            }
+            return blocks;
+        } catch (IOException e) {
+            index.close();
+            throw e;
+        }
+    }
+
+    /** Returns the number of blocks of the file. */
+    int blocks() {
+        return checksums.length;
+    }
+
+    /**
+     * Reads a sequence of bytes from the file, checking the blocks holding
+     * them.
+     *
+     * @throws IOException
+     *             If the bytes cannot be read, or if a block holding them is
+     *             corrupt.
+     */
+    byte[] read(long offset, int count) throws IOException {
+        byte[] bytes = new byte[count];
+        readFully(data, ByteBuffer.wrap(bytes), offset);
+        if (count > 0) {
+            verify(offset, count, bytes);
+        }
+        return bytes;
+    }
+
+    /**
+     * Checks the blocks holding a sequence of bytes of the file.
+     *
+     * @throws IOException
+     *             If the blocks cannot be read, or if one of them is corrupt.
+     */
+    void verify(long offset, long count) throws IOException {
+        if (count > 0) {
+            verify(offset, count, null);
+        }
+    }
+
+    /**
+     * Checks every block of the file against its contents, held in a buffer
+     * from its start, such as a mapping of the file.
+     *
+     * @throws IOException
+     *             If the buffer does not hold the file, or if a block is
+     *             corrupt.
+     */
+    void verify(ByteBuffer contents) throws IOException {
+        if (contents.remaining() != length) {
+            throw new IOException("The file has changed size.");
+        }
+
+        CRC32C crc = new CRC32C();
+        for (int block = 0; block < checksums.length; block++) {
+            ByteBuffer piece = contents.duplicate();
+            piece.position(contents.position() + block * blockSize);
+            piece.limit(Math.min(piece.position() + blockSize,
+                    contents.limit()));
+            crc.reset();
+            crc.update(piece);
+            check(block, crc);
+        }
+    }
+
+    /**
+     * Marks the index as not matching its file until the next update is
+     * saved. Must be called before the file is changed.
+     *
+     * @throws IOException
+     *             If the index cannot be written.
+     */
+    void markDirty() throws IOException {
+        ByteBuffer flag = ByteBuffer.allocate(4);
+        flag.putInt(0, 1);
+        writeFully(index, flag, DIRTY_OFFSET);
+    }
+
+    /**
+     * Updates the checksums of the blocks changed by a write, or by a change
+     * of the length of the file, and saves them, clearing the dirty flag.
+     *
+     * @param offset
+     *            Offset into the file of the bytes written, or new length of
+     *            the file if it was only resized.
+     * @param bytes
+     *            Bytes written, now in the file. The array may be empty.
+     * @throws IOException
+     *             If the file cannot be read or the index written.
+     */
+    void update(long offset, byte[] bytes) throws IOException {
+        long oldLength = length;
+        int oldBlocks = checksums.length;
+        length = data.size();
+        checksums = Arrays.copyOf(checksums, count(length));
+
+        // Blocks from the old end of the file up to the write have changed,
+        // as has the last block if the file got shorter.
+        long from = Math.min(offset, oldLength);
+        long to = Math.max(offset + bytes.length, from);
+        int first = (int) (from / blockSize);
+        int last = (int) Math.min(checksums.length, (to + blockSize - 1)
+                / blockSize);
+
+        CRC32C crc = new CRC32C();
+        byte[] scratch = null;
+        for (int block = first; block < last; block++) {
+            scratch = checksum(block, offset, bytes, crc, scratch);
+            checksums[block] = (int) crc.getValue();
+        }
+
+        save(first, Math.max(first, last));
+        if (checksums.length < oldBlocks) {
+            index.truncate(HEADER_SIZE + 4L * checksums.length);
+        }
+    }
+
+    /** Closes the index. The channel to the file indexed is left open. */
+    @Override
+    public void close() throws IOException {
+        index.close();
+    }
+
+    // Checks the blocks overlapping a range of the file, using the bytes
+    // given for the range where available and reading the rest of each block
+    // from the file.
+    private void verify(long offset, long count, byte[] bytes)
+            throws IOException {
+        if (offset < 0 || offset + count > length) {
+            throw new IndexOutOfBoundsException();
+        }
+
+        CRC32C crc = new CRC32C();
+        byte[] scratch = null;
+        int last = (int) ((offset + count - 1) / blockSize);
+        for (int block = (int) (offset / blockSize); block <= last; block++) {
+            scratch = checksum(block, offset, bytes == null ? new byte[0]
+                    : bytes, crc, scratch);
+            check(block, crc);
+        }
+    }
+
+    // Computes the checksum of a block into crc. Bytes of the block between
+    // offset and offset + bytes.length are taken from bytes, the others are
+    // read from the file into scratch, which is allocated if null and
+    // returned for reuse.
+    private byte[] checksum(int block, long offset, byte[] bytes,
+            CRC32C crc, byte[] scratch) throws IOException {
+        long start = (long) block * blockSize;
+        long end = Math.min(start + blockSize, length);
+        long low = Math.max(start, Math.min(offset, end));
+        long high = Math.max(low, Math.min(offset + bytes.length, end));
+
+        crc.reset();
+        if (start < low || high < end) {
+            if (scratch == null) {
+                scratch = new byte[blockSize];
+            }
+        }
+        if (start < low) {
+            int n = (int) (low - start);
+            readFully(data, ByteBuffer.wrap(scratch, 0, n), start);
+            crc.update(scratch, 0, n);
+        }
+        if (low < high) {
+            crc.update(bytes, (int) (low - offset), (int) (high - low));
+        }
+        if (high < end) {
+            int n = (int) (end - high);
+            readFully(data, ByteBuffer.wrap(scratch, 0, n), high);
+            crc.update(scratch, 0, n);
+        }
+        return scratch;
+    }
+
+    private void check(int block, CRC32C crc) throws IOException {
+        if ((int) crc.getValue() != checksums[block]) {
+            throw new IOException("Block " + block + " is corrupt.");
+        }
+    }
+
+    // Reads the index, returning false if it does not match the file.
+    private boolean load() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        if (index.size() < HEADER_SIZE) {
+            return false;
+        }
+        readFully(index, header, 0);
+
+        length = data.size();
+        int count = count(length);
+        if (header.getInt(0) != MAGIC || header.getInt(4) != blockSize
+                || header.getLong(8) != length
+                || header.getInt(DIRTY_OFFSET) != 0
+                || index.size() != HEADER_SIZE + 4L * count) {
+            return false;
+        }
+
+        ByteBuffer entries = ByteBuffer.allocate(4 * count);
+        readFully(index, entries, HEADER_SIZE);
+        entries.flip();
+        checksums = new int[count];
+        entries.asIntBuffer().get(checksums);
+        return true;
+    }
+
+    // Computes the checksum of every block and rewrites the index.
+    private void rebuild() throws IOException {
+        length = data.size();
+        checksums = new int[count(length)];
+
+        CRC32C crc = new CRC32C();
+        byte[] scratch = new byte[blockSize];
+        for (int block = 0; block < checksums.length; block++) {
+            checksum(block, 0, new byte[0], crc, scratch);
+            checksums[block] = (int) crc.getValue();
+        }
+
+        save(0, checksums.length);
+        index.truncate(HEADER_SIZE + 4L * checksums.length);
+    }
+
+    // Writes the checksums of blocks first to last - 1, then the header,
+    // which clears the dirty flag.
+    private void save(int first, int last) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putInt(blockSize).putLong(length).putInt(0)
+                .flip();
+
+        ByteBuffer entries = ByteBuffer.allocate(4 * (last - first));
+        entries.asIntBuffer().put(checksums, first, last - first);
+
+        writeFully(index, entries, HEADER_SIZE + 4L * first);
+        writeFully(index, header, 0);
+    }
+
+    private int count(long length) {
+        return (int) ((length + blockSize - 1) / blockSize);
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer,
+            long position) throws IOException {
+        long start = position - buffer.position();
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, start + buffer.position()) < 0) {
+                throw new EOFException();
+            }
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer,
+            long position) throws IOException {
+        long start = position - buffer.position();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, start + buffer.position());
+        }
+    }
+}
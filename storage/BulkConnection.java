@@ -0,0 +1,150 @@
+/**
+ * Authors: Tanay Gavankar (tgavanka)
+ * 			Siddharth Soundararajan (ssoundar)
+ */
+
+package storage;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import common.*;
+
+/**
+ * Connection to the bulk data port of a storage server.
+ *
+ * <p>
+ * The bulk data port serves reads without RMI: the bytes of a file are sent
+ * from the file straight to the socket, and received straight into the
+ * buffer given by the caller, so that large reads are not copied through
+ * serialized arrays. A connection carries any number of reads, one at a time.
+ *
+ * <p>
+ * A request is the length of the path in UTF-8 as an <code>int</code>, the
+ * path, the offset as a <code>long</code> and the number of bytes as an
+ * <code>int</code>. The reply is a status byte, followed by the bytes
+ * requested if the status is <code>OK</code>, or by the length of a message
+ * in UTF-8 as an <code>int</code> and the message otherwise. After an error
+ * during a transfer, the server closes the connection.
+ */
+public class BulkConnection implements Closeable {
+
+    static final byte OK = 0;
+    static final byte NOT_FOUND = 1;
+    static final byte OUT_OF_BOUNDS = 2;
+    static final byte FAILED = 3;
+
+    // Longest path and error message accepted, in bytes.
+    static final int MAX_STRING = 64 * 1024;
+
+    private final SocketChannel channel;
+
+    /**
+     * Connects to the bulk data port of a storage server.
+     *
+     * @param address
+     *            Address of the port, as given by
+     *            <code>Storage.bulkAddress</code>.
+     * @throws IOException
+     *             If the connection cannot be made.
+     */
+    public BulkConnection(InetSocketAddress address) throws IOException {
+        channel = SocketChannel.open(address);
+        channel.socket().setTcpNoDelay(true);
+    }
+
+    /**
+     * Reads a sequence of bytes from a file into a buffer.
+     *
+     * @param file
+     *            Path to the file.
+     * @param offset
+     *            Offset into the file of the first byte to read.
+     * @param buffer
+     *            Buffer receiving the bytes. As many bytes are read as remain
+     *            in the buffer.
+     * @throws IndexOutOfBoundsException
+     *             If the sequence is outside the bounds of the file.
+     * @throws FileNotFoundException
+     *             If the file cannot be found or the path refers to a
+     *             directory.
+     * @throws IOException
+     *             If the read fails on the server, or if the connection
+     *             fails. The connection cannot be used after a failure of the
+     *             connection.
+     */
+    public void read(Path file, long offset, ByteBuffer buffer)
+            throws IOException {
+        byte[] name = file.toString().getBytes(StandardCharsets.UTF_8);
+        ByteBuffer request = ByteBuffer.allocate(name.length + 16);
+        request.putInt(name.length).put(name).putLong(offset)
+                .putInt(buffer.remaining()).flip();
+        writeFully(channel, request);
+
+        ByteBuffer status = ByteBuffer.allocate(1);
+        readFully(channel, status);
+
+        switch (status.get(0)) {
+        case OK:
+            readFully(channel, buffer);
+            return;
+        case NOT_FOUND:
+            throw new FileNotFoundException(readString(channel));
+        case OUT_OF_BOUNDS:
+            throw new IndexOutOfBoundsException(readString(channel));
+        default:
+            throw new IOException(readString(channel));
+        }
+    }
+
+    /** Closes the connection. */
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    static void readFully(SocketChannel channel, ByteBuffer buffer)
+            throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException("Bulk data connection closed");
+            }
+        }
+    }
+
+    static void writeFully(SocketChannel channel, ByteBuffer buffer)
+            throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    static String readString(SocketChannel channel) throws IOException {
+        ByteBuffer length = ByteBuffer.allocate(4);
+        readFully(channel, length);
+        int n = length.getInt(0);
+        if (n < 0 || n > MAX_STRING) {
+            throw new IOException("Malformed bulk data message");
+        }
+
+        ByteBuffer bytes = ByteBuffer.allocate(n);
+        readFully(channel, bytes);
+        return new String(bytes.array(), StandardCharsets.UTF_8);
+    }
+
+    static void writeString(SocketChannel channel, String string)
+            throws IOException {
+        byte[] bytes = String.valueOf(string).getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > MAX_STRING) {
+            bytes = Arrays.copyOf(bytes, MAX_STRING);
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(bytes.length + 4);
+        buffer.putInt(bytes.length).put(bytes).flip();
+        writeFully(channel, buffer);
+    }
+}
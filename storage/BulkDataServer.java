@@ -0,0 +1,198 @@
+/**
+ * Authors: Tanay Gavankar (tgavanka)
+ * 			Siddharth Soundararajan (ssoundar)
+ */
+
+package storage;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import common.*;
+
+/**
+ * Bulk data port of a storage server.
+ *
+ * <p>
+ * Accepts connections from <code>BulkConnection</code> and serves each of them
+ * with its own thread. Ranges of files are sent by the storage server with
+ * <code>FileChannel.transferTo</code>.
+ */
+class BulkDataServer {
+
+    private final StorageServer server;
+    private final ServerSocketChannel listener;
+    private final Set<SocketChannel> connections = new HashSet<SocketChannel>();
+    private boolean stopped = false;
+
+    /**
+     * Opens the port.
+     *
+     * @param port
+     *            Port to listen on, or zero if the system should decide.
+     * @throws IOException
+     *             If the port cannot be opened.
+     */
+    BulkDataServer(StorageServer server, int port) throws IOException {
+        this.server = server;
+        listener = ServerSocketChannel.open();
+        listener.bind(new InetSocketAddress(port));
+    }
+
+    /** Returns the port listened on. */
+    int port() {
+        return listener.socket().getLocalPort();
+    }
+
+    /** Starts accepting connections. */
+    void start() {
+        Thread acceptor = new AcceptThread();
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /** Closes the port and every connection. */
+    synchronized void stop() {
+        stopped = true;
+        close(listener);
+        for (SocketChannel connection : connections) {
+            close(connection);
+        }
+        connections.clear();
+    }
+
+    private class AcceptThread extends Thread {
+        public void run() {
+            while (true) {
+                SocketChannel connection;
+                try {
+                    connection = listener.accept();
+                } catch (IOException e) {
+                    // The port is closed when the server stops.
+                    return;
+                }
+
+                synchronized (BulkDataServer.this) {
+                    if (stopped) {
+                        close(connection);
+                        return;
+                    }
+                    connections.add(connection);
+                }
+
+                Thread handler = new ConnectionThread(connection);
+                handler.setDaemon(true);
+                handler.start();
+            }
+        }
+    }
+
+    // Serves the requests of one connection until the client closes it or a
+    // transfer fails.
+    private class ConnectionThread extends Thread {
+        private final SocketChannel connection;
+
+        ConnectionThread(SocketChannel connection) {
+            this.connection = connection;
+        }
+
+        public void run() {
+            try {
+                connection.socket().setTcpNoDelay(true);
+                ByteBuffer header = ByteBuffer.allocate(12);
+
+                while (true) {
+                    ByteBuffer length = ByteBuffer.allocate(4);
+                    if (!readRequest(length)) {
+                        return;
+                    }
+                    int n = length.getInt(0);
+                    if (n <= 0 || n > BulkConnection.MAX_STRING) {
+                        return;
+                    }
+
+                    ByteBuffer name = ByteBuffer.allocate(n);
+                    BulkConnection.readFully(connection, name);
+                    header.clear();
+                    BulkConnection.readFully(connection, header);
+
+                    serve(new String(name.array(), StandardCharsets.UTF_8),
+                            header.getLong(0), header.getInt(8));
+                }
+            } catch (IOException e) {
+                // The connection failed or was closed; drop it.
+            } finally {
+                synchronized (BulkDataServer.this) {
+                    connections.remove(connection);
+                }
+                close(connection);
+            }
+        }
+
+        // Reads the start of a request, returning false if the client closed
+        // the connection between requests.
+        private boolean readRequest(ByteBuffer buffer) throws IOException {
+            if (connection.read(buffer) < 0) {
+                return false;
+            }
+            BulkConnection.readFully(connection, buffer);
+            return true;
+        }
+
+        // Sends a range of a file, or the reason it cannot be sent. Failures
+        // during the transfer itself are thrown, closing the connection, since
+        // the client can no longer tell data from a status.
+        private void serve(String path, long offset, int length)
+                throws IOException {
+            byte status;
+            String message;
+
+            try {
+                server.transfer(new Path(path), offset, length, connection);
+                return;
+            } catch (FileNotFoundException e) {
+                status = BulkConnection.NOT_FOUND;
+                message = e.getMessage();
+            } catch (IndexOutOfBoundsException e) {
+                status = BulkConnection.OUT_OF_BOUNDS;
+                message = "The range is outside the bounds of the file.";
+            } catch (IllegalArgumentException e) {
+                status = BulkConnection.NOT_FOUND;
+                message = e.getMessage();
+            } catch (ConnectionFailed e) {
+                throw e;
+            } catch (IOException e) {
+                status = BulkConnection.FAILED;
+                message = e.getMessage();
+            }
+
+            BulkConnection.writeFully(connection,
+                    ByteBuffer.wrap(new byte[] { status }));
+            BulkConnection.writeString(connection, message);
+        }
+    }
+
+    /**
+     * Failure of a connection during a transfer, after the status has been
+     * sent, which leaves the connection unusable.
+     */
+    static class ConnectionFailed extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        ConnectionFailed(IOException cause) {
+            super(cause);
+        }
+    }
+
+    private static void close(Channel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Nothing to do
+        }
+    }
+}
@@ -0,0 +1,195 @@
+/**
+ * Authors: Tanay Gavankar (tgavanka)
+ * 			Siddharth Soundararajan (ssoundar)
+ */
+
+package storage;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+import common.*;
+
+/**
+ * Cache of open channels to the local files of a storage server.
+ *
+ * <p>
+ * Channels are kept open between requests, keyed by the path of their file,
+ * so that reads and writes do not open the file every time. Channels are used
+ * with positional reads and writes only, so that one channel can be shared by
+ * concurrent requests on the same file. When more channels are open than the
+ * capacity of the cache, the least recently used are closed; a channel still
+ * in use when it is evicted or invalidated is closed once its last user
+ * releases it.
+ *
+ * <p>
+ * Channels must be invalidated whenever their file is deleted or replaced,
+ * since a channel refers to the file that was open, not to its path.
+ *
+ * <p>
+ * Each entry may also hold the block index of its file, which is closed
+ * together with the channel.
+ */
+class ChannelCache {
+
+    /** Channel to a file, together with the number of requests using it. */
+    static class Entry {
+        final FileChannel channel;
+        final boolean writable;
+
+        // Block index of the file, opened when first needed. Guarded by the
+        // monitor of the entry.
+        BlockIndex index = null;
+
+        private int users = 0;
+        private boolean retired = false;
+
+        Entry(FileChannel channel, boolean writable) {
+            this.channel = channel;
+            this.writable = writable;
+        }
+    }
+
+    // Entries in order of last use, least recently used first.
+    private final LinkedHashMap<Path, Entry> entries =
+            new LinkedHashMap<Path, Entry>(16, 0.75f, true);
+    private int capacity;
+
+    /**
+     * Creates a cache.
+     *
+     * @param capacity
+     *            Largest number of channels kept open while unused.
+     * @throws IllegalArgumentException
+     *             If the capacity is negative.
+     */
+    ChannelCache(int capacity) {
+        setCapacity(capacity);
+    }
+
+    /**
+     * Changes the largest number of channels kept open, closing the least
+     * recently used channels beyond the new capacity.
+     */
+    synchronized void setCapacity(int capacity) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException(
+                    "The capacity must not be negative.");
+        }
+        this.capacity = capacity;
+        evict();
+    }
+
+    /** Returns the number of channels in the cache. */
+    synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Returns the cached channel to a file, marked as in use, or
+     * <code>null</code> if there is none. A channel opened only for reading is
+     * not returned for a write.
+     */
+    synchronized Entry acquire(Path file, boolean write) {
+        Entry entry = entries.get(file);
+        if (entry == null || write && !entry.writable) {
+            return null;
+        }
+        entry.users++;
+        return entry;
+    }
+
+    /**
+     * Adds a newly opened channel to the cache, and returns its entry marked
+     * as in use. If another request has cached a suitable channel to the same
+     * file meanwhile, that channel is returned instead and the new one is
+     * closed.
+     */
+    synchronized Entry add(Path file, FileChannel channel, boolean writable) {
+        Entry entry = entries.get(file);
+        if (entry != null && (entry.writable || !writable)) {
+            close(channel);
+        } else {
+            if (entry != null) {
+                retire(entries.remove(file));
+            }
+            entry = new Entry(channel, writable);
+            entries.put(file, entry);
+        }
+
+        entry.users++;
+        evict();
+        return entry;
+    }
+
+    /** Marks a channel as no longer in use by a request. */
+    synchronized void release(Entry entry) {
+        entry.users--;
+        if (entry.retired && entry.users == 0) {
+            close(entry);
+        }
+    }
+
+    /**
+     * Removes the channels to a file, or to every file under a directory,
+     * from the cache. They are closed once no longer in use.
+     */
+    synchronized void invalidate(Path path) {
+        Iterator<Map.Entry<Path, Entry>> iterator = entries.entrySet()
+                .iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Path, Entry> cached = iterator.next();
+            if (cached.getKey().isSubpath(path)) {
+                iterator.remove();
+                retire(cached.getValue());
+            }
+        }
+    }
+
+    /** Removes every channel from the cache. */
+    synchronized void clear() {
+        for (Entry entry : entries.values()) {
+            retire(entry);
+        }
+        entries.clear();
+    }
+
+    // Removes the least recently used channels beyond the capacity.
+    private void evict() {
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (entries.size() > capacity && iterator.hasNext()) {
+            Entry entry = iterator.next();
+            iterator.remove();
+            retire(entry);
+        }
+    }
+
+    private void retire(Entry entry) {
+        entry.retired = true;
+        if (entry.users == 0) {
+            close(entry);
+        }
+    }
+
+    private static void close(Entry entry) {
+        close(entry.channel);
+        synchronized (entry) {
+            if (entry.index != null) {
+                try {
+                    entry.index.close();
+                } catch (IOException e) {
+                    // Every update was written when it was made.
+                }
+            }
+        }
+    }
+
+    private static void close(FileChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Nothing was written through the channel that close could lose.
+        }
+    }
+}
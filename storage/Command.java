@@ -62,4 +62,79 @@ public interface Command
      */
     public boolean copy(Path file, Storage server)
         throws RMIException, FileNotFoundException, IOException;
+
+    /** Brings the copy of a file on this storage server up to date with the
+        copy on another storage server.
+
+        <p>
+        Only the blocks in which the two copies differ are downloaded, and the
+        local copy is then truncated or extended to the length of the remote
+        copy. The remote copy must not be modified during the call. The naming
+        server uses this method to bring copies that missed a write up to date
+        without copying the whole file again.
+
+        @param file Path to the file to be brought up to date. The file must
+                    exist on both storage servers.
+        @param server Storage server holding the up-to-date copy of the file.
+        @return <code>true</code> if the local copy is brought up to date;
+                <code>false</code> if it cannot be, in which case the caller
+                should discard it.
+        @throws FileNotFoundException If the file is not present on either
+                                      storage server, or the path refers to a
+                                      directory.
+        @throws IOException If an I/O exception occurs either on the remote or
+                            on this storage server.
+        @throws RMIException If the call cannot be completed due to a network
+                             error, whether between the caller and this storage
+                             server, or between the two storage servers.
+     */
+    public boolean synchronize(Path file, Storage server)
+        throws RMIException, FileNotFoundException, IOException;
+
+    /** Splits the copy of a file on this storage server into erasure-coded
+        shards, and writes the shards to the storage servers given in the
+        layout.
+
+        <p>
+        The local copy is left in place. Each shard is written to its server
+        under the path of the file, which must exist and be empty on every
+        shard server, and must not be modified during the call. The naming
+        server uses this method to convert rarely read files into a form that
+        takes less space than full copies.
+
+        @param file Path to the file to be encoded.
+        @param layout Layout of the shards. The length in the layout must be
+                      the length of the local copy, and every shard server
+                      must be given.
+        @return <code>true</code> if every shard is written.
+        @throws FileNotFoundException If the file is not present on this
+                                      storage server or on a shard server, or
+                                      the path refers to a directory.
+        @throws IOException If an I/O exception occurs on this or on a shard
+                            server.
+        @throws RMIException If the call cannot be completed due to a network
+                             error, whether between the caller and this storage
+                             server, or between this and a shard server.
+     */
+    public boolean encode(Path file, ErasureLayout layout)
+        throws RMIException, FileNotFoundException, IOException;
+
+    /** Rebuilds a full copy of an erasure-coded file on this storage server
+        from its shards.
+
+        <p>
+        Missing or unreadable shards are reconstructed from the others. Any
+        existing file at the path on this server, including a shard of the
+        file, is replaced only once the full copy is complete.
+
+        @param file Path to the file to be decoded.
+        @param layout Layout of the shards of the file.
+        @return <code>true</code> if the full copy is written.
+        @throws IOException If too few shards can be read, or if an I/O
+                            exception occurs on this storage server.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public boolean decode(Path file, ErasureLayout layout)
+        throws RMIException, IOException;
 }
@@ -0,0 +1,46 @@
+/**
+ * Authors: Tanay Gavankar (tgavanka)
+ * 			Siddharth Soundararajan (ssoundar)
+ */
+
+package storage;
+
+/**
+ * Totals of the file copies completed by a storage server, as returned by
+ * <code>StorageServer.copyStatistics</code>.
+ */
+public class CopyStatistics {
+
+    private final long copies;
+    private final long bytes;
+    private final long time;
+
+    CopyStatistics(long copies, long bytes, long time) {
+        this.copies = copies;
+        this.bytes = bytes;
+        this.time = time;
+    }
+
+    /** Returns the number of files copied from other storage servers. */
+    public long copies() {
+        return copies;
+    }
+
+    /** Returns the number of bytes copied from other storage servers. */
+    public long bytes() {
+        return bytes;
+    }
+
+    /** Returns the total time spent copying, in milliseconds. */
+    public long time() {
+        return time;
+    }
+
+    /**
+     * Returns the average copy throughput, in bytes per second, or zero if
+     * nothing has been copied.
+     */
+    public long throughput() {
+        return time == 0 ? 0 : bytes * 1000 / time;
+    }
+}
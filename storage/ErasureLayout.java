@@ -0,0 +1,206 @@
+/**
+ * Authors: Tanay Gavankar (tgavanka)
+ * 			Siddharth Soundararajan (ssoundar)
+ */
+
+package storage;
+
+import java.io.*;
+
+import common.*;
+import rmi.RMIException;
+
+/**
+ * Layout of an erasure-coded file across storage servers.
+ *
+ * <p>
+ * An erasure-coded file of length <code>n</code> with <code>k</code> data
+ * shards and <code>m</code> parity shards is cut into <code>k</code>
+ * contiguous pieces of <code>shardSize() = ceil(n / k)</code> bytes, the last
+ * one padded with zeros. Each piece is stored as a data shard, and
+ * <code>m</code> parity shards of the same size are computed from them with
+ * <code>ReedSolomon</code>. Every shard is stored on a different storage
+ * server, under the path of the file. Any <code>k</code> of the shards are
+ * enough to read the whole file.
+ */
+public class ErasureLayout implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int dataShards;
+    private final int parityShards;
+    private final long length;
+    private final Storage[] shards;
+
+    /**
+     * Creates a layout.
+     *
+     * @param dataShards
+     *            Number of data shards.
+     * @param parityShards
+     *            Number of parity shards.
+     * @param length
+     *            Length of the file, in bytes.
+     * @param shards
+     *            Storage servers hosting the data shards, in order, followed
+     *            by those hosting the parity shards. Shards that have been
+     *            lost are <code>null</code>.
+     * @throws IllegalArgumentException
+     *             If the shard counts are not valid, if the length is
+     *             negative, or if the number of servers given does not match
+     *             the number of shards.
+     */
+    public ErasureLayout(int dataShards, int parityShards, long length,
+            Storage[] shards) {
+        if (dataShards <= 0 || parityShards <= 0 || length < 0
+                || shards.length != dataShards + parityShards) {
+            throw new IllegalArgumentException("The layout is not valid.");
+        }
+
+        this.dataShards = dataShards;
+        this.parityShards = parityShards;
+        this.length = length;
+        this.shards = shards.clone();
+    }
+
+    /** Returns the number of data shards. */
+    public int dataShards() {
+        return dataShards;
+    }
+
+    /** Returns the number of parity shards. */
+    public int parityShards() {
+        return parityShards;
+    }
+
+    /** Returns the length of the file, in bytes. */
+    public long length() {
+        return length;
+    }
+
+    /** Returns the length of every shard, in bytes. */
+    public long shardSize() {
+        return (length + dataShards - 1) / dataShards;
+    }
+
+    /**
+     * Returns the storage servers hosting the shards, data shards first.
+     * Shards that have been lost are <code>null</code>.
+     */
+    public Storage[] shards() {
+        return shards.clone();
+    }
+
+    /**
+     * Reads a sequence of bytes from the file.
+     *
+     * <p>
+     * The bytes are read from the data shards holding them. A data shard that
+     * cannot be read is reconstructed from other shards.
+     *
+     * @param file
+     *            Path to the file.
+     * @param offset
+     *            Offset into the file of the first byte to read.
+     * @param count
+     *            Number of bytes to read.
+     * @return The bytes read.
+     * @throws IndexOutOfBoundsException
+     *             If the sequence is outside the bounds of the file.
+     * @throws IOException
+     *             If too few shards can be read to reconstruct the bytes.
+     */
+    public byte[] read(Path file, long offset, int count) throws IOException {
+        if (offset < 0 || count < 0 || offset + count > length) {
+            throw new IndexOutOfBoundsException();
+        }
+
+        byte[] result = new byte[count];
+        long shardSize = shardSize();
+        int done = 0;
+
+        while (done < count) {
+            long position = offset + done;
+            int index = (int) (position / shardSize);
+            long within = position % shardSize;
+            int n = (int) Math.min(count - done, shardSize - within);
+
+            byte[] piece = readShard(file, index, within, n);
+            System.arraycopy(piece, 0, result, done, n);
+            done += n;
+        }
+
+        return result;
+    }
+
+    /**
+     * Reads a sequence of bytes from one shard.
+     *
+     * <p>
+     * If the shard cannot be read, its bytes are reconstructed from other
+     * shards.
+     *
+     * @param file
+     *            Path to the file.
+     * @param index
+     *            Index of the shard, data shards first.
+     * @param offset
+     *            Offset into the shard of the first byte to read.
+     * @param count
+     *            Number of bytes to read.
+     * @return The bytes read.
+     * @throws IOException
+     *             If too few shards can be read to reconstruct the bytes.
+     */
+    public byte[] readShard(Path file, int index, long offset, int count)
+            throws IOException {
+        Exception failure = null;
+
+        if (shards[index] != null) {
+            try {
+                return shards[index].read(file, offset, count);
+            } catch (RMIException e) {
+                failure = e;
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+
+        // Read the same range from other shards until there are enough of
+        // them to reconstruct this one.
+        byte[][] pieces = new byte[shards.length][];
+        boolean[] present = new boolean[shards.length];
+        int found = 0;
+
+        for (int i = 0; i < shards.length && found < dataShards; i++) {
+            if (i == index || shards[i] == null) {
+                continue;
+            }
+
+            try {
+                pieces[i] = shards[i].read(file, offset, count);
+                present[i] = true;
+                found++;
+            } catch (RMIException e) {
+                failure = e;
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+
+        if (found < dataShards) {
+            throw new IOException("Too few shards of " + file
+                    + " can be read", failure);
+        }
+
+        for (int i = 0; i < pieces.length; i++) {
+            if (pieces[i] == null) {
+                pieces[i] = new byte[count];
+            }
+        }
+
+        new ReedSolomon(dataShards, parityShards).reconstruct(pieces,
+                present, 0, count);
+        return pieces[index];
+    }
+}
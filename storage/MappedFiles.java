@@ -0,0 +1,266 @@
+/**
+ * Authors: Tanay Gavankar (tgavanka)
+ * 			Siddharth Soundararajan (ssoundar)
+ */
+
+package storage;
+
+import java.io.*;
+import java.lang.reflect.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+import common.*;
+
+/**
+ * Memory mappings of the hot small files of a storage server.
+ *
+ * <p>
+ * A file no larger than the largest size mapped is mapped once it has been
+ * read <code>MAP_AFTER_READS</code> times, and its reads are then served from
+ * the mapping. The total size of the mappings is bounded by a budget: the
+ * least recently read files are unmapped to make room for new ones. A mapping
+ * still in use when it is evicted or invalidated is unmapped once its last
+ * user releases it, since reading an unmapped buffer crashes the virtual
+ * machine.
+ *
+ * <p>
+ * Mappings must be invalidated whenever their file is written, truncated,
+ * deleted or replaced.
+ */
+class MappedFiles {
+
+    /** Mapping of a file, together with the number of requests using it. */
+    static class Entry {
+        final MappedByteBuffer buffer;
+
+        private int users = 0;
+        private boolean retired = false;
+
+        Entry(MappedByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+    }
+
+    // Number of reads of a file after which it is mapped.
+    static final int MAP_AFTER_READS = 2;
+
+    // Largest number of files whose reads are counted while not mapped.
+    private static final int MAX_COUNTED = 4096;
+
+    // Entries in order of last use, least recently used first.
+    private final LinkedHashMap<Path, Entry> entries =
+            new LinkedHashMap<Path, Entry>(16, 0.75f, true);
+
+    // Reads of files not mapped, least recently read first.
+    private final LinkedHashMap<Path, Integer> reads =
+            new LinkedHashMap<Path, Integer>(16, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(
+                        Map.Entry<Path, Integer> eldest) {
+                    return size() > MAX_COUNTED;
+                }
+            };
+
+    private long budget = 0;
+    private long maxFileSize = 0;
+    private long mappedBytes = 0;
+
+    /**
+     * Sets the total size of the mappings and the largest file mapped,
+     * unmapping the least recently read files beyond the new budget. A budget
+     * of zero disables mapping.
+     *
+     * @throws IllegalArgumentException
+     *             If either size is negative.
+     */
+    synchronized void setLimits(long budget, long maxFileSize) {
+        if (budget < 0 || maxFileSize < 0) {
+            throw new IllegalArgumentException(
+                    "The sizes must not be negative.");
+        }
+        this.budget = budget;
+        this.maxFileSize = maxFileSize;
+        evict();
+    }
+
+    /** Returns the number of files mapped. */
+    synchronized int size() {
+        return entries.size();
+    }
+
+    /** Returns the total size of the files mapped, in bytes. */
+    synchronized long mappedBytes() {
+        return mappedBytes;
+    }
+
+    /**
+     * Returns the mapping of a file, marked as in use, or <code>null</code> if
+     * the file is not mapped. Reads of files not mapped are counted.
+     */
+    synchronized Entry acquire(Path file) {
+        Entry entry = entries.get(file);
+        if (entry == null) {
+            if (budget > 0) {
+                Integer count = reads.get(file);
+                reads.put(file, count == null ? 1 : count + 1);
+            }
+            return null;
+        }
+        entry.users++;
+        return entry;
+    }
+
+    /**
+     * Maps a file if it has been read often enough and is small enough, and
+     * returns its mapping marked as in use, or <code>null</code> if the file
+     * is not to be mapped. Called after <code>acquire</code> returned
+     * <code>null</code> for the same read. If a block index is given, the
+     * whole mapping is checked against it before it is used, so that reads
+     * served from the mapping need not be checked.
+     *
+     * @throws IOException
+     *             If the file cannot be mapped, or if it is corrupt.
+     */
+    Entry map(Path file, FileChannel channel, BlockIndex blocks)
+            throws IOException {
+        long size = channel.size();
+
+        synchronized (this) {
+            Integer count = reads.get(file);
+            if (count == null || count < MAP_AFTER_READS || size == 0
+                    || size > maxFileSize || size > budget) {
+                return null;
+            }
+        }
+
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY,
+                0, size);
+        if (blocks != null) {
+            try {
+                blocks.verify(buffer);
+            } catch (IOException e) {
+                unmap(buffer);
+                throw e;
+            }
+        }
+
+        synchronized (this) {
+            // Another read may have mapped the file meanwhile, or the limits
+            // may have changed.
+            Entry entry = entries.get(file);
+            if (entry != null || size > maxFileSize || size > budget) {
+                unmap(buffer);
+            } else {
+                reads.remove(file);
+                entry = new Entry(buffer);
+                entries.put(file, entry);
+                mappedBytes += size;
+                evict();
+            }
+
+            if (entry == null || entry.retired) {
+                return null;
+            }
+            entry.users++;
+            return entry;
+        }
+    }
+
+    /** Marks a mapping as no longer in use by a request. */
+    synchronized void release(Entry entry) {
+        entry.users--;
+        if (entry.retired && entry.users == 0) {
+            unmap(entry.buffer);
+        }
+    }
+
+    /**
+     * Unmaps a file, or every file under a directory, and forgets their
+     * reads. Mappings in use are unmapped once released.
+     */
+    synchronized void invalidate(Path path) {
+        Iterator<Map.Entry<Path, Entry>> iterator = entries.entrySet()
+                .iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Path, Entry> mapped = iterator.next();
+            if (mapped.getKey().isSubpath(path)) {
+                iterator.remove();
+                retire(mapped.getValue());
+            }
+        }
+
+        Iterator<Path> counted = reads.keySet().iterator();
+        while (counted.hasNext()) {
+            if (counted.next().isSubpath(path)) {
+                counted.remove();
+            }
+        }
+    }
+
+    /** Unmaps every file. */
+    synchronized void clear() {
+        for (Entry entry : entries.values()) {
+            retire(entry);
+        }
+        entries.clear();
+        reads.clear();
+    }
+
+    // Unmaps the least recently read files beyond the budget.
+    private void evict() {
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (mappedBytes > budget && iterator.hasNext()) {
+            Entry entry = iterator.next();
+            iterator.remove();
+            retire(entry);
+        }
+    }
+
+    private void retire(Entry entry) {
+        entry.retired = true;
+        mappedBytes -= entry.buffer.capacity();
+        if (entry.users == 0) {
+            unmap(entry.buffer);
+        }
+    }
+
+    // The JDK unmaps a buffer only when it is garbage collected, and has no
+    // public method to unmap it earlier. Where the cleaner of sun.misc.Unsafe
+    // is available, buffers are unmapped at once; otherwise they are left to
+    // the garbage collector.
+    private static final Object UNSAFE;
+    private static final Method INVOKE_CLEANER;
+
+    static {
+        Object unsafe = null;
+        Method invokeCleaner = null;
+        try {
+            Class<?> type = Class.forName("sun.misc.Unsafe");
+            Field field = type.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            unsafe = field.get(null);
+            invokeCleaner = type.getMethod("invokeCleaner", ByteBuffer.class);
+        } catch (Exception e) {
+            unsafe = null;
+            invokeCleaner = null;
+        }
+        UNSAFE = unsafe;
+        INVOKE_CLEANER = invokeCleaner;
+    }
+
+    private static void unmap(MappedByteBuffer buffer) {
+        if (INVOKE_CLEANER == null) {
+            return;
+        }
+        try {
+            INVOKE_CLEANER.invoke(UNSAFE, buffer);
+        } catch (Exception e) {
+            // Left to the garbage collector
+        }
+    }
+}
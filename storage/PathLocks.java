@@ -0,0 +1,74 @@
+/**
+ * Authors: Tanay Gavankar (tgavanka)
+ * 			Siddharth Soundararajan (ssoundar)
+ */
+
+package storage;
+
+import java.util.concurrent.locks.*;
+
+import common.*;
+
+/**
+ * Locks guarding the local files of a storage server.
+ *
+ * <p>
+ * Requests that access the contents of a file lock the file, for shared
+ * access if they only read it and for exclusive access if they modify it.
+ * Files are locked through a fixed number of striped read-write locks, chosen
+ * by the hash of the path, so that requests on different files rarely contend
+ * and the number of locks does not grow with the number of files.
+ *
+ * <p>
+ * Requests that change the directory structure, creating or deleting files
+ * and pruning empty directories, lock the structure for exclusive access;
+ * requests that access file contents lock it for shared access first. The
+ * structure lock is always taken before a file lock, and a thread holding the
+ * structure lock for shared access must not request it for exclusive access.
+ */
+class PathLocks {
+
+    private static final int STRIPES = 64;
+
+    private final ReentrantReadWriteLock structure =
+            new ReentrantReadWriteLock();
+    private final ReentrantReadWriteLock[] stripes =
+            new ReentrantReadWriteLock[STRIPES];
+
+    PathLocks() {
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new ReentrantReadWriteLock();
+        }
+    }
+
+    /** Locks a file, and the directory structure for shared access. */
+    void lockFile(Path file, boolean exclusive) {
+        Lock lock = lock(stripe(file), exclusive);
+        structure.readLock().lock();
+        lock.lock();
+    }
+
+    void unlockFile(Path file, boolean exclusive) {
+        lock(stripe(file), exclusive).unlock();
+        structure.readLock().unlock();
+    }
+
+    /** Locks the directory structure for exclusive access. */
+    void lockStructure() {
+        structure.writeLock().lock();
+    }
+
+    void unlockStructure() {
+        structure.writeLock().unlock();
+    }
+
+    private ReentrantReadWriteLock stripe(Path file) {
+        int hash = file.hashCode();
+        hash ^= hash >>> 16;
+        return stripes[(hash & 0x7fffffff) % stripes.length];
+    }
+
+    private static Lock lock(ReentrantReadWriteLock lock, boolean exclusive) {
+        return exclusive ? lock.writeLock() : lock.readLock();
+    }
+}
@@ -0,0 +1,270 @@
+/**
+ * Authors: Tanay Gavankar (tgavanka)
+ * 			Siddharth Soundararajan (ssoundar)
+ */
+
+package storage;
+
+/**
+ * Systematic Reed-Solomon code over GF(2^8).
+ *
+ * <p>
+ * A code with <code>k</code> data shards and <code>m</code> parity shards
+ * computes the parity shards from the data shards so that the contents of any
+ * <code>m</code> missing shards can be reconstructed from the remaining
+ * <code>k</code>. Shards are byte arrays of equal length; byte <code>i</code>
+ * of each parity shard depends only on byte <code>i</code> of each data shard.
+ *
+ * <p>
+ * The parity shards are computed with a Cauchy matrix, every square
+ * submatrix of which is invertible, so that any <code>k</code> shards suffice
+ * for reconstruction.
+ */
+public class ReedSolomon {
+
+    // Exponent and logarithm tables of GF(2^8) with generator 2, modulo the
+    // polynomial x^8 + x^4 + x^3 + x^2 + 1. The exponent table is doubled so
+    // that sums of two logarithms need not be reduced.
+    private static final int[] EXP = new int[510];
+    private static final int[] LOG = new int[256];
+
+    // Full multiplication table, indexed by both factors.
+    private static final byte[][] MUL = new byte[256][256];
+
+    static {
+        int x = 1;
+        for (int i = 0; i < 255; i++) {
+            EXP[i] = x;
+            LOG[x] = i;
+            x <<= 1;
+            if ((x & 0x100) != 0) {
+                x ^= 0x11d;
+            }
+        }
+        for (int i = 255; i < EXP.length; i++) {
+            EXP[i] = EXP[i - 255];
+        }
+
+        for (int a = 1; a < 256; a++) {
+            for (int b = 1; b < 256; b++) {
+                MUL[a][b] = (byte) EXP[LOG[a] + LOG[b]];
+            }
+        }
+    }
+
+    private final int dataShards;
+    private final int parityShards;
+
+    // Rows of the generator matrix: the identity for the data shards,
+    // followed by the Cauchy matrix for the parity shards.
+    private final int[][] generator;
+
+    /**
+     * Creates a code.
+     *
+     * @param dataShards
+     *            Number of data shards.
+     * @param parityShards
+     *            Number of parity shards.
+     * @throws IllegalArgumentException
+     *             If either number is not positive, or if there are more than
+     *             256 shards in total.
+     */
+    public ReedSolomon(int dataShards, int parityShards) {
+        if (dataShards <= 0 || parityShards <= 0
+                || dataShards + parityShards > 256) {
+            throw new IllegalArgumentException(
+                    "The shard counts are not valid.");
+        }
+
+        this.dataShards = dataShards;
+        this.parityShards = parityShards;
+
+        generator = new int[dataShards + parityShards][dataShards];
+        for (int i = 0; i < dataShards; i++) {
+            generator[i][i] = 1;
+        }
+        for (int i = 0; i < parityShards; i++) {
+            for (int j = 0; j < dataShards; j++) {
+                generator[dataShards + i][j] = inverse((dataShards + i) ^ j);
+            }
+        }
+    }
+
+    /** Returns the number of data shards. */
+    public int dataShards() {
+        return dataShards;
+    }
+
+    /** Returns the number of parity shards. */
+    public int parityShards() {
+        return parityShards;
+    }
+
+    /**
+     * Computes the parity shards from the data shards.
+     *
+     * @param shards
+     *            The data shards, followed by the parity shards, which are
+     *            overwritten.
+     * @param offset
+     *            Offset in every shard of the first byte to encode.
+     * @param count
+     *            Number of bytes of every shard to encode.
+     */
+    public void encode(byte[][] shards, int offset, int count) {
+        checkShards(shards);
+        for (int i = 0; i < parityShards; i++) {
+            combine(generator[dataShards + i], shards, shards[dataShards + i],
+                    offset, count);
+        }
+    }
+
+    /**
+     * Reconstructs missing shards from the shards present.
+     *
+     * @param shards
+     *            The data shards, followed by the parity shards. Missing
+     *            shards must be allocated by the caller, and are overwritten.
+     * @param present
+     *            Which of the shards are present.
+     * @param offset
+     *            Offset in every shard of the first byte to reconstruct.
+     * @param count
+     *            Number of bytes of every shard to reconstruct.
+     * @throws IllegalArgumentException
+     *             If fewer than <code>dataShards</code> shards are present.
+     */
+    public void reconstruct(byte[][] shards, boolean[] present, int offset,
+            int count) {
+        checkShards(shards);
+        if (present.length != shards.length) {
+            throw new IllegalArgumentException(
+                    "Presence must be given for every shard.");
+        }
+
+        // Express the data shards in terms of the first dataShards shards
+        // present, by inverting the rows of the generator matrix giving
+        // those shards.
+        int[] rows = new int[dataShards];
+        int found = 0;
+        for (int i = 0; i < shards.length && found < dataShards; i++) {
+            if (present[i]) {
+                rows[found++] = i;
+            }
+        }
+        if (found < dataShards) {
+            throw new IllegalArgumentException(
+                    "Too few shards are present to reconstruct the others.");
+        }
+
+        boolean dataMissing = false;
+        for (int i = 0; i < dataShards; i++) {
+            dataMissing |= !present[i];
+        }
+
+        if (dataMissing) {
+            int[][] matrix = new int[dataShards][];
+            byte[][] inputs = new byte[dataShards][];
+            for (int i = 0; i < dataShards; i++) {
+                matrix[i] = generator[rows[i]].clone();
+                inputs[i] = shards[rows[i]];
+            }
+            int[][] decoder = invert(matrix);
+
+            for (int i = 0; i < dataShards; i++) {
+                if (!present[i]) {
+                    combine(decoder[i], inputs, shards[i], offset, count);
+                }
+            }
+        }
+
+        for (int i = 0; i < parityShards; i++) {
+            if (!present[dataShards + i]) {
+                combine(generator[dataShards + i], shards,
+                        shards[dataShards + i], offset, count);
+            }
+        }
+    }
+
+    private void checkShards(byte[][] shards) {
+        if (shards.length != dataShards + parityShards) {
+            throw new IllegalArgumentException(
+                    "Every shard must be given, missing or not.");
+        }
+    }
+
+    // Sets output to the combination of the first coefficients.length inputs
+    // with the given coefficients.
+    private static void combine(int[] coefficients, byte[][] inputs,
+            byte[] output, int offset, int count) {
+        byte[] row = MUL[coefficients[0]];
+        byte[] input = inputs[0];
+        for (int b = offset; b < offset + count; b++) {
+            output[b] = row[input[b] & 0xff];
+        }
+
+        for (int i = 1; i < coefficients.length; i++) {
+            row = MUL[coefficients[i]];
+            input = inputs[i];
+            for (int b = offset; b < offset + count; b++) {
+                output[b] ^= row[input[b] & 0xff];
+            }
+        }
+    }
+
+    // Inverts a square matrix over GF(2^8) by Gauss-Jordan elimination. The
+    // matrix is destroyed.
+    private static int[][] invert(int[][] matrix) {
+        int n = matrix.length;
+        int[][] result = new int[n][n];
+        for (int i = 0; i < n; i++) {
+            result[i][i] = 1;
+        }
+
+        for (int column = 0; column < n; column++) {
+            int pivot = column;
+            while (matrix[pivot][column] == 0) {
+                pivot++;
+                if (pivot == n) {
+                    throw new IllegalStateException("Singular matrix");
+                }
+            }
+            swap(matrix, column, pivot);
+            swap(result, column, pivot);
+
+            int scale = inverse(matrix[column][column]);
+            for (int j = 0; j < n; j++) {
+                matrix[column][j] = multiply(matrix[column][j], scale);
+                result[column][j] = multiply(result[column][j], scale);
+            }
+
+            for (int i = 0; i < n; i++) {
+                int factor = matrix[i][column];
+                if (i == column || factor == 0) {
+                    continue;
+                }
+                for (int j = 0; j < n; j++) {
+                    matrix[i][j] ^= multiply(factor, matrix[column][j]);
+                    result[i][j] ^= multiply(factor, result[column][j]);
+                }
+            }
+        }
+
+        return result;
+    }
+
+    private static void swap(int[][] matrix, int i, int j) {
+        int[] row = matrix[i];
+        matrix[i] = matrix[j];
+        matrix[j] = row;
+    }
+
+    private static int multiply(int a, int b) {
+        return MUL[a][b] & 0xff;
+    }
+
+    private static int inverse(int a) {
+        return EXP[255 - LOG[a]];
+    }
+}
@@ -1,6 +1,7 @@
 package storage;
 
 import java.io.*;
+import java.net.*;
 
 import common.*;
 import rmi.RMIException;
@@ -60,4 +61,72 @@ public interface Storage
      */
     public void write(Path file, long offset, byte[] data)
         throws RMIException, FileNotFoundException, IOException;
+
+    /** Computes digests of consecutive blocks of a file.
+
+        <p>
+        Storage servers compare the digests of two copies of a file to find
+        the blocks in which the copies differ, so that only those blocks need
+        to be transferred when a copy is brought up to date. Blocks with equal
+        digests are taken to be identical, so the digest is a cryptographic
+        hash, whose collisions can be neglected.
+
+        @param file Path to the file.
+        @param block_size Size of each block, in bytes. The last block of the
+                          file may be shorter.
+        @return An array holding the SHA-256 digest of each block of the file,
+                in order. The array is empty if the file is empty.
+        @throws IllegalArgumentException If <code>block_size</code> is not a
+                                         multiple of the size of the blocks in
+                                         which the server checksums its files,
+                                         or is larger than 64 such blocks.
+        @throws FileNotFoundException If the file cannot be found or the path
+                                      refers to a directory.
+        @throws IOException If the file read cannot be completed on the server.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public byte[][] checksums(Path file, int block_size)
+        throws RMIException, FileNotFoundException, IOException;
+
+    /** Writes bytes to a file on this server and on a chain of other servers.
+
+        <p>
+        The write is forwarded to the first server in the chain, together with
+        the rest of the chain, while it is applied locally. The call returns
+        once the write has been applied on this server and acknowledged by
+        every server down the chain, so a single call keeps all the copies of
+        the file up to date.
+
+        @param file Path to the file.
+        @param offset Offset into the file where data is to be written.
+        @param data Array of bytes to be written.
+        @param chain Storage servers to which the write is to be forwarded, in
+                     order. The array may be empty.
+        @throws IndexOutOfBoundsException If <code>offset</code> is negative.
+        @throws FileNotFoundException If the file cannot be found or the path
+                                      refers to a directory, on this server or
+                                      further down the chain.
+        @throws IOException If the file write cannot be completed on this
+                            server or further down the chain.
+        @throws RMIException If the call cannot be completed due to a network
+                             error, whether between the caller and this server
+                             or further down the chain.
+     */
+    public void writeChain(Path file, long offset, byte[] data, Storage[] chain)
+        throws RMIException, FileNotFoundException, IOException;
+
+    /** Returns the address of the bulk data port of the server.
+
+        <p>
+        The bulk data port serves reads through {@link BulkConnection}, sending
+        the bytes straight from the file to the socket instead of through RMI.
+        It is optional, and disabled by default.
+
+        @return The address of the bulk data port, or <code>null</code> if the
+                server has none.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public InetSocketAddress bulkAddress() throws RMIException;
 }
@@ -7,7 +7,20 @@ package storage;
 
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import common.*;
 import rmi.*;
@@ -28,6 +41,75 @@ public class StorageServer implements Storage, Command {
     private volatile boolean commandStopped = false;
     File root;
 
+    // Block indexes of the local files are kept under this directory of the
+    // root, at the same paths as their files. The directory is not offered to
+    // the naming server, and clients cannot reach it.
+    private static final Path INDEX_DIRECTORY = new Path("/.blocks");
+
+    // Size of the blocks into which local files are divided, each with its
+    // own checksum in the block index of the file.
+    private static final int BLOCK_SIZE = 64 * 1024;
+
+    // Locks on the local files and directory structure, so that requests on
+    // different files are served in parallel.
+    private final PathLocks locks = new PathLocks();
+
+    // Channels to the local files, kept open between reads and writes.
+    private final ChannelCache channels = new ChannelCache(
+            DEFAULT_OPEN_FILES);
+
+    // Number of channels kept open by default.
+    private static final int DEFAULT_OPEN_FILES = 256;
+
+    // Mappings of hot small files, from which their reads are served.
+    // Disabled by default.
+    private final MappedFiles mappedFiles = new MappedFiles();
+
+    // Number of data requests in progress, not counting those waiting for a
+    // lock on their file, and the thread sending it to the naming server in
+    // heartbeats, together with free space.
+    private final AtomicInteger outstanding = new AtomicInteger();
+    private HeartbeatThread heartbeatThread;
+
+    // Port on which the bulk data port is opened when the server starts, or
+    // -1 if it is disabled, and the bulk data port once open.
+    private int bulkPort = -1;
+    private BulkDataServer bulkServer;
+    private InetSocketAddress bulkAddress;
+
+    // Writes through a chain are applied to the local file by a pool of at
+    // most CHAIN_WRITERS threads, while the thread serving the write forwards
+    // it down the chain. Local writes never wait for other servers, so the
+    // pool cannot deadlock chains passing through servers in different
+    // orders. When every writer is busy, the serving thread applies the write
+    // itself before forwarding it. The writers are daemon threads that exit
+    // after CHAIN_WRITER_IDLE_TIME milliseconds without work, so the pool is
+    // never shut down.
+    private final ThreadPoolExecutor chainWriters;
+    private static final int CHAIN_WRITERS = 16;
+    private static final long CHAIN_WRITER_IDLE_TIME = 30 * 1000;
+
+    // Interval between heartbeats, in milliseconds.
+    private static final long HEARTBEAT_INTERVAL = 5 * 1000;
+
+    // Largest block size for which digests are computed, so that a caller
+    // cannot make the server allocate an arbitrarily large buffer.
+    private static final int MAX_DIGEST_BLOCK_SIZE = 64 * BLOCK_SIZE;
+
+    // Erasure-coded files are encoded and decoded CODING_CHUNK_SIZE bytes of
+    // each shard at a time.
+    private static final int CODING_CHUNK_SIZE = 1024 * 1024;
+
+    // Files are copied from other servers in chunks of copyChunkSize bytes,
+    // with up to copyStreams chunks requested at once. Totals of completed
+    // copies are guarded by copyLock.
+    private volatile int copyChunkSize = 1024 * 1024;
+    private volatile int copyStreams = 4;
+    private final Object copyLock = new Object();
+    private long copies = 0;
+    private long copiedBytes = 0;
+    private long copyTime = 0;
+
     // Subclass of skeleton used for stopping the client
     private class clSkeleton extends Skeleton<Storage> {
         StorageServer server;
@@ -121,6 +203,12 @@ public class StorageServer implements Storage, Command {
         }
 
         this.root = root.getAbsoluteFile();
+
+        chainWriters = new ThreadPoolExecutor(CHAIN_WRITERS, CHAIN_WRITERS,
+                CHAIN_WRITER_IDLE_TIME, TimeUnit.MILLISECONDS,
+                new SynchronousQueue<Runnable>(), new ChainWriterThreads(),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        chainWriters.allowCoreThreadTimeOut(true);
     }
 
     /**
@@ -141,6 +229,100 @@ public class StorageServer implements Storage, Command {
         this(root, 0, 0);
     }
 
+    /**
+     * Sets how files are transferred when they are copied from other storage
+     * servers.
+     * 
+     * @param chunkSize
+     *            Number of bytes requested from the other server at once. The
+     *            default is one megabyte.
+     * @param streams
+     *            Number of chunks requested from the other server at once. The
+     *            default is four.
+     * @throws IllegalArgumentException
+     *             If either argument is not positive.
+     */
+    public void setCopyParameters(int chunkSize, int streams) {
+        if (chunkSize <= 0 || streams <= 0) {
+            throw new IllegalArgumentException(
+                    "The chunk size and number of streams must be positive.");
+        }
+        copyChunkSize = chunkSize;
+        copyStreams = streams;
+    }
+
+    /**
+     * Sets how many local files are kept open between requests.
+     * 
+     * @param files
+     *            Largest number of files kept open. The least recently used
+     *            files are closed beyond it. The default is 256; zero closes
+     *            every file after each request.
+     * @throws IllegalArgumentException
+     *             If the number is negative.
+     */
+    public void setOpenFileLimit(int files) {
+        channels.setCapacity(files);
+    }
+
+    /**
+     * Sets how hot small files are mapped into memory.
+     * 
+     * <p>
+     * Files no larger than <code>maxFileSize</code> are mapped once they have
+     * been read a few times, and their reads are then served from memory.
+     * Files are unmapped when they are written or deleted, and the least
+     * recently read files are unmapped when the mappings exceed the budget.
+     * 
+     * @param budget
+     *            Total size of the files mapped, in bytes. The default is
+     *            zero, which disables mapping.
+     * @param maxFileSize
+     *            Size of the largest file mapped, in bytes.
+     * @throws IllegalArgumentException
+     *             If either size is negative.
+     */
+    public void setMappedReads(long budget, long maxFileSize) {
+        mappedFiles.setLimits(budget, maxFileSize);
+    }
+
+    /**
+     * Enables the bulk data port, through which clients read ranges of files
+     * sent straight from the file to the socket instead of through RMI.
+     * 
+     * <p>
+     * The port is opened when the server is started. It is disabled by
+     * default.
+     * 
+     * @param port
+     *            Port to use for bulk data, or zero if the system should
+     *            decide the port.
+     * @throws IllegalArgumentException
+     *             If the port is negative.
+     * @throws IllegalStateException
+     *             If the server has already been started.
+     */
+    public synchronized void enableBulkData(int port) {
+        if (port < 0) {
+            throw new IllegalArgumentException("The port must not be negative.");
+        }
+        if (heartbeatThread != null) {
+            throw new IllegalStateException("The server has already started.");
+        }
+        bulkPort = port;
+    }
+
+    /**
+     * Returns the totals of the copies from other storage servers completed
+     * since the server was created.
+     */
+    public CopyStatistics copyStatistics() {
+        synchronized (copyLock) {
+            return new CopyStatistics(copies, copiedBytes,
+                    copyTime / 1000000);
+        }
+    }
+
     /**
      * Starts the storage server and registers it with the given naming server.
      * 
@@ -169,23 +351,108 @@ public class StorageServer implements Storage, Command {
             throw new FileNotFoundException();
         }
 
+        if (bulkPort >= 0) {
+            try {
+                bulkServer = new BulkDataServer(this, bulkPort);
+            } catch (IOException e) {
+                throw new RMIException("Unable to open the bulk data port", e);
+            }
+            bulkAddress = new InetSocketAddress(hostname, bulkServer.port());
+            bulkServer.start();
+        }
+
         clientSkeleton.start();
         commandSkeleton.start();
 
-        Path[] dupeFiles = naming_server.register(
-                Stub.create(Storage.class, clientSkeleton, hostname),
-                Stub.create(Command.class, commandSkeleton, hostname),
-                Path.list(root));
+        Storage clientStub = Stub.create(Storage.class, clientSkeleton,
+                hostname);
+        Command commandStub = Stub.create(Command.class, commandSkeleton,
+                hostname);
+        register(naming_server, clientStub, commandStub);
+
+        heartbeatThread = new HeartbeatThread(naming_server, clientStub,
+                commandStub);
+        heartbeatThread.setDaemon(true);
+        heartbeatThread.start();
+    }
+
+    // Registers the server with the naming server, deleting the files the
+    // naming server already has and pruning the directories left empty.
+    private void register(Registration naming_server,
+            Storage clientStub, Command commandStub) throws RMIException,
+            FileNotFoundException {
+        Path[] dupeFiles = naming_server.register(clientStub, commandStub,
+                listFiles());
 
-        for (int i = 0; i < dupeFiles.length; i++) {
-            delete(dupeFiles[i]);
+        locks.lockStructure();
+        try {
+            for (int i = 0; i < dupeFiles.length; i++) {
+                delete(dupeFiles[i]);
+            }
+
+            deleteEmptyDirs(root);
+        } finally {
+            locks.unlockStructure();
         }
+    }
 
-        deleteEmptyDirs(root);
+    // Lists the local files, leaving out the block indexes.
+    private Path[] listFiles() throws FileNotFoundException {
+        Path[] listed = Path.list(root);
+        int count = 0;
+        for (Path path : listed) {
+            if (!path.isSubpath(INDEX_DIRECTORY)) {
+                listed[count++] = path;
+            }
+        }
+        return Arrays.copyOf(listed, count);
+    }
+
+    // Background thread that periodically sends heartbeats, carrying free
+    // space and the number of outstanding requests, to the naming server. If
+    // the naming server no longer knows the server, because it considered the
+    // server failed or because it restarted, the server registers again.
+    private class HeartbeatThread extends Thread {
+        private final Registration namingServer;
+        private final Storage clientStub;
+        private final Command commandStub;
+
+        HeartbeatThread(Registration namingServer, Storage clientStub,
+                Command commandStub) {
+            this.namingServer = namingServer;
+            this.clientStub = clientStub;
+            this.commandStub = commandStub;
+        }
+
+        public void run() {
+            while (true) {
+                try {
+                    Thread.sleep(HEARTBEAT_INTERVAL);
+                } catch (InterruptedException e) {
+                    // Server is stopping
+                    return;
+                }
+
+                try {
+                    if (!namingServer.heartbeat(clientStub,
+                            root.getUsableSpace(), root.getTotalSpace(),
+                            outstanding.get())) {
+                        register(namingServer, clientStub, commandStub);
+                    }
+                } catch (RMIException e) {
+                    // The naming server may be restarting; try again later.
+                } catch (FileNotFoundException e) {
+                    // Root directory is gone; nothing left to register
+                } catch (IllegalStateException e) {
+                    // Already registered again; nothing to do
+                }
+            }
+        }
     }
     
-    // THis is sued by start to delete any empty directories present
-    private synchronized void deleteEmptyDirs(File r) {
+    // THis is sued by start to delete any empty directories present. Called
+    // with the directory structure locked.
+    private void deleteEmptyDirs(File r) {
         if (!r.isDirectory()) {
             return;
         }
@@ -208,8 +475,18 @@ public class StorageServer implements Storage, Command {
      * The server should not be restarted.
      */
     public void stop() {
+        if (heartbeatThread != null) {
+            heartbeatThread.interrupt();
+        }
+
+        if (bulkServer != null) {
+            bulkServer.stop();
+        }
+
         clientSkeleton.stop();
         commandSkeleton.stop();
+        channels.clear();
+        mappedFiles.clear();
     }
 
     /**
@@ -224,90 +501,265 @@ public class StorageServer implements Storage, Command {
 
     // The following methods are documented in Storage.java.
     @Override
-    public synchronized long size(Path file) throws FileNotFoundException {
-        File temp = file.toFile(root);
-        if (!temp.exists() || temp.isDirectory())
-            throw new FileNotFoundException(
-                    "The given file does not exist or is a directory.");
-        return temp.length();
+    public long size(Path file) throws FileNotFoundException {
+        locks.lockFile(file, false);
+        outstanding.incrementAndGet();
+        try {
+            File temp = file.toFile(root);
+            if (file.isSubpath(INDEX_DIRECTORY) || !temp.exists()
+                    || temp.isDirectory())
+                throw new FileNotFoundException(
+                        "The given file does not exist or is a directory.");
+            return temp.length();
+        } finally {
+            locks.unlockFile(file, false);
+            outstanding.decrementAndGet();
+        }
     }
 
     @Override
-    public synchronized byte[] read(Path file, long offset, int length)
+    public byte[] read(Path file, long offset, int length)
             throws FileNotFoundException, IOException {
-        File f = file.toFile(root);
+        locks.lockFile(file, false);
+        outstanding.incrementAndGet();
+        try {
+            MappedFiles.Entry mapping = mappedFiles.acquire(file);
+            if (mapping != null) {
+                try {
+                    return read(mapping, offset, length);
+                } finally {
+                    mappedFiles.release(mapping);
+                }
+            }
 
-        if (!f.canRead() || f.isDirectory()) {
-            throw new FileNotFoundException();
-        }
+            ChannelCache.Entry entry = channel(file, false);
+            try {
+                BlockIndex blocks = index(file, entry);
+                mapping = mappedFiles.map(file, entry.channel, blocks);
+                if (mapping != null) {
+                    try {
+                        return read(mapping, offset, length);
+                    } finally {
+                        mappedFiles.release(mapping);
+                    }
+                }
 
-        if (offset < 0 || offset > Integer.MAX_VALUE || length < 0
-                || offset + length > f.length())
-            throw new IndexOutOfBoundsException();
+                if (offset < 0 || offset > Integer.MAX_VALUE || length < 0
+                        || offset + length > entry.channel.size())
+                    throw new IndexOutOfBoundsException();
 
-        RandomAccessFile reader = new RandomAccessFile(f, "r");
+                return blocks.read(offset, length);
+            } finally {
+                channels.release(entry);
+            }
+        } finally {
+            locks.unlockFile(file, false);
+            outstanding.decrementAndGet();
+        }
+    }
 
-        reader.seek(offset);
+    private static byte[] read(MappedFiles.Entry mapping, long offset,
+            int length) {
+        ByteBuffer buffer = mapping.buffer.duplicate();
+        if (offset < 0 || length < 0 || offset + length > buffer.capacity())
+            throw new IndexOutOfBoundsException();
 
         byte[] bbuf = new byte[length];
-        reader.readFully(bbuf);
-
+        buffer.position((int) offset);
+        buffer.get(bbuf);
         return bbuf;
     }
 
     @Override
-    public synchronized void write(Path file, long offset, byte[] data)
+    public void write(Path file, long offset, byte[] data)
             throws FileNotFoundException, IOException {
-        if (offset < 0)
-            throw new IndexOutOfBoundsException();
+        locks.lockFile(file, true);
+        outstanding.incrementAndGet();
+        try {
+            if (offset < 0)
+                throw new IndexOutOfBoundsException();
 
-        File temp = file.toFile(root);
+            mappedFiles.invalidate(file);
+            ChannelCache.Entry entry = channel(file, true);
+            try {
+                BlockIndex blocks = index(file, entry);
+                blocks.markDirty();
+                ByteBuffer bbuf = ByteBuffer.wrap(data);
+                while (bbuf.hasRemaining()) {
+                    entry.channel.write(bbuf, offset + bbuf.position());
+                }
+                blocks.update(offset, data);
+            } catch (IOException e) {
+                throw new IOException("Threw " + e + " when writing to file.");
+            } finally {
+                channels.release(entry);
+            }
+        } finally {
+            locks.unlockFile(file, true);
+            outstanding.decrementAndGet();
+        }
+    }
+
+    @Override
+    public InetSocketAddress bulkAddress() {
+        return bulkAddress;
+    }
+
+    // Sends a range of a file to a bulk data connection, after an OK status,
+    // straight from the file channel to the socket. Failures after the status
+    // has been sent are thrown as ConnectionFailed.
+    //
+    // The file is only locked while the range is checked. The socket send
+    // runs at the pace of the client, so it uses the cached channel without
+    // holding any lock: the channel stays open until released, even if the
+    // file is deleted or replaced meanwhile, and a concurrent truncation ends
+    // the transfer early.
+    void transfer(Path file, long offset, int length, SocketChannel target)
+            throws IOException {
+        outstanding.incrementAndGet();
+        try {
+            ChannelCache.Entry entry;
+            locks.lockFile(file, false);
+            try {
+                entry = channel(file, false);
+                try {
+                    if (offset < 0 || length < 0
+                            || offset + length > entry.channel.size())
+                        throw new IndexOutOfBoundsException();
+
+                    // The blocks sent are checked first, which also brings
+                    // them into the page cache for the transfer.
+                    index(file, entry).verify(offset, length);
+                } catch (IOException e) {
+                    channels.release(entry);
+                    throw e;
+                } catch (RuntimeException e) {
+                    channels.release(entry);
+                    throw e;
+                }
+            } finally {
+                locks.unlockFile(file, false);
+            }
+
+            try {
+                BulkConnection.writeFully(target, ByteBuffer
+                        .wrap(new byte[] { BulkConnection.OK }));
+
+                long done = 0;
+                while (done < length) {
+                    long n = entry.channel.transferTo(offset + done, length
+                            - done, target);
+                    if (n <= 0 && offset + done >= entry.channel.size())
+                        throw new EOFException("The file was truncated.");
+                    done += n;
+                }
+            } catch (IOException e) {
+                throw new BulkDataServer.ConnectionFailed(e);
+            } finally {
+                channels.release(entry);
+            }
+        } finally {
+            outstanding.decrementAndGet();
+        }
+    }
+
+    // Returns a channel to a local file, opening it if it is not cached. The
+    // file is only checked when it is opened: it cannot be deleted or
+    // replaced through the server without its channel being invalidated.
+    // Called with the file locked, and the entry must be released.
+    private ChannelCache.Entry channel(Path file, boolean write)
+            throws IOException {
+        ChannelCache.Entry entry = channels.acquire(file, write);
+        if (entry != null) {
+            return entry;
+        }
 
-        if (!temp.exists() || temp.isDirectory())
+        File f = file.toFile(root);
+        if (file.isSubpath(INDEX_DIRECTORY) || !f.exists() || f.isDirectory())
             throw new FileNotFoundException(
                     "The given file does not exist or is a directory.");
-        if (!temp.canWrite())
+
+        boolean writable = f.canWrite();
+        if (write && !writable)
             throw new IOException("The file is not writable.");
+        if (!write && !f.canRead())
+            throw new FileNotFoundException("The file is not readable.");
 
-        RandomAccessFile fout = new RandomAccessFile(temp, "rw");
-        fout.seek(offset);
-        try {
-            fout.write(data);
-        } catch (IOException e) {
-            throw new IOException("Threw " + e + " when writing to file.");
+        return channels.add(file, new RandomAccessFile(f, writable ? "rw"
+                : "r").getChannel(), writable);
+    }
+
+    // Returns the block index of a file, given an entry holding a channel to
+    // it, opening the index if needed. Called with the file locked.
+    private BlockIndex index(Path file, ChannelCache.Entry entry)
+            throws IOException {
+        synchronized (entry) {
+            if (entry.index == null) {
+                entry.index = BlockIndex.open(indexFile(file), entry.channel,
+                        BLOCK_SIZE);
+            }
+            return entry.index;
         }
     }
 
+    // Returns the local file holding the block index of a file, or the
+    // directory holding the indexes of the files under a directory.
+    private File indexFile(Path path) {
+        return path.toFile(INDEX_DIRECTORY.toFile(root));
+    }
+
     // The following methods are documented in Command.java.
     @Override
-    public synchronized boolean create(Path file) {
-        if (file.isRoot()) {
+    public boolean create(Path file) {
+        if (file.isRoot() || file.isSubpath(INDEX_DIRECTORY)) {
             return false;
         }
 
-        File parent = file.parent().toFile(root);
+        locks.lockStructure();
+        try {
+            File parent = file.parent().toFile(root);
 
-        parent.mkdirs();
+            parent.mkdirs();
 
-        File f = file.toFile(root);
+            File f = file.toFile(root);
+            invalidate(file);
+            deleteHelper(indexFile(file));
 
-        try {
-            return f.createNewFile();
-        } catch (IOException e) {
-            return false;
+            try {
+                return f.createNewFile();
+            } catch (IOException e) {
+                return false;
+            }
+        } finally {
+            locks.unlockStructure();
         }
     }
 
     @Override
-    public synchronized boolean delete(Path path) {
-        if (path.isRoot() || !path.toFile(root).exists()) {
-            return false;
-        }
+    public boolean delete(Path path) {
+        locks.lockStructure();
+        try {
+            if (path.isRoot() || path.isSubpath(INDEX_DIRECTORY)
+                    || !path.toFile(root).exists()) {
+                return false;
+            }
+
+            invalidate(path);
+            deleteHelper(indexFile(path));
+            boolean out = deleteHelper(path.toFile(root));
+            deleteEmptyDirs(root); // Prune all empty directories
 
-        boolean out = deleteHelper(path.toFile(root));
-        deleteEmptyDirs(root); // Prune all empty directories
+            return out;
+        } finally {
+            locks.unlockStructure();
+        }
+    }
 
-        return out;
+    // Forgets the open channels and mappings of a file, or of every file
+    // under a directory, which is being created, deleted or replaced.
+    private void invalidate(Path path) {
+        channels.invalidate(path);
+        mappedFiles.invalidate(path);
     }
 
     private boolean deleteHelper(File f) {
@@ -319,43 +771,443 @@ public class StorageServer implements Storage, Command {
     }
 
     @Override
-    public synchronized boolean copy(Path file, Storage server)
+    public boolean copy(Path file, Storage server)
             throws RMIException, FileNotFoundException, IOException {
-        // Handle files larger than heap memory
         if (file == null || server == null)
             throw new NullPointerException("The file or server given was null.");
 
-        server.read(file, 0, 1);
+        outstanding.incrementAndGet();
+        try {
+            long start = System.nanoTime();
+            long filesize = server.size(file);
+
+            locks.lockStructure();
+            try {
+                if (file.toFile(root).exists()) {
+                    delete(file);
+                }
+
+                if (!create(file)) {
+                    throw new IOException("File failed to be created");
+                }
+            } finally {
+                locks.unlockStructure();
+            }
 
-        if (file.toFile(root).exists()) {
-            delete(file);
+            // The chunks are fetched by several streams at once, each writing
+            // the chunks it fetches at their offsets in the new file. The new
+            // file is not given to clients until the copy is complete, so it
+            // is written without being locked.
+            RandomAccessFile target = new RandomAccessFile(file.toFile(root),
+                    "rw");
+            CopyJob job = new CopyJob(file, server, target.getChannel(),
+                    filesize, copyChunkSize);
+            try {
+                int streams = (int) Math.min(copyStreams,
+                        (filesize + job.chunkSize - 1) / job.chunkSize);
+                CopyStream[] running = new CopyStream[streams];
+                for (int i = 0; i < streams; i++) {
+                    running[i] = new CopyStream(job);
+                    running[i].start();
+                }
+
+                for (CopyStream stream : running) {
+                    while (stream.isAlive()) {
+                        try {
+                            stream.join();
+                        } catch (InterruptedException e) {
+                            job.fail(new IOException("Copy interrupted", e));
+                        }
+                    }
+                }
+            } finally {
+                target.close();
+            }
+
+            if (job.failure != null) {
+                delete(file);
+                if (job.failure instanceof RMIException)
+                    throw (RMIException) job.failure;
+                if (job.failure instanceof IOException)
+                    throw (IOException) job.failure;
+                throw (RuntimeException) job.failure;
+            }
+
+            synchronized (copyLock) {
+                copies++;
+                copiedBytes += filesize;
+                copyTime += System.nanoTime() - start;
+            }
+            return true;
+        } finally {
+            outstanding.decrementAndGet();
         }
+    }
+
+    // Copy of a file from another server, shared by the streams fetching its
+    // chunks. Chunks are handed out in order until the file is complete or a
+    // stream fails.
+    private static class CopyJob {
+        final Path file;
+        final Storage server;
+        final FileChannel channel;
+        final long size;
+        final int chunkSize;
 
-        if (!create(file)) {
-            throw new IOException("File failed to be created");
+        private long nextOffset = 0;
+        volatile Exception failure = null;
+
+        CopyJob(Path file, Storage server, FileChannel channel, long size,
+                int chunkSize) {
+            this.file = file;
+            this.server = server;
+            this.channel = channel;
+            this.size = size;
+            this.chunkSize = chunkSize;
         }
 
-        long filesize = server.size(file);
+        // Returns the offset of the next chunk to fetch, or -1 if there is
+        // none left.
+        synchronized long next() {
+            if (failure != null || nextOffset >= size) {
+                return -1;
+            }
+            long offset = nextOffset;
+            nextOffset += chunkSize;
+            return offset;
+        }
 
-        int buffsize = 8192; // 8KB buffer
+        synchronized void fail(Exception e) {
+            if (failure == null) {
+                failure = e;
+            }
+        }
+    }
+
+    // Stream fetching chunks of a file from another server, one request at a
+    // time.
+    private static class CopyStream extends Thread {
+        final CopyJob job;
+
+        CopyStream(CopyJob job) {
+            this.job = job;
+        }
 
-        long offset = buffsize;
-        byte[] buff = new byte[buffsize];
+        public void run() {
+            try {
+                long offset;
+                while ((offset = job.next()) >= 0) {
+                    int length = (int) Math.min(job.chunkSize, job.size
+                            - offset);
+                    ByteBuffer data = ByteBuffer.wrap(job.server.read(
+                            job.file, offset, length));
+                    while (data.hasRemaining()) {
+                        job.channel.write(data, offset + data.position());
+                    }
+                }
+            } catch (Exception e) {
+                job.fail(e);
+            }
+        }
+    }
 
-        for (long i = 0; i * offset <= filesize; i++) {
-            if (i * offset + buffsize > filesize) {
-                buff = server.read(file, i * offset, (int) (filesize - i
-                        * offset));
-                write(file,
-                        i * offset,
-                        Arrays.copyOfRange(buff, 0, (int) (filesize - i
-                                * offset)));
-            } else {
-                buff = server.read(file, i * offset, buff.length);
-                write(file, i * offset, buff);
+    @Override
+    public void writeChain(Path file, long offset, byte[] data,
+            Storage[] chain) throws RMIException, FileNotFoundException,
+            IOException {
+        if (chain == null)
+            throw new NullPointerException("The chain given was null.");
+
+        if (chain.length == 0) {
+            write(file, offset, data);
+            return;
+        }
+
+        // Apply the write locally while forwarding it down the chain, and
+        // acknowledge it only once both are done.
+        Future<Void> local = chainWriters.submit(new LocalWrite(file, offset,
+                data));
+        Throwable failure = null;
+        try {
+            chain[0].writeChain(file, offset, data,
+                    Arrays.copyOfRange(chain, 1, chain.length));
+        } finally {
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    local.get();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    failure = e.getCause();
+                    break;
+                }
             }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        if (failure instanceof IOException)
+            throw (IOException) failure;
+        if (failure instanceof RuntimeException)
+            throw (RuntimeException) failure;
+        if (failure != null)
+            throw (Error) failure;
+    }
+
+    // Applies a write through a chain to the local file.
+    private class LocalWrite implements Callable<Void> {
+        final Path file;
+        final long offset;
+        final byte[] data;
+
+        LocalWrite(Path file, long offset, byte[] data) {
+            this.file = file;
+            this.offset = offset;
+            this.data = data;
+        }
+
+        public Void call() throws IOException {
+            write(file, offset, data);
+            return null;
+        }
+    }
+
+    // Creates the chain writers as daemon threads, so that they never keep
+    // the process alive.
+    private static class ChainWriterThreads implements ThreadFactory {
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "chain writer");
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+    // Digests are computed with SHA-256 rather than taken from the CRC-32C
+    // checksums of the block index. A CRC is 32 bits wide and linear, so a
+    // write can happen, or be crafted, to leave a block with the checksum of
+    // the data it replaced; the stale copy would then be marked current
+    // without the block being repaired. The digests are computed over blocks
+    // of the index, read through the cached channel of the file.
+    @Override
+    public byte[][] checksums(Path file, int block_size)
+            throws FileNotFoundException, IOException {
+        if (block_size <= 0 || block_size % BLOCK_SIZE != 0
+                || block_size > MAX_DIGEST_BLOCK_SIZE)
+            throw new IllegalArgumentException("The block size must be a "
+                    + "multiple of " + BLOCK_SIZE + " bytes, at most "
+                    + MAX_DIGEST_BLOCK_SIZE + ".");
+
+        locks.lockFile(file, false);
+        outstanding.incrementAndGet();
+        try {
+            ChannelCache.Entry entry = channel(file, false);
+            try {
+                long length = entry.channel.size();
+                byte[][] sums = new byte[(int) ((length + block_size - 1)
+                        / block_size)][];
+                ByteBuffer block = ByteBuffer.allocate(block_size);
+                MessageDigest digest = sha256();
+
+                for (int i = 0; i < sums.length; i++) {
+                    long offset = (long) i * block_size;
+                    block.clear();
+                    block.limit((int) Math.min(block_size, length - offset));
+                    while (block.hasRemaining()) {
+                        if (entry.channel.read(block, offset
+                                + block.position()) < 0)
+                            throw new EOFException("The file was truncated.");
+                    }
+                    block.flip();
+                    digest.update(block);
+                    sums[i] = digest.digest();
+                }
+                return sums;
+            } finally {
+                channels.release(entry);
+            }
+        } finally {
+            locks.unlockFile(file, false);
+            outstanding.decrementAndGet();
+        }
+    }
+
+    // Every Java platform is required to provide SHA-256.
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    @Override
+    public boolean synchronize(Path file, Storage server)
+            throws RMIException, FileNotFoundException, IOException {
+        if (file == null || server == null)
+            throw new NullPointerException("The file or server given was null.");
+
+        outstanding.incrementAndGet();
+        try {
+            // The local file is only locked for local reads and writes, never
+            // across calls to the other server, so that two servers bringing
+            // files up to date from each other cannot deadlock.
+            long filesize = server.size(file);
+            byte[][] remote = server.checksums(file, BLOCK_SIZE);
+            byte[][] local = checksums(file, BLOCK_SIZE);
+
+            for (int i = 0; i < remote.length; i++) {
+                if (i < local.length && Arrays.equals(local[i], remote[i])) {
+                    continue;
+                }
+
+                long offset = (long) i * BLOCK_SIZE;
+                int length = (int) Math.min(BLOCK_SIZE, filesize - offset);
+                write(file, offset, server.read(file, offset, length));
+            }
+
+            truncate(file, filesize);
+            return true;
+        } finally {
+            outstanding.decrementAndGet();
+        }
+    }
+
+    private void truncate(Path file, long length) throws IOException {
+        locks.lockFile(file, true);
+        try {
+            mappedFiles.invalidate(file);
+            ChannelCache.Entry entry = channel(file, true);
+            try {
+                BlockIndex blocks = index(file, entry);
+                blocks.markDirty();
+                if (entry.channel.size() > length) {
+                    entry.channel.truncate(length);
+                } else if (entry.channel.size() < length) {
+                    entry.channel.write(ByteBuffer.allocate(1), length - 1);
+                }
+                blocks.update(length, new byte[0]);
+            } finally {
+                channels.release(entry);
+            }
+        } finally {
+            locks.unlockFile(file, true);
+        }
+    }
+
+    @Override
+    public boolean encode(Path file, ErasureLayout layout)
+            throws RMIException, FileNotFoundException, IOException {
+        if (file == null || layout == null)
+            throw new NullPointerException("The file or layout given was null.");
+
+        File f = file.toFile(root);
+        if (!f.isFile())
+            throw new FileNotFoundException(
+                    "The given file does not exist or is a directory.");
+
+        outstanding.incrementAndGet();
+        try {
+            int dataShards = layout.dataShards();
+            Storage[] shards = layout.shards();
+            long shardSize = layout.shardSize();
+            long length = layout.length();
+            ReedSolomon code = new ReedSolomon(dataShards,
+                    layout.parityShards());
+
+            // The naming server keeps the file locked for the whole call, so
+            // it is read without being locked on this server, and no lock is
+            // held across calls to the shard servers.
+            RandomAccessFile reader = new RandomAccessFile(f, "r");
+            try {
+                for (long offset = 0; offset < shardSize;
+                        offset += CODING_CHUNK_SIZE) {
+                    int count = (int) Math.min(CODING_CHUNK_SIZE, shardSize
+                            - offset);
+                    byte[][] pieces = new byte[shards.length][count];
+
+                    // Bytes past the end of the file are left as zeros.
+                    for (int i = 0; i < dataShards; i++) {
+                        long start = i * shardSize + offset;
+                        int available = (int) Math.max(0, Math.min(count,
+                                length - start));
+                        if (available > 0) {
+                            reader.seek(start);
+                            reader.readFully(pieces[i], 0, available);
+                        }
+                    }
+
+                    code.encode(pieces, 0, count);
+                    for (int i = 0; i < shards.length; i++) {
+                        shards[i].write(file, offset, pieces[i]);
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+
+            return true;
+        } finally {
+            outstanding.decrementAndGet();
+        }
+    }
+
+    @Override
+    public boolean decode(Path file, ErasureLayout layout)
+            throws RMIException, IOException {
+        if (file == null || layout == null)
+            throw new NullPointerException("The file or layout given was null.");
+
+        outstanding.incrementAndGet();
+        try {
+            File f = file.toFile(root);
+            File parent = f.getParentFile();
+            locks.lockStructure();
+            try {
+                parent.mkdirs();
+            } finally {
+                locks.unlockStructure();
+            }
+
+            // The full copy is assembled next to the file and renamed over
+            // it once complete, since this server may host one of the shards
+            // being read.
+            File temp = File.createTempFile("." + f.getName() + ".", ".decode",
+                    parent);
+            try {
+                RandomAccessFile writer = new RandomAccessFile(temp, "rw");
+                try {
+                    long length = layout.length();
+                    for (long offset = 0; offset < length;
+                            offset += CODING_CHUNK_SIZE) {
+                        int count = (int) Math.min(CODING_CHUNK_SIZE, length
+                                - offset);
+                        writer.write(layout.read(file, offset, count));
+                    }
+                } finally {
+                    writer.close();
+                }
+
+                locks.lockStructure();
+                try {
+                    invalidate(file);
+                    if (f.exists() && !f.delete() || !temp.renameTo(f)) {
+                        throw new IOException("Unable to replace " + file);
+                    }
+                    deleteHelper(indexFile(file));
+                } finally {
+                    locks.unlockStructure();
+                }
+            } finally {
+                temp.delete();
+            }
+
+            return true;
+        } finally {
+            outstanding.decrementAndGet();
         }
-        return true;
     }
 
 }
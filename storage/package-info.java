@@ -17,5 +17,17 @@
     Storage servers provide these stubs to the naming server on startup. For
     this reason, it is immaterial which port each storage server is running on,
     or its exact network address, so long as it is reachable by the client.
+
+    <p>
+    Optionally, a storage server also opens a bulk data port, whose address
+    clients obtain through the RMI interface. Reads on the bulk data port are
+    sent from the file straight to the socket, without serializing the bytes.
+
+    <p>
+    Each file is checksummed in fixed-size blocks. The checksums are kept in
+    index files under the <code>.blocks</code> directory of the local
+    directory, which is not reported to the naming server. Reads check the
+    blocks they touch, so that data corrupted on disk is reported as an error
+    rather than returned to the client.
  */
 package storage;
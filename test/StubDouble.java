@@ -0,0 +1,116 @@
+package test;
+
+import java.io.*;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+/** Invocation handler for stub doubles.
+
+    <p>
+    A stub double stands in for an RMI stub in tests that call a server
+    directly. It is a dynamic proxy implementing the remote interface, whose
+    calls are passed to a subclass of this class. The methods
+    <code>equals</code>, <code>hashCode</code> and <code>toString</code> of
+    the proxy are answered by the same methods of the handler, so that two
+    stub doubles are equal when their handlers are equal. By default, each
+    stub double is equal only to itself.
+
+    <p>
+    Servers may record the stubs they are given, for instance in a journal,
+    so the handler is serializable. Subclasses should mark any reference to
+    the running test as <code>transient</code>.
+ */
+public abstract class StubDouble implements InvocationHandler, Serializable
+{
+    private static final long serialVersionUID = 1L;
+
+    /** Creates a stub double.
+
+        @param type Remote interface implemented by the stub double.
+        @param handler Handler receiving calls made to the stub double.
+        @return The stub double.
+     */
+    public static <T> T create(Class<T> type, StubDouble handler)
+    {
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(),
+                                                new Class<?>[] {type},
+                                                handler));
+    }
+
+    /** Returns the handler of a stub double.
+
+        @param stub The stub double.
+        @return The handler of the stub double, or <code>null</code> if the
+                object given is not a stub double.
+     */
+    public static StubDouble handler(Object stub)
+    {
+        if(stub == null || !Proxy.isProxyClass(stub.getClass()))
+            return null;
+
+        InvocationHandler   handler = Proxy.getInvocationHandler(stub);
+
+        if(!(handler instanceof StubDouble))
+            return null;
+
+        return (StubDouble)handler;
+    }
+
+    /** Calls the given method directly on an object, passing on any
+        exception the method throws.
+
+        @param target Object whose method is called.
+        @param method Method called.
+        @param arguments Arguments of the call.
+        @return The value returned by the method.
+        @throws Throwable If the method throws an exception.
+     */
+    public static Object forward(Object target, Method method,
+                                 Object[] arguments) throws Throwable
+    {
+        try
+        {
+            return method.invoke(target, arguments);
+        }
+        catch(InvocationTargetException e)
+        {
+            throw e.getCause();
+        }
+    }
+
+    @Override
+    public final Object invoke(Object proxy, Method method, Object[] arguments)
+        throws Throwable
+    {
+        String              name = method.getName();
+
+        if(name.equals("equals") && method.getParameterTypes().length == 1)
+            return equals(handler(arguments[0]));
+
+        if(name.equals("hashCode") && method.getParameterTypes().length == 0)
+            return hashCode();
+
+        if(name.equals("toString") && method.getParameterTypes().length == 0)
+            return toString();
+
+        return call(method, arguments);
+    }
+
+    @Override
+    public String toString()
+    {
+        return "stub double";
+    }
+
+    /** Answers a call made to the stub double.
+
+        @param method Method of the remote interface called.
+        @param arguments Arguments of the call.
+        @return The value to be returned to the caller.
+        @throws Throwable If the call is to throw an exception.
+     */
+    protected abstract Object call(Method method, Object[] arguments)
+        throws Throwable;
+}
@@ -5,7 +5,25 @@ import test.*;
 /** Runs all unit tests on distributed filesystem components.
 
     <p>
-    There are currently no unit tests.
+    Tests performed are:
+    <ul>
+    <li>{@link common.PathOrderTest}</li>
+    <li>{@link naming.MetadataLogTest}</li>
+    <li>{@link naming.LockManagerTest}</li>
+    <li>{@link naming.LeaseTableTest}</li>
+    <li>{@link naming.BatchLeaseTest}</li>
+    <li>{@link naming.SizeCacheTest}</li>
+    <li>{@link naming.ChainWriteTest}</li>
+    <li>{@link naming.ReplicationQueueTest}</li>
+    <li>{@link naming.ReplicationPolicyTest}</li>
+    <li>{@link storage.ReedSolomonTest}</li>
+    <li>{@link storage.ChannelCacheTest}</li>
+    <li>{@link storage.MappedFilesTest}</li>
+    <li>{@link storage.BlockIndexTest}</li>
+    <li>{@link storage.BulkDataTest}</li>
+    <li>{@link storage.CatchUpTest}</li>
+    <li>{@link client.DFSInputStreamTest}</li>
+    </ul>
  */
 public class UnitTests
 {
@@ -18,7 +36,22 @@ public class UnitTests
         // Create the test list, the series object, and run the test series.
         @SuppressWarnings("unchecked")
         Class<? extends Test>[]     tests =
-            new Class[] {};
+            new Class[] {common.PathOrderTest.class,
+                         naming.MetadataLogTest.class,
+                         naming.LockManagerTest.class,
+                         naming.LeaseTableTest.class,
+                         naming.BatchLeaseTest.class,
+                         naming.SizeCacheTest.class,
+                         naming.ChainWriteTest.class,
+                         naming.ReplicationQueueTest.class,
+                         naming.ReplicationPolicyTest.class,
+                         storage.ReedSolomonTest.class,
+                         storage.ChannelCacheTest.class,
+                         storage.MappedFilesTest.class,
+                         storage.BlockIndexTest.class,
+                         storage.BulkDataTest.class,
+                         storage.CatchUpTest.class,
+                         client.DFSInputStreamTest.class};
         Series                      series = new Series(tests);
         SeriesReport                report = series.run(3, System.out);
 
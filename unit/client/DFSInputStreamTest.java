@@ -0,0 +1,331 @@
+package client;
+
+import java.io.*;
+import java.lang.reflect.Method;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import test.*;
+import common.*;
+import naming.*;
+import storage.*;
+
+/** Tests the use of bulk data ports by <code>DFSInputStream</code>.
+
+    <p>
+    The storage server is called directly through a stub double, which
+    counts reads made through RMI and gives the address of a bulk data port
+    run by the test.
+
+    <p>
+    Tests include:
+    <ul>
+    <li>Reads go through the bulk data port when the server has one.</li>
+    <li>Reads fall back to RMI when the server has no port, when the port
+        refuses connections, when the connection is dropped, and when the
+        port reports a failure.</li>
+    <li>A file missing on the port is reported to the reader, without
+        falling back.</li>
+    </ul>
+ */
+public class DFSInputStreamTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking client stream bulk data fallback";
+
+    /** Size of the file read. */
+    private static final int    SIZE = 50000;
+    /** Bytes requested by each read of the stream. */
+    private static final int    CHUNK = 8192;
+
+    /** Behaviours of the bulk data port run by the test. */
+    private enum Port { NONE, SERVE, REFUSE, DROP, FAIL, MISSING }
+
+    /** Directory served by the storage server. */
+    private TemporaryDirectory  directory = null;
+    /** Storage server holding the file. */
+    private StorageServer       storage_server;
+    /** Naming server listing the file. */
+    private NamingServer        naming_server;
+    /** Bulk data port run by the test. */
+    private ServerSocket        listener = null;
+
+    /** File read. */
+    private final Path          file = new Path("/file");
+    /** Contents of the file. */
+    private final byte[]        data = new byte[SIZE];
+
+    /** Current behaviour of the bulk data port. */
+    private volatile Port       behaviour = Port.NONE;
+    /** Reads made through RMI. */
+    private volatile int        rmi_reads = 0;
+
+    /** Creates the servers and opens the bulk data port. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        try
+        {
+            directory = new TemporaryDirectory();
+            new Random(1).nextBytes(data);
+
+            storage_server = new StorageServer(directory.root());
+            storage_server.create(file);
+            storage_server.write(file, 0, data);
+
+            naming_server = new NamingServer();
+            naming_server.register(
+                StubDouble.create(Storage.class, new Direct(this)),
+                StubDouble.create(Command.class, new Direct(this)),
+                new Path[] {file});
+
+            listener = new ServerSocket(0, 50,
+                                        InetAddress.getByName("127.0.0.1"));
+            new PortThread(listener).start();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start servers", t);
+        }
+    }
+
+    /** Closes the port and removes the temporary directory. */
+    @Override
+    protected void clean()
+    {
+        if(listener != null)
+        {
+            try
+            {
+                listener.close();
+            }
+            catch(IOException e) { }
+
+            listener = null;
+        }
+
+        if(directory != null)
+        {
+            directory.remove();
+            directory = null;
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If any of the tests fail.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        try
+        {
+            expect(Port.SERVE, false, "bulk data port serving");
+            expect(Port.NONE, true, "no bulk data port");
+            expect(Port.REFUSE, true, "bulk data port refusing connections");
+            expect(Port.DROP, true, "bulk data connection dropped");
+            expect(Port.FAIL, true, "bulk data port failing");
+
+            behaviour = Port.MISSING;
+            rmi_reads = 0;
+
+            DFSInputStream  stream = new DFSInputStream(naming_server, file);
+
+            try
+            {
+                stream.read(new byte[CHUNK]);
+                throw new TestFailed("file missing on bulk data port read");
+            }
+            catch(IOException e) { }
+            finally
+            {
+                stream.close();
+            }
+
+            if(rmi_reads != 0)
+                throw new TestFailed("missing file read through RMI");
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("error while testing bulk data fallback", t);
+        }
+    }
+
+    /** Reads the whole file with the port behaving in the given way, and
+        checks the bytes read and whether RMI was used.
+     */
+    private void expect(Port port, boolean rmi, String what) throws Throwable
+    {
+        behaviour = port;
+        rmi_reads = 0;
+
+        DFSInputStream      stream = new DFSInputStream(naming_server, file);
+        byte[]              read = new byte[SIZE];
+        int                 total = 0;
+
+        try
+        {
+            while(total < SIZE)
+            {
+                int         count = stream.read(read, total,
+                                                Math.min(CHUNK, SIZE - total));
+
+                if(count <= 0)
+                    throw new TestFailed("file ended early: " + what);
+
+                total += count;
+            }
+        }
+        finally
+        {
+            stream.close();
+        }
+
+        if(!Arrays.equals(read, data))
+            throw new TestFailed("wrong bytes read: " + what);
+
+        if(rmi && rmi_reads == 0)
+            throw new TestFailed("no fallback to RMI: " + what);
+
+        if(!rmi && rmi_reads != 0)
+            throw new TestFailed("RMI used: " + what);
+    }
+
+    /** Calls the storage server directly, counting reads and giving the
+        address of the port run by the test.
+     */
+    private static class Direct extends StubDouble
+    {
+        private static final long serialVersionUID = 1L;
+
+        /** Test running the storage server. */
+        private final transient DFSInputStreamTest  test;
+
+        /** Creates a double for the storage server of the given test. */
+        Direct(DFSInputStreamTest test)
+        {
+            this.test = test;
+        }
+
+        @Override
+        protected Object call(Method method, Object[] arguments)
+            throws Throwable
+        {
+            String          name = method.getName();
+
+            if(name.equals("bulkAddress"))
+                return test.bulkAddress();
+
+            if(name.equals("read"))
+                ++test.rmi_reads;
+
+            return forward(test.storage_server, method, arguments);
+        }
+    }
+
+    /** Returns the address given for the port, depending on its behaviour. */
+    private InetSocketAddress bulkAddress() throws IOException
+    {
+        if(behaviour == Port.NONE)
+            return null;
+
+        if(behaviour == Port.REFUSE)
+        {
+            // Take a port that was free a moment ago.
+            ServerSocket    closed = new ServerSocket(0);
+            int             port = closed.getLocalPort();
+
+            closed.close();
+            return new InetSocketAddress("127.0.0.1", port);
+        }
+
+        return new InetSocketAddress("127.0.0.1", listener.getLocalPort());
+    }
+
+    /** Accepts connections to the port run by the test. */
+    private class PortThread extends Thread
+    {
+        /** Socket accepting connections, kept after the test cleans up. */
+        private final ServerSocket  port;
+
+        /** Creates a thread accepting connections on the given socket. */
+        PortThread(ServerSocket port)
+        {
+            this.port = port;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                while(true)
+                {
+                    Socket  connection = port.accept();
+
+                    try
+                    {
+                        serve(new DataInputStream(connection.getInputStream()),
+                              new DataOutputStream(
+                                  connection.getOutputStream()));
+                    }
+                    catch(IOException e) { }
+                    finally
+                    {
+                        connection.close();
+                    }
+                }
+            }
+            catch(IOException e) { }
+        }
+
+        /** Answers requests until the client closes the connection, or the
+            behaviour of the port is to drop it.
+         */
+        private void serve(DataInputStream in, DataOutputStream out)
+            throws IOException
+        {
+            while(true)
+            {
+                byte[]      name = new byte[in.readInt()];
+                in.readFully(name);
+                long        offset = in.readLong();
+                int         count = in.readInt();
+
+                switch(behaviour)
+                {
+                case SERVE:
+                    out.writeByte(0);
+                    out.write(data, (int)offset, count);
+                    break;
+                case MISSING:
+                    out.writeByte(1);
+                    message(out, new String(name, StandardCharsets.UTF_8));
+                    break;
+                case FAIL:
+                    out.writeByte(3);
+                    message(out, "failed");
+                    break;
+                default:
+                    return;
+                }
+
+                out.flush();
+            }
+        }
+
+        /** Writes an error message. */
+        private void message(DataOutputStream out, String message)
+            throws IOException
+        {
+            byte[]          bytes = message.getBytes(StandardCharsets.UTF_8);
+
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+}
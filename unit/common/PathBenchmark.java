@@ -0,0 +1,346 @@
+package common;
+
+import java.util.*;
+
+/** Measures common operations on paths, for <code>Path</code> and for the
+    class it replaced.
+
+    <p>
+    The benchmark is run with
+    <pre>
+        java -cp .:unit common.PathBenchmark (current|baseline)
+    </pre>
+    where <code>current</code> measures <code>Path</code>, and
+    <code>baseline</code> measures <code>BaselinePath</code>, a copy of the
+    original class. Each class should be measured in its own virtual machine,
+    so that calls through <code>Paths</code> have a single target and are
+    compiled inline. Results vary between runs of the virtual machine, so the
+    benchmark should be run several times for each class.
+
+    <p>
+    Each operation is run on the same 1024 paths of six components. It is
+    warmed up for 15 rounds, then timed for 10 rounds, and the median round
+    is reported in nanoseconds per call.
+
+    <p>
+    The baseline <code>compareTo</code> is not a consistent order, so the
+    baseline sort ends early without sorting. Its time is not comparable
+    with that of the current class.
+ */
+public class PathBenchmark
+{
+    /** Number of paths used by each operation. Must be a power of two. */
+    private static final int    PATHS = 1024;
+    /** Components from which paths are built. */
+    private static final String[]   NAMES =
+        {"home", "usr", "src", "main", "java", "project", "data", "logs", "tmp",
+         "lib"};
+    /** Number of warmup rounds. */
+    private static final int    WARMUP = 15;
+    /** Number of timed rounds. */
+    private static final int    ROUNDS = 10;
+    /** Calls made in each round of most operations. */
+    private static final int    CALLS = 200000;
+    /** Sorts made in each round of the sort operation. */
+    private static final int    SORTS = 20;
+
+    /** Keeps results of operations from being optimized away. */
+    private static volatile long    sink;
+
+    /** Runs the benchmark.
+
+        @param arguments The class to measure, <code>current</code> or
+                         <code>baseline</code>.
+     */
+    public static void main(String[] arguments)
+    {
+        Paths               paths;
+
+        if(arguments.length == 1 && arguments[0].equals("current"))
+            paths = new CurrentPaths();
+        else if(arguments.length == 1 && arguments[0].equals("baseline"))
+            paths = new BaselinePaths();
+        else
+        {
+            System.err.println("usage: java common.PathBenchmark " +
+                               "(current|baseline)");
+            System.exit(2);
+            return;
+        }
+
+        new PathBenchmark(paths).run();
+    }
+
+    /** Path class measured. */
+    private final Paths                 paths;
+    /** Strings from which the paths are built. */
+    private final String[]              strings = new String[PATHS];
+    /** Paths on which operations are run. */
+    private final Object[]              originals = new Object[PATHS];
+    /** Equal paths, built separately from the same strings. */
+    private final Object[]              copies = new Object[PATHS];
+    /** Map from the original paths to their indexes. */
+    private final Map<Object, Integer>  indexes =
+        new HashMap<Object, Integer>();
+
+    /** Creates the paths on which operations are run. */
+    private PathBenchmark(Paths paths)
+    {
+        this.paths = paths;
+
+        Random              random = new Random(42);
+
+        for(int index = 0; index < PATHS; ++index)
+        {
+            StringBuilder   builder = new StringBuilder();
+
+            for(int depth = 0; depth < 6; ++depth)
+            {
+                builder.append('/');
+                builder.append(NAMES[random.nextInt(NAMES.length)]);
+            }
+
+            builder.append("f" + index);
+            strings[index] = builder.toString();
+            originals[index] = paths.parse(strings[index]);
+            copies[index] = paths.parse(strings[index]);
+            indexes.put(originals[index], index);
+        }
+    }
+
+    /** Times each operation and prints the results. */
+    private void run()
+    {
+        for(Operation operation : operations())
+        {
+            int             calls = operation.calls;
+            double[]        times = new double[ROUNDS];
+
+            for(int round = 0; round < WARMUP; ++round)
+                sink = operation.run(calls);
+
+            for(int round = 0; round < ROUNDS; ++round)
+            {
+                long        start = System.nanoTime();
+
+                sink = operation.run(calls);
+                times[round] = (System.nanoTime() - start) / (double)calls;
+            }
+
+            Arrays.sort(times);
+            System.out.printf("%-30s %12.1f%n", operation.name,
+                              times[ROUNDS / 2]);
+        }
+    }
+
+    /** Returns the operations measured. */
+    private List<Operation> operations()
+    {
+        List<Operation>     operations = new ArrayList<Operation>();
+        final int           mask = PATHS - 1;
+
+        operations.add(new Operation("new Path(String)", CALLS) {
+            long run(int calls)
+            {
+                long        result = 0;
+
+                for(int call = 0; call < calls; ++call)
+                    result += paths.parse(strings[call & mask]).hashCode();
+
+                return result;
+            }
+        });
+
+        operations.add(new Operation("hashCode", CALLS) {
+            long run(int calls)
+            {
+                long        result = 0;
+
+                for(int call = 0; call < calls; ++call)
+                    result += originals[call & mask].hashCode();
+
+                return result;
+            }
+        });
+
+        operations.add(new Operation("equals, equal copy", CALLS) {
+            long run(int calls)
+            {
+                long        result = 0;
+
+                for(int call = 0; call < calls; ++call)
+                {
+                    if(originals[call & mask].equals(copies[call & mask]))
+                        ++result;
+                }
+
+                return result;
+            }
+        });
+
+        operations.add(new Operation("HashMap.get, equal copy", CALLS) {
+            long run(int calls)
+            {
+                long        result = 0;
+
+                for(int call = 0; call < calls; ++call)
+                    result += indexes.get(copies[call & mask]);
+
+                return result;
+            }
+        });
+
+        operations.add(new Operation("toString", CALLS) {
+            long run(int calls)
+            {
+                long        result = 0;
+
+                for(int call = 0; call < calls; ++call)
+                    result += originals[call & mask].toString().length();
+
+                return result;
+            }
+        });
+
+        operations.add(new Operation("parent() walk to the root", CALLS) {
+            long run(int calls)
+            {
+                long        result = 0;
+
+                for(int call = 0; call < calls; ++call)
+                {
+                    Object  path = originals[call & mask];
+
+                    while(!paths.isRoot(path))
+                    {
+                        path = paths.parent(path);
+                        ++result;
+                    }
+                }
+
+                return result;
+            }
+        });
+
+        operations.add(new Operation("isSubpath", CALLS) {
+            long run(int calls)
+            {
+                long        result = 0;
+
+                for(int call = 0; call < calls; ++call)
+                {
+                    if(paths.isSubpath(originals[call & mask],
+                                       copies[(call + 1) & mask]))
+                    {
+                        ++result;
+                    }
+                }
+
+                return result;
+            }
+        });
+
+        operations.add(new Operation("Arrays.sort of 1024 paths", SORTS) {
+            long run(int calls)
+            {
+                long        result = 0;
+
+                for(int call = 0; call < calls; ++call)
+                {
+                    Object[]    sorted = copies.clone();
+
+                    Arrays.sort(sorted);
+                    result += sorted[0].hashCode();
+                }
+
+                return result;
+            }
+        });
+
+        return operations;
+    }
+
+    /** Operation timed by the benchmark. */
+    private abstract static class Operation
+    {
+        /** Name printed with the results. */
+        final String        name;
+        /** Calls made in each round. */
+        final int           calls;
+
+        /** Creates an operation with the given name and calls per round. */
+        Operation(String name, int calls)
+        {
+            this.name = name;
+            this.calls = calls;
+        }
+
+        /** Makes the given number of calls, and returns a value depending on
+            their results.
+         */
+        abstract long run(int calls);
+    }
+
+    /** Operations of a path class that are not methods of
+        <code>Object</code>.
+     */
+    private interface Paths
+    {
+        /** Creates a path from its string representation. */
+        Object parse(String path);
+        /** Returns the parent of a path. */
+        Object parent(Object path);
+        /** Checks if a path is the root directory. */
+        boolean isRoot(Object path);
+        /** Checks if a path is a subpath of another. */
+        boolean isSubpath(Object path, Object other);
+    }
+
+    /** Operations of <code>Path</code>. */
+    private static class CurrentPaths implements Paths
+    {
+        public Object parse(String path)
+        {
+            return new Path(path);
+        }
+
+        public Object parent(Object path)
+        {
+            return ((Path)path).parent();
+        }
+
+        public boolean isRoot(Object path)
+        {
+            return ((Path)path).isRoot();
+        }
+
+        public boolean isSubpath(Object path, Object other)
+        {
+            return ((Path)path).isSubpath((Path)other);
+        }
+    }
+
+    /** Operations of <code>BaselinePath</code>. */
+    private static class BaselinePaths implements Paths
+    {
+        public Object parse(String path)
+        {
+            return new BaselinePath(path);
+        }
+
+        public Object parent(Object path)
+        {
+            return ((BaselinePath)path).parent();
+        }
+
+        public boolean isRoot(Object path)
+        {
+            return ((BaselinePath)path).isRoot();
+        }
+
+        public boolean isSubpath(Object path, Object other)
+        {
+            return ((BaselinePath)path).isSubpath((BaselinePath)other);
+        }
+    }
+}
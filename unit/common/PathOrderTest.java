@@ -0,0 +1,133 @@
+package common;
+
+import java.io.*;
+import java.util.*;
+
+import test.*;
+
+/** Tests path ordering, subpath checks, and the shared representation of
+    parent paths.
+
+    <p>
+    Tests include:
+    <ul>
+    <li><code>isSubpath</code> compares whole components, so that
+        <code>/fold</code> is not a subpath of <code>/folder/file</code>.</li>
+    <li><code>compareTo</code> is a total order in which every directory
+        precedes the objects below it.</li>
+    <li>Parents obtained with <code>parent</code> are equal to, hash like, and
+        serialize like the same paths built from strings.</li>
+    </ul>
+ */
+public class PathOrderTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking path ordering and sharing";
+
+    /** Performs the test.
+
+        @throws TestFailed If any of the tests fail.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        testSubpaths();
+        testOrder();
+        testParents();
+    }
+
+    /** Checks that subpaths are determined by whole components. */
+    private void testSubpaths() throws TestFailed
+    {
+        Path    file = new Path("/folder/file");
+
+        if(file.isSubpath(new Path("/fold")))
+            throw new TestFailed("/fold reported as a subpath of " + file);
+
+        if(!file.isSubpath(new Path("/folder")) ||
+           !file.isSubpath(new Path("/")) || !file.isSubpath(file))
+        {
+            throw new TestFailed("prefix of " + file + " not reported as a " +
+                                 "subpath");
+        }
+
+        if(new Path("/folder").isSubpath(file))
+            throw new TestFailed(file + " reported as a subpath of /folder");
+    }
+
+    /** Checks that sorting places every directory before its contents. */
+    private void testOrder() throws TestFailed
+    {
+        Path[]  paths = new Path[] {new Path("/etc/dfs/conf.txt"),
+                                    new Path("/bin/cat"), new Path("/etc"),
+                                    new Path("/"), new Path("/bin"),
+                                    new Path("/etc/dfs")};
+        Path[]  expected = new Path[] {new Path("/"), new Path("/bin"),
+                                       new Path("/bin/cat"), new Path("/etc"),
+                                       new Path("/etc/dfs"),
+                                       new Path("/etc/dfs/conf.txt")};
+
+        Arrays.sort(paths);
+        if(!Arrays.equals(paths, expected))
+            throw new TestFailed("paths sorted as " + Arrays.toString(paths));
+
+        for(int i = 0; i < expected.length; ++i)
+        {
+            for(int j = 0; j < expected.length; ++j)
+            {
+                int     order = expected[i].compareTo(expected[j]);
+                if(Integer.signum(order) != Integer.signum(i - j))
+                {
+                    throw new TestFailed("inconsistent comparison of " +
+                                         expected[i] + " and " + expected[j]);
+                }
+            }
+        }
+    }
+
+    /** Checks that parents behave exactly like freshly constructed paths. */
+    private void testParents() throws TestFailed
+    {
+        Path    file = new Path(new Path("/a/b"), "c");
+        Path    parent = file.parent();
+        Path    expected = new Path("/a/b");
+
+        if(!parent.equals(expected) || !expected.equals(parent) ||
+           parent.hashCode() != expected.hashCode() ||
+           !parent.toString().equals("/a/b"))
+        {
+            throw new TestFailed("parent of " + file + " differs from " +
+                                 expected);
+        }
+
+        Iterator<String>    components = parent.iterator();
+        if(!components.next().equals("a") || !components.next().equals("b") ||
+           components.hasNext())
+        {
+            throw new TestFailed("parent iterates over the wrong components");
+        }
+
+        try
+        {
+            ByteArrayOutputStream   bytes = new ByteArrayOutputStream();
+            ObjectOutputStream      out = new ObjectOutputStream(bytes);
+            out.writeObject(parent);
+            out.close();
+
+            ObjectInputStream       in = new ObjectInputStream(
+                new ByteArrayInputStream(bytes.toByteArray()));
+            Path                    copy = (Path)in.readObject();
+
+            if(!copy.equals(expected) || copy.hashCode() != expected.hashCode())
+                throw new TestFailed("deserialized parent differs");
+
+            if(!new Path(copy, "d").equals(new Path("/a/b/d")))
+                throw new TestFailed("child of deserialized parent differs");
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to serialize parent path", t);
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package naming;
+
+import java.lang.reflect.Method;
+
+import test.*;
+import common.*;
+import storage.*;
+
+/** Tests locks taken in batches under leases.
+
+    <p>
+    The storage server is a stub double that accepts no calls: taking and
+    releasing locks does not contact it.
+
+    <p>
+    Tests include:
+    <ul>
+    <li>Each path locked by <code>leaseAll</code> is given its own lease, for
+        the path and mode requested.</li>
+    <li>The leases can be renewed, unlike the locks taken by
+        <code>lockAll</code>, and cannot be unlocked by path.</li>
+    <li><code>releaseAll</code> releases every lock, admitting waiting users,
+        and the leases cannot be released again.</li>
+    </ul>
+ */
+public class BatchLeaseTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking naming server batch leases";
+
+    /** Directory locked for exclusive access. */
+    private final Path          directory = new Path("/directory");
+    /** File under the directory. */
+    private final Path          file = new Path("/directory/file");
+    /** File locked for shared access. */
+    private final Path          other = new Path("/other");
+
+    /** Naming server granting the leases. */
+    private NamingServer        server;
+    /** Set once a lock waiting behind the batch is granted. */
+    private volatile boolean    granted = false;
+
+    /** Creates the naming server and registers the storage server. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        try
+        {
+            server = new NamingServer();
+            server.register(StubDouble.create(Storage.class, new Refusing()),
+                            StubDouble.create(Command.class, new Refusing()),
+                            new Path[] {file, other});
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to register storage server", t);
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If any of the tests fail.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        try
+        {
+            Lease[]         leases =
+                server.leaseAll(new Path[] {directory, other},
+                                new boolean[] {true, false});
+
+            if(leases.length != 2 ||
+               !leases[0].path().equals(directory) ||
+               !leases[0].isExclusive() ||
+               !leases[1].path().equals(other) || leases[1].isExclusive())
+            {
+                throw new TestFailed("wrong leases given for the batch");
+            }
+
+            for(Lease lease : leases)
+                server.renew(lease);
+
+            try
+            {
+                server.unlock(directory, true);
+                throw new TestFailed("leased lock unlocked by path");
+            }
+            catch(IllegalArgumentException e) { }
+
+            Thread          waiter = new Thread(new Waiter());
+            waiter.start();
+            Thread.sleep(200);
+
+            if(granted)
+                throw new TestFailed("lock granted under a leased batch");
+
+            server.releaseAll(leases);
+            waiter.join();
+
+            if(!granted)
+                throw new TestFailed("lock not granted after batch release");
+
+            try
+            {
+                server.releaseAll(leases);
+                throw new TestFailed("batch leases released twice");
+            }
+            catch(IllegalStateException e) { }
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("error while testing batch leases", t);
+        }
+    }
+
+    /** Locks the file under the directory, and records the grant. */
+    private class Waiter implements Runnable
+    {
+        @Override
+        public void run()
+        {
+            try
+            {
+                server.release(server.lease(file, false));
+                granted = true;
+            }
+            catch(Throwable t)
+            {
+                failure(new TestFailed("waiting lock user failed", t));
+            }
+        }
+    }
+
+    /** Refuses every call made to the storage server. */
+    private static class Refusing extends StubDouble
+    {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected Object call(Method method, Object[] arguments)
+        {
+            throw new UnsupportedOperationException(method.getName());
+        }
+    }
+}
@@ -0,0 +1,391 @@
+package naming;
+
+import java.io.*;
+import java.lang.reflect.Method;
+import java.util.*;
+
+import test.*;
+import rmi.*;
+import common.*;
+import storage.*;
+import client.*;
+
+/** Tests writes through chains of copies.
+
+    <p>
+    Three storage servers host a copy of each file, restored from the
+    journal of the naming server. The servers are called directly through
+    stub doubles, which can be made to fail as if the server could not be
+    contacted. The replication queue is not running, so copies are not
+    brought up to date.
+
+    <p>
+    Tests include:
+    <ul>
+    <li>A write through the chain reaches every copy. Copies other than the
+        head are not served until they have been compared with it.</li>
+    <li>Data is written in pieces, so that several writes are in flight
+        through the chain at once, both when they succeed and when they
+        fail and are written again.</li>
+    <li>A write whose forwarding fails down the chain is written again to
+        the head, which is then the only current copy.</li>
+    <li>A write to a head that cannot be contacted is written again to the
+        next copy in the chain, which is then the only current copy.</li>
+    <li>Copies other than the head are not current in the journal while the
+        lock is held, so that a failure of the client cannot leave copies
+        that missed a write listed as current.</li>
+    </ul>
+ */
+public class ChainWriteTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking writes through chains of copies";
+
+    /** Number of storage servers. */
+    private static final int    SERVERS = 3;
+    /** Size of each file. */
+    private static final int    SIZE = 1000;
+    /** Size of each write to a file. */
+    private static final int    PIECE = 100;
+
+    /** Test whose storage servers the stub doubles call. Set while the test
+        runs, since the doubles are restored from the journal. */
+    private static volatile ChainWriteTest  running = null;
+
+    /** Directory holding the journal and the files of the servers. */
+    private TemporaryDirectory  directory = null;
+    /** Storage servers hosting the files. */
+    private StorageServer[]     servers = new StorageServer[SERVERS];
+    /** Whether each storage server fails as if it could not be contacted. */
+    private volatile boolean[]  failed = new boolean[SERVERS];
+    /** Naming server restored from the journal. */
+    private NamingServer        naming_server;
+
+    /** Creates the storage servers, each with a copy of every file, and
+        restores the naming server from a journal listing the copies.
+     */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        try
+        {
+            running = this;
+            directory = new TemporaryDirectory();
+
+            File            metadata = new File(directory.root(), "metadata");
+            MetadataLog     log = new MetadataLog(metadata, false);
+
+            log.recover(new Copies(new Path()));
+
+            for(int index = 0; index < SERVERS; ++index)
+            {
+                File        root = new File(directory.root(), "s" + index);
+
+                root.mkdir();
+                servers[index] = new StorageServer(root);
+                log.server(index,
+                           StubDouble.create(Storage.class,
+                                             new Direct(Storage.class, index)),
+                           StubDouble.create(Command.class,
+                                             new Direct(Command.class, index)));
+            }
+
+            for(String name : new String[] {"/whole", "/tail", "/head"})
+            {
+                Path        file = new Path(name);
+
+                for(StorageServer server : servers)
+                {
+                    server.create(file);
+                    server.write(file, 0, new byte[SIZE]);
+                }
+
+                log.file(file, new int[] {0, 1, 2});
+            }
+
+            log.close();
+            naming_server = new NamingServer(metadata);
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start servers", t);
+        }
+    }
+
+    /** Removes the temporary directory. */
+    @Override
+    protected void clean()
+    {
+        running = null;
+
+        if(directory != null)
+        {
+            directory.remove();
+            directory = null;
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If any of the tests fail.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        try
+        {
+            testWholeChain();
+            testFailedTail();
+            testFailedHead();
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("error while testing chain writes", t);
+        }
+    }
+
+    /** Checks that a write through the chain reaches every copy. */
+    private void testWholeChain() throws Throwable
+    {
+        Path                file = new Path("/whole");
+        Lease               lease = naming_server.chainLease(file);
+        int[]               chain = chain(file);
+
+        if(chain.length != SERVERS)
+            throw new TestFailed("chain does not include every copy");
+
+        expectCurrent(file, chain[0], "while the lock is held");
+        byte[]              data = write(file, 1);
+        naming_server.release(lease);
+
+        for(int index = 0; index < SERVERS; ++index)
+            expectData(file, index, data, "after write through the chain");
+
+        expectCurrent(file, chain[0], "before the copies are compared");
+    }
+
+    /** Checks that a write failing down the chain is kept on the head. */
+    private void testFailedTail() throws Throwable
+    {
+        Path                file = new Path("/tail");
+        Lease               lease = naming_server.chainLease(file);
+        int[]               chain = chain(file);
+
+        failed[chain[SERVERS - 1]] = true;
+
+        try
+        {
+            byte[]          data = write(file, 2);
+            naming_server.release(lease);
+
+            expectData(file, chain[0], data, "on head after failed forward");
+            expectCurrent(file, chain[0], "after failed forward");
+        }
+        finally
+        {
+            failed[chain[SERVERS - 1]] = false;
+        }
+    }
+
+    /** Checks that a write to a failed head is kept on the next copy. */
+    private void testFailedHead() throws Throwable
+    {
+        Path                file = new Path("/head");
+        Lease               lease = naming_server.chainLease(file);
+        int[]               chain = chain(file);
+
+        failed[chain[0]] = true;
+
+        try
+        {
+            byte[]          data = write(file, 3);
+            naming_server.release(lease);
+
+            expectData(file, chain[1], data, "on next copy after failed head");
+            expectCurrent(file, chain[1], "after failed head");
+        }
+        finally
+        {
+            failed[chain[0]] = false;
+        }
+    }
+
+    /** Writes random data to a file through a chained stream, in pieces. */
+    private byte[] write(Path file, long seed) throws IOException
+    {
+        byte[]              data = new byte[SIZE];
+        new Random(seed).nextBytes(data);
+
+        DFSOutputStream     stream =
+            new DFSOutputStream(naming_server, file, true);
+
+        try
+        {
+            for(int offset = 0; offset < SIZE; offset += PIECE)
+                stream.write(data, offset, PIECE);
+        }
+        finally
+        {
+            stream.close();
+        }
+
+        return data;
+    }
+
+    /** Returns the indexes of the servers in the chain of a file. */
+    private int[] chain(Path file) throws Throwable
+    {
+        Storage[]           stubs = naming_server.getWriteChain(file);
+        int[]               chain = new int[stubs.length];
+
+        for(int index = 0; index < stubs.length; ++index)
+            chain[index] = index(stubs[index]);
+
+        return chain;
+    }
+
+    /** Checks that a single copy of a file is current, both in the tree and
+        in the journal.
+     */
+    private void expectCurrent(Path file, int server, String what)
+        throws Throwable
+    {
+        Storage[]           replicas = naming_server.stat(file).replicas();
+
+        if(replicas.length != 1 || index(replicas[0]) != server)
+            throw new TestFailed("wrong copies current " + what);
+
+        // Replay the journal of the naming server.
+        Copies              copies = new Copies(file);
+        MetadataLog         log =
+            new MetadataLog(new File(directory.root(), "metadata"), false);
+
+        log.recover(copies);
+        log.close();
+
+        if(!copies.servers.equals(Collections.singleton(server)))
+            throw new TestFailed("wrong copies journaled " + what);
+    }
+
+    /** Checks the contents of the copy of a file on a server. */
+    private void expectData(Path file, int server, byte[] data, String what)
+        throws Throwable
+    {
+        if(!Arrays.equals(servers[server].read(file, 0, SIZE), data))
+            throw new TestFailed("wrong data written " + what);
+    }
+
+    /** Returns the index of the server a stub double calls. */
+    private static int index(Object stub)
+    {
+        return ((Direct)StubDouble.handler(stub)).server;
+    }
+
+    /** Collects the copies of a file recorded in a journal. */
+    private static class Copies implements MetadataLog.Target
+    {
+        /** File whose copies are collected. */
+        private final Path          file;
+        /** Servers hosting current copies of the file. */
+        final Set<Integer>          servers = new HashSet<Integer>();
+
+        /** Creates a target collecting the copies of the given file. */
+        Copies(Path file)
+        {
+            this.file = file;
+        }
+
+        public void server(int id, Storage storage, Command command) { }
+
+        public void directory(Path directory) { }
+
+        public void file(Path file, int[] servers)
+        {
+            if(file.equals(this.file))
+            {
+                this.servers.clear();
+                for(int server : servers)
+                    this.servers.add(server);
+            }
+        }
+
+        public void delete(Path path)
+        {
+            if(file.isSubpath(path))
+                servers.clear();
+        }
+
+        public void addReplica(Path file, int server)
+        {
+            if(file.equals(this.file))
+                servers.add(server);
+        }
+
+        public void removeReplica(Path file, int server)
+        {
+            if(file.equals(this.file))
+                servers.remove(server);
+        }
+
+        public void encoded(Path file, int dataShards, long length,
+                            int[] shards) { }
+
+        public void decoded(Path file, int server) { }
+    }
+
+    /** Calls a storage server of the running test directly, or fails as if
+        the server could not be contacted.
+
+        <p>
+        Doubles restored from the journal are equal to those written to it,
+        so that the naming server recognizes the servers hosting each copy.
+     */
+    private static class Direct extends StubDouble
+    {
+        private static final long serialVersionUID = 1L;
+
+        /** Interface of the stub. */
+        private final Class<?>  type;
+        /** Index of the server called. */
+        private final int       server;
+
+        /** Creates a double for the given server. */
+        Direct(Class<?> type, int server)
+        {
+            this.type = type;
+            this.server = server;
+        }
+
+        @Override
+        public boolean equals(Object other)
+        {
+            return other instanceof Direct &&
+                   ((Direct)other).type == type &&
+                   ((Direct)other).server == server;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return server;
+        }
+
+        @Override
+        public String toString()
+        {
+            return "stub double for server " + server;
+        }
+
+        @Override
+        protected Object call(Method method, Object[] arguments)
+            throws Throwable
+        {
+            if(running.failed[server])
+                throw new RMIException("server cannot be contacted");
+
+            return forward(running.servers[server], method, arguments);
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package naming;
+
+import java.util.*;
+
+import test.*;
+import common.*;
+
+/** Tests the naming server lease table.
+
+    <p>
+    Tests include:
+    <ul>
+    <li>Leases that are not renewed expire, and cannot be renewed or released
+        afterwards.</li>
+    <li>Renewed leases do not expire.</li>
+    <li>Unlocking a path by mode removes a plain hold in that mode, never a
+        lease.</li>
+    <li>Plain holds expire after their own duration, and cannot be unlocked
+        afterwards.</li>
+    </ul>
+ */
+public class LeaseTableTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking naming server lease table";
+
+    /** Performs the test.
+
+        @throws TestFailed If any of the tests fail.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        try
+        {
+            testExpiry();
+            testHolds();
+            testHoldExpiry();
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("error while testing lease table", t);
+        }
+    }
+
+    /** Checks that only leases that are not renewed expire. */
+    private void testExpiry() throws Throwable
+    {
+        LeaseTable  leases = new LeaseTable();
+        Lease       idle = leases.grant(new Path("/idle"), true, 200);
+        Lease       renewed = leases.grant(new Path("/renewed"), false, 200);
+
+        for(int round = 0; round < 4; ++round)
+        {
+            Thread.sleep(100);
+            if(!leases.renew(renewed))
+                throw new TestFailed("renewed lease expired");
+        }
+
+        List<Lease> expired = leases.expire();
+        if(!expired.equals(Arrays.asList(idle)))
+            throw new TestFailed("expired leases were " + expired);
+
+        if(leases.renew(idle))
+            throw new TestFailed("expired lease renewed");
+
+        if(leases.remove(idle) != null)
+            throw new TestFailed("expired lease released");
+
+        if(leases.remove(renewed) == null || leases.size() != 0)
+            throw new TestFailed("live lease not released");
+    }
+
+    /** Checks that unlocking by path removes only plain holds. */
+    private void testHolds() throws Throwable
+    {
+        LeaseTable  leases = new LeaseTable();
+        Path        path = new Path("/file");
+        Lease       reader = leases.grant(path, false, 60000);
+
+        if(leases.remove(path, false))
+            throw new TestFailed("lease removed by path");
+
+        leases.hold(path, false, 60000);
+        leases.hold(path, true, 60000);
+
+        if(!leases.remove(path, false))
+            throw new TestFailed("shared hold not removed");
+
+        if(leases.remove(path, false))
+            throw new TestFailed("shared hold removed twice");
+
+        if(!reader.equals(leases.remove(reader)))
+            throw new TestFailed("lease not released after unlock by path");
+
+        Thread.sleep(10);
+        leases.grant(path, false, 1);
+        Thread.sleep(10);
+        if(leases.expire().size() != 1)
+            throw new TestFailed("plain hold expired, or lease did not");
+
+        if(!leases.remove(path, true) || leases.remove(path, true))
+            throw new TestFailed("exclusive hold not removed exactly once");
+    }
+
+    /** Checks that plain holds expire, and cannot be unlocked afterwards. */
+    private void testHoldExpiry() throws Throwable
+    {
+        LeaseTable  leases = new LeaseTable();
+        Path        path = new Path("/file");
+
+        leases.hold(path, true, 1);
+        Thread.sleep(10);
+
+        List<Lease> expired = leases.expire();
+        if(expired.size() != 1 || !expired.get(0).path().equals(path) ||
+           !expired.get(0).isExclusive())
+        {
+            throw new TestFailed("plain hold did not expire");
+        }
+
+        if(leases.remove(path, true))
+            throw new TestFailed("expired plain hold unlocked");
+
+        if(leases.size() != 0 || !leases.expire().isEmpty())
+            throw new TestFailed("expired plain hold left in the table");
+    }
+}
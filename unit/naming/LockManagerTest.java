@@ -0,0 +1,270 @@
+package naming;
+
+import test.*;
+import common.*;
+
+/** Tests the naming server lock manager.
+
+    <p>
+    Tests include:
+    <ul>
+    <li>Lock entries are removed once a path is no longer locked or waited
+        for.</li>
+    <li>A shared request arriving after a queued exclusive request is granted
+        only after the exclusive request, even though the lock is held for
+        shared access.</li>
+    <li>Waiting acquisitions are counted as contended.</li>
+    <li>Interrupting a queued request leaves the holder's lock in place, and
+        admits the requests queued behind it.</li>
+    <li>Unlocking a path that is not locked is rejected.</li>
+    <li>Paths locked together can be unlocked one at a time, and a request
+        that would wait for itself is rejected.</li>
+    </ul>
+ */
+public class LockManagerTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking naming server lock manager";
+
+    /** Lock manager under test. */
+    private LockManager         locks;
+    /** Order in which the queued requests were granted. */
+    private final StringBuffer  grants = new StringBuffer();
+
+    /** Performs the test.
+
+        @throws TestFailed If any of the tests fail.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        locks = new LockManager();
+
+        try
+        {
+            testReclamation();
+            testQueueing();
+            testInterrupted();
+            testBadUnlock();
+            testLockAll();
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("error while testing lock manager", t);
+        }
+    }
+
+    /** Checks that idle entries are reclaimed. */
+    private void testReclamation() throws Throwable
+    {
+        for(int index = 0; index < 100; ++index)
+        {
+            Path    path = new Path("/directory/file" + index);
+            locks.lock(path, index % 2 == 0);
+            locks.unlock(path, index % 2 == 0);
+        }
+
+        if(locks.size() != 0)
+            throw new TestFailed(locks.size() + " idle lock entries retained");
+    }
+
+    /** Checks that a shared request queues behind an earlier exclusive
+        request. */
+    private void testQueueing() throws Throwable
+    {
+        Path    path = new Path("/file");
+
+        locks.lock(path, false);
+
+        Thread  writer = new Thread(new LockUser(path, true, "w"));
+        writer.start();
+        waitForQueue(path, 1);
+
+        Thread  reader = new Thread(new LockUser(path, false, "r"));
+        reader.start();
+        waitForQueue(path, 2);
+
+        if(grants.length() != 0)
+            throw new TestFailed("queued request granted while lock is held");
+
+        locks.unlock(path, false);
+        writer.join();
+        reader.join();
+
+        if(!grants.toString().equals("wr"))
+        {
+            throw new TestFailed("requests granted in order " + grants +
+                                 ", expected writer first");
+        }
+
+        LockManager.Contention  total = locks.contention();
+        if(total.contended < 2)
+            throw new TestFailed("waiting acquisitions not counted");
+
+        if(locks.size() != 0)
+            throw new TestFailed("lock entries retained after queueing");
+    }
+
+    /** Checks that interrupting a queued request releases nothing it was
+        not granted. */
+    private void testInterrupted() throws Throwable
+    {
+        Path    path = new Path("/file");
+
+        grants.setLength(0);
+        locks.lock(path, false);
+
+        Thread  writer = new Thread(new InterruptedUser(path));
+        writer.start();
+        waitForQueue(path, 1);
+
+        Thread  reader = new Thread(new LockUser(path, false, "r"));
+        reader.start();
+        waitForQueue(path, 2);
+
+        // The reader queued behind the abandoned writer is compatible with
+        // the shared holder, and must be admitted.
+        writer.interrupt();
+        writer.join();
+        reader.join();
+
+        if(!grants.toString().equals("r"))
+            throw new TestFailed("reader not admitted after writer abandoned");
+
+        try
+        {
+            locks.unlock(path, false);
+        }
+        catch(IllegalArgumentException e)
+        {
+            throw new TestFailed("holder's lock released by abandoned waiter",
+                                 e);
+        }
+
+        // Nothing can be admitted when the abandoned request waits behind an
+        // exclusive holder.
+        locks.lock(path, true);
+
+        writer = new Thread(new InterruptedUser(path));
+        writer.start();
+        waitForQueue(path, 1);
+        writer.interrupt();
+        writer.join();
+
+        try
+        {
+            locks.unlock(path, true);
+        }
+        catch(IllegalArgumentException e)
+        {
+            throw new TestFailed("holder's lock released by abandoned waiter",
+                                 e);
+        }
+
+        if(locks.size() != 0)
+            throw new TestFailed("lock entries retained after interruption");
+    }
+
+    /** Checks that unlocking an unlocked path is rejected. */
+    private void testBadUnlock() throws TestFailed
+    {
+        try
+        {
+            locks.unlock(new Path("/unlocked"), false);
+            throw new TestFailed("unlocking an unlocked path accepted");
+        }
+        catch(IllegalArgumentException e) { }
+    }
+
+    /** Checks locking several paths in one request. */
+    private void testLockAll() throws Throwable
+    {
+        Path[]      paths = new Path[] {new Path("/d/b"), new Path("/d"),
+                                        new Path("/d/a"), new Path("/d/b")};
+        boolean[]   exclusive = new boolean[] {false, false, true, false};
+
+        locks.lockAll(paths, exclusive);
+        for(int index = 0; index < paths.length; ++index)
+            locks.unlock(paths[index], exclusive[index]);
+
+        if(locks.size() != 0)
+            throw new TestFailed("lock entries retained after lockAll");
+
+        try
+        {
+            locks.lockAll(new Path[] {new Path("/d/a"), new Path("/d")},
+                          new boolean[] {false, true});
+            throw new TestFailed("request waiting for itself accepted");
+        }
+        catch(IllegalArgumentException e) { }
+
+        if(locks.size() != 0)
+            throw new TestFailed("lock entries retained after bad lockAll");
+    }
+
+    /** Waits until the given number of requests is queued for a path. */
+    private void waitForQueue(Path path, int waiters) throws Throwable
+    {
+        while(true)
+        {
+            LockManager.Contention  contention = locks.contention(path);
+            if(contention != null && contention.waiting >= waiters)
+                return;
+
+            Thread.sleep(10);
+        }
+    }
+
+    /** Waits for an exclusive lock until interrupted. */
+    private class InterruptedUser implements Runnable
+    {
+        private final Path      path;
+
+        InterruptedUser(Path path)
+        {
+            this.path = path;
+        }
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                locks.lock(path, true);
+                failure(new TestFailed("interrupted request granted"));
+            }
+            catch(InterruptedException e) { }
+        }
+    }
+
+    /** Takes a lock, records the grant, and releases the lock. */
+    private class LockUser implements Runnable
+    {
+        private final Path      path;
+        private final boolean   exclusive;
+        private final String    name;
+
+        LockUser(Path path, boolean exclusive, String name)
+        {
+            this.path = path;
+            this.exclusive = exclusive;
+            this.name = name;
+        }
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                locks.lock(path, exclusive);
+                grants.append(name);
+                locks.unlock(path, exclusive);
+            }
+            catch(Throwable t)
+            {
+                failure(new TestFailed("lock user failed", t));
+            }
+        }
+    }
+}
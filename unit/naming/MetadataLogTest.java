@@ -0,0 +1,229 @@
+package naming;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+
+import test.*;
+import rmi.*;
+import common.*;
+import storage.*;
+
+/** Tests the naming server metadata log.
+
+    <p>
+    Tests include:
+    <ul>
+    <li>Records appended to the journal are replayed in order after the log is
+        reopened, including server stubs and erasure-coded layouts.</li>
+    <li>A torn record at the end of the journal is dropped and cut off the
+        journal file.</li>
+    <li>A checkpoint replaces the snapshot and empties the journal.</li>
+    </ul>
+ */
+public class MetadataLogTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking naming server metadata log";
+
+    /** Directory holding the log files. */
+    private TemporaryDirectory  directory = null;
+
+    /** Creates the temporary directory. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        try
+        {
+            directory = new TemporaryDirectory();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to create temporary directory", t);
+        }
+    }
+
+    /** Removes the temporary directory. */
+    @Override
+    protected void clean()
+    {
+        if(directory != null)
+        {
+            directory.remove();
+            directory = null;
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If any of the tests fail.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        try
+        {
+            testReplay();
+            testTornRecord();
+            testCheckpoint();
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("error while testing metadata log", t);
+        }
+    }
+
+    /** Checks that journal records are replayed in the order appended. */
+    private void testReplay() throws Throwable
+    {
+        Storage         storage =
+            Stub.create(Storage.class, new InetSocketAddress("127.0.0.1", 1));
+        Command         command =
+            Stub.create(Command.class, new InetSocketAddress("127.0.0.1", 2));
+
+        MetadataLog     log = new MetadataLog(directory.root(), false);
+        log.recover(new Recorder());
+        log.server(0, storage, command);
+        log.directory(new Path("/a"));
+        log.file(new Path("/a/f"), new int[] {0});
+        log.addReplica(new Path("/a/f"), 1);
+        log.removeReplica(new Path("/a/f"), 0);
+        log.encoded(new Path("/a/f"), 2, 100, new int[] {1, 2, -1});
+        log.decoded(new Path("/a/f"), 2);
+        log.delete(new Path("/a/f"));
+        log.close();
+
+        Recorder        recorder = new Recorder();
+        new MetadataLog(directory.root(), false).recover(recorder);
+
+        List<String>    expected =
+            Arrays.asList("server 0", "directory /a", "file /a/f [0]",
+                          "add /a/f 1", "remove /a/f 0",
+                          "encoded /a/f 2 100 [1, 2, -1]", "decoded /a/f 2",
+                          "delete /a/f");
+        if(!recorder.records.equals(expected))
+            throw new TestFailed("journal replayed as " + recorder.records);
+
+        if(!storage.equals(recorder.storage) ||
+           !command.equals(recorder.command))
+        {
+            throw new TestFailed("server stubs not restored from journal");
+        }
+    }
+
+    /** Checks that a partially written record is dropped on recovery. */
+    private void testTornRecord() throws Throwable
+    {
+        File                journal = new File(directory.root(), "journal");
+        long                intact = journal.length();
+
+        FileOutputStream    out = new FileOutputStream(journal, true);
+        out.write(new byte[] {0, 0, 0, 40, 1, 2, 3});
+        out.close();
+
+        Recorder            recorder = new Recorder();
+        MetadataLog         log = new MetadataLog(directory.root(), false);
+        log.recover(recorder);
+
+        if(recorder.records.size() != 8)
+            throw new TestFailed("torn record changed replayed records");
+
+        if(journal.length() != intact)
+            throw new TestFailed("torn record not cut off journal");
+
+        log.directory(new Path("/b"));
+        log.close();
+
+        recorder = new Recorder();
+        new MetadataLog(directory.root(), false).recover(recorder);
+        if(!recorder.records.get(recorder.records.size() - 1)
+                .equals("directory /b"))
+        {
+            throw new TestFailed("record appended after recovery was lost");
+        }
+    }
+
+    /** Checks that a checkpoint compacts the log into the snapshot. */
+    private void testCheckpoint() throws Throwable
+    {
+        MetadataLog     log = new MetadataLog(directory.root(), false);
+        log.recover(new Recorder());
+
+        log.checkpoint(new MetadataLog.Checkpoint()
+        {
+            public void write(MetadataLog.Target snapshot)
+            {
+                snapshot.directory(new Path("/c"));
+                snapshot.file(new Path("/c/g"), new int[] {2, 3});
+            }
+        });
+
+        if(log.size() != 0)
+            throw new TestFailed("journal not emptied by checkpoint");
+
+        log.delete(new Path("/c/g"));
+        log.close();
+
+        Recorder        recorder = new Recorder();
+        new MetadataLog(directory.root(), false).recover(recorder);
+
+        List<String>    expected =
+            Arrays.asList("directory /c", "file /c/g [2, 3]", "delete /c/g");
+        if(!recorder.records.equals(expected))
+            throw new TestFailed("log replayed as " + recorder.records +
+                                 " after checkpoint");
+    }
+
+    /** Records replayed records as strings. */
+    private static class Recorder implements MetadataLog.Target
+    {
+        final List<String>  records = new ArrayList<String>();
+        Storage             storage;
+        Command             command;
+
+        public void server(int id, Storage storage, Command command)
+        {
+            this.storage = storage;
+            this.command = command;
+            records.add("server " + id);
+        }
+
+        public void directory(Path directory)
+        {
+            records.add("directory " + directory);
+        }
+
+        public void file(Path file, int[] servers)
+        {
+            records.add("file " + file + " " + Arrays.toString(servers));
+        }
+
+        public void delete(Path path)
+        {
+            records.add("delete " + path);
+        }
+
+        public void addReplica(Path file, int server)
+        {
+            records.add("add " + file + " " + server);
+        }
+
+        public void removeReplica(Path file, int server)
+        {
+            records.add("remove " + file + " " + server);
+        }
+
+        public void encoded(Path file, int dataShards, long length,
+                            int[] shards)
+        {
+            records.add("encoded " + file + " " + dataShards + " " + length +
+                        " " + Arrays.toString(shards));
+        }
+
+        public void decoded(Path file, int server)
+        {
+            records.add("decoded " + file + " " + server);
+        }
+    }
+}
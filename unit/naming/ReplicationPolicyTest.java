@@ -0,0 +1,120 @@
+package naming;
+
+import test.*;
+import common.*;
+
+/** Tests the naming server replication policy and read rate sketch.
+
+    <p>
+    Tests include:
+    <ul>
+    <li>The sketch never underestimates read counts, even when many files
+        share its cells.</li>
+    <li>Read counts halve every half-life, including across rescaling of the
+        sketch.</li>
+    <li>The policy adds copies as reads grow, removes them only once reads
+        have fallen to half, and respects the replica bounds.</li>
+    </ul>
+ */
+public class ReplicationPolicyTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking naming server replication " +
+                                         "policy";
+
+    /** One second, in <code>System.nanoTime()</code> units. */
+    private static final long   SECOND = 1000000000L;
+
+    /** Performs the test.
+
+        @throws TestFailed If any of the tests fail.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        testEstimates();
+        testDecay();
+        testPolicy();
+    }
+
+    /** Checks that the sketch does not underestimate counts. */
+    private void testEstimates() throws TestFailed
+    {
+        ReadRateSketch  sketch = new ReadRateSketch(60 * 1000, 0);
+
+        for(int file = 0; file < 20000; ++file)
+        {
+            for(int read = 0; read < file % 5; ++read)
+                sketch.record(new Path("/file" + file), 0);
+        }
+
+        for(int file = 0; file < 20000; ++file)
+        {
+            if(sketch.estimate(new Path("/file" + file), 0) < file % 5)
+                throw new TestFailed("read count underestimated");
+        }
+
+        if(sketch.estimate(new Path("/hot"), 0) > 10)
+            throw new TestFailed("unread file estimated as hot");
+    }
+
+    /** Checks that counts halve every half-life. */
+    private void testDecay() throws TestFailed
+    {
+        ReadRateSketch  sketch = new ReadRateSketch(1000, 0);
+        Path            path = new Path("/file");
+
+        for(int read = 0; read < 64; ++read)
+            sketch.record(path, 0);
+
+        checkEstimate(sketch.estimate(path, SECOND), 32);
+        checkEstimate(sketch.estimate(path, 3 * SECOND), 8);
+
+        // Reads long after the first ones force the sketch to be rescaled.
+        sketch.record(path, 1000 * SECOND);
+        checkEstimate(sketch.estimate(path, 1000 * SECOND), 1);
+        checkEstimate(sketch.estimate(path, 1001 * SECOND), 0.5);
+    }
+
+    /** Checks the number of copies wanted by the policy. */
+    private void testPolicy() throws TestFailed
+    {
+        ReplicationPolicy   policy = new ReplicationPolicy(1, 3, 20, 1000);
+
+        if(policy.replicas(0, 1) != 1 || policy.replicas(19, 1) != 1)
+            throw new TestFailed("cold file replicated");
+
+        if(policy.replicas(20, 1) != 2 || policy.replicas(45, 1) != 3)
+            throw new TestFailed("hot file not replicated");
+
+        if(policy.replicas(1000, 1) != 3)
+            throw new TestFailed("maximum number of copies exceeded");
+
+        if(policy.replicas(15, 2) != 2)
+            throw new TestFailed("copy removed before reads fell to half");
+
+        if(policy.replicas(5, 2) != 1)
+            throw new TestFailed("copy of cold file not removed");
+
+        if(new ReplicationPolicy(2, 3, 20, 1000).replicas(0, 1) != 2)
+            throw new TestFailed("minimum number of copies not respected");
+
+        try
+        {
+            new ReplicationPolicy(2, 1, 20, 1000);
+            throw new TestFailed("inconsistent replica bounds accepted");
+        }
+        catch(IllegalArgumentException e) { }
+    }
+
+    /** Checks that an estimate is close to the expected count. */
+    private void checkEstimate(double estimate, double expected)
+        throws TestFailed
+    {
+        if(Math.abs(estimate - expected) > expected * 1e-6)
+        {
+            throw new TestFailed("read count is " + estimate + ", expected " +
+                                 expected);
+        }
+    }
+}
@@ -0,0 +1,248 @@
+package naming;
+
+import java.util.*;
+
+import test.*;
+import common.*;
+
+/** Tests the naming server replication queue.
+
+    <p>
+    Tests include:
+    <ul>
+    <li>Requests for a path with a pending task are merged into that task,
+        which carries out all the work requested, catching up first.</li>
+    <li>Requests are dropped when the queue is full.</li>
+    <li>Pending tasks are carried out in submission order.</li>
+    <li>Repairs are carried out ahead of other tasks, files with the fewest
+        copies left first.</li>
+    <li>A task for a path being worked on waits until the work is done,
+        while tasks for other paths are carried out by other workers.</li>
+    </ul>
+ */
+public class ReplicationQueueTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking naming server replication " +
+                                         "queue";
+
+    /** Work carried out by the queue, in order. */
+    private final List<String>  log = new ArrayList<String>();
+    /** Set when the first task may complete. */
+    private boolean             released = false;
+
+    /** Performs the test.
+
+        @throws TestFailed If any of the tests fail.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        testMerging();
+        testRepairs();
+        testRunningPath();
+    }
+
+    /** Checks merging, dropping and ordering of requests. */
+    private void testMerging() throws TestFailed
+    {
+        ReplicationQueue    queue = new ReplicationQueue(1, 2, new Handler());
+
+        queue.start();
+
+        try
+        {
+            // Occupy the only worker until the queue has been filled.
+            queue.adjust(new Path("/a"));
+            waitFor(1);
+
+            queue.adjust(new Path("/b"));
+            queue.adjust(new Path("/b"));
+            queue.catchUp(new Path("/b"));
+            queue.adjust(new Path("/c"));
+
+            if(queue.adjust(new Path("/d")) || queue.catchUp(new Path("/e")))
+                throw new TestFailed("request accepted by full queue");
+
+            if(queue.statistics().queued() != 2)
+            {
+                throw new TestFailed("requests for the same path not " +
+                                     "merged");
+            }
+
+            synchronized(this)
+            {
+                released = true;
+                notifyAll();
+            }
+
+            waitFor(4);
+
+            List<String>    expected =
+                Arrays.asList("adjust /a", "catch up /b", "adjust /b",
+                              "adjust /c");
+            synchronized(this)
+            {
+                if(!log.equals(expected))
+                    throw new TestFailed("queue carried out " + log);
+            }
+
+            ReplicationStatistics   statistics = queue.statistics();
+            if(statistics.dropped() != 2)
+                throw new TestFailed("dropped requests not counted");
+        }
+        catch(InterruptedException e)
+        {
+            throw new TestFailed("interrupted while testing queue", e);
+        }
+        finally
+        {
+            queue.stop();
+        }
+    }
+
+    /** Checks that repairs are carried out first. */
+    private void testRepairs() throws TestFailed
+    {
+        ReplicationQueue    queue = new ReplicationQueue(1, 8, new Handler());
+
+        synchronized(this)
+        {
+            log.clear();
+            released = false;
+        }
+
+        queue.start();
+
+        try
+        {
+            queue.adjust(new Path("/a"));
+            waitFor(1);
+
+            queue.adjust(new Path("/b"));
+            queue.repair(new Path("/c"), 2);
+            queue.catchUp(new Path("/d"));
+            queue.repair(new Path("/e"), 1);
+            queue.repair(new Path("/b"), 3);
+
+            synchronized(this)
+            {
+                released = true;
+                notifyAll();
+            }
+
+            waitFor(5);
+
+            List<String>    expected =
+                Arrays.asList("adjust /a", "adjust /e", "adjust /c",
+                              "adjust /b", "catch up /d");
+            synchronized(this)
+            {
+                if(!log.equals(expected))
+                    throw new TestFailed("queue carried out " + log);
+            }
+        }
+        catch(InterruptedException e)
+        {
+            throw new TestFailed("interrupted while testing queue", e);
+        }
+        finally
+        {
+            queue.stop();
+        }
+    }
+
+    /** Checks that a task for a path being worked on waits for the work. */
+    private void testRunningPath() throws TestFailed
+    {
+        ReplicationQueue    queue = new ReplicationQueue(2, 8, new Handler());
+
+        synchronized(this)
+        {
+            log.clear();
+            released = false;
+        }
+
+        queue.start();
+
+        try
+        {
+            queue.adjust(new Path("/a"));
+            waitFor(1);
+
+            // The second worker is idle, but must not take the task for /a.
+            queue.catchUp(new Path("/a"));
+            queue.adjust(new Path("/b"));
+            waitFor(2);
+
+            if(queue.statistics().queued() != 1)
+                throw new TestFailed("task for running path not queued");
+
+            synchronized(this)
+            {
+                released = true;
+                notifyAll();
+            }
+
+            waitFor(3);
+
+            List<String>    expected =
+                Arrays.asList("adjust /a", "adjust /b", "catch up /a");
+            synchronized(this)
+            {
+                if(!log.equals(expected))
+                    throw new TestFailed("queue carried out " + log);
+            }
+        }
+        catch(InterruptedException e)
+        {
+            throw new TestFailed("interrupted while testing queue", e);
+        }
+        finally
+        {
+            queue.stop();
+        }
+    }
+
+    /** Waits until the given number of tasks have been started. */
+    private synchronized void waitFor(int count) throws InterruptedException
+    {
+        while(log.size() < count)
+            wait();
+    }
+
+    /** Records the work requested of it, holding up the first task until it
+        is released. */
+    private class Handler implements ReplicationQueue.Handler
+    {
+        @Override
+        public void adjust(Path file)
+        {
+            record("adjust " + file);
+        }
+
+        @Override
+        public void catchUp(Path file)
+        {
+            record("catch up " + file);
+        }
+
+        private void record(String work)
+        {
+            synchronized(ReplicationQueueTest.this)
+            {
+                boolean     first = log.isEmpty();
+
+                log.add(work);
+                ReplicationQueueTest.this.notifyAll();
+
+                try
+                {
+                    while(first && !released)
+                        ReplicationQueueTest.this.wait();
+                }
+                catch(InterruptedException e) { }
+            }
+        }
+    }
+}
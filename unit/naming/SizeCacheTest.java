@@ -0,0 +1,162 @@
+package naming;
+
+import java.lang.reflect.Method;
+
+import test.*;
+import common.*;
+import storage.*;
+
+/** Tests the cache of file sizes kept by the naming server.
+
+    <p>
+    The storage server is a stub double that answers size requests and
+    counts them.
+
+    <p>
+    Tests include:
+    <ul>
+    <li>Sizes are read from the storage server once, and then cached.</li>
+    <li>Exclusive locks on an ancestor of a file do not make its cached size
+        stale, whether for <code>stat</code> or for listings with
+        attributes.</li>
+    <li>Sizes are not cached while a file is given out for writing, and are
+        read again when the exclusive lock covering the write is
+        released.</li>
+    <li>Releasing an exclusive lock on the file itself makes its cached size
+        stale.</li>
+    <li>The usage of the storage server reports the file as being of unknown
+        size until its size is read, and then counts the size last read.</li>
+    </ul>
+ */
+public class SizeCacheTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking naming server size cache";
+
+    /** Directory holding the file. */
+    private final Path          directory = new Path("/directory");
+    /** File whose size is cached. */
+    private final Path          file = new Path("/directory/file");
+
+    /** Naming server caching the size. */
+    private NamingServer        server;
+    /** Size of the file on the storage server. */
+    private volatile long       size = 100;
+    /** Size requests made to the storage server. */
+    private volatile int        requests = 0;
+
+    /** Creates the naming server and registers the storage server. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        try
+        {
+            server = new NamingServer();
+            server.register(StubDouble.create(Storage.class, new Sizes(this)),
+                            StubDouble.create(Command.class, new Sizes(this)),
+                            new Path[] {file});
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to register storage server", t);
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If any of the tests fail.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        try
+        {
+            expectUsage(0, 1, "before the size is read");
+            expect(server.stat(file).size(), 1, "first stat");
+            expectUsage(100, 0, "after the size is read");
+            expect(server.stat(file).size(), 1, "second stat");
+
+            server.lock(directory, true);
+            server.unlock(directory, true);
+            expect(server.stat(file).size(), 1,
+                   "stat after lock on directory");
+            expect(server.listWithAttributes(directory)[0].size(),
+                   1, "listing after lock on directory");
+
+            // Write the file under a lock on its directory.
+            server.lock(directory, true);
+            server.getStorage(file);
+            size = 200;
+            expect(server.stat(file).size(), 2, "stat during write");
+            server.unlock(directory, true);
+            expect(server.stat(file).size(), 3, "stat after write");
+            expect(server.stat(file).size(), 3, "second stat after write");
+
+            server.lock(file, true);
+            size = 300;
+            server.unlock(file, true);
+            expect(server.stat(file).size(), 4, "stat after lock on file");
+            expectUsage(300, 0, "after the size is read again");
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("error while testing size cache", t);
+        }
+    }
+
+    /** Checks the size given, and the number of size requests made. */
+    private void expect(long given, int made, String what) throws TestFailed
+    {
+        if(given != size)
+            throw new TestFailed("wrong size given: " + what);
+
+        if(requests != made)
+        {
+            throw new TestFailed(requests + " size requests made instead of " +
+                                 made + ": " + what);
+        }
+    }
+
+    /** Checks the usage reported for the storage server. */
+    private void expectUsage(long bytes, long unsized, String what)
+        throws TestFailed
+    {
+        ServerUsage[]       usage = server.usage();
+
+        if(usage.length != 1 || usage[0].files() != 1 ||
+           usage[0].bytes() != bytes || usage[0].unsizedFiles() != unsized)
+        {
+            throw new TestFailed("wrong usage reported " + what);
+        }
+    }
+
+    /** Answers size requests with the size set by the test, and counts
+        them.
+     */
+    private static class Sizes extends StubDouble
+    {
+        private static final long serialVersionUID = 1L;
+
+        /** Test setting the size. */
+        private final transient SizeCacheTest   test;
+
+        /** Creates a double answering with the size set by the given test. */
+        Sizes(SizeCacheTest test)
+        {
+            this.test = test;
+        }
+
+        @Override
+        protected Object call(Method method, Object[] arguments)
+        {
+            if(method.getName().equals("size"))
+            {
+                ++test.requests;
+                return test.size;
+            }
+
+            throw new UnsupportedOperationException(method.getName());
+        }
+    }
+}
@@ -0,0 +1,273 @@
+package storage;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+import test.*;
+
+/** Tests the storage server block indexes.
+
+    <p>
+    Tests include:
+    <ul>
+    <li>Bytes written and indexed are read back, from within a block and
+        across blocks.</li>
+    <li>A corrupted block is detected by reads of any of its bytes, and by
+        checks of a whole mapping, while other blocks remain readable.</li>
+    <li>An index saved to disk is loaded again, and an index that does not
+        match its file, or that was marked dirty and not updated, is
+        rebuilt.</li>
+    <li>Writes past the end of the file and truncation update the
+        blocks.</li>
+    </ul>
+ */
+public class BlockIndexTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking storage server block indexes";
+
+    /** Size of the blocks. */
+    private static final int    BLOCK_SIZE = 100;
+
+    /** Directory holding the files indexed. */
+    private TemporaryDirectory  directory = null;
+
+    /** Creates the temporary directory. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        try
+        {
+            directory = new TemporaryDirectory();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to create temporary directory", t);
+        }
+    }
+
+    /** Removes the temporary directory. */
+    @Override
+    protected void clean()
+    {
+        if(directory != null)
+        {
+            directory.remove();
+            directory = null;
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If any of the tests fail.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        try
+        {
+            testReadWrite();
+            testCorruption();
+            testReload();
+            testResize();
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("error while testing block index", t);
+        }
+    }
+
+    /** Checks that written bytes are read back. */
+    private void testReadWrite() throws Throwable
+    {
+        FileChannel     data = open("rw");
+        BlockIndex      blocks = index("rw", data);
+        byte[]          written = random(450, 1);
+
+        write(data, blocks, 0, written);
+
+        // Overwrite part of two blocks.
+        byte[]          patch = random(60, 2);
+        write(data, blocks, 170, patch);
+        System.arraycopy(patch, 0, written, 170, patch.length);
+
+        if(blocks.blocks() != 5)
+            throw new TestFailed("wrong number of blocks");
+
+        check(blocks.read(0, 450), written, 0, "whole file");
+        check(blocks.read(130, 10), written, 130, "within a block");
+        check(blocks.read(95, 210), written, 95, "across blocks");
+        check(blocks.read(440, 10), written, 440, "end of the file");
+
+        blocks.close();
+        data.close();
+    }
+
+    /** Checks that corrupted blocks are detected. */
+    private void testCorruption() throws Throwable
+    {
+        FileChannel     data = open("corrupt");
+        BlockIndex      blocks = index("corrupt", data);
+        byte[]          written = random(300, 3);
+
+        write(data, blocks, 0, written);
+
+        // Change a byte of the second block behind the index.
+        data.write(ByteBuffer.wrap(new byte[] {(byte)~written[150]}), 150);
+
+        expectCorrupt(blocks, 150, 1, "corrupted byte");
+        expectCorrupt(blocks, 120, 5, "other byte of corrupted block");
+        expectCorrupt(blocks, 50, 100, "range ending in corrupted block");
+
+        check(blocks.read(0, 100), written, 0, "block before corruption");
+        check(blocks.read(200, 100), written, 200, "block after corruption");
+
+        try
+        {
+            blocks.verify(data.map(FileChannel.MapMode.READ_ONLY, 0, 300));
+            throw new TestFailed("corruption not detected in mapping");
+        }
+        catch(IOException e) { }
+
+        blocks.close();
+        data.close();
+    }
+
+    /** Checks that indexes are loaded from disk, or rebuilt. */
+    private void testReload() throws Throwable
+    {
+        FileChannel     data = open("reload");
+        BlockIndex      blocks = index("reload", data);
+        byte[]          written = random(250, 4);
+
+        write(data, blocks, 0, written);
+        blocks.close();
+
+        // A corruption made while the index is closed is detected once the
+        // index is loaded again.
+        data.write(ByteBuffer.wrap(new byte[] {(byte)~written[10]}), 10);
+        blocks = index("reload", data);
+        expectCorrupt(blocks, 0, 20, "corruption after reload");
+        blocks.close();
+
+        // A file whose length no longer matches its index is indexed again.
+        data.write(ByteBuffer.wrap(new byte[] {1}), 250);
+        blocks = index("reload", data);
+        if(blocks.blocks() != 3)
+            throw new TestFailed("index not rebuilt for new length");
+        blocks.read(0, 251);
+
+        // A write that reached the file but not the index, leaving the
+        // length unchanged, is indexed again.
+        blocks.markDirty();
+        data.write(ByteBuffer.wrap(new byte[] {(byte)~written[20]}), 20);
+        blocks.close();
+        blocks = index("reload", data);
+        blocks.read(0, 251);
+
+        blocks.close();
+        data.close();
+    }
+
+    /** Checks that writes past the end and truncation update blocks. */
+    private void testResize() throws Throwable
+    {
+        FileChannel     data = open("resize");
+        BlockIndex      blocks = index("resize", data);
+        byte[]          written = random(150, 5);
+
+        write(data, blocks, 0, written);
+
+        // Writing past the end leaves a gap of zeros.
+        byte[]          tail = random(20, 6);
+        write(data, blocks, 380, tail);
+
+        byte[]          expected = new byte[400];
+        System.arraycopy(written, 0, expected, 0, written.length);
+        System.arraycopy(tail, 0, expected, 380, tail.length);
+
+        if(blocks.blocks() != 4)
+            throw new TestFailed("wrong number of blocks after extension");
+        check(blocks.read(0, 400), expected, 0, "after extension");
+
+        data.truncate(120);
+        blocks.update(120, new byte[0]);
+
+        if(blocks.blocks() != 2)
+            throw new TestFailed("wrong number of blocks after truncation");
+        check(blocks.read(0, 120), expected, 0, "after truncation");
+
+        blocks.close();
+        blocks = index("resize", data);
+        check(blocks.read(0, 120), expected, 0, "truncated index reloaded");
+
+        blocks.close();
+        data.close();
+    }
+
+    /** Writes bytes to a file and updates its index. */
+    private void write(FileChannel data, BlockIndex blocks, long offset,
+                       byte[] bytes) throws IOException
+    {
+        ByteBuffer      buffer = ByteBuffer.wrap(bytes);
+
+        while(buffer.hasRemaining())
+            data.write(buffer, offset + buffer.position());
+
+        blocks.update(offset, bytes);
+    }
+
+    /** Checks that a read fails because of corruption. */
+    private void expectCorrupt(BlockIndex blocks, long offset, int count,
+                               String what) throws TestFailed
+    {
+        try
+        {
+            blocks.read(offset, count);
+        }
+        catch(IOException e)
+        {
+            return;
+        }
+
+        throw new TestFailed("corruption not detected: " + what);
+    }
+
+    /** Checks that bytes read match the expected bytes at an offset. */
+    private void check(byte[] read, byte[] expected, int offset, String what)
+        throws TestFailed
+    {
+        if(!Arrays.equals(read, Arrays.copyOfRange(expected, offset,
+                                                   offset + read.length)))
+        {
+            throw new TestFailed("wrong bytes read: " + what);
+        }
+    }
+
+    /** Opens a channel to a data file. */
+    private FileChannel open(String name) throws IOException
+    {
+        return new RandomAccessFile(new File(directory.root(), name), "rw")
+            .getChannel();
+    }
+
+    /** Opens the index of a data file. */
+    private BlockIndex index(String name, FileChannel data) throws IOException
+    {
+        File            index =
+            new File(new File(directory.root(), "index"), name);
+
+        return BlockIndex.open(index, data, BLOCK_SIZE);
+    }
+
+    /** Returns random bytes. */
+    private byte[] random(int count, long seed)
+    {
+        byte[]          bytes = new byte[count];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+}
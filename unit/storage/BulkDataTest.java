@@ -0,0 +1,298 @@
+package storage;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import test.*;
+import common.*;
+
+/** Tests the bulk data port of the storage server.
+
+    <p>
+    Tests include:
+    <ul>
+    <li>Ranges of a file are sent in full, including empty ranges.</li>
+    <li>Missing files, directories and ranges outside the file are reported
+        with their own status, and the connection remains usable.</li>
+    <li>A corrupt block is reported as a failure of the read, and the
+        connection remains usable.</li>
+    <li>A transfer stalled by a client that does not read does not keep other
+        requests from changing the directory structure, and completes with
+        the contents the file had, even if it is deleted meanwhile.</li>
+    </ul>
+ */
+public class BulkDataTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking storage server bulk data port";
+
+    /** Size of the small file. */
+    private static final int    SMALL = 100000;
+    /** Size of the large file, well beyond socket buffers. */
+    private static final int    LARGE = 32 * 1024 * 1024;
+
+    /** Directory served by the storage server. */
+    private TemporaryDirectory  directory = null;
+    /** Storage server whose files are sent. */
+    private StorageServer       server = null;
+    /** Bulk data port of the storage server. */
+    private BulkDataServer      bulk = null;
+    /** Address of the bulk data port. */
+    private InetSocketAddress   address;
+
+    /** Small file. */
+    private final Path          small = new Path("/d/small");
+    /** Contents of the small file. */
+    private byte[]              small_data;
+
+    /** Creates the storage server and opens its bulk data port. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        try
+        {
+            directory = new TemporaryDirectory();
+            server = new StorageServer(directory.root());
+            small_data = random(SMALL, 1);
+            server.create(small);
+            server.write(small, 0, small_data);
+
+            bulk = new BulkDataServer(server, 0);
+            bulk.start();
+            address = new InetSocketAddress("127.0.0.1", bulk.port());
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start bulk data port", t);
+        }
+    }
+
+    /** Closes the port and removes the temporary directory. */
+    @Override
+    protected void clean()
+    {
+        if(bulk != null)
+        {
+            bulk.stop();
+            bulk = null;
+        }
+
+        server = null;
+
+        if(directory != null)
+        {
+            directory.remove();
+            directory = null;
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If any of the tests fail.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        try
+        {
+            testReads();
+            testErrors();
+            testCorruption();
+            testStalledClient();
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("error while testing bulk data port", t);
+        }
+    }
+
+    /** Checks that ranges of a file are sent in full. */
+    private void testReads() throws Throwable
+    {
+        BulkConnection      connection = new BulkConnection(address);
+
+        try
+        {
+            check(connection, 0, SMALL, "whole file");
+            check(connection, 1234, 5678, "range within the file");
+            check(connection, SMALL - 1, 1, "last byte");
+            check(connection, SMALL, 0, "empty range at the end");
+        }
+        finally
+        {
+            connection.close();
+        }
+    }
+
+    /** Checks that errors are reported, leaving the connection usable. */
+    private void testErrors() throws Throwable
+    {
+        BulkConnection      connection = new BulkConnection(address);
+
+        try
+        {
+            try
+            {
+                connection.read(new Path("/missing"), 0,
+                                ByteBuffer.allocate(1));
+                throw new TestFailed("missing file read");
+            }
+            catch(FileNotFoundException e) { }
+
+            try
+            {
+                connection.read(new Path("/d"), 0, ByteBuffer.allocate(1));
+                throw new TestFailed("directory read");
+            }
+            catch(FileNotFoundException e) { }
+
+            try
+            {
+                connection.read(small, SMALL - 10, ByteBuffer.allocate(20));
+                throw new TestFailed("read past the end of the file accepted");
+            }
+            catch(IndexOutOfBoundsException e) { }
+
+            try
+            {
+                connection.read(small, -1, ByteBuffer.allocate(1));
+                throw new TestFailed("read at a negative offset accepted");
+            }
+            catch(IndexOutOfBoundsException e) { }
+
+            check(connection, 0, 100, "read after errors");
+        }
+        finally
+        {
+            connection.close();
+        }
+    }
+
+    /** Checks that corrupt blocks fail the read but not the connection. */
+    private void testCorruption() throws Throwable
+    {
+        Path                path = new Path("/corrupt");
+        byte[]              data = random(1000, 2);
+
+        server.create(path);
+        server.write(path, 0, data);
+
+        RandomAccessFile    file =
+            new RandomAccessFile(path.toFile(directory.root()), "rw");
+
+        try
+        {
+            file.seek(500);
+            file.write(~data[500]);
+        }
+        finally
+        {
+            file.close();
+        }
+
+        BulkConnection      connection = new BulkConnection(address);
+
+        try
+        {
+            try
+            {
+                connection.read(path, 0, ByteBuffer.allocate(1000));
+                throw new TestFailed("corrupt block sent");
+            }
+            catch(FileNotFoundException e)
+            {
+                throw new TestFailed("corrupt block reported as missing", e);
+            }
+            catch(IOException e) { }
+
+            check(connection, 0, 100, "read after failed read");
+        }
+        finally
+        {
+            connection.close();
+        }
+    }
+
+    /** Checks that a stalled transfer holds no lock on the server. */
+    private void testStalledClient() throws Throwable
+    {
+        Path                large = new Path("/large");
+        byte[]              data = random(LARGE, 3);
+
+        server.create(large);
+        server.write(large, 0, data);
+
+        // Request the whole file, and read only the status until the other
+        // requests are done, so that the transfer blocks on the socket.
+        SocketChannel       client = SocketChannel.open(address);
+
+        try
+        {
+            byte[]          name =
+                large.toString().getBytes(StandardCharsets.UTF_8);
+            ByteBuffer      request = ByteBuffer.allocate(name.length + 16);
+            request.putInt(name.length).put(name).putLong(0).putInt(LARGE);
+            request.flip();
+            BulkConnection.writeFully(client, request);
+
+            ByteBuffer      status = ByteBuffer.allocate(1);
+            BulkConnection.readFully(client, status);
+            if(status.get(0) != BulkConnection.OK)
+                throw new TestFailed("large file not sent");
+
+            // Both calls lock the directory structure for exclusive access.
+            Thread          structure = new Thread() {
+                @Override
+                public void run()
+                {
+                    server.create(new Path("/other"));
+                    server.delete(large);
+                }
+            };
+
+            structure.setDaemon(true);
+            structure.start();
+            structure.join(10000);
+            if(structure.isAlive())
+                throw new TestFailed("stalled transfer blocks the server");
+
+            ByteBuffer      received = ByteBuffer.allocate(LARGE);
+            BulkConnection.readFully(client, received);
+            if(!Arrays.equals(received.array(), data))
+                throw new TestFailed("wrong bytes sent for deleted file");
+        }
+        finally
+        {
+            client.close();
+        }
+    }
+
+    /** Reads a range of the small file and checks the bytes received. */
+    private void check(BulkConnection connection, int offset, int count,
+                       String what) throws IOException, TestFailed
+    {
+        ByteBuffer          buffer = ByteBuffer.allocate(count);
+
+        connection.read(small, offset, buffer);
+        if(!Arrays.equals(buffer.array(),
+                          Arrays.copyOfRange(small_data, offset,
+                                             offset + count)))
+        {
+            throw new TestFailed("wrong bytes sent: " + what);
+        }
+    }
+
+    /** Returns random bytes. */
+    private byte[] random(int count, long seed)
+    {
+        byte[]              bytes = new byte[count];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+}
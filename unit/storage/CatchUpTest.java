@@ -0,0 +1,158 @@
+package storage;
+
+import java.io.*;
+import java.util.*;
+
+import test.*;
+import common.*;
+
+/** Tests bringing a copy of a file up to date from another storage server.
+
+    <p>
+    Tests include:
+    <ul>
+    <li>Digests are computed over blocks that are multiples of the block size
+        of the block index, and other block sizes are rejected.</li>
+    <li>A stale copy with changed blocks and a different length is made
+        identical to the current copy, whether it is longer or shorter.</li>
+    </ul>
+ */
+public class CatchUpTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking storage server copy catch-up";
+
+    /** Size of the blocks of the block index. */
+    private static final int    BLOCK = 64 * 1024;
+    /** Size of the current copy, ending with a partial block. */
+    private static final int    SIZE = 5 * BLOCK + 1234;
+
+    /** Directory holding the files of both servers. */
+    private TemporaryDirectory  directory = null;
+    /** Server holding the current copy. */
+    private StorageServer       current;
+    /** Server holding the stale copy. */
+    private StorageServer       stale;
+
+    /** File brought up to date. */
+    private final Path          file = new Path("/file");
+
+    /** Creates the storage servers. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        try
+        {
+            directory = new TemporaryDirectory();
+            current = new StorageServer(server("current"));
+            stale = new StorageServer(server("stale"));
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to create storage servers", t);
+        }
+    }
+
+    /** Creates the directory served by a storage server. */
+    private File server(String name)
+    {
+        File                root = new File(directory.root(), name);
+
+        root.mkdir();
+        return root;
+    }
+
+    /** Removes the temporary directory. */
+    @Override
+    protected void clean()
+    {
+        if(directory != null)
+        {
+            directory.remove();
+            directory = null;
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If any of the tests fail.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        try
+        {
+            byte[]          data = random(SIZE, 1);
+
+            current.create(file);
+            current.write(file, 0, data);
+
+            testBlockSizes();
+
+            // The stale copy differs in its second block, and is longer.
+            byte[]          longer = Arrays.copyOf(data, SIZE + 3 * BLOCK);
+            longer[BLOCK + 10] ^= 1;
+            stale.create(file);
+            stale.write(file, 0, longer);
+            catchUp(data, "longer copy");
+
+            // The stale copy differs in its first block, and is shorter.
+            byte[]          shorter = Arrays.copyOf(data, 2 * BLOCK + 7);
+            shorter[3] ^= 1;
+            stale.delete(file);
+            stale.create(file);
+            stale.write(file, 0, shorter);
+            catchUp(data, "shorter copy");
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("error while testing catch-up", t);
+        }
+    }
+
+    /** Checks which block sizes digests are computed for. */
+    private void testBlockSizes() throws Throwable
+    {
+        if(current.checksums(file, BLOCK).length != 6 ||
+           current.checksums(file, 2 * BLOCK).length != 3)
+        {
+            throw new TestFailed("wrong number of digests");
+        }
+
+        for(int size : new int[] {0, -BLOCK, 1000, BLOCK + 1, 65 * BLOCK,
+                                  Integer.MAX_VALUE})
+        {
+            try
+            {
+                current.checksums(file, size);
+                throw new TestFailed("digests computed for blocks of " + size +
+                                     " bytes");
+            }
+            catch(IllegalArgumentException e) { }
+        }
+    }
+
+    /** Brings the stale copy up to date, and checks its contents. */
+    private void catchUp(byte[] data, String what) throws Throwable
+    {
+        if(!stale.synchronize(file, current))
+            throw new TestFailed("catch-up failed for " + what);
+
+        if(stale.size(file) != SIZE ||
+           !Arrays.equals(stale.read(file, 0, SIZE), data))
+        {
+            throw new TestFailed("wrong contents after catch-up of " + what);
+        }
+    }
+
+    /** Returns random bytes generated from the given seed. */
+    private static byte[] random(int size, long seed)
+    {
+        byte[]              bytes = new byte[size];
+
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+}
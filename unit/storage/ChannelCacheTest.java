@@ -0,0 +1,201 @@
+package storage;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+
+import test.*;
+import common.*;
+
+/** Tests the storage server cache of open file channels.
+
+    <p>
+    Tests include:
+    <ul>
+    <li>Channels are reused until evicted, and the least recently used channel
+        is closed when the cache is over capacity.</li>
+    <li>A channel evicted or invalidated while in use stays open until it is
+        released.</li>
+    <li>Invalidating a directory removes the channels to every file under
+        it.</li>
+    <li>A channel opened only for reading is not returned for writes.</li>
+    </ul>
+ */
+public class ChannelCacheTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking storage server file channel cache";
+
+    /** Directory holding the files opened. */
+    private TemporaryDirectory  directory = null;
+
+    /** Creates the temporary directory and the files opened. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        try
+        {
+            directory = new TemporaryDirectory();
+            directory.add(new String[] {"a"});
+            directory.add(new String[] {"b"});
+            directory.add(new String[] {"c"});
+            directory.add(new String[] {"dir", "d"});
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to create temporary directory", t);
+        }
+    }
+
+    /** Removes the temporary directory. */
+    @Override
+    protected void clean()
+    {
+        if(directory != null)
+        {
+            directory.remove();
+            directory = null;
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If any of the tests fail.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        try
+        {
+            testEviction();
+            testInUse();
+            testInvalidateDirectory();
+            testWritable();
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("error while testing channel cache", t);
+        }
+    }
+
+    /** Checks that the least recently used channel is closed first. */
+    private void testEviction() throws Throwable
+    {
+        ChannelCache        cache = new ChannelCache(2);
+        Path                a = new Path("/a");
+        Path                b = new Path("/b");
+        FileChannel         first = open(a);
+
+        cache.release(cache.add(a, first, true));
+        cache.release(cache.add(b, open(b), true));
+
+        ChannelCache.Entry  reused = cache.acquire(a, true);
+        if(reused == null || reused.channel != first)
+            throw new TestFailed("cached channel not reused");
+        cache.release(reused);
+
+        // b is now the least recently used channel.
+        Path                c = new Path("/c");
+        cache.release(cache.add(c, open(c), true));
+
+        if(cache.size() != 2 || cache.acquire(b, false) != null)
+            throw new TestFailed("least recently used channel not evicted");
+
+        if(!first.isOpen())
+            throw new TestFailed("recently used channel closed");
+
+        cache.setCapacity(0);
+        if(cache.size() != 0 || first.isOpen())
+            throw new TestFailed("channels not closed when capacity reduced");
+    }
+
+    /** Checks that channels in use are closed only once released. */
+    private void testInUse() throws Throwable
+    {
+        ChannelCache        cache = new ChannelCache(1);
+        Path                a = new Path("/a");
+        ChannelCache.Entry  entry = cache.add(a, open(a), true);
+
+        Path                b = new Path("/b");
+        cache.release(cache.add(b, open(b), true));
+
+        if(!entry.channel.isOpen())
+            throw new TestFailed("channel in use closed on eviction");
+
+        cache.release(entry);
+        if(entry.channel.isOpen())
+            throw new TestFailed("evicted channel not closed on release");
+
+        entry = cache.acquire(b, true);
+        cache.invalidate(b);
+        if(!entry.channel.isOpen())
+            throw new TestFailed("channel in use closed on invalidation");
+
+        cache.release(entry);
+        if(entry.channel.isOpen() || cache.size() != 0)
+            throw new TestFailed("invalidated channel not closed on release");
+    }
+
+    /** Checks that invalidating a directory removes the files under it. */
+    private void testInvalidateDirectory() throws Throwable
+    {
+        ChannelCache        cache = new ChannelCache(4);
+        Path                a = new Path("/a");
+        Path                d = new Path("/dir/d");
+        ChannelCache.Entry  outside = cache.add(a, open(a), true);
+        ChannelCache.Entry  inside = cache.add(d, open(d), true);
+
+        cache.release(outside);
+        cache.release(inside);
+        cache.invalidate(new Path("/dir"));
+
+        if(inside.channel.isOpen() || cache.acquire(d, false) != null)
+            throw new TestFailed("channel under directory not invalidated");
+
+        if(!outside.channel.isOpen() || cache.size() != 1)
+            throw new TestFailed("channel outside directory invalidated");
+
+        cache.clear();
+        if(outside.channel.isOpen())
+            throw new TestFailed("channel not closed when cache cleared");
+    }
+
+    /** Checks that read-only channels are replaced for writes. */
+    private void testWritable() throws Throwable
+    {
+        ChannelCache        cache = new ChannelCache(4);
+        Path                a = new Path("/a");
+        ChannelCache.Entry  reader =
+            cache.add(a, new RandomAccessFile(file(a), "r").getChannel(),
+                      false);
+        cache.release(reader);
+
+        if(cache.acquire(a, true) != null)
+            throw new TestFailed("read-only channel returned for write");
+
+        ChannelCache.Entry  writer = cache.add(a, open(a), true);
+        cache.release(writer);
+
+        if(reader.channel.isOpen())
+            throw new TestFailed("replaced read-only channel not closed");
+
+        ChannelCache.Entry  entry = cache.acquire(a, false);
+        if(entry == null || entry.channel != writer.channel)
+            throw new TestFailed("writable channel not returned for read");
+        cache.release(entry);
+        cache.clear();
+    }
+
+    /** Returns the local file for a path. */
+    private File file(Path path)
+    {
+        return path.toFile(directory.root());
+    }
+
+    /** Opens a channel for reading and writing to a file. */
+    private FileChannel open(Path path) throws IOException
+    {
+        return new RandomAccessFile(file(path), "rw").getChannel();
+    }
+}
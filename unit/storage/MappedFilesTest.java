@@ -0,0 +1,240 @@
+package storage;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+
+import test.*;
+import common.*;
+
+/** Tests the storage server mappings of hot small files.
+
+    <p>
+    Tests include:
+    <ul>
+    <li>Files are mapped only once they have been read often enough, and only
+        if they are small enough.</li>
+    <li>The least recently read files are unmapped when the mappings exceed
+        the budget.</li>
+    <li>Invalidated files are unmapped, and their reads are counted again
+        from zero.</li>
+    <li>A budget of zero disables mapping.</li>
+    </ul>
+ */
+public class MappedFilesTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking storage server mappings of hot files";
+
+    /** Size of the small files. */
+    private static final int    SMALL = 1000;
+    /** Size of the large file. */
+    private static final int    LARGE = 5000;
+
+    /** Directory holding the files mapped. */
+    private TemporaryDirectory  directory = null;
+
+    /** Creates the temporary directory and the files mapped. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        try
+        {
+            directory = new TemporaryDirectory();
+            create("a", SMALL);
+            create("b", SMALL);
+            create("c", SMALL);
+            create("large", LARGE);
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to create temporary directory", t);
+        }
+    }
+
+    /** Removes the temporary directory. */
+    @Override
+    protected void clean()
+    {
+        if(directory != null)
+        {
+            directory.remove();
+            directory = null;
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If any of the tests fail.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        try
+        {
+            testAdmission();
+            testBudget();
+            testInvalidation();
+            testDisabled();
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("error while testing file mappings", t);
+        }
+    }
+
+    /** Checks that files are mapped after enough reads, if small enough. */
+    private void testAdmission() throws Throwable
+    {
+        MappedFiles         mapped = new MappedFiles();
+        mapped.setLimits(10 * SMALL, 2 * SMALL);
+
+        for(int read = 1; read < MappedFiles.MAP_AFTER_READS; ++read)
+        {
+            if(read(mapped, "a") || mapped.size() != 0)
+                throw new TestFailed("file mapped before enough reads");
+        }
+
+        if(!read(mapped, "a"))
+            throw new TestFailed("file not mapped after enough reads");
+
+        for(int read = 0; read < MappedFiles.MAP_AFTER_READS; ++read)
+            read(mapped, "large");
+
+        if(mapped.size() != 1 || mapped.mappedBytes() != SMALL)
+            throw new TestFailed("file larger than the largest size mapped");
+
+        mapped.clear();
+        if(mapped.size() != 0 || mapped.mappedBytes() != 0)
+            throw new TestFailed("files not unmapped when cleared");
+    }
+
+    /** Checks that the least recently read files are unmapped first. */
+    private void testBudget() throws Throwable
+    {
+        MappedFiles         mapped = new MappedFiles();
+        mapped.setLimits(2 * SMALL, SMALL);
+
+        makeHot(mapped, "a");
+        makeHot(mapped, "b");
+        read(mapped, "a");
+        makeHot(mapped, "c");
+
+        if(mapped.size() != 2 || mapped.mappedBytes() != 2 * SMALL)
+            throw new TestFailed("mappings exceed the budget");
+
+        if(!read(mapped, "a") || !read(mapped, "c"))
+            throw new TestFailed("recently read file unmapped");
+
+        if(read(mapped, "b"))
+            throw new TestFailed("least recently read file not unmapped");
+
+        mapped.setLimits(SMALL, SMALL);
+        if(mapped.size() != 1 || mapped.mappedBytes() != SMALL)
+            throw new TestFailed("files not unmapped when budget reduced");
+
+        mapped.clear();
+    }
+
+    /** Checks that invalidated files are unmapped and their reads reset. */
+    private void testInvalidation() throws Throwable
+    {
+        MappedFiles         mapped = new MappedFiles();
+        mapped.setLimits(10 * SMALL, SMALL);
+        Path                a = new Path("/a");
+
+        makeHot(mapped, "a");
+
+        MappedFiles.Entry   entry = mapped.acquire(a);
+        mapped.invalidate(a);
+
+        // The mapping in use must remain readable until released.
+        if(entry.buffer.get(SMALL - 1) != (byte)(SMALL - 1))
+            throw new TestFailed("mapping in use has wrong contents");
+        mapped.release(entry);
+
+        if(mapped.size() != 0 || mapped.mappedBytes() != 0)
+            throw new TestFailed("invalidated file not unmapped");
+
+        if(read(mapped, "a"))
+            throw new TestFailed("reads not reset on invalidation");
+
+        mapped.clear();
+    }
+
+    /** Checks that nothing is mapped with a budget of zero. */
+    private void testDisabled() throws Throwable
+    {
+        MappedFiles         mapped = new MappedFiles();
+
+        for(int read = 0; read <= MappedFiles.MAP_AFTER_READS; ++read)
+        {
+            if(read(mapped, "a"))
+                throw new TestFailed("file mapped while mapping disabled");
+        }
+    }
+
+    /** Reads a file until it is mapped. */
+    private void makeHot(MappedFiles mapped, String name) throws Throwable
+    {
+        for(int read = 0; read < MappedFiles.MAP_AFTER_READS; ++read)
+            read(mapped, name);
+
+        if(!read(mapped, name))
+            throw new TestFailed(name + " not mapped");
+    }
+
+    /** Simulates a read of a file, as done by the storage server.
+
+        @return <code>true</code> if the read was served from a mapping,
+                whether the file was already mapped or mapped by this read.
+     */
+    private boolean read(MappedFiles mapped, String name) throws Throwable
+    {
+        Path                path = new Path("/" + name);
+        MappedFiles.Entry   entry = mapped.acquire(path);
+
+        if(entry == null)
+        {
+            FileChannel     channel =
+                new RandomAccessFile(new File(directory.root(), name), "r")
+                    .getChannel();
+
+            try
+            {
+                entry = mapped.map(path, channel, null);
+            }
+            finally
+            {
+                channel.close();
+            }
+
+            if(entry == null)
+                return false;
+        }
+
+        mapped.release(entry);
+        return true;
+    }
+
+    /** Creates a file holding the given number of bytes. */
+    private void create(String name, int size) throws IOException
+    {
+        byte[]              data = new byte[size];
+        for(int index = 0; index < size; ++index)
+            data[index] = (byte)index;
+
+        FileOutputStream    stream =
+            new FileOutputStream(new File(directory.root(), name));
+
+        try
+        {
+            stream.write(data);
+        }
+        finally
+        {
+            stream.close();
+        }
+    }
+}
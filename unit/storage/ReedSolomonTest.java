@@ -0,0 +1,139 @@
+package storage;
+
+import java.util.*;
+
+import test.*;
+
+/** Tests the Reed-Solomon code used for erasure-coded files.
+
+    <p>
+    Tests include:
+    <ul>
+    <li>Data shards are left unchanged by encoding.</li>
+    <li>Every combination of lost shards up to the number of parity shards is
+        reconstructed exactly, including when only part of each shard is
+        coded.</li>
+    <li>Reconstruction is refused when more shards are lost than there are
+        parity shards.</li>
+    </ul>
+ */
+public class ReedSolomonTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking Reed-Solomon erasure code";
+
+    /** Number of data shards. */
+    private static final int    DATA_SHARDS = 4;
+    /** Number of parity shards. */
+    private static final int    PARITY_SHARDS = 3;
+    /** Length of every shard. */
+    private static final int    SHARD_SIZE = 1000;
+
+    /** Performs the test.
+
+        @throws TestFailed If any of the tests fail.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        ReedSolomon     code = new ReedSolomon(DATA_SHARDS, PARITY_SHARDS);
+        byte[][]        original = encoded(code, new Random(17));
+        int             total = DATA_SHARDS + PARITY_SHARDS;
+
+        // Try every set of lost shards, given as a bit mask.
+        for(int lost = 0; lost < (1 << total); ++lost)
+        {
+            if(Integer.bitCount(lost) > PARITY_SHARDS)
+                continue;
+
+            testReconstruction(code, original, lost, 0, SHARD_SIZE);
+            testReconstruction(code, original, lost, 100, 300);
+        }
+
+        testTooManyLost(code, original);
+    }
+
+    /** Creates random data shards and encodes them. */
+    private byte[][] encoded(ReedSolomon code, Random random)
+        throws TestFailed
+    {
+        byte[][]        shards = new byte[DATA_SHARDS + PARITY_SHARDS][];
+        for(int i = 0; i < shards.length; ++i)
+        {
+            shards[i] = new byte[SHARD_SIZE];
+            if(i < DATA_SHARDS)
+                random.nextBytes(shards[i]);
+        }
+
+        byte[][]        data = new byte[DATA_SHARDS][];
+        for(int i = 0; i < DATA_SHARDS; ++i)
+            data[i] = shards[i].clone();
+
+        code.encode(shards, 0, SHARD_SIZE);
+
+        for(int i = 0; i < DATA_SHARDS; ++i)
+        {
+            if(!Arrays.equals(data[i], shards[i]))
+                throw new TestFailed("encoding modified data shard " + i);
+        }
+
+        return shards;
+    }
+
+    /** Loses the given shards and checks that they are reconstructed over
+        the given range. */
+    private void testReconstruction(ReedSolomon code, byte[][] original,
+                                    int lost, int offset, int count)
+        throws TestFailed
+    {
+        byte[][]        shards = new byte[original.length][];
+        boolean[]       present = new boolean[original.length];
+
+        for(int i = 0; i < original.length; ++i)
+        {
+            present[i] = (lost & (1 << i)) == 0;
+            shards[i] = present[i] ? original[i].clone()
+                                   : new byte[SHARD_SIZE];
+        }
+
+        code.reconstruct(shards, present, offset, count);
+
+        for(int i = 0; i < original.length; ++i)
+        {
+            byte[]      expected = Arrays.copyOfRange(original[i], offset,
+                                                      offset + count);
+            byte[]      actual = Arrays.copyOfRange(shards[i], offset,
+                                                    offset + count);
+
+            if(!Arrays.equals(expected, actual))
+            {
+                throw new TestFailed("shard " + i + " not reconstructed " +
+                                     "with shards " +
+                                     Integer.toBinaryString(lost) + " lost");
+            }
+        }
+    }
+
+    /** Checks that reconstruction is refused when too many shards are
+        lost. */
+    private void testTooManyLost(ReedSolomon code, byte[][] original)
+        throws TestFailed
+    {
+        byte[][]        shards = new byte[original.length][SHARD_SIZE];
+        boolean[]       present = new boolean[original.length];
+
+        for(int i = PARITY_SHARDS + 1; i < original.length; ++i)
+        {
+            present[i] = true;
+            shards[i] = original[i].clone();
+        }
+
+        try
+        {
+            code.reconstruct(shards, present, 0, SHARD_SIZE);
+            throw new TestFailed("reconstruction allowed with too many " +
+                                 "shards lost");
+        }
+        catch(IllegalArgumentException e) { }
+    }
+}